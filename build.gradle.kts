@@ -214,6 +214,36 @@ registerBenchmarkTestByPattern(
     "com.arturskowronski.llama3babylon.hat.benchmark.F16F32WeightStorageBenchmarkTest.benchmarkF16vsF32GPUOnly"
 )
 
+registerBenchmarkTestByPattern(
+    "benchmarkBatchThroughput",
+    "Runs continuous-batching aggregate throughput benchmark across batch sizes.",
+    "com.arturskowronski.llama3babylon.hat.benchmark.BatchThroughputBenchmarkTest.benchmarkAggregateThroughputByBatchSize"
+)
+
+registerBenchmarkTestByPattern(
+    "benchmarkChunkedPrefill",
+    "Runs decode inter-token latency under long-prompt prefill across prefill chunk sizes.",
+    "com.arturskowronski.llama3babylon.hat.benchmark.ChunkedPrefillBenchmarkTest.benchmarkDecodeLatencyUnderPrefillByChunkSize"
+)
+
+registerBenchmarkTestByPattern(
+    "benchmarkAdmissionPriority",
+    "Runs interactive time-to-first-token under a batch backlog, with and without priority classes.",
+    "com.arturskowronski.llama3babylon.hat.benchmark.AdmissionPriorityBenchmarkTest.benchmarkInteractiveLatencyUnderBatchBacklog"
+)
+
+registerBenchmarkTestByPattern(
+    "benchmarkSamplingOverhead",
+    "Runs per-token sampler cost (temperature, top-k, top-p, min-p) against decode time.",
+    "com.arturskowronski.llama3babylon.hat.benchmark.SamplingOverheadBenchmarkTest.benchmarkSamplingOverheadPerToken"
+)
+
+registerBenchmarkTestByPattern(
+    "benchmarkKvEvictionAgreement",
+    "Runs heavy-hitter and sink-window KV eviction agreement with the full cache.",
+    "com.arturskowronski.llama3babylon.hat.benchmark.KvEvictionAgreementBenchmarkTest.benchmarkEvictionAgreementWithFullCache"
+)
+
 tasks.register("benchmarkInference") {
     description = "Runs all 4 inference benchmarks (Plain Java + HAT backends)."
     group = "verification"
@@ -292,16 +322,16 @@ java {
 tasks.withType<JavaCompile> {
     options.compilerArgs.addAll(listOf(
         "--enable-preview",
-        "--add-modules", "jdk.incubator.code",
+        "--add-modules", "jdk.incubator.code,jdk.incubator.vector",
         "--add-exports", "java.base/jdk.internal.vm.annotation=ALL-UNNAMED"
     ))
 }
 
 application {
-    mainClass.set("com.arturskowronski.llama3babylon.hat.GGUFReader")
+    mainClass.set("com.arturskowronski.llama3babylon.hat.server.InferenceServer")
     applicationDefaultJvmArgs = listOf(
         "--enable-preview",
-        "--add-modules=jdk.incubator.code",
+        "--add-modules=jdk.incubator.code,jdk.incubator.vector",
         "--add-exports=java.base/jdk.internal.vm.annotation=ALL-UNNAMED",
         "--enable-native-access=ALL-UNNAMED",
         "-Djava.library.path=$babylonHome/hat/build"
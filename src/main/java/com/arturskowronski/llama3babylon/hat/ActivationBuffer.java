@@ -0,0 +1,141 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import hat.Accelerator;
+import hat.buffer.F32Array;
+
+/**
+ * Activation storage shared by CPU and HAT kernels.
+ *
+ * The host side is a plain {@code float[]}, so plain Java and Vector API kernels
+ * read and write it without going through the HAT iface-mapper proxy (which the
+ * JIT cannot vectorize, see findings.md). The device side is an {@link F32Array}
+ * created lazily on the first HAT access — a pure CPU pipeline never allocates one.
+ *
+ * One side owns the latest data; the other may be stale only inside a dirty
+ * range. Switching sides copies just that range, so conversion happens only at
+ * backend boundaries, and a kernel that writes a slice syncs only that slice
+ * rather than the whole buffer.
+ *
+ * Callers must ask for the side they are about to use, and say whether they write:
+ * <pre>
+ *   float[] in = x.host();                 // read on CPU
+ *   float[] out = y.hostForWrite();        // write on CPU
+ *   F32Array dev = y.deviceForWrite();     // read/write in a HAT kernel
+ * </pre>
+ */
+public final class ActivationBuffer {
+
+    private enum Owner { BOTH, HOST, DEVICE }
+
+    private final Accelerator accelerator;
+    private final float[] host;
+    private F32Array device;
+
+    private Owner owner = Owner.BOTH;
+    // Range where the owner is ahead of the other side (empty when dirtyFrom >= dirtyTo)
+    private int dirtyFrom;
+    private int dirtyTo;
+
+    public ActivationBuffer(Accelerator accelerator, int length) {
+        this.accelerator = accelerator;
+        this.host = new float[length];
+    }
+
+    public int length() {
+        return host.length;
+    }
+
+    /**
+     * Returns the host array for reading, copying back anything a HAT kernel wrote.
+     */
+    public float[] host() {
+        syncToHost();
+        return host;
+    }
+
+    /**
+     * Returns the host array for a CPU kernel that writes the whole buffer (or any part of it).
+     */
+    public float[] hostForWrite() {
+        return hostForWrite(0, host.length);
+    }
+
+    /**
+     * Returns the host array for a CPU kernel that writes only {@code [from, to)}.
+     */
+    public float[] hostForWrite(int from, int to) {
+        syncToHost();
+        markDirty(Owner.HOST, from, to);
+        return host;
+    }
+
+    /**
+     * Returns the device buffer for reading, copying over anything a CPU kernel wrote.
+     */
+    public F32Array device() {
+        syncToDevice();
+        return device;
+    }
+
+    /**
+     * Returns the device buffer for a HAT kernel that writes the whole buffer (or any part of it).
+     */
+    public F32Array deviceForWrite() {
+        return deviceForWrite(0, host.length);
+    }
+
+    /**
+     * Returns the device buffer for a HAT kernel that writes only {@code [from, to)}.
+     */
+    public F32Array deviceForWrite(int from, int to) {
+        syncToDevice();
+        markDirty(Owner.DEVICE, from, to);
+        return device;
+    }
+
+    private void syncToHost() {
+        if (owner == Owner.DEVICE) {
+            for (int i = dirtyFrom; i < dirtyTo; i++) {
+                host[i] = device.array(i);
+            }
+            clean();
+        }
+    }
+
+    private void syncToDevice() {
+        if (device == null) {
+            // First HAT access: the device copy starts as a full mirror of the host
+            device = F32Array.create(accelerator, host.length);
+            for (int i = 0; i < host.length; i++) {
+                device.array(i, host[i]);
+            }
+            clean();
+        } else if (owner == Owner.HOST) {
+            for (int i = dirtyFrom; i < dirtyTo; i++) {
+                device.array(i, host[i]);
+            }
+            clean();
+        }
+    }
+
+    private void markDirty(Owner side, int from, int to) {
+        if (device == null) {
+            // Nothing to keep in sync yet
+            return;
+        }
+        if (owner == side && dirtyFrom < dirtyTo) {
+            dirtyFrom = Math.min(dirtyFrom, from);
+            dirtyTo = Math.max(dirtyTo, to);
+        } else {
+            owner = side;
+            dirtyFrom = from;
+            dirtyTo = to;
+        }
+    }
+
+    private void clean() {
+        owner = Owner.BOTH;
+        dirtyFrom = 0;
+        dirtyTo = 0;
+    }
+}
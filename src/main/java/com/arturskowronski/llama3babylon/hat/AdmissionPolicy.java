@@ -0,0 +1,30 @@
+package com.arturskowronski.llama3babylon.hat;
+
+/**
+ * Limits a {@link BatchScheduler} applies before a request may queue, so that overload
+ * sheds work instead of slowing every request down.
+ *
+ * When a new request would exceed {@code maxQueued} requests or {@code maxQueuedTokens}
+ * tokens (prompt plus token budget, summed over the queue), queued requests of a lower
+ * priority class are dropped, lowest class and latest deadline first, to make room; if
+ * that is not enough the new request is rejected. {@code batchSlots} caps how many batch
+ * slots {@link RequestOptions.Priority#BATCH} requests may hold at once, keeping the rest
+ * free for the other classes.
+ *
+ * @param maxQueued most requests waiting for a slot
+ * @param maxQueuedTokens most prompt plus new tokens across waiting requests
+ * @param batchSlots most running {@code BATCH} requests
+ */
+public record AdmissionPolicy(int maxQueued, long maxQueuedTokens, int batchSlots) {
+
+    /** No limits: every request queues and batch work may fill the batch. */
+    public static final AdmissionPolicy UNBOUNDED = new AdmissionPolicy(Integer.MAX_VALUE, Long.MAX_VALUE,
+            Integer.MAX_VALUE);
+
+    public AdmissionPolicy {
+        if (maxQueued <= 0 || maxQueuedTokens <= 0 || batchSlots <= 0) {
+            throw new IllegalArgumentException("Admission limits must be positive: " + maxQueued + " queued, "
+                    + maxQueuedTokens + " queued tokens, " + batchSlots + " batch slots");
+        }
+    }
+}
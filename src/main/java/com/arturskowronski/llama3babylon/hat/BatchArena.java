@@ -0,0 +1,95 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import com.arturskowronski.llama3babylon.hat.kv.KVCache;
+import hat.Accelerator;
+
+/**
+ * Activation buffers for a batched forward pass: one {@link ScratchArena}-shaped set per
+ * row, laid out as arrays so a batched GEMV can take all rows at once.
+ *
+ * A row is one token of one sequence; a sequence prefilling a chunk of its prompt takes
+ * several consecutive rows. Like the scratch arena, the arena is shared by every layer
+ * and overwritten by the next step. Logits are only kept for the rows that get sampled,
+ * at most one per sequence, so they are sized by sequences rather than rows.
+ *
+ * @param x hidden state per row [HIDDEN_SIZE]
+ * @param q query projection per row [NUM_HEADS * HEAD_DIM]
+ * @param k key projection per row [NUM_KV_HEADS * HEAD_DIM]
+ * @param v value projection per row [NUM_KV_HEADS * HEAD_DIM]
+ * @param attnOut attention output per row [HIDDEN_SIZE]
+ * @param ffn1Out gate projection per row [INTERMEDIATE_SIZE]
+ * @param ffn3Out up projection per row [INTERMEDIATE_SIZE]
+ * @param ffnOut down projection per row [HIDDEN_SIZE]
+ * @param residual saved residual stream per row [HIDDEN_SIZE]
+ * @param logits classifier output per sampled row [VOCAB_SIZE]
+ * @param sampled hidden states of the sampled rows, gathered before the classifier
+ * @param layerCaches one layer's KV cache per row, gathered before each layer
+ * @param queryRotations query copies per rotary group of a windowed KV cache, shared by
+ *                       the rows since they run attention one at a time
+ */
+public record BatchArena(ActivationBuffer[] x, ActivationBuffer[] q, ActivationBuffer[] k, ActivationBuffer[] v,
+                         ActivationBuffer[] attnOut, ActivationBuffer[] ffn1Out, ActivationBuffer[] ffn3Out,
+                         ActivationBuffer[] ffnOut, ActivationBuffer[] residual, ActivationBuffer[] logits,
+                         ActivationBuffer[] sampled, KVCache[] layerCaches, QueryRotations queryRotations) {
+
+    /**
+     * Allocates an arena for up to {@code capacity} single-token sequences per step.
+     */
+    public static BatchArena allocate(Accelerator acc, int capacity) {
+        return allocate(acc, capacity, capacity);
+    }
+
+    /**
+     * Allocates an arena for up to {@code capacity} rows per step, of which at most
+     * {@code sampledRows} produce logits.
+     */
+    public static BatchArena allocate(Accelerator acc, int capacity, int sampledRows) {
+        if (capacity <= 0 || sampledRows <= 0 || sampledRows > capacity) {
+            throw new IllegalArgumentException("Invalid batch arena shape: " + capacity + " rows, "
+                    + sampledRows + " sampled");
+        }
+        int kvDim = LlamaModel.NUM_KV_HEADS * LlamaModel.HEAD_DIM;
+        return new BatchArena(
+                buffers(acc, capacity, LlamaModel.HIDDEN_SIZE),
+                buffers(acc, capacity, LlamaModel.HIDDEN_SIZE),
+                buffers(acc, capacity, kvDim),
+                buffers(acc, capacity, kvDim),
+                buffers(acc, capacity, LlamaModel.HIDDEN_SIZE),
+                buffers(acc, capacity, LlamaModel.INTERMEDIATE_SIZE),
+                buffers(acc, capacity, LlamaModel.INTERMEDIATE_SIZE),
+                buffers(acc, capacity, LlamaModel.HIDDEN_SIZE),
+                buffers(acc, capacity, LlamaModel.HIDDEN_SIZE),
+                buffers(acc, sampledRows, LlamaModel.VOCAB_SIZE),
+                new ActivationBuffer[sampledRows],
+                new KVCache[capacity],
+                new QueryRotations(acc, LlamaModel.HIDDEN_SIZE));
+    }
+
+    /** Maximum number of rows (tokens) per step. */
+    public int capacity() {
+        return x.length;
+    }
+
+    /** Maximum number of rows per step that produce logits. */
+    public int sampledCapacity() {
+        return logits.length;
+    }
+
+    /**
+     * Host bytes held by this arena (device mirrors, if any, double it).
+     */
+    public long bytes() {
+        long rowFloats = (long) x[0].length() + q[0].length() + k[0].length() + v[0].length() + attnOut[0].length()
+                + ffn1Out[0].length() + ffn3Out[0].length() + ffnOut[0].length() + residual[0].length();
+        return (rowFloats * capacity() + (long) logits[0].length() * sampledCapacity()) * Float.BYTES
+                + queryRotations.bytes();
+    }
+
+    private static ActivationBuffer[] buffers(Accelerator acc, int capacity, int length) {
+        ActivationBuffer[] buffers = new ActivationBuffer[capacity];
+        for (int b = 0; b < capacity; b++) {
+            buffers[b] = new ActivationBuffer(acc, length);
+        }
+        return buffers;
+    }
+}
@@ -0,0 +1,732 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import com.arturskowronski.llama3babylon.hat.kv.KVCache;
+import com.arturskowronski.llama3babylon.hat.sampling.Sampler;
+import com.arturskowronski.llama3babylon.hat.stream.GenerationStats;
+import com.arturskowronski.llama3babylon.hat.stream.LatencyRecorder;
+import com.arturskowronski.llama3babylon.hat.stream.TokenListener;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Continuous batching over one {@link LlamaInference}: concurrent generations share
+ * every forward pass instead of taking turns.
+ *
+ * A single worker thread owns the model. Each step it feeds tokens of every active
+ * sequence through {@link LlamaInference#forwardBatch}, so the weights are streamed
+ * once per step rather than once per sequence; each sequence keeps its own position and
+ * KV caches from {@link LlamaInference#newKvCaches()}. Between steps, finished and
+ * cancelled sequences retire (their blocks go back to the pool) and queued ones join,
+ * up to {@code maxBatch}.
+ *
+ * Prefill is chunked. A step holds at most {@code stepTokens} tokens: first one decode
+ * token per generating sequence, then up to {@code prefillChunk} prompt tokens per
+ * prefilling sequence, oldest first, until the budget runs out. A long prompt therefore
+ * joins the running replies a chunk at a time instead of stalling them for its whole
+ * prefill, and the budget bounds how much longer a step gets while it does. Larger
+ * chunks fill prompts faster; smaller budgets keep inter-token latency lower. Inter-token
+ * latency and time-to-first-token percentiles are reported by {@link #stats()}.
+ *
+ * Admission is controlled. Each request carries {@link RequestOptions}: the queue hands
+ * out free slots by priority class, then earliest deadline first, and drops requests
+ * that waited past their {@code maxQueueTime}. An {@link AdmissionPolicy} bounds the
+ * queue; when it is full, lower classes are shed first (see {@link RequestRejectedException}),
+ * and batch-class work can be kept to a share of the slots. Callers cancel cooperatively
+ * through the listener or by cancelling the returned future: a queued request leaves at
+ * once, a running one between two steps. Queue depth, queue wait and rejections are
+ * reported per class.
+ *
+ * Each sequence picks its tokens with its own {@link Sampler}, greedy unless the caller
+ * passes one, and matches {@link LlamaInference#generateStreaming} with that sampler token
+ * for token. Listeners run on the worker thread between steps: a slow listener slows the
+ * whole batch, so hand blocking work (such as network writes) to another thread.
+ * The inference instance must not be used for anything else while the scheduler runs.
+ */
+public final class BatchScheduler implements AutoCloseable {
+
+    public static final int DEFAULT_PREFILL_CHUNK = 32;
+
+    private static final long IDLE_POLL_MILLIS = 100;
+    private static final int LATENCY_WINDOW = 16_384;
+    private static final Duration MAX_QUEUE_TIME = Duration.ofDays(365);
+
+    /** Priority class, then earliest deadline, then submission order. */
+    private static final Comparator<Sequence> QUEUE_ORDER = Comparator.comparing(Sequence::priority)
+            .thenComparingLong(sequence -> sequence.deadlineNanos)
+            .thenComparingLong(sequence -> sequence.order);
+
+    private final LlamaInference inference;
+    private final int maxBatch;
+    private final int prefillChunk;
+    private final int stepTokens;
+    private final BatchArena arena;
+    private final AdmissionPolicy admission;
+    private final BlockingQueue<Sequence> pending = new PriorityBlockingQueue<>(11, QUEUE_ORDER);
+    private final AtomicLong queuedTokens = new AtomicLong();
+    private final AtomicLong submissions = new AtomicLong();
+    private final List<Sequence> active = new ArrayList<>();
+    private final Thread worker;
+
+    // Per-step inputs, reused across steps
+    private final int[] tokens;
+    private final int[] positions;
+    private final KVCache[][] caches;
+    private final int[] sampledRows;
+
+    private final LatencyRecorder interTokenLatency = new LatencyRecorder(LATENCY_WINDOW);
+    private final LatencyRecorder timeToFirstToken = new LatencyRecorder(LATENCY_WINDOW);
+    private final Map<RequestOptions.Priority, LatencyRecorder> queueWait = new EnumMap<>(RequestOptions.Priority.class);
+    private final Map<RequestOptions.Priority, LatencyRecorder> classTimeToFirstToken =
+            new EnumMap<>(RequestOptions.Priority.class);
+    private final Map<RequestRejectedException.Reason, AtomicLong> rejections =
+            new EnumMap<>(RequestRejectedException.Reason.class);
+
+    private volatile boolean closed;
+    private volatile int activeCount;
+    private volatile long steps;
+    private volatile long stepSequences;
+    private volatile long stepRows;
+    private volatile long prefillRows;
+
+    /**
+     * Starts the worker thread with the default prefill chunk (32 tokens) and a step budget
+     * of {@code maxBatch} decode tokens plus one chunk.
+     *
+     * @param inference loaded model, used by this scheduler only
+     * @param maxBatch maximum number of sequences per forward pass
+     */
+    public BatchScheduler(LlamaInference inference, int maxBatch) {
+        this(inference, maxBatch, DEFAULT_PREFILL_CHUNK, maxBatch + DEFAULT_PREFILL_CHUNK);
+    }
+
+    /**
+     * Starts the worker thread.
+     *
+     * @param inference loaded model, used by this scheduler only
+     * @param maxBatch maximum number of sequences per forward pass
+     * @param prefillChunk maximum prompt tokens one sequence prefills per step (1 feeds prompts token by token)
+     * @param stepTokens maximum tokens per step, decode and prefill together; at least {@code maxBatch}
+     */
+    public BatchScheduler(LlamaInference inference, int maxBatch, int prefillChunk, int stepTokens) {
+        this(inference, maxBatch, prefillChunk, stepTokens, AdmissionPolicy.UNBOUNDED);
+    }
+
+    /**
+     * Starts the worker thread.
+     *
+     * @param inference loaded model, used by this scheduler only
+     * @param maxBatch maximum number of sequences per forward pass
+     * @param prefillChunk maximum prompt tokens one sequence prefills per step (1 feeds prompts token by token)
+     * @param stepTokens maximum tokens per step, decode and prefill together; at least {@code maxBatch}
+     * @param admission queue limits and the batch-class slot cap
+     */
+    public BatchScheduler(LlamaInference inference, int maxBatch, int prefillChunk, int stepTokens,
+                          AdmissionPolicy admission) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("maxBatch must be positive: " + maxBatch);
+        }
+        if (prefillChunk <= 0) {
+            throw new IllegalArgumentException("prefillChunk must be positive: " + prefillChunk);
+        }
+        if (stepTokens < maxBatch) {
+            throw new IllegalArgumentException("stepTokens (" + stepTokens + ") must cover one decode token per "
+                    + "sequence (" + maxBatch + ")");
+        }
+        this.inference = inference;
+        this.maxBatch = maxBatch;
+        this.prefillChunk = prefillChunk;
+        this.stepTokens = stepTokens;
+        this.admission = admission;
+        for (RequestOptions.Priority priority : RequestOptions.Priority.values()) {
+            queueWait.put(priority, new LatencyRecorder(LATENCY_WINDOW));
+            classTimeToFirstToken.put(priority, new LatencyRecorder(LATENCY_WINDOW));
+        }
+        for (RequestRejectedException.Reason reason : RequestRejectedException.Reason.values()) {
+            rejections.put(reason, new AtomicLong());
+        }
+        this.arena = inference.newBatchArena(stepTokens, maxBatch);
+        this.tokens = new int[stepTokens];
+        this.positions = new int[stepTokens];
+        this.caches = new KVCache[stepTokens][];
+        this.sampledRows = new int[maxBatch];
+        this.worker = Thread.ofPlatform().name("batch-scheduler").daemon().start(this::run);
+    }
+
+    /**
+     * Queues a greedy generation at {@link RequestOptions#DEFAULT} priority; see
+     * {@link #submit(int[], int, int[], RequestOptions, TokenListener)}.
+     */
+    public CompletableFuture<GenerationStats> submit(int[] promptTokens, int maxNewTokens, int[] stopTokens,
+                                                     TokenListener listener) {
+        return submit(promptTokens, maxNewTokens, stopTokens, RequestOptions.DEFAULT, listener);
+    }
+
+    /**
+     * Queues a greedy generation; see
+     * {@link #submit(int[], int, int[], RequestOptions, Sampler, TokenListener)}.
+     */
+    public CompletableFuture<GenerationStats> submit(int[] promptTokens, int maxNewTokens, int[] stopTokens,
+                                                     RequestOptions options, TokenListener listener) {
+        return submit(promptTokens, maxNewTokens, stopTokens, options, Sampler.greedy(), listener);
+    }
+
+    /**
+     * Queues a generation; it joins the batch when it reaches the head of the queue
+     * and a slot is free. Same semantics as {@link LlamaInference#generateStreaming}, except
+     * that the listener runs on the scheduler's thread and timings count from submission,
+     * so time to first token includes the wait for a slot. Cancelling the returned future
+     * cancels the generation.
+     *
+     * @param promptTokens input token IDs
+     * @param maxNewTokens maximum number of tokens to generate (stop token included)
+     * @param stopTokens token IDs that end generation
+     * @param options priority class and queue-time limit
+     * @param sampler picks the tokens; used only on the scheduler thread, so it must not
+     *        be shared with another running generation (the greedy sampler excepted)
+     * @param listener receives tokens on the scheduler thread
+     * @return completes with the generation's stats, or exceptionally if the listener or the
+     *         forward pass threw, the request was dropped from the queue
+     *         ({@link RequestRejectedException}), or the scheduler closed before it started
+     * @throws IllegalArgumentException if the prompt and budget exceed the context length
+     * @throws RequestRejectedException if the queue is full (see {@link AdmissionPolicy})
+     */
+    public CompletableFuture<GenerationStats> submit(int[] promptTokens, int maxNewTokens, int[] stopTokens,
+                                                     RequestOptions options, Sampler sampler,
+                                                     TokenListener listener) {
+        if (maxNewTokens <= 0) {
+            throw new IllegalArgumentException("maxNewTokens must be positive: " + maxNewTokens);
+        }
+        if (promptTokens.length == 0) {
+            throw new IllegalArgumentException("Prompt must not be empty");
+        }
+        inference.checkContext(promptTokens.length, maxNewTokens);
+        if (closed) {
+            throw new IllegalStateException("Scheduler is closed");
+        }
+        Sequence sequence = new Sequence(promptTokens, maxNewTokens, stopTokens, options, sampler, listener);
+        enqueue(sequence);
+        // The worker drains the queue once after it stops; catch a submit that raced past that
+        if (closed && dequeue(sequence)) {
+            sequence.future.completeExceptionally(new CancellationException("Scheduler is closed"));
+        }
+        // A caller cancelling a queued request frees its place at once
+        sequence.future.whenComplete((stats, error) -> {
+            if (sequence.future.isCancelled()) {
+                dequeue(sequence);
+            }
+        });
+        return sequence.future;
+    }
+
+    /**
+     * Adds a sequence to the queue within the admission limits, shedding queued sequences
+     * of lower classes to make room.
+     */
+    private synchronized void enqueue(Sequence sequence) {
+        while (true) {
+            RequestRejectedException.Reason reason;
+            if (pending.size() >= admission.maxQueued()) {
+                reason = RequestRejectedException.Reason.QUEUE_FULL;
+            } else if (queuedTokens.get() + sequence.cost() > admission.maxQueuedTokens()) {
+                reason = RequestRejectedException.Reason.QUEUED_TOKENS;
+            } else {
+                break;
+            }
+            Sequence victim = null;
+            for (Sequence queued : pending) {
+                if (queued.priority().compareTo(sequence.priority()) > 0
+                        && (victim == null || QUEUE_ORDER.compare(queued, victim) > 0)) {
+                    victim = queued;
+                }
+            }
+            if (victim == null) {
+                rejections.get(reason).incrementAndGet();
+                throw new RequestRejectedException(reason, "Scheduler queue is full (" + pending.size()
+                        + " requests, " + queuedTokens.get() + " tokens)");
+            }
+            if (dequeue(victim)) {
+                reject(victim, reason, "Shed to make room for a " + sequence.priority() + " request");
+            }
+        }
+        queuedTokens.addAndGet(sequence.cost());
+        pending.add(sequence);
+    }
+
+    /**
+     * Takes a sequence out of the queue.
+     *
+     * @return false if it was no longer queued
+     */
+    private boolean dequeue(Sequence sequence) {
+        if (!pending.remove(sequence)) {
+            return false;
+        }
+        queuedTokens.addAndGet(-sequence.cost());
+        return true;
+    }
+
+    private void reject(Sequence sequence, RequestRejectedException.Reason reason, String message) {
+        rejections.get(reason).incrementAndGet();
+        sequence.future.completeExceptionally(new RequestRejectedException(reason, message));
+    }
+
+    public int maxBatch() {
+        return maxBatch;
+    }
+
+    public int prefillChunk() {
+        return prefillChunk;
+    }
+
+    public int stepTokens() {
+        return stepTokens;
+    }
+
+    /** Sequences waiting for a slot. */
+    public int queued() {
+        return pending.size();
+    }
+
+    /** Sequences of one priority class waiting for a slot. */
+    public int queued(RequestOptions.Priority priority) {
+        int n = 0;
+        for (Sequence sequence : pending) {
+            if (sequence.priority() == priority) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /** Prompt plus new tokens of the waiting sequences, as limited by {@link AdmissionPolicy#maxQueuedTokens()}. */
+    public long queuedTokens() {
+        return queuedTokens.get();
+    }
+
+    /** Requests turned away or dropped from the queue for {@code reason} so far. */
+    public long rejected(RequestRejectedException.Reason reason) {
+        return rejections.get(reason).get();
+    }
+
+    /** Submission to admission into the batch, over recent requests of one class. */
+    public LatencyRecorder queueWait(RequestOptions.Priority priority) {
+        return queueWait.get(priority);
+    }
+
+    public AdmissionPolicy admissionPolicy() {
+        return admission;
+    }
+
+    /** Sequences in the current batch. */
+    public int active() {
+        return activeCount;
+    }
+
+    /** Forward passes run so far. */
+    public long steps() {
+        return steps;
+    }
+
+    /** Average number of sequences per forward pass. */
+    public double meanBatchSize() {
+        long n = steps;
+        return n == 0 ? 0.0 : (double) stepSequences / n;
+    }
+
+    /** Average number of tokens (decode and prefill) per forward pass. */
+    public double meanStepTokens() {
+        long n = steps;
+        return n == 0 ? 0.0 : (double) stepRows / n;
+    }
+
+    /** Prompt tokens run through the model so far. */
+    public long prefillTokens() {
+        return prefillRows;
+    }
+
+    /** Gaps between consecutive tokens of a sequence, over recent tokens of all sequences. */
+    public LatencyRecorder interTokenLatency() {
+        return interTokenLatency;
+    }
+
+    /** Submission to first token, over recent sequences (includes the wait for a slot). */
+    public LatencyRecorder timeToFirstToken() {
+        return timeToFirstToken;
+    }
+
+    /** {@link #timeToFirstToken()} for one priority class. */
+    public LatencyRecorder timeToFirstToken(RequestOptions.Priority priority) {
+        return classTimeToFirstToken.get(priority);
+    }
+
+    /**
+     * Summary for logs: batching, time-to-first-token and inter-token latency percentiles,
+     * then the queue per priority class and rejections.
+     */
+    public String stats() {
+        StringBuilder sb = new StringBuilder(String.format("Batch scheduler: %d steps, mean batch %.2f of %d, "
+                        + "mean %.1f tokens/step of %d (prefill chunk %d, %d prompt tokens), %d active, "
+                        + "%d queued (%d tokens)",
+                steps, meanBatchSize(), maxBatch, meanStepTokens(), stepTokens, prefillChunk, prefillRows,
+                activeCount, queued(), queuedTokens()));
+        sb.append("\n").append(timeToFirstToken.summary("  TTFT"));
+        sb.append("\n").append(interTokenLatency.summary("  Inter-token"));
+        for (RequestOptions.Priority priority : RequestOptions.Priority.values()) {
+            if (queueWait.get(priority).count() > 0 || queued(priority) > 0) {
+                sb.append(String.format("%n  %s: %d queued, ", priority, queued(priority)))
+                        .append(queueWait.get(priority).summary("wait"))
+                        .append(", ").append(classTimeToFirstToken.get(priority).summary("TTFT"));
+            }
+        }
+        sb.append(String.format("%n  Rejected: %d queue full, %d queued tokens, %d queue timeout",
+                rejected(RequestRejectedException.Reason.QUEUE_FULL),
+                rejected(RequestRejectedException.Reason.QUEUED_TOKENS),
+                rejected(RequestRejectedException.Reason.QUEUE_TIMEOUT)));
+        return sb.toString();
+    }
+
+    /**
+     * Stops after the current step. Running sequences end as {@link GenerationStats.StopReason#CANCELLED};
+     * queued ones complete exceptionally with a {@link CancellationException}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                if (!admit()) {
+                    continue;
+                }
+                step();
+            }
+        } finally {
+            for (Sequence sequence : active) {
+                sequence.finish(GenerationStats.StopReason.CANCELLED);
+            }
+            active.clear();
+            activeCount = 0;
+            Sequence sequence;
+            while ((sequence = pending.poll()) != null) {
+                queuedTokens.addAndGet(-sequence.cost());
+                sequence.future.completeExceptionally(new CancellationException("Scheduler is closed"));
+            }
+        }
+    }
+
+    /**
+     * Drops queued sequences past their deadline, then moves the head of the queue into free
+     * slots (batch-class sequences only up to {@link AdmissionPolicy#batchSlots()}), blocking
+     * briefly while the batch is empty.
+     *
+     * @return whether there is anything to run
+     */
+    private boolean admit() {
+        long now = System.nanoTime();
+        for (Sequence queued : pending) {
+            if (queued.deadlineNanos <= now && dequeue(queued)) {
+                reject(queued, RequestRejectedException.Reason.QUEUE_TIMEOUT, "Waited "
+                        + TimeUnit.NANOSECONDS.toMillis(now - queued.submitNanos) + " ms for a slot");
+            }
+        }
+        int batchRunning = 0;
+        for (Sequence sequence : active) {
+            if (sequence.priority() == RequestOptions.Priority.BATCH) {
+                batchRunning++;
+            }
+        }
+        try {
+            while (active.size() < maxBatch) {
+                Sequence next = active.isEmpty()
+                        ? pending.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS)
+                        : pending.poll();
+                if (next == null) {
+                    break;
+                }
+                if (next.priority() == RequestOptions.Priority.BATCH && batchRunning >= admission.batchSlots()) {
+                    // Only batch work is left in the queue, and it has all the slots it may use
+                    pending.add(next);
+                    break;
+                }
+                queuedTokens.addAndGet(-next.cost());
+                if (next.future.isDone()) {
+                    continue; // cancelled by the caller while queued
+                }
+                now = System.nanoTime();
+                if (next.deadlineNanos <= now) {
+                    reject(next, RequestRejectedException.Reason.QUEUE_TIMEOUT, "Waited "
+                            + TimeUnit.NANOSECONDS.toMillis(now - next.submitNanos) + " ms for a slot");
+                    continue;
+                }
+                queueWait.get(next.priority()).record(now - next.submitNanos);
+                try {
+                    next.start();
+                    active.add(next);
+                    if (next.priority() == RequestOptions.Priority.BATCH) {
+                        batchRunning++;
+                    }
+                } catch (RuntimeException e) {
+                    next.fail(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            closed = true;
+        }
+        activeCount = active.size();
+        return !active.isEmpty();
+    }
+
+    /**
+     * Retires cancelled sequences, packs decode tokens and prefill chunks into one batched
+     * forward pass within the token budget, and advances every sequence that took part.
+     */
+    private void step() {
+        active.removeIf(Sequence::retireIfCancelled);
+        if (active.isEmpty()) {
+            activeCount = 0;
+            return;
+        }
+        // Decode tokens first: they are what the running streams are waiting on
+        int rows = 0;
+        int sampled = 0;
+        for (Sequence sequence : active) {
+            sequence.stepRows = 0;
+            if (sequence.decoding()) {
+                rows = sequence.addRows(rows, 1);
+                sampledRows[sampled] = rows - 1;
+                sequence.sampleIndex = sampled++;
+            }
+        }
+        // Then prompt chunks, oldest sequence first, while the budget lasts
+        int prefilled = 0;
+        for (Sequence sequence : active) {
+            if (!sequence.decoding() && rows < stepTokens) {
+                int n = Math.min(Math.min(prefillChunk, sequence.prompt.length - sequence.position), stepTokens - rows);
+                rows = sequence.addRows(rows, n);
+                prefilled += n;
+                if (sequence.position + n == sequence.prompt.length) {
+                    sampledRows[sampled] = rows - 1;
+                    sequence.sampleIndex = sampled++;
+                }
+            }
+        }
+
+        try {
+            inference.forwardBatch(tokens, positions, caches, rows, sampledRows, sampled, arena);
+        } catch (RuntimeException e) {
+            // A failed pass leaves every sequence's caches half-written
+            for (Sequence sequence : active) {
+                sequence.fail(e);
+            }
+            active.clear();
+            activeCount = 0;
+            return;
+        }
+        steps++;
+        stepSequences += active.size();
+        stepRows += rows;
+        prefillRows += prefilled;
+
+        List<Sequence> running = new ArrayList<>(active.size());
+        for (Sequence sequence : active) {
+            if (!sequence.advance()) {
+                running.add(sequence);
+            }
+        }
+        active.clear();
+        active.addAll(running);
+        activeCount = active.size();
+        Arrays.fill(caches, 0, rows, null);
+    }
+
+    /** One generation's state between steps. */
+    private final class Sequence {
+        final int[] prompt;
+        final int maxNewTokens;
+        final int[] stopTokens;
+        final RequestOptions options;
+        final Sampler sampler;
+        final TokenListener listener;
+        final CompletableFuture<GenerationStats> future = new CompletableFuture<>();
+        final long submitNanos = System.nanoTime();
+        final long order = submissions.incrementAndGet();
+        final long deadlineNanos;
+
+        KVCache[] caches;
+        TokenDecoder decoder;
+        int prefillStart;
+        int position;
+        int nextToken;
+        int generated;
+        long firstTokenNanos;
+        long lastTokenNanos;
+
+        // This step's share of the batch
+        int stepRows;
+        int sampleIndex = -1;
+
+        Sequence(int[] prompt, int maxNewTokens, int[] stopTokens, RequestOptions options, Sampler sampler,
+                 TokenListener listener) {
+            this.prompt = prompt;
+            this.maxNewTokens = maxNewTokens;
+            this.stopTokens = stopTokens;
+            this.options = options;
+            this.sampler = sampler;
+            this.listener = listener;
+            Duration limit = options.maxQueueTime();
+            // Limits beyond a year are as good as none, and keep the sum from overflowing
+            this.deadlineNanos = limit == null || limit.compareTo(MAX_QUEUE_TIME) > 0
+                    ? Long.MAX_VALUE
+                    : submitNanos + limit.toNanos();
+        }
+
+        RequestOptions.Priority priority() {
+            return options.priority();
+        }
+
+        /** Tokens this sequence counts against {@link AdmissionPolicy#maxQueuedTokens()}. */
+        long cost() {
+            return (long) prompt.length + maxNewTokens;
+        }
+
+        /** Takes caches, reusing a cached prefix; prefill starts after it. */
+        void start() {
+            caches = inference.newKvCaches();
+            decoder = new TokenDecoder(inference.tokenizer());
+            prefillStart = inference.beginSequence(prompt, caches);
+            position = prefillStart;
+        }
+
+        boolean decoding() {
+            return position >= prompt.length;
+        }
+
+        /**
+         * Appends this sequence's next {@code n} tokens (the decode token, or a prompt chunk)
+         * to the step's rows starting at {@code row}.
+         *
+         * @return the next free row
+         */
+        int addRows(int row, int n) {
+            for (int i = 0; i < n; i++) {
+                int pos = position + i;
+                tokens[row + i] = decoding() ? nextToken : prompt[pos];
+                positions[row + i] = pos;
+                BatchScheduler.this.caches[row + i] = caches;
+            }
+            stepRows = n;
+            return row + n;
+        }
+
+        boolean retireIfCancelled() {
+            boolean cancelled;
+            try {
+                // The caller may cancel through the listener or the future
+                cancelled = future.isCancelled() || listener.isCancelled();
+            } catch (RuntimeException e) {
+                fail(e);
+                return true;
+            }
+            if (cancelled) {
+                finish(GenerationStats.StopReason.CANCELLED);
+            }
+            return cancelled;
+        }
+
+        /**
+         * Moves past the rows this step ran; if one of them was sampled, consumes its logits
+         * and emits the token.
+         *
+         * @return true if the sequence is done (and has been retired)
+         */
+        boolean advance() {
+            if (stepRows == 0) {
+                return false;
+            }
+            position += stepRows;
+            stepRows = 0;
+            if (sampleIndex < 0) {
+                return false;
+            }
+            float[] logits = arena.logits()[sampleIndex].host();
+            sampleIndex = -1;
+            try {
+                if (generated == 0) {
+                    inference.endPrefill(prompt, caches);
+                }
+                int token = sampler.sample(logits);
+                generated++;
+                long now = System.nanoTime();
+                if (generated == 1) {
+                    firstTokenNanos = now - submitNanos;
+                    timeToFirstToken.record(firstTokenNanos);
+                    classTimeToFirstToken.get(priority()).record(firstTokenNanos);
+                } else {
+                    interTokenLatency.record(now - lastTokenNanos);
+                }
+                lastTokenNanos = now;
+                if (LlamaInference.containsToken(stopTokens, token)) {
+                    finish(GenerationStats.StopReason.STOP_TOKEN);
+                    return true;
+                }
+                listener.onToken(token, decoder.append(token));
+                if (generated == maxNewTokens) {
+                    finish(GenerationStats.StopReason.MAX_TOKENS);
+                    return true;
+                }
+                nextToken = token;
+                return false;
+            } catch (RuntimeException e) {
+                fail(e);
+                return true;
+            }
+        }
+
+        void finish(GenerationStats.StopReason reason) {
+            int prefilled = Math.min(position, prompt.length) - prefillStart;
+            GenerationStats stats = new GenerationStats(prompt.length, prefilled, generated,
+                    firstTokenNanos, System.nanoTime() - submitNanos, reason);
+            release();
+            try {
+                listener.onComplete(stats);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+                return;
+            }
+            future.complete(stats);
+        }
+
+        void fail(Throwable error) {
+            release();
+            future.completeExceptionally(error);
+        }
+
+        private void release() {
+            if (caches != null) {
+                for (KVCache cache : caches) {
+                    cache.reset();
+                }
+                caches = null;
+            }
+        }
+    }
+}
@@ -34,6 +34,21 @@ public class ChatFormat {
         return stopTokens;
     }
 
+    /**
+     * Returns the stop tokens as a primitive array, for decode loops that must not box.
+     */
+    public int[] getStopTokenIds() {
+        return new int[]{endOfText, endOfTurn};
+    }
+
+    public int getBeginOfTextId() {
+        return beginOfText;
+    }
+
+    public int getEndOfTurnId() {
+        return endOfTurn;
+    }
+
     public List<Integer> encodeHeader(Message message) {
         List<Integer> tokens = new ArrayList<>();
         tokens.add(startHeader);
@@ -0,0 +1,262 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import com.arturskowronski.llama3babylon.hat.kv.KVCache;
+import com.arturskowronski.llama3babylon.hat.kv.KVSnapshot;
+import com.arturskowronski.llama3babylon.hat.stream.GenerationStats;
+import com.arturskowronski.llama3babylon.hat.stream.TokenListener;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Multi-turn conversation that keeps its KV cache between turns.
+ *
+ * {@link LlamaInference#chat} re-encodes the whole dialog and prefills from
+ * position 0, so turn N re-processes every earlier turn. A session remembers how
+ * far its cache reaches and prefills only what is new, so per-turn cost depends on
+ * the new message rather than on the length of the conversation.
+ *
+ * Tokens fed per turn (Llama 3 Instruct template):
+ * <pre>
+ *   first turn:  &lt;|begin_of_text|&gt; [system message] user message, assistant header
+ *   later turns: [last reply token] &lt;|eot_id|&gt; user message, assistant header
+ * </pre>
+ * The last sampled reply token is not run through the model when the reply ends,
+ * so the next turn feeds it (unless it was a stop token) and closes the assistant
+ * message with {@code <|eot_id|>}, exactly as {@link ChatFormat#encodeMessage} would.
+ *
+ * A session owns its per-layer caches (blocks come from the inference's pool);
+ * {@link #close()} hands them back. Sessions share the inference's weights and
+ * working buffers, so turns of different sessions must not run concurrently.
+ *
+ * {@link #save} writes the cache and token history to a snapshot file, and
+ * {@link LlamaInference#restoreChatSession} resumes it later, possibly in another
+ * process, without prefilling the conversation again.
+ */
+public final class ChatSession implements AutoCloseable {
+
+    private final LlamaInference inference;
+    private final ChatFormat chatFormat;
+    private final KVCache[] caches;
+    private final int[] stopTokens;
+    private final ChatFormat.Message systemMessage;
+    private final List<ChatFormat.Message> history = new ArrayList<>();
+    private final List<Integer> tokens = new ArrayList<>(); // tokens fed, less those a sliding window evicted
+
+    private int position;          // next cache position to write
+    private int trimmedPositions;  // positions the window evicted that are gone from tokens
+    private int pendingToken = -1; // last sampled reply token, not yet in the cache
+    private int lastPrefillTokens;
+
+    ChatSession(LlamaInference inference, String systemPrompt) {
+        this.inference = inference;
+        this.chatFormat = inference.chatFormat();
+        this.caches = inference.newKvCaches();
+        this.stopTokens = chatFormat.getStopTokenIds();
+        this.systemMessage = systemPrompt != null && !systemPrompt.isEmpty()
+                ? new ChatFormat.Message(ChatFormat.Role.SYSTEM, systemPrompt)
+                : null;
+    }
+
+    /**
+     * Sends a user message and greedily generates the assistant's reply.
+     *
+     * @param userMessage the user's message
+     * @param maxNewTokens maximum tokens to generate for the reply
+     * @return decoded reply, without stop tokens
+     * @throws IllegalArgumentException if maxNewTokens is not positive
+     * @throws IllegalStateException if the turn would run past the context length (without a sliding window)
+     */
+    public String send(String userMessage, int maxNewTokens) {
+        return send(userMessage, maxNewTokens, (token, text) -> { });
+    }
+
+    /**
+     * Sends a user message and streams the reply to {@code listener} token by token
+     * (see {@link LlamaInference#generateStreaming}). A cancelled reply ends like one
+     * that ran out of tokens, so the conversation can continue.
+     *
+     * @param userMessage the user's message
+     * @param maxNewTokens maximum tokens to generate for the reply
+     * @param listener receives reply tokens on the calling thread
+     * @return decoded reply, without stop tokens
+     * @throws IllegalArgumentException if maxNewTokens is not positive
+     * @throws IllegalStateException if the turn would run past the context length (without a sliding window)
+     */
+    public String send(String userMessage, int maxNewTokens, TokenListener listener) {
+        if (maxNewTokens <= 0) {
+            throw new IllegalArgumentException("maxNewTokens must be positive: " + maxNewTokens);
+        }
+        long startNanos = System.nanoTime();
+        List<Integer> input = new ArrayList<>();
+        if (position == 0) {
+            input.add(chatFormat.getBeginOfTextId());
+            if (systemMessage != null) {
+                input.addAll(chatFormat.encodeMessage(systemMessage));
+                history.add(systemMessage);
+            }
+        } else {
+            // Close the previous assistant message
+            if (!LlamaInference.containsToken(stopTokens, pendingToken)) {
+                input.add(pendingToken);
+            }
+            input.add(chatFormat.getEndOfTurnId());
+        }
+        ChatFormat.Message user = new ChatFormat.Message(ChatFormat.Role.USER, userMessage);
+        input.addAll(chatFormat.encodeMessage(user));
+        input.addAll(chatFormat.encodeHeader(new ChatFormat.Message(ChatFormat.Role.ASSISTANT, "")));
+
+        int contextLength = inference.contextLength();
+        if (caches[0].windowPolicy() == null && position + input.size() + maxNewTokens - 1 > contextLength) {
+            throw new IllegalStateException("Turn needs " + (input.size() + maxNewTokens - 1) + " positions but only "
+                    + (contextLength - position) + " of " + contextLength + " remain");
+        }
+        history.add(user);
+
+        // Prefill only the new tokens, continuing from the cached position. The first turn
+        // may also start from a prefix shared with other requests (e.g. the system prompt).
+        int[] prompt = input.stream().mapToInt(Integer::intValue).toArray();
+        int skipped = position == 0 ? inference.beginSequence(prompt, caches) : 0;
+        int start = position;
+        position += skipped;
+        for (int i = skipped; i < prompt.length; i++) {
+            inference.forwardLogits(prompt[i], position++, caches);
+        }
+        tokens.addAll(input);
+        trimEvicted();
+        if (start == 0) {
+            inference.endPrefill(prompt, caches);
+        }
+        lastPrefillTokens = prompt.length - skipped;
+
+        List<Integer> reply = new ArrayList<>();
+        TokenDecoder decoder = new TokenDecoder(inference.tokenizer());
+        long firstTokenNanos = System.nanoTime() - startNanos;
+        GenerationStats.StopReason reason = GenerationStats.StopReason.STOP_TOKEN;
+        int next = LlamaInference.argmax(inference.logits());
+        for (int n = 1; !LlamaInference.containsToken(stopTokens, next); n++) {
+            reply.add(next);
+            listener.onToken(next, decoder.append(next));
+            if (n == maxNewTokens) {
+                reason = GenerationStats.StopReason.MAX_TOKENS;
+                break;
+            }
+            if (listener.isCancelled()) {
+                reason = GenerationStats.StopReason.CANCELLED;
+                break;
+            }
+            inference.forwardLogits(next, position++, caches);
+            tokens.add(next);
+            trimEvicted();
+            next = LlamaInference.argmax(inference.logits());
+        }
+        pendingToken = next;
+        int generated = reply.size() + (reason == GenerationStats.StopReason.STOP_TOKEN ? 1 : 0);
+        listener.onComplete(new GenerationStats(prompt.length, lastPrefillTokens, generated, firstTokenNanos,
+                System.nanoTime() - startNanos, reason));
+
+        String text = inference.tokenizer().decode(reply);
+        history.add(new ChatFormat.Message(ChatFormat.Role.ASSISTANT, text));
+        return text;
+    }
+
+    /**
+     * Drops the tokens of positions a sliding window has evicted since the last call, so
+     * the history holds only what the cache does. The window evicts the oldest positions
+     * after its sinks, which sit right after the sink tokens.
+     */
+    private void trimEvicted() {
+        if (caches[0].windowPolicy() == null) {
+            return;
+        }
+        int evicted = caches[0].droppedPositions() - trimmedPositions;
+        if (evicted > 0) {
+            int from = caches[0].windowPolicy().sinkBlocks() * KVCache.BLOCK_POSITIONS;
+            tokens.subList(from, from + evicted).clear();
+            trimmedPositions += evicted;
+        }
+    }
+
+    /**
+     * Writes the session's KV cache and token history to a snapshot file; resume it with
+     * {@link LlamaInference#restoreChatSession}. The message history is not saved.
+     */
+    public void save(Path path) throws IOException {
+        int[] saved = new int[tokens.size() + (pendingToken >= 0 ? 1 : 0)];
+        for (int i = 0; i < tokens.size(); i++) {
+            saved[i] = tokens.get(i);
+        }
+        if (pendingToken >= 0) {
+            saved[tokens.size()] = pendingToken;
+        }
+        KVSnapshot.save(path, inference.modelFingerprint(), saved, position, caches);
+    }
+
+    void restore(Path path) throws IOException {
+        KVSnapshot.Restored restored = KVSnapshot.restore(path, inference.modelFingerprint(), caches);
+        int[] saved = restored.tokens();
+        if (saved.length < restored.positions() || saved.length > restored.positions() + 1) {
+            reset();
+            throw new IOException("Snapshot token history (" + saved.length + ") does not match its "
+                    + restored.positions() + " cached positions");
+        }
+        history.clear();
+        tokens.clear();
+        for (int i = 0; i < restored.positions(); i++) {
+            tokens.add(saved[i]);
+        }
+        position = restored.positions();
+        trimmedPositions = 0;
+        pendingToken = saved.length > position ? saved[position] : -1;
+        lastPrefillTokens = 0;
+    }
+
+    /**
+     * Number of positions held in the session's KV cache.
+     */
+    public int position() {
+        return position;
+    }
+
+    /**
+     * Number of tokens prefilled by the most recent {@link #send} (excluding generated tokens
+     * and any prefix served by the inference's prefix cache).
+     */
+    public int lastPrefillTokens() {
+        return lastPrefillTokens;
+    }
+
+    /**
+     * Messages exchanged so far, starting with the system message if any.
+     */
+    public List<ChatFormat.Message> history() {
+        return Collections.unmodifiableList(history);
+    }
+
+    /**
+     * Forgets the conversation (keeping the system prompt for the next turn) and
+     * returns the cache blocks to the pool.
+     */
+    public void reset() {
+        for (KVCache cache : caches) {
+            cache.reset();
+        }
+        history.clear();
+        tokens.clear();
+        position = 0;
+        trimmedPositions = 0;
+        pendingToken = -1;
+        lastPrefillTokens = 0;
+    }
+
+    /**
+     * Returns the cache blocks to the pool. The session may be reused afterwards as if new.
+     */
+    @Override
+    public void close() {
+        reset();
+    }
+}
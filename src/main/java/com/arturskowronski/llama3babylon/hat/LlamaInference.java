@@ -1,42 +1,73 @@
 package com.arturskowronski.llama3babylon.hat;
 
 import hat.Accelerator;
-import hat.buffer.F16Array;
 import hat.buffer.F32Array;
-import hat.types.F16;
 import com.arturskowronski.llama3babylon.hat.kernels.*;
+import com.arturskowronski.llama3babylon.hat.kv.KVBlockAllocator;
+import com.arturskowronski.llama3babylon.hat.kv.KVCache;
+import com.arturskowronski.llama3babylon.hat.kv.KVHeavyHitterPolicy;
+import com.arturskowronski.llama3babylon.hat.kv.KVSnapshot;
+import com.arturskowronski.llama3babylon.hat.kv.KVSpillStore;
+import com.arturskowronski.llama3babylon.hat.kv.KVTierPolicy;
+import com.arturskowronski.llama3babylon.hat.kv.KVWindowPolicy;
+import com.arturskowronski.llama3babylon.hat.kv.KvCacheMode;
+import com.arturskowronski.llama3babylon.hat.kv.PrefixCache;
+import com.arturskowronski.llama3babylon.hat.sampling.Sampler;
+import com.arturskowronski.llama3babylon.hat.stream.GenerationStats;
+import com.arturskowronski.llama3babylon.hat.stream.TokenListener;
+import com.arturskowronski.llama3babylon.hat.stream.TokenPublisher;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 /**
  * End-to-end inference pipeline for Llama 3.2 1B Instruct.
  *
  * Pipeline: embedding lookup → 16 transformer layers → final RMSNorm → classifier → logits
+ *
+ * The decode path ({@link #forwardInto}, {@link #logits()}, {@link #generateInto})
+ * allocates nothing per token once kernels are warm: logits live in a preallocated
+ * buffer and stop tokens are plain {@code int[]}.
+ *
+ * {@link #generateStreaming} and {@link #chatStreaming} hand each token and its
+ * newly completed text to a {@link TokenListener} as soon as it is sampled, so
+ * interactive callers see the first words after prefill rather than after the
+ * whole reply.
+ *
+ * An instance is one inference session: it owns its kernels, working buffers and
+ * KV caches, and must be used from one thread at a time. The weights belong to a
+ * {@link LoadedModel}, which any number of sessions can share (see
+ * {@link LoadedModel#newSession()}); the {@code Path} constructors load a private one.
  */
 public class LlamaInference {
 
-    private final LlamaModel model;
+    private final LoadedModel model;
     private final Tokenizer tokenizer;
     private final ChatFormat chatFormat;
     private final TransformerBlock[] layers;
-    private final F32Array[] kCaches;
-    private final F32Array[] vCaches;
+    private final KVCache[] kvCaches;
+    private final RoPECache ropeCache;
 
-    private final WeightStorageMode weightMode;
-    private final Object tokenEmbedding;   // F16Array or F32Array depending on mode
+    private final WeightTensor tokenEmbedding;
     private final F32Array outputNormWeight;
-    private final Object outputWeight;     // F16Array or F32Array depending on mode
+    private final WeightTensor.Projection classifier;
 
     private final IRMSNorm rmsNorm;
-    private final IGEMV gemv;
 
-    private final F32Array x;
-    private final F32Array logits;
+    private final ActivationBuffer x;
+    private final ActivationBuffer logits;
+    private final ScratchArena scratch;
 
+    private PrefixCache prefixCache;
+
+    /**
+     * Creates a LlamaInference instance with CPU kernels picked from the environment
+     * (see {@link CpuKernelMode#fromEnv()}).
+     */
     public LlamaInference(Path ggufPath) throws IOException {
-        this(ggufPath, new PlainJavaKernelFactory());
+        this(ggufPath, CpuKernelMode.fromEnv().factory());
     }
 
     public LlamaInference(Path ggufPath, IKernelFactory factory) throws IOException {
@@ -48,7 +79,8 @@ public class LlamaInference {
     }
 
     /**
-     * Creates a LlamaInference instance with full configuration.
+     * Creates a LlamaInference instance, taking the KV cache mode from the environment
+     * (see {@link KvCacheMode#fromEnv()}).
      *
      * @param ggufPath path to GGUF model file
      * @param factory kernel factory for creating kernel implementations
@@ -57,110 +89,447 @@ public class LlamaInference {
      */
     public LlamaInference(Path ggufPath, IKernelFactory factory, BackendType backendType,
                            WeightStorageMode weightMode) throws IOException {
-        this.model = new LlamaModel(ggufPath, backendType);
-        this.weightMode = weightMode;
-        Accelerator acc = model.getAccelerator();
-
-        // Load global weights
-        // Llama 3.2 1B uses tied embeddings: output classifier shares token_embd.weight
-        this.tokenEmbedding = mapProjectionWeight("token_embd.weight",
-                LlamaModel.VOCAB_SIZE, LlamaModel.HIDDEN_SIZE);
-        this.outputNormWeight = model.mapTensor("output_norm.weight");
-        this.outputWeight = model.hasTensor("output.weight")
-                ? mapProjectionWeight("output.weight",
-                        LlamaModel.VOCAB_SIZE, LlamaModel.HIDDEN_SIZE)
-                : tokenEmbedding;
-
-        // Initialize kernels using factory
+        this(ggufPath, factory, backendType, weightMode, KvCacheMode.fromEnv());
+    }
+
+    /**
+     * Creates a LlamaInference instance with full configuration.
+     *
+     * @param ggufPath path to GGUF model file
+     * @param factory kernel factory for creating kernel implementations
+     * @param backendType HAT backend to use for acceleration
+     * @param weightMode how to store F16 weight tensors in memory
+     * @param kvMode how to store K and V rows in the per-layer caches
+     */
+    public LlamaInference(Path ggufPath, IKernelFactory factory, BackendType backendType,
+                           WeightStorageMode weightMode, KvCacheMode kvMode) throws IOException {
+        this(ggufPath, factory, backendType, weightMode,
+                new KVBlockAllocator(kvMode, LlamaModel.NUM_KV_HEADS, LlamaModel.HEAD_DIM));
+    }
+
+    /**
+     * Creates a LlamaInference instance whose KV caches draw blocks from a shared pool.
+     *
+     * @param ggufPath path to GGUF model file
+     * @param factory kernel factory for creating kernel implementations
+     * @param backendType HAT backend to use for acceleration
+     * @param weightMode how to store F16 weight tensors in memory
+     * @param kvAllocator KV block pool, possibly shared with other instances (its mode sets the cache format)
+     */
+    public LlamaInference(Path ggufPath, IKernelFactory factory, BackendType backendType,
+                           WeightStorageMode weightMode, KVBlockAllocator kvAllocator) throws IOException {
+        this(new LoadedModel(ggufPath, backendType, weightMode), factory, kvAllocator);
+    }
+
+    /**
+     * Creates a session over already loaded weights; see {@link LoadedModel#newSession}.
+     */
+    LlamaInference(LoadedModel model, IKernelFactory factory, KVBlockAllocator kvAllocator) {
+        this.model = model;
+        Accelerator acc = model.model().getAccelerator();
+
+        // Initialize kernels using factory: kernels keep scratch state, so every session has its own
         this.rmsNorm = factory.createRMSNorm(acc);
-        this.gemv = factory.createGEMV(acc);
+        IGEMV gemv = factory.createGEMV(acc);
+
+        // Global weights come from the shared model
+        this.tokenEmbedding = model.tokenEmbedding();
+        this.outputNormWeight = model.outputNormWeight();
+        this.classifier = model.outputWeight().bind(gemv);
 
         // Allocate working buffers
-        this.x = F32Array.create(acc, LlamaModel.HIDDEN_SIZE);
-        this.logits = F32Array.create(acc, LlamaModel.VOCAB_SIZE);
+        this.x = new ActivationBuffer(acc, LlamaModel.HIDDEN_SIZE);
+        this.logits = new ActivationBuffer(acc, LlamaModel.VOCAB_SIZE);
+        this.scratch = ScratchArena.allocate(acc);
 
-        // Allocate KV caches (one pair per layer)
-        int kvDim = LlamaModel.NUM_KV_HEADS * LlamaModel.HEAD_DIM;
-        this.kCaches = new F32Array[LlamaModel.NUM_LAYERS];
-        this.vCaches = new F32Array[LlamaModel.NUM_LAYERS];
+        // KV caches (one per layer) span the model's context length; blocks come from the pool as positions advance
+        if (kvAllocator.numKvHeads() != LlamaModel.NUM_KV_HEADS || kvAllocator.headDim() != LlamaModel.HEAD_DIM) {
+            throw new IllegalArgumentException("KV block pool shape does not match the model");
+        }
+        int contextLength = model.contextLength();
+        this.kvCaches = new KVCache[LlamaModel.NUM_LAYERS];
         for (int l = 0; l < LlamaModel.NUM_LAYERS; l++) {
-            kCaches[l] = F32Array.create(acc, LlamaModel.MAX_SEQ_LEN * kvDim);
-            vCaches[l] = F32Array.create(acc, LlamaModel.MAX_SEQ_LEN * kvDim);
+            kvCaches[l] = new KVCache(kvAllocator, contextLength);
         }
 
-        // Create transformer blocks
+        this.ropeCache = model.ropeCache();
+
+        // Transformer blocks: this session's kernels over the shared layer weights
         this.layers = new TransformerBlock[LlamaModel.NUM_LAYERS];
         for (int l = 0; l < LlamaModel.NUM_LAYERS; l++) {
-            layers[l] = new TransformerBlock(model, l, factory, weightMode);
+            layers[l] = new TransformerBlock(model.layer(l), acc, ropeCache, factory);
         }
 
-        // Initialize tokenizer and chat format from GGUF metadata
-        this.tokenizer = Tokenizer.fromGGUFMetadata(model.getMetadata().metadata());
-        this.chatFormat = new ChatFormat(tokenizer);
-    }
-
-    private Object mapProjectionWeight(String tensorName, int rows, int cols) throws IOException {
-        return switch (weightMode) {
-            case F16 -> model.mapTensorF16(tensorName);
-            case F16_FAST -> model.mapWeightsF16(tensorName, rows, cols);
-            case F32 -> model.mapTensor(tensorName);
-        };
+        this.tokenizer = model.tokenizer();
+        this.chatFormat = model.chatFormat();
     }
 
     /**
      * Forward pass for a single token at a given position.
+     * Allocates a fresh logits array; prefer {@link #forwardInto} in decode loops.
      *
      * @param token input token ID
      * @param pos position in the sequence
      * @return logits array [VOCAB_SIZE]
      */
     public float[] forward(int token, int pos) {
-        int hiddenSize = LlamaModel.HIDDEN_SIZE;
+        float[] result = new float[LlamaModel.VOCAB_SIZE];
+        forwardInto(token, pos, result);
+        return result;
+    }
+
+    /**
+     * Forward pass for a single token, writing logits into a caller-owned array.
+     *
+     * @param token input token ID
+     * @param pos position in the sequence
+     * @param out destination for logits, at least VOCAB_SIZE long
+     */
+    public void forwardInto(int token, int pos, float[] out) {
         int vocabSize = LlamaModel.VOCAB_SIZE;
+        if (out.length < vocabSize) {
+            throw new IllegalArgumentException("Logits buffer too small: " + out.length + " < " + vocabSize);
+        }
+        forwardLogits(token, pos);
+        System.arraycopy(logits.host(), 0, out, 0, vocabSize);
+    }
+
+    /**
+     * Returns the logits of the most recent forward pass [VOCAB_SIZE].
+     * The array is owned by this instance and overwritten by the next forward call.
+     */
+    public float[] logits() {
+        return logits.host();
+    }
+
+    /**
+     * Forward pass for a single token, leaving the result in {@link #logits()}.
+     */
+    private void forwardLogits(int token, int pos) {
+        forwardLogits(token, pos, kvCaches);
+    }
+
+    /**
+     * Forward pass for a single token against a given set of per-layer caches
+     * (used by {@link ChatSession}, which owns its own).
+     */
+    void forwardLogits(int token, int pos, KVCache[] caches) {
+        int hiddenSize = LlamaModel.HIDDEN_SIZE;
 
         // 1. Embedding lookup
-        int offset = token * hiddenSize;
-        switch (tokenEmbedding) {
-            case F16Array f16 -> {
-                for (int i = 0; i < hiddenSize; i++) {
-                    x.array(i, F16.f16ToFloat(f16.array(offset + i)));
-                }
-            }
-            case F16Weights f16w -> {
-                for (int i = 0; i < hiddenSize; i++) {
-                    x.array(i, f16w.getFloat(offset + i));
-                }
-            }
-            case F32Array f32 -> {
-                for (int i = 0; i < hiddenSize; i++) {
-                    x.array(i, f32.array(offset + i));
-                }
-            }
-            default -> throw new IllegalStateException("Unexpected embedding type: " + tokenEmbedding.getClass());
-        }
+        tokenEmbedding.readRow(token, x.hostForWrite());
 
         // 2. Transformer layers
         for (int l = 0; l < LlamaModel.NUM_LAYERS; l++) {
-            layers[l].forward(x, pos, kCaches[l], vCaches[l]);
+            layers[l].forward(x, pos, caches[l], scratch);
         }
 
         // 3. Final RMSNorm
         rmsNorm.apply(x, outputNormWeight, hiddenSize);
 
         // 4. Classifier GEMV (outputWeight @ x → logits)
-        switch (outputWeight) {
-            case F16Array f16 -> gemv.apply(f16, x, logits, vocabSize, hiddenSize);
-            case F16Weights f16w -> gemv.apply(f16w, x, logits, vocabSize, hiddenSize);
-            case F32Array f32 -> gemv.apply(f32, x, logits, vocabSize, hiddenSize);
-            default -> throw new IllegalStateException("Unexpected output weight type: " + outputWeight.getClass());
+        classifier.apply(x, logits);
+    }
+
+    /**
+     * Runs {@code rows} tokens, possibly from different sequences, through the model in a
+     * single pass over the weights (see {@link TransformerBlock#forwardBatch}). Rows of one
+     * sequence must be consecutive positions in ascending order (a prefill chunk). Only the
+     * rows listed in {@code sampledRows} go through the classifier: the logits of row
+     * {@code sampledRows[i]} land in {@code arena.logits()[i]}. Used by {@link BatchScheduler}.
+     *
+     * @param tokens input token of each row
+     * @param positions position of each row's token
+     * @param caches per-layer caches of each row's sequence, from {@link #newKvCaches()}
+     * @param rows number of rows, at most {@code arena.capacity()}
+     * @param sampledRows rows whose logits are needed
+     * @param sampledCount number of entries used in {@code sampledRows}, at most {@code arena.sampledCapacity()}
+     * @param arena batch buffers from {@link #newBatchArena}
+     */
+    void forwardBatch(int[] tokens, int[] positions, KVCache[][] caches, int rows,
+                      int[] sampledRows, int sampledCount, BatchArena arena) {
+        int hiddenSize = LlamaModel.HIDDEN_SIZE;
+        ActivationBuffer[] xs = arena.x();
+        KVCache[] layerCaches = arena.layerCaches();
+
+        // 1. Embedding lookup
+        for (int b = 0; b < rows; b++) {
+            tokenEmbedding.readRow(tokens[b], xs[b].hostForWrite());
         }
 
-        // 5. Copy to plain float[]
-        float[] result = new float[vocabSize];
-        for (int i = 0; i < vocabSize; i++) {
-            result[i] = logits.array(i);
+        // 2. Transformer layers, each with the rows' caches for that layer
+        for (int l = 0; l < LlamaModel.NUM_LAYERS; l++) {
+            for (int b = 0; b < rows; b++) {
+                layerCaches[b] = caches[b][l];
+            }
+            layers[l].forwardBatch(arena, rows, positions, layerCaches);
         }
-        return result;
+
+        // 3. Final RMSNorm, only where logits are needed
+        ActivationBuffer[] sampled = arena.sampled();
+        for (int i = 0; i < sampledCount; i++) {
+            sampled[i] = xs[sampledRows[i]];
+            rmsNorm.apply(sampled[i], outputNormWeight, hiddenSize);
+        }
+
+        // 4. Classifier, batched like the layer projections; skipped for mid-chunk prefill rows
+        if (sampledCount > 0) {
+            classifier.applyBatch(sampled, arena.logits(), sampledCount);
+        }
+    }
+
+    /**
+     * Allocates buffers for {@link #forwardBatch} with up to {@code rows} tokens per step,
+     * at most {@code sampledRows} of them sampled.
+     */
+    BatchArena newBatchArena(int rows, int sampledRows) {
+        return BatchArena.allocate(model.model().getAccelerator(), rows, sampledRows);
+    }
+
+    /**
+     * Creates an empty set of per-layer caches drawing from this instance's block pool,
+     * with the same tiering, window and eviction policies as the instance's own. Pass
+     * them to {@link #generateStreaming(int[], int, int[], KVCache[], TokenListener)} to
+     * keep one request's positions apart from another's, and {@link KVCache#reset()}
+     * them afterwards to hand their blocks back.
+     */
+    public KVCache[] newKvCaches() {
+        KVCache[] caches = new KVCache[LlamaModel.NUM_LAYERS];
+        for (int l = 0; l < LlamaModel.NUM_LAYERS; l++) {
+            caches[l] = new KVCache(kvCaches[l].allocator(), contextLength());
+            if (kvCaches[l].spillStore() != null) {
+                caches[l].enableTiering(kvCaches[l].spillStore(), kvCaches[l].tierPolicy());
+            }
+            if (kvCaches[l].windowPolicy() != null) {
+                caches[l].enableWindow(kvCaches[l].windowPolicy());
+            }
+            if (kvCaches[l].heavyHitterPolicy() != null) {
+                caches[l].enableHeavyHitters(kvCaches[l].heavyHitterPolicy());
+            }
+        }
+        return caches;
+    }
+
+    /** The weights this session runs on, shareable with new sessions. */
+    public LoadedModel loadedModel() {
+        return model;
+    }
+
+    public Tokenizer tokenizer() {
+        return tokenizer;
+    }
+
+    public ChatFormat chatFormat() {
+        return chatFormat;
+    }
+
+    /**
+     * Starts a multi-turn conversation that keeps its KV cache between turns.
+     * Sessions share this instance's weights and working buffers, so turns of
+     * different sessions must not run concurrently; for conversations on separate
+     * threads, open one inference per thread from a shared {@link LoadedModel}.
+     *
+     * @param systemPrompt system instructions, or null/empty for none
+     */
+    public ChatSession newChatSession(String systemPrompt) {
+        return new ChatSession(this, systemPrompt);
+    }
+
+    /**
+     * Enables reuse of KV blocks across prompts that share a prefix: {@link #generateInto}
+     * (and the first turn of a {@link ChatSession}) skips prefill for the longest cached
+     * prefix and publishes the new full blocks afterwards. The prefix cache may be shared
+     * with other instances that use the same block pool.
+     *
+     * @param prefixCache prefix cache over this instance's block pool, or null to disable
+     */
+    public void setPrefixCache(PrefixCache prefixCache) {
+        if (prefixCache != null && prefixCache.allocator() != kvCaches[0].allocator()) {
+            throw new IllegalArgumentException("Prefix cache must use this instance's KV block pool");
+        }
+        this.prefixCache = prefixCache;
+    }
+
+    /**
+     * Creates a prefix cache over this instance's block pool and enables it.
+     *
+     * @param byteBudget maximum bytes of KV blocks the prefix cache may keep
+     * @return the new prefix cache (for its hit-ratio and saved-token counters)
+     */
+    public PrefixCache enablePrefixCache(long byteBudget) {
+        PrefixCache cache = new PrefixCache(kvCaches[0].allocator(), LlamaModel.NUM_LAYERS, byteBudget);
+        setPrefixCache(cache);
+        return cache;
+    }
+
+    public PrefixCache prefixCache() {
+        return prefixCache;
+    }
+
+    /**
+     * Keeps only {@code policy}'s window of each layer's KV cache in memory and spills
+     * older blocks to {@code store}, trading fill latency for resident memory on long
+     * contexts. Empties the caches; chat sessions created afterwards are tiered too.
+     *
+     * @param store spill tier, shared by every layer (and may be shared with other instances)
+     * @param policy blocks kept in memory per layer
+     */
+    public void enableKvTiering(KVSpillStore store, KVTierPolicy policy) {
+        for (KVCache cache : kvCaches) {
+            cache.reset();
+            cache.enableTiering(store, policy);
+        }
+    }
+
+    public KVSpillStore kvSpillStore() {
+        return kvCaches[0].spillStore();
+    }
+
+    /**
+     * Keeps each layer's cache to {@code policy}'s attention sinks plus a sliding window
+     * of recent positions (StreamingLLM), so generation can run past the context length
+     * with constant memory and per-token attention cost. RoPE follows cache slots without
+     * rewriting stored keys: attention rotates the query per group of blocks instead
+     * (see {@link KVCache#rotaryGroups}). Empties the caches;
+     * chat sessions created afterwards are windowed too. Cannot be combined with tiering,
+     * and prompts that overflow the window are not published to the prefix cache.
+     */
+    public void enableKvWindow(KVWindowPolicy policy) {
+        for (KVCache cache : kvCaches) {
+            cache.reset();
+            cache.enableWindow(policy);
+        }
+    }
+
+    public KVWindowPolicy kvWindow() {
+        return kvCaches[0].windowPolicy();
+    }
+
+    /**
+     * Caps each layer's cache at {@code policy}'s budget by evicting the positions that
+     * have received the least attention so far (H2O). The attention kernels accumulate
+     * softmax weights into the caches. Sequences stay limited to the context length.
+     * Empties the caches; chat sessions created afterwards use the policy too. Cannot be
+     * combined with tiering or a sliding window.
+     */
+    public void enableKvHeavyHitters(KVHeavyHitterPolicy policy) {
+        for (KVCache cache : kvCaches) {
+            cache.reset();
+            cache.enableHeavyHitters(policy);
+        }
+    }
+
+    public KVHeavyHitterPolicy kvHeavyHitters() {
+        return kvCaches[0].heavyHitterPolicy();
+    }
+
+
+    /**
+     * Prepares {@code caches} for a new sequence starting with {@code tokens}: empties them,
+     * or with a prefix cache enabled, fills them with the longest cached prefix.
+     *
+     * @return first position that still needs prefill
+     */
+    int beginSequence(int[] tokens, KVCache[] caches) {
+        if (prefixCache == null) {
+            for (KVCache cache : caches) {
+                cache.reset();
+            }
+            return 0;
+        }
+        return prefixCache.lookup(tokens, Math.min(tokens.length - 1, caches[0].positionLimit()), caches);
+    }
+
+    /**
+     * Publishes the prefilled prompt's full blocks to the prefix cache, if one is enabled.
+     */
+    void endPrefill(int[] tokens, KVCache[] caches) {
+        // Once a sliding window has evicted positions, slots no longer line up with tokens
+        if (prefixCache != null && caches[0].droppedPositions() == 0) {
+            prefixCache.insert(tokens, tokens.length, caches);
+        }
+    }
+
+    /**
+     * Writes the KV caches (every position written so far) and the sequence's token
+     * history to a memory-mapped snapshot file, tagged with the model fingerprint.
+     *
+     * @param path destination file
+     * @param tokens token history of the cached sequence (may include one not yet fed token)
+     */
+    public void saveSnapshot(Path path, int[] tokens) throws IOException {
+        KVSnapshot.save(path, model.fingerprint(), tokens, kvCaches[0].length(), kvCaches);
+    }
+
+    /**
+     * Replaces the KV caches with a snapshot written by {@link #saveSnapshot} for the same
+     * model and cache mode. Continue with {@link #forwardInto} at {@code positions()}.
+     *
+     * @return restored position count and token history
+     * @throws IOException if the file is unreadable or belongs to another model or cache layout
+     */
+    public KVSnapshot.Restored restoreSnapshot(Path path) throws IOException {
+        return KVSnapshot.restore(path, model.fingerprint(), kvCaches);
+    }
+
+    /**
+     * Resumes a conversation saved with {@link ChatSession#save}.
+     *
+     * @throws IOException if the file is unreadable or belongs to another model or cache layout
+     */
+    public ChatSession restoreChatSession(Path path) throws IOException {
+        ChatSession session = new ChatSession(this, null);
+        session.restore(path);
+        return session;
+    }
+
+    long modelFingerprint() {
+        return model.fingerprint();
+    }
+
+    /**
+     * Maximum number of positions a sequence may use (the model's context length),
+     * unless a sliding window is enabled (see {@link #enableKvWindow}).
+     */
+    public int contextLength() {
+        return kvCaches[0].capacity();
+    }
+
+    /**
+     * Empties the KV caches and returns their blocks to the pool. {@link #generateInto} does this
+     * before every new prompt; callers driving {@link #forwardInto} directly should call
+     * it when starting an unrelated sequence.
+     */
+    public void reset() {
+        for (KVCache cache : kvCaches) {
+            cache.reset();
+        }
+    }
+
+    /**
+     * Describes the session's working memory: shared scratch arena and KV caches.
+     */
+    public String memoryReport() {
+        long kvBytes = 0;
+        long kvMaxBytes = 0;
+        long kvSpilledBytes = 0;
+        for (int l = 0; l < LlamaModel.NUM_LAYERS; l++) {
+            kvBytes += kvCaches[l].bytes();
+            kvMaxBytes += kvCaches[l].maxBytes();
+            kvSpilledBytes += kvCaches[l].spilledBytes();
+        }
+        KVSpillStore spillStore = kvSpillStore();
+        return scratch.memoryReport(LlamaModel.NUM_LAYERS) + "\n"
+                + String.format("KV caches: %d KB allocated of %d KB max across %d layers (%s, %d positions)",
+                        kvBytes / 1024, kvMaxBytes / 1024, LlamaModel.NUM_LAYERS, kvCaches[0].mode(), contextLength())
+                + (spillStore != null ? String.format(", %d KB spilled", kvSpilledBytes / 1024) : "")
+                + (kvWindow() != null ? String.format(", window of %d sink + %d recent blocks, %d positions evicted",
+                        kvWindow().sinkBlocks(), kvWindow().windowBlocks(), kvCaches[0].droppedPositions()) : "")
+                + (kvHeavyHitters() != null ? String.format(", heavy hitters within %d positions, %d positions evicted",
+                        kvHeavyHitters().budgetPositions(), kvCaches[0].droppedPositions()) : "")
+                + "\n" + kvCaches[0].allocator().stats()
+                + (spillStore != null ? "\n" + spillStore.stats() : "")
+                + (prefixCache != null ? "\n" + prefixCache.stats() : "");
     }
 
     /**
@@ -171,37 +540,91 @@ public class LlamaInference {
      * @return generated token IDs (excluding prompt)
      */
     public int[] generate(int[] promptTokens, int maxNewTokens) {
-        return generate(promptTokens, maxNewTokens, Set.of(128001)); // EOS_TOKEN
+        return generate(promptTokens, maxNewTokens, new int[]{128001}); // EOS_TOKEN
     }
 
     /**
      * Generate tokens with custom stop token set.
      */
     public int[] generate(int[] promptTokens, int maxNewTokens, Set<Integer> stopTokens) {
+        return generate(promptTokens, maxNewTokens, stopTokens.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * Generate tokens with custom stop tokens.
+     */
+    public int[] generate(int[] promptTokens, int maxNewTokens, int[] stopTokens) {
+        return generate(promptTokens, maxNewTokens, stopTokens, Sampler.greedy());
+    }
+
+    /**
+     * Generate tokens with custom stop tokens, picking each one with {@code sampler}.
+     */
+    public int[] generate(int[] promptTokens, int maxNewTokens, int[] stopTokens, Sampler sampler) {
+        requirePositive(maxNewTokens);
         int[] result = new int[maxNewTokens];
+        int generated = generateInto(promptTokens, maxNewTokens, stopTokens, sampler, result);
+        return Arrays.copyOf(result, generated);
+    }
+
+    /**
+     * Generate tokens into a caller-owned buffer using greedy decoding.
+     *
+     * @param promptTokens input token IDs
+     * @param maxNewTokens maximum number of tokens to generate
+     * @param stopTokens token IDs that end generation (the stop token itself is included in the output)
+     * @param out destination for generated token IDs, at least maxNewTokens long
+     * @return number of tokens written to {@code out}
+     */
+    public int generateInto(int[] promptTokens, int maxNewTokens, int[] stopTokens, int[] out) {
+        return generateInto(promptTokens, maxNewTokens, stopTokens, Sampler.greedy(), out);
+    }
+
+    /**
+     * Generate tokens into a caller-owned buffer, picking each one with {@code sampler}.
+     * Like greedy decoding, this allocates nothing per token.
+     *
+     * @param promptTokens input token IDs
+     * @param maxNewTokens maximum number of tokens to generate
+     * @param stopTokens token IDs that end generation (the stop token itself is included in the output)
+     * @param sampler picks each token from the logits; not shared with another running generation
+     * @param out destination for generated token IDs, at least maxNewTokens long
+     * @return number of tokens written to {@code out}
+     * @throws IllegalArgumentException if maxNewTokens is not positive or {@code out} is too small
+     */
+    public int generateInto(int[] promptTokens, int maxNewTokens, int[] stopTokens, Sampler sampler, int[] out) {
+        requirePositive(maxNewTokens);
+        if (out.length < maxNewTokens) {
+            throw new IllegalArgumentException("Output buffer too small: " + out.length + " < " + maxNewTokens);
+        }
+        checkContext(promptTokens.length, maxNewTokens);
         int generated = 0;
         boolean isCI = System.getenv("CI") != null;
 
-        // Prefill: process all prompt tokens
-        float[] lastLogits = null;
-        for (int i = 0; i < promptTokens.length; i++) {
-            lastLogits = forward(promptTokens[i], i);
+        // New sequence: return blocks held for the previous prompt, reusing any cached prefix
+        int start = beginSequence(promptTokens, kvCaches);
+
+        // Prefill: process the prompt tokens not covered by the prefix cache
+        for (int i = start; i < promptTokens.length; i++) {
+            forwardLogits(promptTokens[i], i);
             if (isCI) {
                 System.out.print("p");
                 System.out.flush();
             }
         }
 
+        endPrefill(promptTokens, kvCaches);
+
         // First generated token from last prefill logits
-        int nextToken = argmax(lastLogits);
-        result[0] = nextToken;
+        int nextToken = sampler.sample(logits.host());
+        out[0] = nextToken;
         generated = 1;
 
         // Auto-regressive generation
-        while (generated < maxNewTokens && !stopTokens.contains(nextToken)) {
-            lastLogits = forward(nextToken, promptTokens.length + generated - 1);
-            nextToken = argmax(lastLogits);
-            result[generated] = nextToken;
+        while (generated < maxNewTokens && !containsToken(stopTokens, nextToken)) {
+            forwardLogits(nextToken, promptTokens.length + generated - 1);
+            nextToken = sampler.sample(logits.host());
+            out[generated] = nextToken;
             generated++;
 
             if (isCI) {
@@ -213,7 +636,139 @@ public class LlamaInference {
             System.out.println(); // newline after progress
         }
 
-        return Arrays.copyOf(result, generated);
+        return generated;
+    }
+
+    /**
+     * Greedy generation that hands every token to {@code listener} as soon as it is
+     * sampled, together with the text it completes (see {@link TokenDecoder}). Stop
+     * tokens end generation without being passed on, and bytes of a character cut off
+     * by the token budget are not emitted. The listener is polled for cancellation
+     * between forward passes, including during prefill.
+     *
+     * @param promptTokens input token IDs
+     * @param maxNewTokens maximum number of tokens to generate (stop token included)
+     * @param stopTokens token IDs that end generation
+     * @param listener receives tokens on the calling thread
+     * @return token counts, time to first token and why generation ended
+     */
+    public GenerationStats generateStreaming(int[] promptTokens, int maxNewTokens, int[] stopTokens,
+                                             TokenListener listener) {
+        return generateStreaming(promptTokens, maxNewTokens, stopTokens, kvCaches, Sampler.greedy(), listener);
+    }
+
+    /**
+     * {@link #generateStreaming(int[], int, int[], TokenListener)} with each token picked
+     * by {@code sampler} instead of greedily.
+     */
+    public GenerationStats generateStreaming(int[] promptTokens, int maxNewTokens, int[] stopTokens,
+                                             Sampler sampler, TokenListener listener) {
+        return generateStreaming(promptTokens, maxNewTokens, stopTokens, kvCaches, sampler, listener);
+    }
+
+    /**
+     * {@link #generateStreaming(int[], int, int[], TokenListener)} against caller-owned
+     * caches from {@link #newKvCaches()}, which start a new sequence (reusing a cached
+     * prefix if a prefix cache is enabled). Calls still share this instance's working
+     * buffers and must not run concurrently.
+     */
+    public GenerationStats generateStreaming(int[] promptTokens, int maxNewTokens, int[] stopTokens,
+                                             KVCache[] caches, TokenListener listener) {
+        return generateStreaming(promptTokens, maxNewTokens, stopTokens, caches, Sampler.greedy(), listener);
+    }
+
+    /**
+     * {@link #generateStreaming(int[], int, int[], KVCache[], TokenListener)} with each
+     * token picked by {@code sampler}.
+     */
+    public GenerationStats generateStreaming(int[] promptTokens, int maxNewTokens, int[] stopTokens,
+                                             KVCache[] caches, Sampler sampler, TokenListener listener) {
+        requirePositive(maxNewTokens);
+        checkContext(promptTokens.length, maxNewTokens);
+        long startNanos = System.nanoTime();
+
+        int start = beginSequence(promptTokens, caches);
+        for (int i = start; i < promptTokens.length; i++) {
+            if (listener.isCancelled()) {
+                return finish(listener, new GenerationStats(promptTokens.length, i - start, 0, 0,
+                        System.nanoTime() - startNanos, GenerationStats.StopReason.CANCELLED));
+            }
+            forwardLogits(promptTokens[i], i, caches);
+        }
+        endPrefill(promptTokens, caches);
+
+        TokenDecoder decoder = new TokenDecoder(tokenizer);
+        long firstTokenNanos = 0;
+        int generated = 0;
+        GenerationStats.StopReason reason;
+        int nextToken = sampler.sample(logits.host());
+        while (true) {
+            generated++;
+            if (generated == 1) {
+                firstTokenNanos = System.nanoTime() - startNanos;
+            }
+            if (containsToken(stopTokens, nextToken)) {
+                reason = GenerationStats.StopReason.STOP_TOKEN;
+                break;
+            }
+            listener.onToken(nextToken, decoder.append(nextToken));
+            if (generated == maxNewTokens) {
+                reason = GenerationStats.StopReason.MAX_TOKENS;
+                break;
+            }
+            if (listener.isCancelled()) {
+                reason = GenerationStats.StopReason.CANCELLED;
+                break;
+            }
+            forwardLogits(nextToken, promptTokens.length + generated - 1, caches);
+            nextToken = sampler.sample(logits.host());
+        }
+        return finish(listener, new GenerationStats(promptTokens.length, promptTokens.length - start, generated,
+                firstTokenNanos, System.nanoTime() - startNanos, reason));
+    }
+
+    /**
+     * Streams the reply to a user prompt in the Instruct chat format; see
+     * {@link #generateStreaming}.
+     *
+     * @param systemPrompt system instructions, or null/empty for none
+     * @param userPrompt the user's message
+     * @param maxNewTokens maximum tokens to generate
+     * @param listener receives reply tokens on the calling thread
+     */
+    public GenerationStats chatStreaming(String systemPrompt, String userPrompt, int maxNewTokens,
+                                         TokenListener listener) {
+        return generateStreaming(encodeChat(systemPrompt, userPrompt), maxNewTokens,
+                chatFormat.getStopTokenIds(), listener);
+    }
+
+    /**
+     * Reactive form of {@link #chatStreaming}: generation runs on {@code executor} once
+     * a subscriber arrives, and cancelling the subscription stops it. The publisher
+     * accepts a single subscriber. This instance must not be used for anything else
+     * until the stream completes.
+     */
+    public TokenPublisher chatPublisher(String systemPrompt, String userPrompt, int maxNewTokens, Executor executor) {
+        return new TokenPublisher(listener -> chatStreaming(systemPrompt, userPrompt, maxNewTokens, listener),
+                executor);
+    }
+
+    private static GenerationStats finish(TokenListener listener, GenerationStats stats) {
+        listener.onComplete(stats);
+        return stats;
+    }
+
+    private static void requirePositive(int maxNewTokens) {
+        if (maxNewTokens <= 0) {
+            throw new IllegalArgumentException("maxNewTokens must be positive: " + maxNewTokens);
+        }
+    }
+
+    void checkContext(int promptTokens, int maxNewTokens) {
+        if (kvWindow() == null && promptTokens + maxNewTokens - 1 > contextLength()) {
+            throw new IllegalArgumentException("Prompt (" + promptTokens + ") plus " + maxNewTokens
+                    + " new tokens exceeds the context length " + contextLength());
+        }
     }
 
     /**
@@ -225,39 +780,61 @@ public class LlamaInference {
      * @return decoded text response
      */
     public String chat(String systemPrompt, String userPrompt, int maxNewTokens) {
-        List<ChatFormat.Message> dialog = new ArrayList<>();
-        if (systemPrompt != null && !systemPrompt.isEmpty()) {
-            dialog.add(new ChatFormat.Message(ChatFormat.Role.SYSTEM, systemPrompt));
-        }
-        dialog.add(new ChatFormat.Message(ChatFormat.Role.USER, userPrompt));
-
-        List<Integer> promptTokens = chatFormat.encodeDialogPrompt(dialog);
-        int[] promptArray = promptTokens.stream().mapToInt(Integer::intValue).toArray();
+        int[] promptArray = encodeChat(systemPrompt, userPrompt);
 
-        Set<Integer> stopTokens = chatFormat.getStopTokens();
+        int[] stopTokens = chatFormat.getStopTokenIds();
         int[] generatedIds = generate(promptArray, maxNewTokens, stopTokens);
 
         // Decode generated tokens, excluding stop tokens
         List<Integer> tokenList = new ArrayList<>();
         for (int id : generatedIds) {
-            if (stopTokens.contains(id)) break;
+            if (containsToken(stopTokens, id)) break;
             tokenList.add(id);
         }
         return tokenizer.decode(tokenList);
     }
 
+    private int[] encodeChat(String systemPrompt, String userPrompt) {
+        List<ChatFormat.Message> dialog = new ArrayList<>();
+        if (systemPrompt != null && !systemPrompt.isEmpty()) {
+            dialog.add(new ChatFormat.Message(ChatFormat.Role.SYSTEM, systemPrompt));
+        }
+        dialog.add(new ChatFormat.Message(ChatFormat.Role.USER, userPrompt));
+        return chatFormat.encodeDialogPrompt(dialog).stream().mapToInt(Integer::intValue).toArray();
+    }
+
     /**
-     * Returns the index of the maximum value in the array.
+     * Returns the index of the maximum value in the array (see {@link Sampler#argmax}).
      */
     public static int argmax(float[] values) {
+        return Sampler.argmax(values);
+    }
+
+    /**
+     * Returns the index of the maximum value in the first {@code size} elements of the buffer.
+     */
+    public static int argmax(F32Array values, int size) {
         int maxIdx = 0;
-        float maxVal = values[0];
-        for (int i = 1; i < values.length; i++) {
-            if (values[i] > maxVal) {
-                maxVal = values[i];
+        float maxVal = values.array(0);
+        for (int i = 1; i < size; i++) {
+            float val = values.array(i);
+            if (val > maxVal) {
+                maxVal = val;
                 maxIdx = i;
             }
         }
         return maxIdx;
     }
+
+    /**
+     * Linear scan over a small primitive token set (stop tokens are typically 1-2 entries).
+     */
+    static boolean containsToken(int[] tokens, int token) {
+        for (int t : tokens) {
+            if (t == token) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -11,10 +11,14 @@ import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
 import java.lang.invoke.MethodHandles;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Minimal LlamaModel skeleton for Llama 3.2 1B Instruct (FP16).
@@ -34,14 +38,18 @@ public class LlamaModel {
     public static final int NUM_KV_HEADS = 8;
     public static final int HEAD_DIM = HIDDEN_SIZE / NUM_HEADS; // 64
     public static final int VOCAB_SIZE = 128256;
+    /** Context length used when GGUF metadata has no {@code llama.context_length}. */
     public static final int MAX_SEQ_LEN = 2048;
 
+    static final String CONTEXT_LENGTH_KEY = "llama.context_length";
+
     private final GGUFReader.GGUFMetadata metadata;
     private final Path modelPath;
     private final Accelerator accelerator;
     private final Map<String, F32Array> tensors = new HashMap<>();
     private final Map<String, F16Array> f16Tensors = new HashMap<>();
     private final Map<String, F16Weights> f16WeightsCache = new HashMap<>();
+    private RoPECache ropeCache;
 
     public LlamaModel(Path ggufPath) throws IOException {
         this(ggufPath, BackendType.JAVA_SEQ, true);
@@ -113,6 +121,58 @@ public class LlamaModel {
         return accelerator;
     }
 
+    /**
+     * Returns the model's configured context length ({@code llama.context_length}),
+     * or {@link #MAX_SEQ_LEN} when the GGUF file does not declare one.
+     */
+    public int getContextLength() {
+        if (metadata.metadata().get(CONTEXT_LENGTH_KEY) instanceof Number n && n.intValue() > 0) {
+            return n.intValue();
+        }
+        return MAX_SEQ_LEN;
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of the model file: FNV-1a over the scalar GGUF
+     * metadata (sorted by key), the size of each array entry, and every tensor's name,
+     * type, shape and offset. Two files with the same fingerprint lay out the same
+     * weights, so state derived from one (such as a KV cache snapshot) is valid for the other.
+     */
+    public long fingerprint() {
+        long hash = 0xcbf29ce484222325L;
+        for (Map.Entry<String, Object> entry : new TreeMap<>(metadata.metadata()).entrySet()) {
+            Object value = entry.getValue();
+            hash = fnv1a(hash, entry.getKey());
+            hash = fnv1a(hash, value instanceof List<?> list ? "[" + list.size() + "]" : String.valueOf(value));
+        }
+        for (GGUFReader.GGUFTensorInfo tensor : metadata.tensors()) {
+            hash = fnv1a(hash, tensor.name() + ":" + tensor.type() + ":" + Arrays.toString(tensor.shape())
+                    + "@" + tensor.offset());
+        }
+        return hash;
+    }
+
+    private static long fnv1a(long hash, String s) {
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        // Separator, so ("ab", "c") and ("a", "bc") hash differently
+        hash ^= 0xFF;
+        return hash * 0x100000001b3L;
+    }
+
+    /**
+     * Returns the RoPE cos/sin tables for this model, building them on first use.
+     * Shared by all transformer layers.
+     */
+    public RoPECache getRoPECache() throws IOException {
+        if (ropeCache == null) {
+            ropeCache = RoPECache.fromModel(this);
+        }
+        return ropeCache;
+    }
+
     /**
      * Maps a tensor from the GGUF file into a HAT F32Array buffer.
      * Supports F32 (type 0) and F16 (type 1) tensors only.
@@ -267,6 +327,24 @@ public class LlamaModel {
         return weights;
     }
 
+    /**
+     * Loads a [rows, cols] projection or embedding tensor in the requested storage format.
+     *
+     * @param tensorName the name of the tensor to load
+     * @param rows number of rows
+     * @param cols number of columns
+     * @param mode storage format (F32 dequantizes, F16/F16_FAST keep half precision)
+     * @return typed weight handle
+     * @throws IOException if tensor not found or has an unsupported type
+     */
+    public WeightTensor loadWeight(String tensorName, int rows, int cols, WeightStorageMode mode) throws IOException {
+        return switch (mode) {
+            case F16 -> new WeightTensor.OfF16(mapTensorF16(tensorName), rows, cols);
+            case F16_FAST -> new WeightTensor.OfF16Fast(mapWeightsF16(tensorName, rows, cols));
+            case F32 -> new WeightTensor.OfF32(mapTensor(tensorName), rows, cols);
+        };
+    }
+
     /**
      * Returns the tensor info for a given tensor name.
      */
@@ -0,0 +1,158 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import com.arturskowronski.llama3babylon.hat.kernels.CpuKernelMode;
+import com.arturskowronski.llama3babylon.hat.kernels.IKernelFactory;
+import com.arturskowronski.llama3babylon.hat.kv.KVBlockAllocator;
+import com.arturskowronski.llama3babylon.hat.kv.KvCacheMode;
+import hat.buffer.F32Array;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * The read-only half of the engine: every weight tensor, the RoPE tables, the tokenizer
+ * and the model configuration, loaded once.
+ *
+ * Nothing here is written after the constructor returns, so one instance can back any
+ * number of {@link LlamaInference} sessions on any number of threads. A session adds only
+ * what a single sequence needs (kernels with their scratch buffers, activations, logits
+ * and per-layer KV caches) and costs a few megabytes, where the weights cost gigabytes.
+ *
+ * <pre>
+ *   LoadedModel model = new LoadedModel(path);
+ *   LlamaInference a = model.newSession();
+ *   LlamaInference b = model.newSession();   // same weights, independent caches
+ * </pre>
+ *
+ * Sessions run concurrently on the Java backends. On a GPU backend they share one
+ * accelerator, which moves each weight buffer to the device on first use; drive such
+ * sessions from one thread, or through a {@link BatchScheduler}.
+ */
+public final class LoadedModel {
+
+    private final LlamaModel model;
+    private final BackendType backendType;
+    private final WeightStorageMode weightMode;
+    private final Tokenizer tokenizer;
+    private final ChatFormat chatFormat;
+    private final RoPECache ropeCache;
+    private final long fingerprint;
+
+    private final WeightTensor tokenEmbedding;
+    private final F32Array outputNormWeight;
+    private final WeightTensor outputWeight;
+    private final TransformerBlock.Weights[] layers;
+
+    // Shared by sessions from newSession(), so freed blocks serve whichever session grows next
+    private final KVBlockAllocator kvAllocator;
+
+    public LoadedModel(Path ggufPath) throws IOException {
+        this(ggufPath, BackendType.JAVA_SEQ, WeightStorageMode.fromEnv());
+    }
+
+    /**
+     * Loads every tensor of a GGUF model; the KV cache mode of {@link #newSession()} comes
+     * from the environment (see {@link KvCacheMode#fromEnv()}).
+     *
+     * @param ggufPath path to GGUF model file
+     * @param backendType HAT backend to use for acceleration
+     * @param weightMode how to store F16 weight tensors in memory
+     */
+    public LoadedModel(Path ggufPath, BackendType backendType, WeightStorageMode weightMode) throws IOException {
+        this.model = new LlamaModel(ggufPath, backendType);
+        this.backendType = backendType;
+        this.weightMode = weightMode;
+
+        // Llama 3.2 1B uses tied embeddings: output classifier shares token_embd.weight
+        this.tokenEmbedding = model.loadWeight("token_embd.weight",
+                LlamaModel.VOCAB_SIZE, LlamaModel.HIDDEN_SIZE, weightMode);
+        this.outputNormWeight = model.mapTensor("output_norm.weight");
+        this.outputWeight = model.hasTensor("output.weight")
+                ? model.loadWeight("output.weight", LlamaModel.VOCAB_SIZE, LlamaModel.HIDDEN_SIZE, weightMode)
+                : tokenEmbedding;
+        this.layers = new TransformerBlock.Weights[LlamaModel.NUM_LAYERS];
+        for (int l = 0; l < LlamaModel.NUM_LAYERS; l++) {
+            layers[l] = TransformerBlock.Weights.load(model, l, weightMode);
+        }
+
+        // Built eagerly: sessions only read them
+        this.ropeCache = model.getRoPECache();
+        this.fingerprint = model.fingerprint();
+        this.tokenizer = Tokenizer.fromGGUFMetadata(model.getMetadata().metadata());
+        this.chatFormat = new ChatFormat(tokenizer);
+        this.kvAllocator = new KVBlockAllocator(KvCacheMode.fromEnv(), LlamaModel.NUM_KV_HEADS, LlamaModel.HEAD_DIM);
+    }
+
+    /**
+     * Opens a session with CPU kernels picked from the environment (see
+     * {@link CpuKernelMode#fromEnv()}) whose KV caches draw from this model's shared block pool.
+     */
+    public LlamaInference newSession() {
+        return newSession(CpuKernelMode.fromEnv().factory(), kvAllocator);
+    }
+
+    /**
+     * Opens a session with its own kernels from {@code factory}.
+     *
+     * @param factory kernel factory; each session gets fresh kernel instances
+     * @param kvAllocator KV block pool for the session's caches, e.g. {@link #kvAllocator()}
+     */
+    public LlamaInference newSession(IKernelFactory factory, KVBlockAllocator kvAllocator) {
+        return new LlamaInference(this, factory, kvAllocator);
+    }
+
+    /** KV block pool shared by the sessions from {@link #newSession()}. */
+    public KVBlockAllocator kvAllocator() {
+        return kvAllocator;
+    }
+
+    public BackendType backendType() {
+        return backendType;
+    }
+
+    public WeightStorageMode weightMode() {
+        return weightMode;
+    }
+
+    public Tokenizer tokenizer() {
+        return tokenizer;
+    }
+
+    public ChatFormat chatFormat() {
+        return chatFormat;
+    }
+
+    /** The model's context length (see {@link LlamaModel#getContextLength()}). */
+    public int contextLength() {
+        return model.getContextLength();
+    }
+
+    /** See {@link LlamaModel#fingerprint()}. */
+    public long fingerprint() {
+        return fingerprint;
+    }
+
+    LlamaModel model() {
+        return model;
+    }
+
+    RoPECache ropeCache() {
+        return ropeCache;
+    }
+
+    WeightTensor tokenEmbedding() {
+        return tokenEmbedding;
+    }
+
+    F32Array outputNormWeight() {
+        return outputNormWeight;
+    }
+
+    WeightTensor outputWeight() {
+        return outputWeight;
+    }
+
+    TransformerBlock.Weights layer(int layerIdx) {
+        return layers[layerIdx];
+    }
+}
@@ -0,0 +1,68 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import com.arturskowronski.llama3babylon.hat.kernels.IRoPE;
+import com.arturskowronski.llama3babylon.hat.kv.KVCache;
+import hat.Accelerator;
+
+/**
+ * Query vectors rotated once per rotary group of a {@link KVCache}.
+ *
+ * A sliding-window cache never rewrites the keys it has stored, so window keys written
+ * before and after its rotary base moved carry different rotations (see
+ * {@link KVCache#rotaryGroups}). Rather than rotate the keys again, attention scores
+ * each group against its own copy of the query. The copies are made by the same RoPE
+ * kernel as the keys, so they share its pair layout and tables.
+ *
+ * Like the arenas that hold it, an instance is scratch shared by every layer and
+ * overwritten by the next call.
+ */
+public final class QueryRotations {
+
+    private final Accelerator accelerator;
+    private final int qDim;
+    // Allocated on the first cache with several rotary groups; rotated grows with the groups
+    private ActivationBuffer work;
+    private ActivationBuffer rotated; // [groups, qDim]
+
+    public QueryRotations(Accelerator accelerator, int qDim) {
+        this.accelerator = accelerator;
+        this.qDim = qDim;
+    }
+
+    /**
+     * Rotates the projected query {@code q} of position {@code pos} for every rotary group
+     * of {@code cache} and returns the copies, one after another. With a single group,
+     * {@code q} is rotated in place and returned.
+     */
+    public ActivationBuffer rotate(ActivationBuffer q, int pos, KVCache cache, IRoPE rope, RoPECache ropeCache,
+                                   int numHeads, int headDim) {
+        int groups = cache.rotaryGroups();
+        if (groups == 1) {
+            rope.apply(q, cache.queryRotaryPosition(pos, 0), numHeads, headDim, ropeCache);
+            return q;
+        }
+        if (work == null) {
+            work = new ActivationBuffer(accelerator, qDim);
+        }
+        if (rotated == null || rotated.length() < groups * qDim) {
+            rotated = new ActivationBuffer(accelerator, groups * qDim);
+        }
+        float[] raw = q.host();
+        for (int g = 0; g < groups; g++) {
+            System.arraycopy(raw, 0, work.hostForWrite(0, qDim), 0, qDim);
+            rope.apply(work, cache.queryRotaryPosition(pos, g), numHeads, headDim, ropeCache);
+            System.arraycopy(work.host(), 0, rotated.hostForWrite(g * qDim, (g + 1) * qDim), g * qDim, qDim);
+        }
+        return rotated;
+    }
+
+    /**
+     * Host bytes held (device mirrors, if any, double it).
+     */
+    public long bytes() {
+        if (work == null) {
+            return 0;
+        }
+        return ((long) work.length() + rotated.length()) * Float.BYTES;
+    }
+}
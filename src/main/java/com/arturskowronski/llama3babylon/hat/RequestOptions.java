@@ -0,0 +1,47 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import java.time.Duration;
+
+/**
+ * How a {@link BatchScheduler} should queue one request.
+ *
+ * Queued requests are admitted by priority class first, then earliest deadline first,
+ * then in submission order. A request's deadline is its submission time plus
+ * {@code maxQueueTime}; one still queued at its deadline is dropped with a
+ * {@link RequestRejectedException} rather than started late. Without a limit, a request
+ * waits for as long as it takes, behind every request of its class that has one.
+ *
+ * @param priority priority class
+ * @param maxQueueTime longest the request may wait for a slot, or null for no limit
+ */
+public record RequestOptions(Priority priority, Duration maxQueueTime) {
+
+    /** Standard priority, no queue-time limit. */
+    public static final RequestOptions DEFAULT = new RequestOptions(Priority.STANDARD, null);
+
+    /** Priority classes, most urgent first. */
+    public enum Priority {
+        /** Latency-sensitive traffic, such as chat users waiting for the first word. */
+        INTERACTIVE,
+        STANDARD,
+        /** Throughput work that only runs in capacity the other classes leave unused. */
+        BATCH
+    }
+
+    public RequestOptions {
+        if (priority == null) {
+            throw new IllegalArgumentException("priority must not be null");
+        }
+        if (maxQueueTime != null && maxQueueTime.isNegative()) {
+            throw new IllegalArgumentException("maxQueueTime must not be negative: " + maxQueueTime);
+        }
+    }
+
+    public static RequestOptions of(Priority priority) {
+        return new RequestOptions(priority, null);
+    }
+
+    public RequestOptions withMaxQueueTime(Duration maxQueueTime) {
+        return new RequestOptions(priority, maxQueueTime);
+    }
+}
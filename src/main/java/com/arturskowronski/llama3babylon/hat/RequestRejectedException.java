@@ -0,0 +1,32 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A request the {@link BatchScheduler} turned away or dropped from its queue under load
+ * (see {@link AdmissionPolicy} and {@link RequestOptions}). It never started, so it is
+ * safe to retry.
+ */
+public final class RequestRejectedException extends RejectedExecutionException {
+
+    /** Why the request was not run. */
+    public enum Reason {
+        /** The queue held {@link AdmissionPolicy#maxQueued()} requests, none of a lower class. */
+        QUEUE_FULL,
+        /** The queued requests' tokens would exceed {@link AdmissionPolicy#maxQueuedTokens()}. */
+        QUEUED_TOKENS,
+        /** Still queued when its {@link RequestOptions#maxQueueTime()} ran out. */
+        QUEUE_TIMEOUT
+    }
+
+    private final Reason reason;
+
+    public RequestRejectedException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public Reason reason() {
+        return reason;
+    }
+}
@@ -0,0 +1,126 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import hat.Accelerator;
+import hat.buffer.F32Array;
+
+import java.io.IOException;
+
+/**
+ * Precomputed RoPE (Rotary Positional Embedding) rotation tables.
+ *
+ * Every layer rotates Q and K with the same angles for a given position, so
+ * the transcendental math (pow, cos, sin) is done once here instead of 32 times
+ * per token inside the kernels. Tables are laid out as [maxSeqLen, headDim / 2]:
+ * the row for position {@code pos} starts at {@code pos * headDim / 2}.
+ *
+ * Frequencies follow the GGUF conventions:
+ *   freq_i = 1 / (theta ^ (2i / headDim)) / factor_i
+ * where theta is {@code llama.rope.freq_base} and factor_i comes from the
+ * optional Llama 3.1-style {@code rope_freqs.weight} tensor (1.0 when absent).
+ *
+ * Tables are F32Array buffers so the same instance feeds plain Java and HAT kernels.
+ */
+public final class RoPECache {
+
+    /** Llama 3 default rope base, used when GGUF metadata has no {@code llama.rope.freq_base}. */
+    public static final float DEFAULT_THETA = 500000.0f;
+
+    static final String FREQ_BASE_KEY = "llama.rope.freq_base";
+    static final String FREQ_FACTORS_TENSOR = "rope_freqs.weight";
+
+    private final int headDim;
+    private final int maxSeqLen;
+    private final float[] invFreq;
+    private final F32Array cosTable;
+    private final F32Array sinTable;
+
+    /**
+     * Builds cos/sin tables for positions [0, maxSeqLen).
+     *
+     * @param acc accelerator used to allocate the table buffers
+     * @param headDim dimension of each head (must be even)
+     * @param maxSeqLen number of positions to precompute
+     * @param theta rope frequency base
+     * @param freqFactors per-pair frequency divisors [headDim / 2], or null for none
+     */
+    public RoPECache(Accelerator acc, int headDim, int maxSeqLen, float theta, float[] freqFactors) {
+        if (headDim % 2 != 0) {
+            throw new IllegalArgumentException("headDim must be even, got: " + headDim);
+        }
+        int half = headDim / 2;
+        if (freqFactors != null && freqFactors.length != half) {
+            throw new IllegalArgumentException("Expected " + half + " rope frequency factors, got: " + freqFactors.length);
+        }
+        this.headDim = headDim;
+        this.maxSeqLen = maxSeqLen;
+
+        // Same float arithmetic as the original per-call kernels, so outputs are bit-identical
+        this.invFreq = new float[half];
+        for (int j = 0; j < half; j++) {
+            float freq = (float) (1.0 / Math.pow(theta, (double) (2 * j) / headDim));
+            invFreq[j] = freqFactors != null ? freq / freqFactors[j] : freq;
+        }
+
+        this.cosTable = F32Array.create(acc, maxSeqLen * half);
+        this.sinTable = F32Array.create(acc, maxSeqLen * half);
+        for (int pos = 0; pos < maxSeqLen; pos++) {
+            int row = pos * half;
+            for (int j = 0; j < half; j++) {
+                float val = pos * invFreq[j];
+                cosTable.array(row + j, (float) Math.cos(val));
+                sinTable.array(row + j, (float) Math.sin(val));
+            }
+        }
+    }
+
+    /**
+     * Builds the cache for a model, reading the rope base, optional frequency
+     * factors and context length from the GGUF file.
+     */
+    static RoPECache fromModel(LlamaModel model) throws IOException {
+        float theta = DEFAULT_THETA;
+        if (model.getMetadata().metadata().get(FREQ_BASE_KEY) instanceof Number n) {
+            theta = n.floatValue();
+        }
+
+        float[] freqFactors = null;
+        if (model.hasTensor(FREQ_FACTORS_TENSOR)) {
+            F32Array factors = model.mapTensor(FREQ_FACTORS_TENSOR);
+            freqFactors = new float[LlamaModel.HEAD_DIM / 2];
+            for (int j = 0; j < freqFactors.length; j++) {
+                freqFactors[j] = factors.array(j);
+            }
+        }
+
+        return new RoPECache(model.getAccelerator(), LlamaModel.HEAD_DIM, model.getContextLength(), theta, freqFactors);
+    }
+
+    public int headDim() {
+        return headDim;
+    }
+
+    public int maxSeqLen() {
+        return maxSeqLen;
+    }
+
+    /**
+     * Returns the inverse frequency of rotation pair {@code j}.
+     */
+    public float invFreq(int j) {
+        return invFreq[j];
+    }
+
+    /**
+     * Cosine table [maxSeqLen, headDim / 2].
+     */
+    public F32Array cosTable() {
+        return cosTable;
+    }
+
+    /**
+     * Sine table [maxSeqLen, headDim / 2].
+     */
+    public F32Array sinTable() {
+        return sinTable;
+    }
+}
@@ -0,0 +1,63 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import hat.Accelerator;
+
+/**
+ * Intermediate activation buffers for one transformer layer's forward pass.
+ *
+ * Layers run strictly in sequence and never keep scratch state between tokens,
+ * so a single arena per inference session is shared by all {@link TransformerBlock}s
+ * instead of each layer owning its own set.
+ *
+ * @param q query projection [NUM_HEADS * HEAD_DIM]
+ * @param k key projection [NUM_KV_HEADS * HEAD_DIM]
+ * @param v value projection [NUM_KV_HEADS * HEAD_DIM]
+ * @param attnOut attention output [HIDDEN_SIZE]
+ * @param ffn1Out gate projection [INTERMEDIATE_SIZE]
+ * @param ffn3Out up projection [INTERMEDIATE_SIZE]
+ * @param ffnOut down projection [HIDDEN_SIZE]
+ * @param residual saved residual stream [HIDDEN_SIZE]
+ * @param queryRotations query copies per rotary group of a windowed KV cache
+ */
+public record ScratchArena(ActivationBuffer q, ActivationBuffer k, ActivationBuffer v, ActivationBuffer attnOut,
+                           ActivationBuffer ffn1Out, ActivationBuffer ffn3Out, ActivationBuffer ffnOut,
+                           ActivationBuffer residual, QueryRotations queryRotations) {
+
+    /**
+     * Allocates an arena sized from the model configuration.
+     */
+    public static ScratchArena allocate(Accelerator acc) {
+        int kvDim = LlamaModel.NUM_KV_HEADS * LlamaModel.HEAD_DIM;
+        return new ScratchArena(
+                new ActivationBuffer(acc, LlamaModel.HIDDEN_SIZE),
+                new ActivationBuffer(acc, kvDim),
+                new ActivationBuffer(acc, kvDim),
+                new ActivationBuffer(acc, LlamaModel.HIDDEN_SIZE),
+                new ActivationBuffer(acc, LlamaModel.INTERMEDIATE_SIZE),
+                new ActivationBuffer(acc, LlamaModel.INTERMEDIATE_SIZE),
+                new ActivationBuffer(acc, LlamaModel.HIDDEN_SIZE),
+                new ActivationBuffer(acc, LlamaModel.HIDDEN_SIZE),
+                new QueryRotations(acc, LlamaModel.HIDDEN_SIZE));
+    }
+
+    /**
+     * Host bytes held by this arena (device mirrors, if any, double it).
+     */
+    public long bytes() {
+        long floats = (long) q.length() + k.length() + v.length() + attnOut.length()
+                + ffn1Out.length() + ffn3Out.length() + ffnOut.length() + residual.length();
+        return floats * Float.BYTES + queryRotations.bytes();
+    }
+
+    /**
+     * Summarizes the arena size against one buffer set per layer.
+     *
+     * @param numLayers number of layers sharing this arena
+     */
+    public String memoryReport(int numLayers) {
+        long shared = bytes();
+        long perLayer = shared * numLayers;
+        return String.format("Scratch arena: %d KB shared by %d layers (per-layer buffers: %d KB, saved %d KB)",
+                shared / 1024, numLayers, perLayer / 1024, (perLayer - shared) / 1024);
+    }
+}
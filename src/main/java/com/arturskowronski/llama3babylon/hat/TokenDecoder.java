@@ -0,0 +1,93 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental detokenizer for streaming output.
+ *
+ * Byte-level BPE tokens do not respect character boundaries: an emoji or a CJK
+ * character is often split across two or three tokens, so decoding tokens one at a
+ * time ({@link Tokenizer#decodeToken}) yields replacement characters. This decoder
+ * buffers the bytes of an incomplete UTF-8 sequence until the token that completes it
+ * arrives, and returns only text that can no longer change.
+ *
+ * <pre>
+ *   TokenDecoder decoder = new TokenDecoder(tokenizer);
+ *   for (int token : tokens) out.print(decoder.append(token));
+ *   out.print(decoder.flush());
+ * </pre>
+ *
+ * When the tokens spell valid UTF-8, concatenating every {@link #append} and the
+ * final {@link #flush} gives the same text as {@link Tokenizer#decode} over the whole
+ * sequence. Not thread-safe.
+ */
+public final class TokenDecoder {
+
+    private final Tokenizer tokenizer;
+    private byte[] pending = new byte[16];
+    private int pendingLength;
+
+    public TokenDecoder(Tokenizer tokenizer) {
+        this.tokenizer = tokenizer;
+    }
+
+    /**
+     * Adds one token and returns the text it completes, which is empty while a
+     * multi-byte character is still incomplete.
+     */
+    public String append(int tokenId) {
+        byte[] bytes = tokenizer.tokenBytes(tokenId);
+        if (pendingLength + bytes.length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + bytes.length));
+        }
+        System.arraycopy(bytes, 0, pending, pendingLength, bytes.length);
+        pendingLength += bytes.length;
+
+        int complete = completeLength(pending, pendingLength);
+        if (complete == 0) {
+            return "";
+        }
+        String text = new String(pending, 0, complete, StandardCharsets.UTF_8);
+        System.arraycopy(pending, complete, pending, 0, pendingLength - complete);
+        pendingLength -= complete;
+        return text;
+    }
+
+    /**
+     * Returns any buffered bytes (an incomplete character, decoded with replacement
+     * characters) and empties the decoder.
+     */
+    public String flush() {
+        String text = new String(pending, 0, pendingLength, StandardCharsets.UTF_8);
+        pendingLength = 0;
+        return text;
+    }
+
+    /** Number of buffered bytes waiting for the rest of their character. */
+    public int pendingBytes() {
+        return pendingLength;
+    }
+
+    /** Empties the decoder without returning buffered bytes. */
+    public void reset() {
+        pendingLength = 0;
+    }
+
+    /**
+     * Length of the longest prefix of {@code bytes} that does not end inside a
+     * UTF-8 sequence. Malformed input is passed through (to be decoded as replacement
+     * characters) rather than buffered forever.
+     */
+    static int completeLength(byte[] bytes, int length) {
+        // A sequence is at most 4 bytes, so its lead byte is within the last 4
+        for (int i = length - 1; i >= Math.max(0, length - 4); i--) {
+            int b = bytes[i] & 0xFF;
+            if ((b & 0xC0) != 0x80) {
+                int needed = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+                return i + needed <= length ? length : i;
+            }
+        }
+        return length;
+    }
+}
@@ -23,6 +23,7 @@ public class Tokenizer {
     private final Map<Pair, Integer> merges;       // pair → merged token ID
     private final Map<Pair, Integer> mergeRanks;   // pair → rank (lower = higher priority)
     private final Map<String, Integer> specialTokens;
+    private final byte[][] tokenBytes;             // decoded UTF-8 bytes per token
 
     private static final Map<Integer, Integer> BYTE_ENCODER = bytesToUnicode();
     private static final Map<Integer, Integer> BYTE_DECODER;
@@ -41,6 +42,12 @@ public class Tokenizer {
         this.merges = merges;
         this.mergeRanks = mergeRanks;
         this.specialTokens = specialTokens;
+        // Decoded up front: a final field filled in the constructor is safely published to
+        // every thread sharing this tokenizer, which lazily filled slots would not be
+        this.tokenBytes = new byte[vocabulary.length][];
+        for (int i = 0; i < vocabulary.length; i++) {
+            tokenBytes[i] = toBytes(vocabulary[i]);
+        }
         this.compiledPattern = Pattern.compile(LLAMA_3_PATTERN);
     }
 
@@ -175,9 +182,32 @@ public class Tokenizer {
                 sb.append(vocabulary[tokenId]);
             }
         }
+        byte[] bytes = toBytes(sb.toString());
+        return new String(bytes, 0, bytes.length, StandardCharsets.UTF_8);
+    }
+
+    public String decodeToken(int tokenId) {
+        return decode(List.of(tokenId));
+    }
+
+    /**
+     * Raw UTF-8 bytes of one token. A token may hold only part of a multi-byte
+     * character; {@link TokenDecoder} stitches such pieces back together.
+     * The returned array is cached and must not be modified.
+     *
+     * @return the token's bytes, or an empty array for an unknown token ID
+     */
+    public byte[] tokenBytes(int tokenId) {
+        if (tokenId < 0 || tokenId >= vocabulary.length) {
+            return new byte[0];
+        }
+        return tokenBytes[tokenId];
+    }
 
-        // Decode GPT-2 byte encoding back to UTF-8
-        String encoded = sb.toString();
+    /**
+     * Decodes GPT-2 byte encoding back to UTF-8 bytes.
+     */
+    private static byte[] toBytes(String encoded) {
         byte[] bytes = new byte[encoded.length()];
         int byteCount = 0;
         for (int i = 0; i < encoded.length(); i++) {
@@ -189,17 +219,13 @@ public class Tokenizer {
                 // Non-mapped character (e.g., special token text) — encode as UTF-8 directly
                 byte[] charBytes = String.valueOf((char) ch).getBytes(StandardCharsets.UTF_8);
                 if (byteCount + charBytes.length > bytes.length) {
-                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2 + charBytes.length);
                 }
                 System.arraycopy(charBytes, 0, bytes, byteCount, charBytes.length);
                 byteCount += charBytes.length;
             }
         }
-        return new String(bytes, 0, byteCount, StandardCharsets.UTF_8);
-    }
-
-    public String decodeToken(int tokenId) {
-        return decode(List.of(tokenId));
+        return byteCount == bytes.length ? bytes : Arrays.copyOf(bytes, byteCount);
     }
 
     public boolean isSpecialToken(int tokenId) {
@@ -1,9 +1,9 @@
 package com.arturskowronski.llama3babylon.hat;
 
 import hat.Accelerator;
-import hat.buffer.F16Array;
 import hat.buffer.F32Array;
 import com.arturskowronski.llama3babylon.hat.kernels.*;
+import com.arturskowronski.llama3babylon.hat.kv.KVCache;
 
 import java.io.IOException;
 
@@ -25,40 +25,52 @@ public class TransformerBlock {
 
     // Kernels
     private final IRMSNorm rmsNorm;
-    private final IGEMV gemv;
     private final IRoPE rope;
+    private final RoPECache ropeCache;
     private final IAttention attention;
-    private final ISoftmax softmax;
     private final ISiLU silu;
 
-    private final WeightStorageMode weightMode;
-
-    // Weights (mapped from model) — either F16Array or F32Array depending on mode
+    // Weights (shared, read-only), projections bound to this block's GEMV kernel once per storage type
     private final F32Array attnNormWeight;  // F32 in GGUF — norm weights always F32
-    private final Object wq;
-    private final Object wk;
-    private final Object wv;
-    private final Object wo;
+    private final WeightTensor.Projection wq;
+    private final WeightTensor.Projection wk;
+    private final WeightTensor.Projection wv;
+    private final WeightTensor.Projection wo;
 
     private final F32Array ffnNormWeight;   // F32 in GGUF — norm weights always F32
-    private final Object w1;
-    private final Object w2;
-    private final Object w3;
-
-    // Buffers for intermediate results
-    private final F32Array q;
-    private final F32Array k;
-    private final F32Array v;
-    private final F32Array attnOut;
-    private final F32Array qHead;
-    private final F32Array keyHeadCache;
-    private final F32Array valueHeadCache;
-    private final F32Array attnScores;
-    private final F32Array attnHeadOut;
-    private final F32Array ffn1Out;
-    private final F32Array ffn3Out;
-    private final F32Array ffnOut;
-    private final F32Array residual;
+    private final WeightTensor.Projection w1;
+    private final WeightTensor.Projection w2;
+    private final WeightTensor.Projection w3;
+
+    /**
+     * One layer's weights. Never written after loading, so any number of blocks (one per
+     * session) can share them across threads; the kernels, which keep scratch state, stay
+     * per block.
+     */
+    public record Weights(F32Array attnNorm, WeightTensor wq, WeightTensor wk, WeightTensor wv, WeightTensor wo,
+                          F32Array ffnNorm, WeightTensor w1, WeightTensor w2, WeightTensor w3) {
+
+        /**
+         * Maps layer {@code layerIdx}'s tensors (GGUF standard naming: blk.{N}.*).
+         */
+        public static Weights load(LlamaModel model, int layerIdx, WeightStorageMode weightMode) throws IOException {
+            // Norm weights are F32 in GGUF; projection/FFN weights are F16 on disk
+            String prefix = "blk." + layerIdx + ".";
+            int h = LlamaModel.HIDDEN_SIZE;
+            int kvDim = LlamaModel.NUM_KV_HEADS * LlamaModel.HEAD_DIM;
+            int inter = LlamaModel.INTERMEDIATE_SIZE;
+            return new Weights(
+                    model.mapTensor(prefix + "attn_norm.weight"),
+                    model.loadWeight(prefix + "attn_q.weight", h, h, weightMode),
+                    model.loadWeight(prefix + "attn_k.weight", kvDim, h, weightMode),
+                    model.loadWeight(prefix + "attn_v.weight", kvDim, h, weightMode),
+                    model.loadWeight(prefix + "attn_output.weight", h, h, weightMode),
+                    model.mapTensor(prefix + "ffn_norm.weight"),
+                    model.loadWeight(prefix + "ffn_gate.weight", inter, h, weightMode),
+                    model.loadWeight(prefix + "ffn_down.weight", h, inter, weightMode),
+                    model.loadWeight(prefix + "ffn_up.weight", inter, h, weightMode));
+        }
+    }
 
     public TransformerBlock(LlamaModel model, int layerIdx, IKernelFactory factory) throws IOException {
         this(model, layerIdx, factory, WeightStorageMode.F16);
@@ -66,74 +78,56 @@ public class TransformerBlock {
 
     public TransformerBlock(LlamaModel model, int layerIdx, IKernelFactory factory,
                             WeightStorageMode weightMode) throws IOException {
-        Accelerator acc = model.getAccelerator();
-        this.weightMode = weightMode;
+        this(Weights.load(model, layerIdx, weightMode), model.getAccelerator(), model.getRoPECache(), factory);
+    }
 
+    /**
+     * Creates a block with its own kernels over already loaded (possibly shared) weights.
+     */
+    public TransformerBlock(Weights weights, Accelerator acc, RoPECache ropeCache, IKernelFactory factory) {
         // Initialize Kernels using factory
         this.rmsNorm = factory.createRMSNorm(acc);
-        this.gemv = factory.createGEMV(acc);
+        IGEMV gemv = factory.createGEMV(acc);
         this.rope = factory.createRoPE(acc);
         this.attention = factory.createAttention(acc);
-        this.softmax = factory.createSoftmax(acc);
         this.silu = factory.createSiLU(acc);
-
-        // Map Weights (GGUF standard naming: blk.{N}.*)
-        // Norm weights are F32 in GGUF; projection/FFN weights are F16 on disk
-        String prefix = "blk." + layerIdx + ".";
-        int h = LlamaModel.HIDDEN_SIZE;
-        int kvDim = LlamaModel.NUM_KV_HEADS * LlamaModel.HEAD_DIM;
-        int inter = LlamaModel.INTERMEDIATE_SIZE;
-
-        this.attnNormWeight = model.mapTensor(prefix + "attn_norm.weight");
-        this.wq = mapProjectionWeight(model, prefix + "attn_q.weight", h, h);
-        this.wk = mapProjectionWeight(model, prefix + "attn_k.weight", kvDim, h);
-        this.wv = mapProjectionWeight(model, prefix + "attn_v.weight", kvDim, h);
-        this.wo = mapProjectionWeight(model, prefix + "attn_output.weight", h, h);
-
-        this.ffnNormWeight = model.mapTensor(prefix + "ffn_norm.weight");
-        this.w1 = mapProjectionWeight(model, prefix + "ffn_gate.weight", inter, h);
-        this.w2 = mapProjectionWeight(model, prefix + "ffn_down.weight", h, inter);
-        this.w3 = mapProjectionWeight(model, prefix + "ffn_up.weight", inter, h);
-
-        // Pre-allocate Intermediate Buffers
-        this.q = F32Array.create(acc, LlamaModel.HIDDEN_SIZE);
-        this.k = F32Array.create(acc, LlamaModel.NUM_KV_HEADS * LlamaModel.HEAD_DIM);
-        this.v = F32Array.create(acc, LlamaModel.NUM_KV_HEADS * LlamaModel.HEAD_DIM);
-        this.attnOut = F32Array.create(acc, LlamaModel.HIDDEN_SIZE);
-        this.qHead = F32Array.create(acc, LlamaModel.HEAD_DIM);
-        this.keyHeadCache = F32Array.create(acc, LlamaModel.MAX_SEQ_LEN * LlamaModel.HEAD_DIM);
-        this.valueHeadCache = F32Array.create(acc, LlamaModel.MAX_SEQ_LEN * LlamaModel.HEAD_DIM);
-        this.attnScores = F32Array.create(acc, LlamaModel.MAX_SEQ_LEN);
-        this.attnHeadOut = F32Array.create(acc, LlamaModel.HEAD_DIM);
-        this.ffn1Out = F32Array.create(acc, LlamaModel.INTERMEDIATE_SIZE);
-        this.ffn3Out = F32Array.create(acc, LlamaModel.INTERMEDIATE_SIZE);
-        this.ffnOut = F32Array.create(acc, LlamaModel.HIDDEN_SIZE);
-        this.residual = F32Array.create(acc, LlamaModel.HIDDEN_SIZE);
-    }
-
-    private Object mapProjectionWeight(LlamaModel model, String tensorName, int rows, int cols) throws IOException {
-        return switch (weightMode) {
-            case F16 -> model.mapTensorF16(tensorName);
-            case F16_FAST -> model.mapWeightsF16(tensorName, rows, cols);
-            case F32 -> model.mapTensor(tensorName);
-        };
+        this.ropeCache = ropeCache;
+
+        this.attnNormWeight = weights.attnNorm();
+        this.wq = weights.wq().bind(gemv);
+        this.wk = weights.wk().bind(gemv);
+        this.wv = weights.wv().bind(gemv);
+        this.wo = weights.wo().bind(gemv);
+
+        this.ffnNormWeight = weights.ffnNorm();
+        this.w1 = weights.w1().bind(gemv);
+        this.w2 = weights.w2().bind(gemv);
+        this.w3 = weights.w3().bind(gemv);
     }
 
     /**
      * Executes the transformer block for a single token.
      *
      * @param x input hidden state [HIDDEN_SIZE] (modified in-place by residual adds)
-     * @param pos current token position
-     * @param kCache Key Cache [MAX_SEQ_LEN, NUM_KV_HEADS, HEAD_DIM]
-     * @param vCache Value Cache [MAX_SEQ_LEN, NUM_KV_HEADS, HEAD_DIM]
+     * @param pos current token position (mapped to a cache slot by {@link KVCache#reserve})
+     * @param kvCache this layer's key/value cache [context length, NUM_KV_HEADS, HEAD_DIM]
+     * @param scratch intermediate buffers, shared by all layers of a session
      */
-    public void forward(F32Array x, int pos, F32Array kCache, F32Array vCache) {
+    public void forward(ActivationBuffer x, int pos, KVCache kvCache, ScratchArena scratch) {
+        ActivationBuffer q = scratch.q();
+        ActivationBuffer k = scratch.k();
+        ActivationBuffer v = scratch.v();
+        ActivationBuffer attnOut = scratch.attnOut();
+        ActivationBuffer ffn1Out = scratch.ffn1Out();
+        ActivationBuffer ffn3Out = scratch.ffn3Out();
+        ActivationBuffer ffnOut = scratch.ffnOut();
+        ActivationBuffer residual = scratch.residual();
+
         int hiddenSize = LlamaModel.HIDDEN_SIZE;
         int intermediateSize = LlamaModel.INTERMEDIATE_SIZE;
         int numHeads = LlamaModel.NUM_HEADS;
         int numKvHeads = LlamaModel.NUM_KV_HEADS;
         int headDim = LlamaModel.HEAD_DIM;
-        float ropeTheta = 500000.0f; // Llama 3 default
 
         // Save residual for Step 6
         copy(x, residual, hiddenSize);
@@ -142,57 +136,27 @@ public class TransformerBlock {
         rmsNorm.apply(x, attnNormWeight, hiddenSize);
 
         // 2. QKV Projection
-        gemvApply(wq, x, q, hiddenSize, hiddenSize);
-        gemvApply(wk, x, k, numKvHeads * headDim, hiddenSize);
-        gemvApply(wv, x, v, numKvHeads * headDim, hiddenSize);
+        wq.apply(x, q);
+        wk.apply(x, k);
+        wv.apply(x, v);
 
-        // 3. RoPE
-        rope.apply(q, pos, numHeads, headDim, ropeTheta);
-        rope.apply(k, pos, numKvHeads, headDim, ropeTheta);
+        // 3. RoPE. Slot and rotary position equal pos unless the cache has evicted positions
+        int slot = kvCache.reserve(pos);
+        rope.apply(k, kvCache.rotaryPosition(pos), numKvHeads, headDim, ropeCache);
 
         // 4. Update KV cache and compute multi-head attention via selected kernels.
-        int kvDim = numKvHeads * headDim;
-        int kvMul = numHeads / numKvHeads;
-
-        // Store k, v into KV caches at current position
-        int cacheOffset = pos * kvDim;
-        for (int i = 0; i < kvDim; i++) {
-            kCache.array(cacheOffset + i, k.array(i));
-            vCache.array(cacheOffset + i, v.array(i));
-        }
+        // The cache converts k, v to its storage mode (F32/F16/Q8) on write
+        kvCache.write(slot, k.host(), 0, v.host(), 0);
 
-        int seqLen = pos + 1;
-        for (int h = 0; h < numHeads; h++) {
-            int kvHead = h / kvMul;
-            int qOffset = h * headDim;
-            int kvHeadOffset = kvHead * headDim;
+        // Q is rotated after the write, which may start a rotary group of its own
+        ActivationBuffer rotatedQ = scratch.queryRotations().rotate(q, pos, kvCache, rope, ropeCache, numHeads, headDim);
 
-            for (int d = 0; d < headDim; d++) {
-                qHead.array(d, q.array(qOffset + d));
-            }
-
-            // Gather one KV head across sequence into contiguous scratch buffers.
-            for (int t = 0; t < seqLen; t++) {
-                int kvCacheOffset = t * kvDim + kvHeadOffset;
-                int headOffset = t * headDim;
-                for (int d = 0; d < headDim; d++) {
-                    keyHeadCache.array(headOffset + d, kCache.array(kvCacheOffset + d));
-                    valueHeadCache.array(headOffset + d, vCache.array(kvCacheOffset + d));
-                }
-            }
-
-            attention.computeScores(qHead, keyHeadCache, attnScores, seqLen, headDim);
-            softmax.apply(attnScores, seqLen);
-            attention.computeValues(attnScores, valueHeadCache, attnHeadOut, seqLen, headDim);
-
-            int attnOffset = h * headDim;
-            for (int d = 0; d < headDim; d++) {
-                attnOut.array(attnOffset + d, attnHeadOut.array(d));
-            }
-        }
+        // All heads in one call, reading K/V straight from the cache
+        int seqLen = slot + 1;
+        attention.computeAllHeads(rotatedQ, kvCache, attnOut, seqLen, numHeads, headDim);
 
         // 5. Output Projection
-        gemvApply(wo, attnOut, x, hiddenSize, hiddenSize);
+        wo.apply(attnOut, x);
 
         // 6. Residual Add
         add(x, residual, hiddenSize);
@@ -204,42 +168,122 @@ public class TransformerBlock {
         rmsNorm.apply(x, ffnNormWeight, hiddenSize);
 
         // 8. Feed-Forward (SwiGLU)
-        gemvApply(w1, x, ffn1Out, intermediateSize, hiddenSize);
-        gemvApply(w3, x, ffn3Out, intermediateSize, hiddenSize);
+        w1.apply(x, ffn1Out);
+        w3.apply(x, ffn3Out);
         silu.apply(ffn1Out, intermediateSize);
         elementWiseMul(ffn1Out, ffn3Out, intermediateSize);
-        gemvApply(w2, ffn1Out, ffnOut, hiddenSize, intermediateSize);
+        w2.apply(ffn1Out, ffnOut);
 
         // 9. Residual Add (use saved residual, not norm'd x)
+        float[] res = residual.host();
+        float[] ffn = ffnOut.host();
+        float[] out = x.hostForWrite(0, hiddenSize);
         for (int i = 0; i < hiddenSize; i++) {
-            x.array(i, residual.array(i) + ffnOut.array(i));
+            out[i] = res[i] + ffn[i];
         }
     }
 
-    private void gemvApply(Object weight, F32Array input, F32Array output, int rows, int cols) {
-        switch (weight) {
-            case F16Array f16 -> gemv.apply(f16, input, output, rows, cols);
-            case F16Weights f16w -> gemv.apply(f16w, input, output, rows, cols);
-            case F32Array f32 -> gemv.apply(f32, input, output, rows, cols);
-            default -> throw new IllegalStateException("Unexpected weight type: " + weight.getClass());
+    /**
+     * Executes the transformer block for {@code batch} rows, each one token of some
+     * sequence (continuous batching). The projections run as batched GEMVs, reading each
+     * weight row once for the whole batch; norms, RoPE and attention stay per row, against
+     * that row's position and its sequence's cache. Rows run attention in order, so several
+     * rows of one sequence (a prefill chunk) must appear in ascending position order: each
+     * then sees the keys written by the rows before it, exactly as successive
+     * {@link #forward} calls would.
+     *
+     * @param arena batch buffers; {@code arena.x()[b]} is row b's hidden state (modified in-place)
+     * @param batch number of rows in this step, at most {@code arena.capacity()}
+     * @param positions position of each row's token
+     * @param caches this layer's KV cache of each row's sequence
+     */
+    public void forwardBatch(BatchArena arena, int batch, int[] positions, KVCache[] caches) {
+        ActivationBuffer[] x = arena.x();
+        ActivationBuffer[] q = arena.q();
+        ActivationBuffer[] k = arena.k();
+        ActivationBuffer[] v = arena.v();
+        ActivationBuffer[] attnOut = arena.attnOut();
+        ActivationBuffer[] ffn1Out = arena.ffn1Out();
+        ActivationBuffer[] ffn3Out = arena.ffn3Out();
+        ActivationBuffer[] ffnOut = arena.ffnOut();
+        ActivationBuffer[] residual = arena.residual();
+
+        int hiddenSize = LlamaModel.HIDDEN_SIZE;
+        int intermediateSize = LlamaModel.INTERMEDIATE_SIZE;
+        int numHeads = LlamaModel.NUM_HEADS;
+        int numKvHeads = LlamaModel.NUM_KV_HEADS;
+        int headDim = LlamaModel.HEAD_DIM;
+
+        // 1. Save residual, RMSNorm (attn_norm)
+        for (int b = 0; b < batch; b++) {
+            copy(x[b], residual[b], hiddenSize);
+            rmsNorm.apply(x[b], attnNormWeight, hiddenSize);
         }
-    }
 
-    private void copy(F32Array src, F32Array dst, int size) {
-        for (int i = 0; i < size; i++) {
-            dst.array(i, src.array(i));
+        // 2. QKV Projection, one pass over each weight for the whole batch
+        wq.applyBatch(x, q, batch);
+        wk.applyBatch(x, k, batch);
+        wv.applyBatch(x, v, batch);
+
+        // 3-4. RoPE, KV cache update and attention against each row's sequence cache, in row order
+        attention.reserveCaches(batch);
+        for (int b = 0; b < batch; b++) {
+            KVCache kvCache = caches[b];
+            int slot = kvCache.reserve(positions[b]);
+            rope.apply(k[b], kvCache.rotaryPosition(positions[b]), numKvHeads, headDim, ropeCache);
+            kvCache.write(slot, k[b].host(), 0, v[b].host(), 0);
+            ActivationBuffer rotatedQ = arena.queryRotations().rotate(q[b], positions[b], kvCache, rope, ropeCache,
+                    numHeads, headDim);
+            attention.computeAllHeads(rotatedQ, kvCache, attnOut[b], slot + 1, numHeads, headDim);
         }
+
+        // 5. Output Projection
+        wo.applyBatch(attnOut, x, batch);
+
+        // 6-7. Residual Add, save residual, RMSNorm (ffn_norm)
+        for (int b = 0; b < batch; b++) {
+            add(x[b], residual[b], hiddenSize);
+            copy(x[b], residual[b], hiddenSize);
+            rmsNorm.apply(x[b], ffnNormWeight, hiddenSize);
+        }
+
+        // 8. Feed-Forward (SwiGLU)
+        w1.applyBatch(x, ffn1Out, batch);
+        w3.applyBatch(x, ffn3Out, batch);
+        for (int b = 0; b < batch; b++) {
+            silu.apply(ffn1Out[b], intermediateSize);
+            elementWiseMul(ffn1Out[b], ffn3Out[b], intermediateSize);
+        }
+        w2.applyBatch(ffn1Out, ffnOut, batch);
+
+        // 9. Residual Add
+        for (int b = 0; b < batch; b++) {
+            float[] res = residual[b].host();
+            float[] ffn = ffnOut[b].host();
+            float[] out = x[b].hostForWrite(0, hiddenSize);
+            for (int i = 0; i < hiddenSize; i++) {
+                out[i] = res[i] + ffn[i];
+            }
+        }
+    }
+
+    private void copy(ActivationBuffer src, ActivationBuffer dst, int size) {
+        System.arraycopy(src.host(), 0, dst.hostForWrite(0, size), 0, size);
     }
 
-    private void add(F32Array a, F32Array b, int size) {
+    private void add(ActivationBuffer a, ActivationBuffer b, int size) {
+        float[] bh = b.host();
+        float[] ah = a.hostForWrite(0, size);
         for (int i = 0; i < size; i++) {
-            a.array(i, a.array(i) + b.array(i));
+            ah[i] += bh[i];
         }
     }
 
-    private void elementWiseMul(F32Array a, F32Array b, int size) {
+    private void elementWiseMul(ActivationBuffer a, ActivationBuffer b, int size) {
+        float[] bh = b.host();
+        float[] ah = a.hostForWrite(0, size);
         for (int i = 0; i < size; i++) {
-            a.array(i, a.array(i) * b.array(i));
+            ah[i] *= bh[i];
         }
     }
 }
@@ -0,0 +1,135 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import com.arturskowronski.llama3babylon.hat.kernels.IGEMV;
+import hat.buffer.F16Array;
+import hat.buffer.F32Array;
+import hat.types.F16;
+
+/**
+ * A [rows, cols] weight matrix in one of the supported storage formats.
+ *
+ * Created by {@link LlamaModel#loadWeight}. The engine never inspects the concrete
+ * type: each layer calls {@link #bind} once at construction and keeps the returned
+ * {@link Projection}, so every GEMV call site sees a single implementation and C2
+ * can inline straight through to the matching kernel overload.
+ *
+ * A new storage format (quantized, mmap, repacked) is a new permitted record here,
+ * plus the matching {@link IGEMV} overload.
+ */
+public sealed interface WeightTensor permits WeightTensor.OfF32, WeightTensor.OfF16, WeightTensor.OfF16Fast {
+
+    int rows();
+
+    int cols();
+
+    /**
+     * Binds a GEMV kernel to this tensor: the returned projection computes
+     * {@code output = this @ input} with no per-call type dispatch.
+     */
+    Projection bind(IGEMV gemv);
+
+    /**
+     * Dequantizes one row into {@code dest[0, cols)} (embedding lookup).
+     */
+    void readRow(int row, float[] dest);
+
+    /**
+     * Matrix-vector product with a weight tensor and kernel already fixed.
+     */
+    interface Projection {
+        void apply(ActivationBuffer input, ActivationBuffer output);
+
+        /**
+         * {@code outputs[b] = this @ inputs[b]} for the first {@code batch} vectors,
+         * in one pass over the weights where the kernel supports it.
+         */
+        void applyBatch(ActivationBuffer[] inputs, ActivationBuffer[] outputs, int batch);
+    }
+
+    /** Dequantized F32 storage ({@link WeightStorageMode#F32}). */
+    record OfF32(F32Array data, int rows, int cols) implements WeightTensor {
+        @Override
+        public Projection bind(IGEMV gemv) {
+            return new Projection() {
+                @Override
+                public void apply(ActivationBuffer input, ActivationBuffer output) {
+                    gemv.apply(data, input, output, rows, cols);
+                }
+
+                @Override
+                public void applyBatch(ActivationBuffer[] inputs, ActivationBuffer[] outputs, int batch) {
+                    gemv.applyBatch(data, inputs, outputs, batch, rows, cols);
+                }
+            };
+        }
+
+        @Override
+        public void readRow(int row, float[] dest) {
+            int offset = row * cols;
+            for (int c = 0; c < cols; c++) {
+                dest[c] = data.array(offset + c);
+            }
+        }
+    }
+
+    /** Native HAT F16 storage ({@link WeightStorageMode#F16}). */
+    record OfF16(F16Array data, int rows, int cols) implements WeightTensor {
+        @Override
+        public Projection bind(IGEMV gemv) {
+            return new Projection() {
+                @Override
+                public void apply(ActivationBuffer input, ActivationBuffer output) {
+                    gemv.apply(data, input, output, rows, cols);
+                }
+
+                @Override
+                public void applyBatch(ActivationBuffer[] inputs, ActivationBuffer[] outputs, int batch) {
+                    gemv.applyBatch(data, inputs, outputs, batch, rows, cols);
+                }
+            };
+        }
+
+        @Override
+        public void readRow(int row, float[] dest) {
+            int offset = row * cols;
+            for (int c = 0; c < cols; c++) {
+                dest[c] = F16.f16ToFloat(data.array(offset + c));
+            }
+        }
+    }
+
+    /** CPU-optimized short[] F16 storage ({@link WeightStorageMode#F16_FAST}). */
+    record OfF16Fast(F16Weights data) implements WeightTensor {
+        @Override
+        public int rows() {
+            return data.rows();
+        }
+
+        @Override
+        public int cols() {
+            return data.cols();
+        }
+
+        @Override
+        public Projection bind(IGEMV gemv) {
+            int rows = data.rows();
+            int cols = data.cols();
+            return new Projection() {
+                @Override
+                public void apply(ActivationBuffer input, ActivationBuffer output) {
+                    gemv.apply(data, input, output, rows, cols);
+                }
+
+                @Override
+                public void applyBatch(ActivationBuffer[] inputs, ActivationBuffer[] outputs, int batch) {
+                    gemv.applyBatch(data, inputs, outputs, batch, rows, cols);
+                }
+            };
+        }
+
+        @Override
+        public void readRow(int row, float[] dest) {
+            data.dequantRow(row, dest);
+        }
+    }
+}
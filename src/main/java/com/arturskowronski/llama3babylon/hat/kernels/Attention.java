@@ -1,8 +1,12 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
+import com.arturskowronski.llama3babylon.hat.kv.KVCache;
 import hat.Accelerator;
 import hat.buffer.F32Array;
 
+import java.util.Arrays;
+
 /**
  * Attention kernel for Llama 3.2 1B Instruct (FP16).
  * <p>
@@ -16,6 +20,18 @@ import hat.buffer.F32Array;
  */
 public class Attention implements IAttention {
 
+    /** Positions scored per tile in {@link #computeAllHeads}. */
+    static final int TILE_SIZE = 32;
+
+    private final float[] tileScores = new float[TILE_SIZE];
+    private float[] accBuf;
+    // Per-head running state for the block-by-block pass
+    private float[] headMax;
+    private float[] headSum;
+    private float[] headAcc;
+    // Every score of the current head, for caches that track attention mass
+    private float[] positionScores;
+
     public Attention(Accelerator accelerator) {
         // Kept for factory symmetry with HAT implementation.
     }
@@ -60,4 +76,169 @@ public class Attention implements IAttention {
         }
     }
 
+    /**
+     * Computes all query heads from a {@link KVCache}, converting its rows inside the
+     * dot products (see {@link KVCache#dotKey}). A cache with spilled blocks is walked
+     * block by block instead (see {@link #attendAllHeadsByBlock}). If the cache tracks
+     * attention, every head's softmax weights are added to it.
+     */
+    @Override
+    public void computeAllHeads(ActivationBuffer q, KVCache cache, ActivationBuffer output,
+                                int seqLen, int numHeads, int headDim) {
+        float[] query = q.host();
+        float[] out = output.hostForWrite(0, numHeads * headDim);
+        if (cache.spilledBlocks() > 0) {
+            attendAllHeadsByBlock(query, cache, out, seqLen, numHeads, headDim);
+            return;
+        }
+        int kvMul = numHeads / cache.numKvHeads();
+        for (int h = 0; h < numHeads; h++) {
+            int headOffset = h * headDim;
+            attendHead(query, headOffset, numHeads * headDim, cache, h / kvMul, out, headOffset, seqLen, headDim);
+        }
+    }
+
+    /**
+     * Online-softmax attention for all heads at once, one cache block at a time.
+     * <p>
+     * The per-head loop reads every position once per head, which for a tiered cache
+     * would bring each spilled block back from the store once per head. Here the outer
+     * loop runs over blocks and every head updates its own running max, sum and
+     * accumulator from the block, so each spilled block is filled once per call.
+     */
+    private void attendAllHeadsByBlock(float[] query, KVCache cache, float[] output,
+                                       int seqLen, int numHeads, int headDim) {
+        if (headMax == null || headMax.length < numHeads || headAcc.length < numHeads * headDim) {
+            headMax = new float[numHeads];
+            headSum = new float[numHeads];
+            headAcc = new float[numHeads * headDim];
+        }
+        Arrays.fill(headMax, 0, numHeads, Float.NEGATIVE_INFINITY);
+        Arrays.fill(headSum, 0, numHeads, 0.0f);
+        Arrays.fill(headAcc, 0, numHeads * headDim, 0.0f);
+
+        float scale = 1.0f / (float) Math.sqrt(headDim);
+        int kvMul = numHeads / cache.numKvHeads();
+        for (int blockStart = 0; blockStart < seqLen; blockStart += KVCache.BLOCK_POSITIONS) {
+            int blockLen = Math.min(KVCache.BLOCK_POSITIONS, seqLen - blockStart);
+            int groupOffset = cache.rotaryGroup(blockStart) * numHeads * headDim;
+            for (int h = 0; h < numHeads; h++) {
+                int kvHead = h / kvMul;
+                int headOffset = h * headDim;
+
+                float tileMax = Float.NEGATIVE_INFINITY;
+                for (int j = 0; j < blockLen; j++) {
+                    float score = cache.dotKey(blockStart + j, kvHead, query, groupOffset + headOffset) * scale;
+                    tileScores[j] = score;
+                    if (score > tileMax) {
+                        tileMax = score;
+                    }
+                }
+
+                float newMax = Math.max(headMax[h], tileMax);
+                float correction = (float) Math.exp(headMax[h] - newMax);
+                headSum[h] *= correction;
+                for (int i = 0; i < headDim; i++) {
+                    headAcc[headOffset + i] *= correction;
+                }
+
+                for (int j = 0; j < blockLen; j++) {
+                    float p = (float) Math.exp(tileScores[j] - newMax);
+                    headSum[h] += p;
+                    cache.addValue(blockStart + j, kvHead, p, headAcc, headOffset);
+                }
+                headMax[h] = newMax;
+            }
+        }
+
+        for (int h = 0; h < numHeads; h++) {
+            float invSum = 1.0f / headSum[h];
+            int headOffset = h * headDim;
+            for (int i = 0; i < headDim; i++) {
+                output[headOffset + i] = headAcc[headOffset + i] * invSum;
+            }
+        }
+    }
+
+    /**
+     * Online-softmax attention for one head, processed in tiles of {@link #TILE_SIZE}
+     * positions and reading KV head {@code kvHead} through the cache accessors.
+     * <p>
+     * Per tile: score the positions into a small scratch buffer, rescale the running
+     * output and sum to the new maximum, then accumulate exp(score - max) * V. Position t
+     * is scored against the query at {@code cache.rotaryGroup(t) * qStride + qOffset}.
+     */
+    private void attendHead(float[] query, int qOffset, int qStride, KVCache cache, int kvHead,
+                            float[] output, int outOffset, int seqLen, int headDim) {
+        if (accBuf == null || accBuf.length < headDim) {
+            accBuf = new float[headDim];
+        }
+        float[] acc = accBuf;
+        for (int i = 0; i < headDim; i++) {
+            acc[i] = 0.0f;
+        }
+        float[] allScores = cache.tracksAttention() ? positionScores(seqLen) : null;
+
+        float scale = 1.0f / (float) Math.sqrt(headDim);
+        float runningMax = Float.NEGATIVE_INFINITY;
+        float runningSum = 0.0f;
+
+        for (int tileStart = 0; tileStart < seqLen; tileStart += TILE_SIZE) {
+            int tileLen = Math.min(TILE_SIZE, seqLen - tileStart);
+
+            float tileMax = Float.NEGATIVE_INFINITY;
+            for (int j = 0; j < tileLen; j++) {
+                int t = tileStart + j;
+                float score = cache.dotKey(t, kvHead, query, cache.rotaryGroup(t) * qStride + qOffset) * scale;
+                tileScores[j] = score;
+                if (score > tileMax) {
+                    tileMax = score;
+                }
+            }
+            if (allScores != null) {
+                System.arraycopy(tileScores, 0, allScores, tileStart, tileLen);
+            }
+
+            float newMax = Math.max(runningMax, tileMax);
+            float correction = (float) Math.exp(runningMax - newMax);
+            runningSum *= correction;
+            for (int i = 0; i < headDim; i++) {
+                acc[i] *= correction;
+            }
+
+            for (int j = 0; j < tileLen; j++) {
+                float p = (float) Math.exp(tileScores[j] - newMax);
+                runningSum += p;
+                cache.addValue(tileStart + j, kvHead, p, acc, 0);
+            }
+            runningMax = newMax;
+        }
+
+        float invSum = 1.0f / runningSum;
+        for (int i = 0; i < headDim; i++) {
+            output[outOffset + i] = acc[i] * invSum;
+        }
+        if (allScores != null) {
+            addAttention(cache, kvHead, allScores, seqLen, runningMax, invSum);
+        }
+    }
+
+    /**
+     * Scratch for the scores of one head over [0, seqLen).
+     */
+    float[] positionScores(int seqLen) {
+        if (positionScores == null || positionScores.length < seqLen) {
+            positionScores = new float[Math.max(seqLen, TILE_SIZE)];
+        }
+        return positionScores;
+    }
+
+    /**
+     * Adds one head's softmax weights, exp(score - max) / sum, to the cache's attention mass.
+     */
+    static void addAttention(KVCache cache, int kvHead, float[] scores, int seqLen, float max, float invSum) {
+        for (int t = 0; t < seqLen; t++) {
+            cache.addAttention(t, kvHead, (float) Math.exp(scores[t] - max) * invSum);
+        }
+    }
 }
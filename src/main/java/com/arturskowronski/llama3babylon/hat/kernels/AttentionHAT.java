@@ -1,11 +1,22 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
+import com.arturskowronski.llama3babylon.hat.kv.KVBlock;
+import com.arturskowronski.llama3babylon.hat.kv.KVCache;
+import com.arturskowronski.llama3babylon.hat.kv.KvCacheMode;
 import hat.Accelerator;
 import hat.ComputeContext;
 import hat.KernelContext;
 import hat.NDRange;
+import hat.buffer.F16Array;
 import hat.buffer.F32Array;
+import hat.buffer.S32Array;
+import hat.types.F16;
 import jdk.incubator.code.Reflect;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
 import static optkl.ifacemapper.MappableIface.RO;
 import static optkl.ifacemapper.MappableIface.RW;
 import static optkl.ifacemapper.MappableIface.WO;
@@ -26,15 +37,55 @@ import static optkl.ifacemapper.MappableIface.WO;
  * 2. Compute values: Scores * V → parallelized over head dimension
  * <p>
  * Note: Softmax is applied between steps 1 and 2 (uses SoftmaxHAT).
+ * <p>
+ * {@link #computeAllHeads} handles every head of a layer in one compute context
+ * (2D scores, a per-head two-phase softmax, 2D values), replacing NUM_HEADS
+ * separate round trips through {@code accelerator.compute}.
+ * <p>
+ * The cache rows are copied into device staging buffers in their stored format:
+ * F32 and F16 element for element, Q8 as bytes packed four per int plus the
+ * per-(position, KV head) scales. Each format has its own score and value kernels
+ * that widen elements as they read them, so F16/Q8 modes save device memory and
+ * transfer as well as host memory. Only positions appended since the previous call
+ * are staged, so a decode step copies one row per layer; the staged copy is rebuilt
+ * when the cache's epoch changes. Each cache has its own staged copy (up to
+ * {@link #reserveCaches}), so the rows of a batched step, each attending to its own
+ * sequence's cache, also stage only their new rows.
+ * <p>
+ * Staged rows are grouped in blocks like the cache's, and a block map sends each cache
+ * block to its staged block. A sliding-window eviction then only frees one staged
+ * block and shifts the map, instead of restaging every later row. A heavy-hitter
+ * eviction restages just the row it moved. The score kernels also look up each
+ * block's rotary group, to read the query rotated for its keys.
  */
 public class AttentionHAT implements IAttention {
 
     private final Accelerator accelerator;
+    private F32Array headScores; // [numHeads, seqLen] scratch for computeAllHeads
+    // [numHeads, NUM_PARTIALS + 1]: each head's partial maxima (sums), then its combined max (1/sum)
+    private F32Array headPartialMax;
+    private F32Array headPartialSum;
+
+    // Staged copies of the caches attended to most recently, least recently used first.
+    // KVCache keeps identity equality, so every cache object has its own entry.
+    private final LinkedHashMap<KVCache, Stage> stages = new LinkedHashMap<>(4, 0.75f, true);
+    private int maxStages = 1;
+    private long stagedRows;
 
     public AttentionHAT(Accelerator accelerator) {
         this.accelerator = accelerator;
     }
 
+    /**
+     * Keeps a staged copy for each of up to {@code caches} caches, so attending to them in
+     * turn (one per batch row) only stages each cache's new rows. Beyond that, the least
+     * recently used copy is handed to the next cache and restaged from scratch.
+     */
+    @Override
+    public void reserveCaches(int caches) {
+        maxStages = Math.max(maxStages, caches);
+    }
+
     /**
      * Computes raw attention scores (Q * K^T) / sqrt(d_k) using HAT dispatch.
      * <p>
@@ -104,4 +155,532 @@ public class AttentionHAT implements IAttention {
         }
         output.array(i, sum);
     }
+
+    /**
+     * Computes attention for all query heads of a layer from a {@link KVCache} in a single
+     * compute context.
+     * <p>
+     * The kernels run back to back without returning to the host:
+     * 1. Scores: 2D NDRange (positions x heads), one dot product per work item
+     * 2. Softmax: the two-phase reduction of {@link SoftmaxHAT} run for every head at
+     *    once, with a 2D NDRange (partials x heads) for the partial max and exp-sum,
+     *    one work item per head to combine each, and (positions x heads) to normalize
+     * 3. Values: 2D NDRange (head_dim x heads), one weighted sum per work item
+     * <p>
+     * New cache rows are first copied into staging buffers in the cache's own format,
+     * and the score and value kernels for that format widen them as they read. If the
+     * cache tracks attention, the softmax weights left in the score buffer are added to it.
+     * The query of each position is the copy for its block's rotary group.
+     */
+    @Override
+    public void computeAllHeads(ActivationBuffer q, KVCache cache, ActivationBuffer output,
+                                int seqLen, int numHeads, int headDim) {
+        Stage stage = stageFor(cache);
+        stage.update(cache, seqLen);
+        if (headScores == null || headScores.length() < (long) numHeads * seqLen) {
+            // Grow geometrically so a decode loop reallocates O(log seqLen) times
+            int capacity = Math.max(numHeads * seqLen, headScores == null ? 0 : (int) headScores.length() * 2);
+            headScores = F32Array.create(accelerator, capacity);
+        }
+        int partialStride = SoftmaxHAT.NUM_PARTIALS + 1;
+        if (headPartialMax == null || headPartialMax.length() < (long) numHeads * partialStride) {
+            headPartialMax = F32Array.create(accelerator, numHeads * partialStride);
+            headPartialSum = F32Array.create(accelerator, numHeads * partialStride);
+        }
+        int groups = Math.min(SoftmaxHAT.NUM_PARTIALS, seqLen);
+        F32Array query = q.device();
+        F32Array scores = headScores;
+        F32Array partialMax = headPartialMax;
+        F32Array partialSum = headPartialSum;
+        F32Array out = output.deviceForWrite(0, numHeads * headDim);
+        float scale = 1.0f / (float) Math.sqrt(headDim);
+        int numKvHeads = cache.numKvHeads();
+        int kvMul = numHeads / numKvHeads;
+        int stride = stage.stride;
+        S32Array map = stage.blockMap;
+        S32Array rotary = stage.blockGroups;
+        switch (stage.mode) {
+            case F32 -> {
+                F32Array keys = stage.keys;
+                F32Array values = stage.values;
+                accelerator.compute((Accelerator.@Reflect Compute) cc ->
+                    dispatchAllHeads(cc, query, keys, values, map, rotary, scores, partialMax, partialSum, out,
+                            seqLen, numHeads, headDim, stride, kvMul, scale, groups, partialStride)
+                );
+            }
+            case F16 -> {
+                F16Array keys = stage.keysF16;
+                F16Array values = stage.valuesF16;
+                accelerator.compute((Accelerator.@Reflect Compute) cc ->
+                    dispatchAllHeadsF16(cc, query, keys, values, map, rotary, scores, partialMax, partialSum, out,
+                            seqLen, numHeads, headDim, stride, kvMul, scale, groups, partialStride)
+                );
+            }
+            case Q8 -> {
+                S32Array keys = stage.keysQ8;
+                S32Array values = stage.valuesQ8;
+                F32Array keyScales = stage.keyScales;
+                F32Array valueScales = stage.valueScales;
+                accelerator.compute((Accelerator.@Reflect Compute) cc ->
+                    dispatchAllHeadsQ8(cc, query, keys, keyScales, values, valueScales, map, rotary, scores,
+                            partialMax, partialSum, out, seqLen, numHeads, headDim, stride, numKvHeads, kvMul, scale,
+                            groups, partialStride)
+                );
+            }
+        }
+        if (cache.tracksAttention()) {
+            for (int h = 0; h < numHeads; h++) {
+                for (int t = 0; t < seqLen; t++) {
+                    cache.addAttention(t, h / kvMul, headScores.array(h * seqLen + t));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the staged copy of {@code cache}, taking over the least recently used one
+     * when {@link #reserveCaches} copies are already held.
+     */
+    private Stage stageFor(KVCache cache) {
+        Stage stage = stages.get(cache);
+        if (stage == null) {
+            if (stages.size() >= maxStages) {
+                Iterator<Stage> eldest = stages.values().iterator();
+                stage = eldest.next();
+                eldest.remove();
+                stage.synced = false;
+            } else {
+                stage = new Stage();
+            }
+            stages.put(cache, stage);
+        }
+        return stage;
+    }
+
+    /** Rows copied into staging buffers so far, across all caches. */
+    long stagedRows() {
+        return stagedRows;
+    }
+
+    /**
+     * Staging of one KVCache in {@code mode}, valid for [0, len) at {@code epoch} after
+     * {@code evictions} window evictions and {@code moves} heavy-hitter moves. Only the
+     * buffers for {@code mode} are allocated.
+     */
+    private final class Stage {
+        private KvCacheMode mode;
+        private int blocks;
+        private int stride;            // elements per staged row (bytes for Q8, padded to whole ints)
+        private S32Array blockMap;     // [blocks] cache block index -> staged block
+        private S32Array blockGroups;  // [blocks] cache block index -> rotary group
+        private int[] hostBlockMap;
+        private int[] freeBlocks;      // staged blocks not in the map
+        private int freeCount;
+        private int mappedBlocks;
+        private F32Array keys;
+        private F32Array values;
+        private F16Array keysF16;
+        private F16Array valuesF16;
+        private S32Array keysQ8;
+        private S32Array valuesQ8;
+        private F32Array keyScales;    // [positions, numKvHeads]
+        private F32Array valueScales;
+        private boolean synced;        // false until the first update for the current cache
+        private int epoch;
+        private long evictions;
+        private long moves;
+        private int len;
+
+        /**
+         * Brings the staging buffers up to date with positions [0, seqLen) of {@code cache},
+         * copying raw rows (and Q8 scales) from the cache blocks without converting them.
+         */
+        void update(KVCache cache, int seqLen) {
+            int kvDim = cache.kvDim();
+            KvCacheMode cacheMode = cache.mode();
+            int needed = (seqLen + KVCache.BLOCK_POSITIONS - 1) / KVCache.BLOCK_POSITIONS;
+            if (blocks < needed || cacheMode != mode) {
+                // Grow geometrically with the sequence (not the context window) and restage from 0
+                int capacityBlocks = (cache.capacity() + KVCache.BLOCK_POSITIONS - 1) / KVCache.BLOCK_POSITIONS;
+                int newBlocks = Math.min(capacityBlocks, Math.max(needed, cacheMode != mode ? 0 : blocks * 2));
+                allocate(cacheMode, newBlocks, kvDim, cache.numKvHeads());
+                synced = false;
+            }
+            if (!synced || cache.epoch() != epoch) {
+                synced = true;
+                epoch = cache.epoch();
+                evictions = cache.evictedBlocks();
+                moves = cache.rowMoves();
+                len = 0;
+                unmapAll();
+            }
+            for (; evictions < cache.evictedBlocks(); evictions++) {
+                evictBlock(cache.windowPolicy().sinkBlocks());
+            }
+            if (moves != cache.rowMoves()) {
+                if (cache.rowMoves() - moves == 1) {
+                    // One row moved into the evicted slot; the slot it left is written again
+                    len = Math.min(len, cache.movedFrom());
+                    if (cache.movedTo() < len) {
+                        stageRow(cache, cache.movedTo());
+                    }
+                } else {
+                    len = 0;
+                    unmapAll();
+                }
+                moves = cache.rowMoves();
+            }
+            for (int pos = len; pos < seqLen; pos++) {
+                stageRow(cache, pos);
+            }
+            len = Math.max(len, seqLen);
+            for (int b = 0; b < needed; b++) {
+                blockGroups.array(b, cache.rotaryGroup(b * KVCache.BLOCK_POSITIONS));
+            }
+        }
+
+        private void allocate(KvCacheMode newMode, int newBlocks, int kvDim, int numKvHeads) {
+            keys = values = keyScales = valueScales = null;
+            keysF16 = valuesF16 = null;
+            keysQ8 = valuesQ8 = null;
+            int positions = newBlocks * KVCache.BLOCK_POSITIONS;
+            switch (newMode) {
+                case F32 -> {
+                    stride = kvDim;
+                    keys = F32Array.create(accelerator, positions * kvDim);
+                    values = F32Array.create(accelerator, positions * kvDim);
+                }
+                case F16 -> {
+                    stride = kvDim;
+                    keysF16 = F16Array.create(accelerator, positions * kvDim);
+                    valuesF16 = F16Array.create(accelerator, positions * kvDim);
+                }
+                case Q8 -> {
+                    // Four bytes per int; rows padded to whole ints so each row starts on a word
+                    stride = (kvDim + 3) & ~3;
+                    keysQ8 = S32Array.create(accelerator, positions * stride / 4);
+                    valuesQ8 = S32Array.create(accelerator, positions * stride / 4);
+                    keyScales = F32Array.create(accelerator, positions * numKvHeads);
+                    valueScales = F32Array.create(accelerator, positions * numKvHeads);
+                }
+            }
+            blockMap = S32Array.create(accelerator, newBlocks);
+            blockGroups = S32Array.create(accelerator, newBlocks);
+            hostBlockMap = new int[newBlocks];
+            freeBlocks = new int[newBlocks];
+            mode = newMode;
+            blocks = newBlocks;
+        }
+
+        private void unmapAll() {
+            for (int b = 0; b < blocks; b++) {
+                freeBlocks[b] = blocks - 1 - b;
+            }
+            freeCount = blocks;
+            mappedBlocks = 0;
+        }
+
+        /**
+         * Follows the cache dropping block {@code index}: its staged block is freed and the
+         * later blocks' map entries move down one, leaving their staged rows where they are.
+         */
+        private void evictBlock(int index) {
+            int firstSlot = index * KVCache.BLOCK_POSITIONS;
+            len -= Math.min(KVCache.BLOCK_POSITIONS, Math.max(0, len - firstSlot));
+            if (index >= mappedBlocks) {
+                return;
+            }
+            freeBlocks[freeCount++] = hostBlockMap[index];
+            mappedBlocks--;
+            for (int b = index; b < mappedBlocks; b++) {
+                hostBlockMap[b] = hostBlockMap[b + 1];
+                blockMap.array(b, hostBlockMap[b]);
+            }
+        }
+
+        private void stageRow(KVCache cache, int pos) {
+            int index = pos / KVCache.BLOCK_POSITIONS;
+            if (index == mappedBlocks) {
+                hostBlockMap[index] = freeBlocks[--freeCount];
+                blockMap.array(index, hostBlockMap[index]);
+                mappedBlocks++;
+            }
+            int stagedRow = hostBlockMap[index] * KVCache.BLOCK_POSITIONS + pos % KVCache.BLOCK_POSITIONS;
+            int kvDim = cache.kvDim();
+            int row = cache.rowOffset(pos);
+            int offset = stagedRow * stride;
+            switch (mode) {
+                case F32 -> {
+                    KVBlock.OfF32 block = (KVBlock.OfF32) cache.block(pos);
+                    float[] blockKeys = block.keys();
+                    float[] blockValues = block.values();
+                    for (int i = 0; i < kvDim; i++) {
+                        keys.array(offset + i, blockKeys[row + i]);
+                        values.array(offset + i, blockValues[row + i]);
+                    }
+                }
+                case F16 -> {
+                    KVBlock.OfF16 block = (KVBlock.OfF16) cache.block(pos);
+                    short[] blockKeys = block.keys();
+                    short[] blockValues = block.values();
+                    for (int i = 0; i < kvDim; i++) {
+                        keysF16.array(offset + i).value(blockKeys[row + i]);
+                        valuesF16.array(offset + i).value(blockValues[row + i]);
+                    }
+                }
+                case Q8 -> {
+                    KVBlock.OfQ8 block = (KVBlock.OfQ8) cache.block(pos);
+                    packRow(block.keys(), row, kvDim, keysQ8, offset / 4);
+                    packRow(block.values(), row, kvDim, valuesQ8, offset / 4);
+                    int numKvHeads = cache.numKvHeads();
+                    int scaleRow = (row / kvDim) * numKvHeads;
+                    float[] blockKeyScales = block.keyScales();
+                    float[] blockValueScales = block.valueScales();
+                    for (int h = 0; h < numKvHeads; h++) {
+                        keyScales.array(stagedRow * numKvHeads + h, blockKeyScales[scaleRow + h]);
+                        valueScales.array(stagedRow * numKvHeads + h, blockValueScales[scaleRow + h]);
+                    }
+                }
+            }
+            stagedRows++;
+        }
+    }
+
+    /** Packs {@code len} bytes little-endian into ints starting at word {@code word}, zero-padding the last. */
+    private static void packRow(byte[] src, int offset, int len, S32Array dst, int word) {
+        for (int i = 0; i < len; i += 4, word++) {
+            int packed = 0;
+            for (int b = 0; b < 4 && i + b < len; b++) {
+                packed |= (src[offset + i + b] & 0xFF) << (b << 3);
+            }
+            dst.array(word, packed);
+        }
+    }
+
+    @Reflect
+    public static void dispatchAllHeads(@RO ComputeContext cc, @RO F32Array q, @RO F32Array kCache, @RO F32Array vCache,
+                                        @RO S32Array blockMap, @RO S32Array blockGroups, @RW F32Array scores,
+                                        @RW F32Array partialMax, @RW F32Array partialSum, @WO F32Array output,
+                                        @RO int seqLen, @RO int numHeads, @RO int headDim, @RO int kvDim,
+                                        @RO int kvMul, @RO float scale, @RO int groups, @RO int partialStride) {
+        cc.dispatchKernel(NDRange.of2D(seqLen, numHeads), kc -> multiHeadScoresKernel(kc, q, kCache, blockMap, blockGroups, scores, seqLen, numHeads, headDim, kvDim, kvMul, scale));
+        cc.dispatchKernel(NDRange.of2D(groups, numHeads), kc -> headMaxPartialKernel(kc, scores, partialMax, seqLen, groups, partialStride));
+        cc.dispatchKernel(NDRange.of1D(numHeads), kc -> headMaxCombineKernel(kc, partialMax, groups, partialStride));
+        cc.dispatchKernel(NDRange.of2D(groups, numHeads), kc -> headExpSumPartialKernel(kc, scores, partialMax, partialSum, seqLen, groups, partialStride));
+        cc.dispatchKernel(NDRange.of1D(numHeads), kc -> headInvSumCombineKernel(kc, partialSum, groups, partialStride));
+        cc.dispatchKernel(NDRange.of2D(seqLen, numHeads), kc -> headNormalizeKernel(kc, scores, partialSum, seqLen, groups, partialStride));
+        cc.dispatchKernel(NDRange.of2D(headDim, numHeads), kc -> multiHeadValuesKernel(kc, scores, vCache, blockMap, output, seqLen, headDim, kvDim, kvMul));
+    }
+
+    @Reflect
+    public static void dispatchAllHeadsF16(@RO ComputeContext cc, @RO F32Array q, @RO F16Array kCache, @RO F16Array vCache,
+                                           @RO S32Array blockMap, @RO S32Array blockGroups, @RW F32Array scores,
+                                           @RW F32Array partialMax, @RW F32Array partialSum, @WO F32Array output,
+                                           @RO int seqLen, @RO int numHeads, @RO int headDim, @RO int kvDim,
+                                           @RO int kvMul, @RO float scale, @RO int groups, @RO int partialStride) {
+        cc.dispatchKernel(NDRange.of2D(seqLen, numHeads), kc -> multiHeadScoresKernelF16(kc, q, kCache, blockMap, blockGroups, scores, seqLen, numHeads, headDim, kvDim, kvMul, scale));
+        cc.dispatchKernel(NDRange.of2D(groups, numHeads), kc -> headMaxPartialKernel(kc, scores, partialMax, seqLen, groups, partialStride));
+        cc.dispatchKernel(NDRange.of1D(numHeads), kc -> headMaxCombineKernel(kc, partialMax, groups, partialStride));
+        cc.dispatchKernel(NDRange.of2D(groups, numHeads), kc -> headExpSumPartialKernel(kc, scores, partialMax, partialSum, seqLen, groups, partialStride));
+        cc.dispatchKernel(NDRange.of1D(numHeads), kc -> headInvSumCombineKernel(kc, partialSum, groups, partialStride));
+        cc.dispatchKernel(NDRange.of2D(seqLen, numHeads), kc -> headNormalizeKernel(kc, scores, partialSum, seqLen, groups, partialStride));
+        cc.dispatchKernel(NDRange.of2D(headDim, numHeads), kc -> multiHeadValuesKernelF16(kc, scores, vCache, blockMap, output, seqLen, headDim, kvDim, kvMul));
+    }
+
+    @Reflect
+    public static void dispatchAllHeadsQ8(@RO ComputeContext cc, @RO F32Array q, @RO S32Array kCache, @RO F32Array kScales,
+                                          @RO S32Array vCache, @RO F32Array vScales, @RO S32Array blockMap,
+                                          @RO S32Array blockGroups, @RW F32Array scores, @RW F32Array partialMax,
+                                          @RW F32Array partialSum, @WO F32Array output, @RO int seqLen,
+                                          @RO int numHeads, @RO int headDim, @RO int kvStride, @RO int numKvHeads,
+                                          @RO int kvMul, @RO float scale, @RO int groups, @RO int partialStride) {
+        cc.dispatchKernel(NDRange.of2D(seqLen, numHeads), kc -> multiHeadScoresKernelQ8(kc, q, kCache, kScales, blockMap, blockGroups, scores, seqLen, numHeads, headDim, kvStride, numKvHeads, kvMul, scale));
+        cc.dispatchKernel(NDRange.of2D(groups, numHeads), kc -> headMaxPartialKernel(kc, scores, partialMax, seqLen, groups, partialStride));
+        cc.dispatchKernel(NDRange.of1D(numHeads), kc -> headMaxCombineKernel(kc, partialMax, groups, partialStride));
+        cc.dispatchKernel(NDRange.of2D(groups, numHeads), kc -> headExpSumPartialKernel(kc, scores, partialMax, partialSum, seqLen, groups, partialStride));
+        cc.dispatchKernel(NDRange.of1D(numHeads), kc -> headInvSumCombineKernel(kc, partialSum, groups, partialStride));
+        cc.dispatchKernel(NDRange.of2D(seqLen, numHeads), kc -> headNormalizeKernel(kc, scores, partialSum, seqLen, groups, partialStride));
+        cc.dispatchKernel(NDRange.of2D(headDim, numHeads), kc -> multiHeadValuesKernelQ8(kc, scores, vCache, vScales, blockMap, output, seqLen, headDim, kvStride, numKvHeads, kvMul));
+    }
+
+    // Position t lives in staged row blockMap[t / BLOCK_POSITIONS] * BLOCK_POSITIONS + t % BLOCK_POSITIONS,
+    // and is scored against the query copy of its block's rotary group
+    @Reflect
+    public static void multiHeadScoresKernel(@RO KernelContext kc, @RO F32Array q, @RO F32Array kCache, @RO S32Array blockMap,
+                                             @RO S32Array blockGroups, @WO F32Array scores, @RO int seqLen, @RO int numHeads,
+                                             @RO int headDim, @RO int kvDim, @RO int kvMul, @RO float scale) {
+        int t = kc.gix; // position
+        int h = kc.giy; // query head
+        int block = t / KVCache.BLOCK_POSITIONS;
+        int row = blockMap.array(block) * KVCache.BLOCK_POSITIONS + t % KVCache.BLOCK_POSITIONS;
+        int qOffset = (blockGroups.array(block) * numHeads + h) * headDim;
+        int keyOffset = row * kvDim + (h / kvMul) * headDim;
+        float sum = 0.0f;
+        for (int i = 0; i < headDim; i++) {
+            sum += q.array(qOffset + i) * kCache.array(keyOffset + i);
+        }
+        scores.array(h * seqLen + t, sum * scale);
+    }
+
+    // F16 element read into a local before f16ToFloat: same OpenCL codegen workaround as GEMVHAT.gemvKernelF16
+    @Reflect
+    public static void multiHeadScoresKernelF16(@RO KernelContext kc, @RO F32Array q, @RO F16Array kCache, @RO S32Array blockMap,
+                                                @RO S32Array blockGroups, @WO F32Array scores, @RO int seqLen, @RO int numHeads,
+                                                @RO int headDim, @RO int kvDim, @RO int kvMul, @RO float scale) {
+        int t = kc.gix; // position
+        int h = kc.giy; // query head
+        int block = t / KVCache.BLOCK_POSITIONS;
+        int row = blockMap.array(block) * KVCache.BLOCK_POSITIONS + t % KVCache.BLOCK_POSITIONS;
+        int qOffset = (blockGroups.array(block) * numHeads + h) * headDim;
+        int keyOffset = row * kvDim + (h / kvMul) * headDim;
+        float sum = 0.0f;
+        for (int i = 0; i < headDim; i++) {
+            F16 key = kCache.array(keyOffset + i);
+            sum += q.array(qOffset + i) * F16.f16ToFloat(key);
+        }
+        scores.array(h * seqLen + t, sum * scale);
+    }
+
+    // Q8 bytes are packed four per int; shifting the wanted byte to the top and back sign-extends it
+    @Reflect
+    public static void multiHeadScoresKernelQ8(@RO KernelContext kc, @RO F32Array q, @RO S32Array kCache, @RO F32Array kScales,
+                                               @RO S32Array blockMap, @RO S32Array blockGroups, @WO F32Array scores,
+                                               @RO int seqLen, @RO int numHeads, @RO int headDim, @RO int kvStride,
+                                               @RO int numKvHeads, @RO int kvMul, @RO float scale) {
+        int t = kc.gix; // position
+        int h = kc.giy; // query head
+        int kvHead = h / kvMul;
+        int block = t / KVCache.BLOCK_POSITIONS;
+        int row = blockMap.array(block) * KVCache.BLOCK_POSITIONS + t % KVCache.BLOCK_POSITIONS;
+        int qOffset = (blockGroups.array(block) * numHeads + h) * headDim;
+        int keyOffset = row * kvStride + kvHead * headDim;
+        float sum = 0.0f;
+        for (int i = 0; i < headDim; i++) {
+            int idx = keyOffset + i;
+            int word = kCache.array(idx >> 2);
+            int key = (word << (24 - ((idx & 3) << 3))) >> 24;
+            sum += q.array(qOffset + i) * key;
+        }
+        scores.array(h * seqLen + t, sum * kScales.array(row * numKvHeads + kvHead) * scale);
+    }
+
+    // Per-head softmax: SoftmaxHAT's kernels with a head index (giy) selecting the score row
+    // and the head's slice of partials, [h * partialStride, h * partialStride + groups]
+    @Reflect
+    public static void headMaxPartialKernel(@RO KernelContext kc, @RO F32Array scores, @RW F32Array partialMax,
+                                            @RO int seqLen, @RO int groups, @RO int partialStride) {
+        int g = kc.gix;
+        int h = kc.giy; // query head
+        int rowOffset = h * seqLen;
+        float maxVal = scores.array(rowOffset + g);
+        for (int t = g + groups; t < seqLen; t += groups) {
+            float val = scores.array(rowOffset + t);
+            if (val > maxVal) {
+                maxVal = val;
+            }
+        }
+        partialMax.array(h * partialStride + g, maxVal);
+    }
+
+    @Reflect
+    public static void headMaxCombineKernel(@RO KernelContext kc, @RW F32Array partialMax, @RO int groups,
+                                            @RO int partialStride) {
+        int base = kc.gix * partialStride; // query head
+        float maxVal = partialMax.array(base);
+        for (int g = 1; g < groups; g++) {
+            float val = partialMax.array(base + g);
+            if (val > maxVal) {
+                maxVal = val;
+            }
+        }
+        partialMax.array(base + groups, maxVal);
+    }
+
+    @Reflect
+    public static void headExpSumPartialKernel(@RO KernelContext kc, @RW F32Array scores, @RO F32Array partialMax,
+                                               @RW F32Array partialSum, @RO int seqLen, @RO int groups,
+                                               @RO int partialStride) {
+        int g = kc.gix;
+        int h = kc.giy; // query head
+        int rowOffset = h * seqLen;
+        float maxVal = partialMax.array(h * partialStride + groups);
+        float sum = 0.0f;
+        for (int t = g; t < seqLen; t += groups) {
+            float expVal = (float) Math.exp(scores.array(rowOffset + t) - maxVal);
+            scores.array(rowOffset + t, expVal);
+            sum += expVal;
+        }
+        partialSum.array(h * partialStride + g, sum);
+    }
+
+    @Reflect
+    public static void headInvSumCombineKernel(@RO KernelContext kc, @RW F32Array partialSum, @RO int groups,
+                                               @RO int partialStride) {
+        int base = kc.gix * partialStride; // query head
+        float sum = 0.0f;
+        for (int g = 0; g < groups; g++) {
+            sum += partialSum.array(base + g);
+        }
+        partialSum.array(base + groups, 1.0f / sum);
+    }
+
+    @Reflect
+    public static void headNormalizeKernel(@RO KernelContext kc, @RW F32Array scores, @RO F32Array partialSum,
+                                           @RO int seqLen, @RO int groups, @RO int partialStride) {
+        int t = kc.gix; // position
+        int h = kc.giy; // query head
+        float invSum = partialSum.array(h * partialStride + groups);
+        scores.array(h * seqLen + t, scores.array(h * seqLen + t) * invSum);
+    }
+
+    @Reflect
+    public static void multiHeadValuesKernel(@RO KernelContext kc, @RO F32Array scores, @RO F32Array vCache, @RO S32Array blockMap,
+                                             @WO F32Array output, @RO int seqLen, @RO int headDim, @RO int kvDim, @RO int kvMul) {
+        int i = kc.gix; // index in head_dim
+        int h = kc.giy; // query head
+        int rowOffset = h * seqLen;
+        int valueOffset = (h / kvMul) * headDim + i;
+        float sum = 0.0f;
+        for (int t = 0; t < seqLen; t++) {
+            int row = blockMap.array(t / KVCache.BLOCK_POSITIONS) * KVCache.BLOCK_POSITIONS + t % KVCache.BLOCK_POSITIONS;
+            sum += scores.array(rowOffset + t) * vCache.array(row * kvDim + valueOffset);
+        }
+        output.array(h * headDim + i, sum);
+    }
+
+    @Reflect
+    public static void multiHeadValuesKernelF16(@RO KernelContext kc, @RO F32Array scores, @RO F16Array vCache, @RO S32Array blockMap,
+                                                @WO F32Array output, @RO int seqLen, @RO int headDim, @RO int kvDim, @RO int kvMul) {
+        int i = kc.gix; // index in head_dim
+        int h = kc.giy; // query head
+        int rowOffset = h * seqLen;
+        int valueOffset = (h / kvMul) * headDim + i;
+        float sum = 0.0f;
+        for (int t = 0; t < seqLen; t++) {
+            int row = blockMap.array(t / KVCache.BLOCK_POSITIONS) * KVCache.BLOCK_POSITIONS + t % KVCache.BLOCK_POSITIONS;
+            F16 value = vCache.array(row * kvDim + valueOffset);
+            sum += scores.array(rowOffset + t) * F16.f16ToFloat(value);
+        }
+        output.array(h * headDim + i, sum);
+    }
+
+    @Reflect
+    public static void multiHeadValuesKernelQ8(@RO KernelContext kc, @RO F32Array scores, @RO S32Array vCache, @RO F32Array vScales,
+                                               @RO S32Array blockMap, @WO F32Array output, @RO int seqLen, @RO int headDim,
+                                               @RO int kvStride, @RO int numKvHeads, @RO int kvMul) {
+        int i = kc.gix; // index in head_dim
+        int h = kc.giy; // query head
+        int kvHead = h / kvMul;
+        int rowOffset = h * seqLen;
+        int valueOffset = kvHead * headDim + i;
+        float sum = 0.0f;
+        for (int t = 0; t < seqLen; t++) {
+            int row = blockMap.array(t / KVCache.BLOCK_POSITIONS) * KVCache.BLOCK_POSITIONS + t % KVCache.BLOCK_POSITIONS;
+            int idx = row * kvStride + valueOffset;
+            int word = vCache.array(idx >> 2);
+            int value = (word << (24 - ((idx & 3) << 3))) >> 24;
+            sum += scores.array(rowOffset + t) * vScales.array(row * numKvHeads + kvHead) * value;
+        }
+        output.array(h * headDim + i, sum);
+    }
 }
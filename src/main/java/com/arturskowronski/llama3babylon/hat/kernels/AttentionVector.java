@@ -0,0 +1,113 @@
+package com.arturskowronski.llama3babylon.hat.kernels;
+
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
+import com.arturskowronski.llama3babylon.hat.kv.KVBlock;
+import com.arturskowronski.llama3babylon.hat.kv.KVCache;
+import com.arturskowronski.llama3babylon.hat.kv.KvCacheMode;
+import hat.Accelerator;
+import hat.buffer.F32Array;
+
+/**
+ * Attention kernel using the JDK Vector API for {@link #computeAllHeads}.
+ * <p>
+ * {@link F32Array} element access goes through HAT's iface-mapper proxy, which the
+ * JIT cannot vectorize. An F32 {@link KVCache} is instead read in place by walking its
+ * block table, feeding the block arrays to explicit SIMD dot products and weighted
+ * value accumulation. F16 and Q8 caches, and tiered caches with spilled blocks, use the
+ * inherited scalar path.
+ * <p>
+ * Score and value passes are inherited from the plain {@link Attention} kernel.
+ */
+public class AttentionVector extends Attention {
+
+    private final float[] tileScores = new float[TILE_SIZE];
+    private float[] accBuf;
+
+    public AttentionVector(Accelerator accelerator) {
+        super(accelerator);
+    }
+
+    /**
+     * Computes all query heads from a {@link KVCache}. F32 caches are read straight from
+     * their backing arrays with SIMD; other modes, and caches with spilled blocks, fall
+     * back to the scalar path, which converts rows and streams spilled blocks. Both paths
+     * report softmax weights to caches that track attention.
+     */
+    @Override
+    public void computeAllHeads(ActivationBuffer q, KVCache cache, ActivationBuffer output,
+                                int seqLen, int numHeads, int headDim) {
+        if (cache.mode() != KvCacheMode.F32 || cache.spilledBlocks() > 0) {
+            super.computeAllHeads(q, cache, output, seqLen, numHeads, headDim);
+            return;
+        }
+        float[] query = q.host();
+        float[] out = output.hostForWrite(0, numHeads * headDim);
+        int kvMul = numHeads / cache.numKvHeads();
+        for (int h = 0; h < numHeads; h++) {
+            int headOffset = h * headDim;
+            attendHead(query, headOffset, numHeads * headDim, cache, (h / kvMul) * headDim, out, headOffset,
+                    seqLen, headDim);
+        }
+    }
+
+    /**
+     * Vectorized online-softmax attention for one head of an F32 cache, reading each
+     * position's row from the block that holds it, against the query of its rotary group.
+     */
+    private void attendHead(float[] query, int qOffset, int qStride, KVCache cache, int kvOffset,
+                            float[] output, int outOffset, int seqLen, int headDim) {
+        if (accBuf == null || accBuf.length < headDim) {
+            accBuf = new float[headDim];
+        }
+        float[] acc = accBuf;
+        for (int i = 0; i < headDim; i++) {
+            acc[i] = 0.0f;
+        }
+        float[] allScores = cache.tracksAttention() ? positionScores(seqLen) : null;
+
+        float scale = 1.0f / (float) Math.sqrt(headDim);
+        float runningMax = Float.NEGATIVE_INFINITY;
+        float runningSum = 0.0f;
+
+        for (int tileStart = 0; tileStart < seqLen; tileStart += TILE_SIZE) {
+            int tileLen = Math.min(TILE_SIZE, seqLen - tileStart);
+
+            float tileMax = Float.NEGATIVE_INFINITY;
+            for (int j = 0; j < tileLen; j++) {
+                int t = tileStart + j;
+                float[] keys = ((KVBlock.OfF32) cache.block(t)).keys();
+                int groupOffset = cache.rotaryGroup(t) * qStride + qOffset;
+                float score = VectorOps.dot(query, groupOffset, keys, cache.rowOffset(t) + kvOffset, headDim) * scale;
+                tileScores[j] = score;
+                if (score > tileMax) {
+                    tileMax = score;
+                }
+            }
+            if (allScores != null) {
+                System.arraycopy(tileScores, 0, allScores, tileStart, tileLen);
+            }
+
+            float newMax = Math.max(runningMax, tileMax);
+            float correction = (float) Math.exp(runningMax - newMax);
+            runningSum *= correction;
+            VectorOps.scale(acc, 0, correction, headDim);
+
+            for (int j = 0; j < tileLen; j++) {
+                int t = tileStart + j;
+                float p = (float) Math.exp(tileScores[j] - newMax);
+                runningSum += p;
+                float[] values = ((KVBlock.OfF32) cache.block(t)).values();
+                VectorOps.axpy(p, values, cache.rowOffset(t) + kvOffset, acc, 0, headDim);
+            }
+            runningMax = newMax;
+        }
+
+        float invSum = 1.0f / runningSum;
+        for (int i = 0; i < headDim; i++) {
+            output[outOffset + i] = acc[i] * invSum;
+        }
+        if (allScores != null) {
+            addAttention(cache, kvOffset / headDim, allScores, seqLen, runningMax, invSum);
+        }
+    }
+}
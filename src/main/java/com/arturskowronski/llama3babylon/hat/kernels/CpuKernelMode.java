@@ -0,0 +1,73 @@
+package com.arturskowronski.llama3babylon.hat.kernels;
+
+/**
+ * Picks the kernel factory for inference that runs without HAT dispatch.
+ *
+ * <pre>
+ *   Mode   | Factory                 | Kernels
+ *   -------|-------------------------|------------------------------------------
+ *   PLAIN  | PlainJavaKernelFactory  | scalar loops                    (default)
+ *   VECTOR | VectorKernelFactory     | JDK Vector API attention and RoPE
+ * </pre>
+ *
+ * <p>Switchable at runtime via env var or system property:
+ * <pre>
+ *   CPU_KERNEL_MODE=VECTOR ./gradlew run
+ *   -Dcpu.kernel.mode=VECTOR
+ * </pre>
+ */
+public enum CpuKernelMode {
+
+    /** Plain Java loops for every kernel. Default. */
+    PLAIN("plain loops"),
+
+    /** Plain Java, with Vector API kernels where one exists. */
+    VECTOR("Vector API attention and RoPE");
+
+    private static final String ENV_KEY = "CPU_KERNEL_MODE";
+
+    private final String summary;
+
+    CpuKernelMode(String summary) {
+        this.summary = summary;
+    }
+
+    /** One-line human summary (for display/logging). */
+    public String summary() { return summary; }
+
+    /** A new factory for this mode. */
+    public IKernelFactory factory() {
+        return switch (this) {
+            case PLAIN -> new PlainJavaKernelFactory();
+            case VECTOR -> new VectorKernelFactory();
+        };
+    }
+
+    /**
+     * Resolve from env var {@code CPU_KERNEL_MODE} or system property
+     * {@code cpu.kernel.mode}. Falls back to {@link #PLAIN} if neither is set.
+     *
+     * <p>Accepts: {@code PLAIN} (also {@code JAVA}), {@code VECTOR} (also {@code SIMD}).
+     * Case-insensitive.
+     */
+    public static CpuKernelMode fromEnv() {
+        String val = System.getenv(ENV_KEY);
+        if (val == null || val.isBlank()) {
+            val = System.getProperty("cpu.kernel.mode");
+        }
+        return (val != null && !val.isBlank()) ? fromString(val) : PLAIN;
+    }
+
+    /**
+     * Parse a mode name (case-insensitive).
+     * @throws IllegalArgumentException on unknown value
+     */
+    public static CpuKernelMode fromString(String s) {
+        return switch (s.strip().toUpperCase()) {
+            case "PLAIN", "JAVA" -> PLAIN;
+            case "VECTOR", "SIMD" -> VECTOR;
+            default -> throw new IllegalArgumentException(
+                    "Unknown CPU kernel mode: '" + s + "'. Valid: PLAIN, VECTOR");
+        };
+    }
+}
@@ -1,5 +1,6 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
 import com.arturskowronski.llama3babylon.hat.F16Weights;
 import hat.Accelerator;
 import hat.ComputeContext;
@@ -19,12 +20,18 @@ import static optkl.ifacemapper.MappableIface.WO;
  * Computes: y = Ax
  * where A is a matrix [rows, cols] and x is a vector [cols].
  * Supports both F32 and F16 weight matrices.
+ * The {@link ActivationBuffer} overloads read and write host {@code float[]} activations
+ * directly, so only the weight side (if any) goes through the HAT proxy.
+ * The batched overloads dequantize each weight row once and dot it with every
+ * vector of the batch, so B sequences cost one pass over the weights instead of B.
  */
 public class GEMV implements IGEMV {
 
     private final Accelerator accelerator;
     private float[] rowBuf;
     private float[] vecBuf;
+    private float[][] batchIn = new float[0][];
+    private float[][] batchOut = new float[0][];
 
     public GEMV(Accelerator accelerator) {
         this.accelerator = accelerator;
@@ -90,6 +97,137 @@ public class GEMV implements IGEMV {
         }
     }
 
+    @Override
+    public void apply(F32Array matrix, ActivationBuffer vector, ActivationBuffer result, int rows, int cols) {
+        float[] vec = vector.host();
+        float[] out = result.hostForWrite(0, rows);
+        for (int row = 0; row < rows; row++) {
+            float sum = 0.0f;
+            int rowOffset = row * cols;
+            for (int c = 0; c < cols; c++) {
+                sum += matrix.array(rowOffset + c) * vec[c];
+            }
+            out[row] = sum;
+        }
+    }
+
+    @Override
+    public void apply(F16Array matrix, ActivationBuffer vector, ActivationBuffer result, int rows, int cols) {
+        if (rowBuf == null || rowBuf.length < cols) {
+            rowBuf = new float[cols];
+        }
+        float[] vec = vector.host();
+        float[] out = result.hostForWrite(0, rows);
+        for (int row = 0; row < rows; row++) {
+            int rowOffset = row * cols;
+            for (int c = 0; c < cols; c++) {
+                rowBuf[c] = F16.f16ToFloat(matrix.array(rowOffset + c));
+            }
+            float sum = 0.0f;
+            for (int c = 0; c < cols; c++) {
+                sum += rowBuf[c] * vec[c];
+            }
+            out[row] = sum;
+        }
+    }
+
+    @Override
+    public void apply(F16Weights matrix, ActivationBuffer vector, ActivationBuffer result, int rows, int cols) {
+        short[] data = matrix.data();
+        if (rowBuf == null || rowBuf.length < cols) {
+            rowBuf = new float[cols];
+        }
+        // No vector staging needed: the activation is already a plain float[]
+        float[] vec = vector.host();
+        float[] out = result.hostForWrite(0, rows);
+        for (int row = 0; row < rows; row++) {
+            int rowOffset = row * cols;
+            for (int c = 0; c < cols; c++) {
+                rowBuf[c] = Float.float16ToFloat(data[rowOffset + c]);
+            }
+            float sum = 0.0f;
+            for (int c = 0; c < cols; c++) {
+                sum += rowBuf[c] * vec[c];
+            }
+            out[row] = sum;
+        }
+    }
+
+    @Override
+    public void applyBatch(F32Array matrix, ActivationBuffer[] inputs, ActivationBuffer[] outputs,
+                           int batch, int rows, int cols) {
+        gatherBatch(inputs, outputs, batch, rows, cols);
+        for (int row = 0; row < rows; row++) {
+            int rowOffset = row * cols;
+            for (int c = 0; c < cols; c++) {
+                rowBuf[c] = matrix.array(rowOffset + c);
+            }
+            dotBatch(row, batch, cols);
+        }
+    }
+
+    @Override
+    public void applyBatch(F16Array matrix, ActivationBuffer[] inputs, ActivationBuffer[] outputs,
+                           int batch, int rows, int cols) {
+        gatherBatch(inputs, outputs, batch, rows, cols);
+        for (int row = 0; row < rows; row++) {
+            int rowOffset = row * cols;
+            for (int c = 0; c < cols; c++) {
+                rowBuf[c] = F16.f16ToFloat(matrix.array(rowOffset + c));
+            }
+            dotBatch(row, batch, cols);
+        }
+    }
+
+    @Override
+    public void applyBatch(F16Weights matrix, ActivationBuffer[] inputs, ActivationBuffer[] outputs,
+                           int batch, int rows, int cols) {
+        short[] data = matrix.data();
+        gatherBatch(inputs, outputs, batch, rows, cols);
+        for (int row = 0; row < rows; row++) {
+            int rowOffset = row * cols;
+            for (int c = 0; c < cols; c++) {
+                rowBuf[c] = Float.float16ToFloat(data[rowOffset + c]);
+            }
+            dotBatch(row, batch, cols);
+        }
+    }
+
+    /**
+     * Collects the host arrays of a batch (inputs read before any output is written,
+     * in case a caller aliases them) and sizes the row buffer.
+     */
+    private void gatherBatch(ActivationBuffer[] inputs, ActivationBuffer[] outputs, int batch, int rows, int cols) {
+        if (rowBuf == null || rowBuf.length < cols) {
+            rowBuf = new float[cols];
+        }
+        if (batchIn.length < batch) {
+            batchIn = new float[batch][];
+            batchOut = new float[batch][];
+        }
+        for (int b = 0; b < batch; b++) {
+            batchIn[b] = inputs[b].host();
+        }
+        for (int b = 0; b < batch; b++) {
+            batchOut[b] = outputs[b].hostForWrite(0, rows);
+        }
+    }
+
+    /**
+     * Dots the dequantized row in {@code rowBuf} with each gathered vector. Same
+     * summation order as {@link #apply}, so batched and single results are identical.
+     */
+    private void dotBatch(int row, int batch, int cols) {
+        for (int b = 0; b < batch; b++) {
+            float[] vec = batchIn[b];
+            float sum = 0.0f;
+            for (int c = 0; c < cols; c++) {
+                sum += rowBuf[c] * vec[c];
+            }
+            batchOut[b][row] = sum;
+        }
+    }
+
     @Reflect
     public static void gemvKernel(@RO KernelContext kc, @RO F32Array matrix, @RO F32Array vector, @WO F32Array result, @RO int cols) {
         int row = kc.gix;
@@ -1,5 +1,7 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
+import com.arturskowronski.llama3babylon.hat.kv.KVCache;
 import hat.buffer.F32Array;
 
 /**
@@ -28,4 +30,34 @@ public interface IAttention {
      * @param headDim dimension of each head
      */
     void computeValues(F32Array scores, F32Array values, F32Array output, int seqLen, int headDim);
+
+    /**
+     * Computes attention for all query heads from a layer's {@link KVCache}, in whatever
+     * storage mode it uses. Query head h attends over KV head h / (numHeads / numKvHeads)
+     * (GQA). CPU kernels read the cache through {@link KVCache#dotKey} and
+     * {@link KVCache#addValue}, so F16/Q8 rows are converted inside the dot products.
+     * <p>
+     * {@code q} holds the query rotated once per rotary group of the cache (one unless it
+     * keeps a sliding window): the key at position t is scored against the copy at
+     * {@code cache.rotaryGroup(t) * numHeads * headDim}.
+     *
+     * @param q query vectors [cache.rotaryGroups(), NUM_HEADS * HEAD_DIM]
+     * @param cache key/value cache holding at least {@code seqLen} positions
+     * @param output output vector [NUM_HEADS * HEAD_DIM]
+     * @param seqLen current sequence length
+     * @param numHeads number of query heads (a multiple of the cache's KV heads)
+     * @param headDim dimension of each head
+     */
+    void computeAllHeads(ActivationBuffer q, KVCache cache, ActivationBuffer output,
+                         int seqLen, int numHeads, int headDim);
+
+    /**
+     * Tells the kernel that up to {@code caches} caches are attended to in turn, as the rows
+     * of a batched step are. Kernels that keep state per cache, such as a device copy of its
+     * rows, keep it for that many; the default keeps nothing.
+     *
+     * @param caches number of caches used in turn
+     */
+    default void reserveCaches(int caches) {
+    }
 }
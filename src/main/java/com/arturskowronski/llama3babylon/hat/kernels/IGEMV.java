@@ -1,5 +1,6 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
 import com.arturskowronski.llama3babylon.hat.F16Weights;
 import hat.buffer.F16Array;
 import hat.buffer.F32Array;
@@ -7,6 +8,9 @@ import hat.types.F16;
 
 /**
  * Interface for GEMV (Matrix-Vector Multiplication) kernel implementations.
+ *
+ * The {@link ActivationBuffer} overloads default to the device ({@link F32Array}) path;
+ * CPU kernels override them to work on the host {@code float[]} directly.
  */
 public interface IGEMV {
 
@@ -66,4 +70,57 @@ public interface IGEMV {
             result.array(row, sum);
         }
     }
+
+    /**
+     * Computes y = Ax with an F32 matrix on activation buffers.
+     */
+    default void apply(F32Array matrix, ActivationBuffer vector, ActivationBuffer result, int rows, int cols) {
+        apply(matrix, vector.device(), result.deviceForWrite(), rows, cols);
+    }
+
+    /**
+     * Computes y = Ax with an F16 matrix on activation buffers.
+     */
+    default void apply(F16Array matrix, ActivationBuffer vector, ActivationBuffer result, int rows, int cols) {
+        apply(matrix, vector.device(), result.deviceForWrite(), rows, cols);
+    }
+
+    /**
+     * Computes y = Ax with F16Weights on activation buffers.
+     */
+    default void apply(F16Weights matrix, ActivationBuffer vector, ActivationBuffer result, int rows, int cols) {
+        apply(matrix, vector.device(), result.deviceForWrite(), rows, cols);
+    }
+
+    /**
+     * Computes {@code outputs[b] = A inputs[b]} for the first {@code batch} vectors
+     * (continuous batching). Default: one {@link #apply} per vector, which streams the
+     * matrix {@code batch} times; CPU kernels override it to read each row once.
+     */
+    default void applyBatch(F32Array matrix, ActivationBuffer[] inputs, ActivationBuffer[] outputs,
+                            int batch, int rows, int cols) {
+        for (int b = 0; b < batch; b++) {
+            apply(matrix, inputs[b], outputs[b], rows, cols);
+        }
+    }
+
+    /**
+     * Batched y = Ax with an F16 matrix; see {@link #applyBatch(F32Array, ActivationBuffer[], ActivationBuffer[], int, int, int)}.
+     */
+    default void applyBatch(F16Array matrix, ActivationBuffer[] inputs, ActivationBuffer[] outputs,
+                            int batch, int rows, int cols) {
+        for (int b = 0; b < batch; b++) {
+            apply(matrix, inputs[b], outputs[b], rows, cols);
+        }
+    }
+
+    /**
+     * Batched y = Ax with F16Weights; see {@link #applyBatch(F32Array, ActivationBuffer[], ActivationBuffer[], int, int, int)}.
+     */
+    default void applyBatch(F16Weights matrix, ActivationBuffer[] inputs, ActivationBuffer[] outputs,
+                            int batch, int rows, int cols) {
+        for (int b = 0; b < batch; b++) {
+            apply(matrix, inputs[b], outputs[b], rows, cols);
+        }
+    }
 }
@@ -5,6 +5,10 @@ import hat.Accelerator;
 /**
  * Factory interface for creating kernel implementations.
  * Allows switching between plain Java and HAT implementations.
+ *
+ * Kernels keep reusable scratch buffers and are not thread-safe: every
+ * {@link com.arturskowronski.llama3babylon.hat.LlamaInference} session creates its own
+ * set, while the weights they run over are shared.
  */
 public interface IKernelFactory {
 
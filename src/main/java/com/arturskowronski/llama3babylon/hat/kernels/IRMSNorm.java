@@ -1,5 +1,6 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
 import hat.buffer.F32Array;
 
 /**
@@ -15,4 +16,12 @@ public interface IRMSNorm {
      * @param size the size of the hidden dimension
      */
     void apply(F32Array input, F32Array weight, int size);
+
+    /**
+     * Applies RMSNorm to an activation buffer in-place.
+     * Defaults to the device path; CPU kernels override it to use the host array.
+     */
+    default void apply(ActivationBuffer input, F32Array weight, int size) {
+        apply(input.deviceForWrite(), weight, size);
+    }
 }
@@ -1,5 +1,7 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
+import com.arturskowronski.llama3babylon.hat.RoPECache;
 import hat.buffer.F32Array;
 
 /**
@@ -17,4 +19,24 @@ public interface IRoPE {
      * @param theta base for frequency calculation (typically 10000.0 or 500000.0 for Llama 3)
      */
     void apply(F32Array vec, int pos, int numHeads, int headDim, float theta);
+
+    /**
+     * Applies RoPE to a vector (Q or K) using precomputed cos/sin tables.
+     * No transcendental math is done per call.
+     *
+     * @param vec input/output vector [num_heads, head_dim] (modified in-place)
+     * @param pos current token position in sequence (must be below cache.maxSeqLen())
+     * @param numHeads number of heads
+     * @param headDim dimension of each head (must match cache.headDim())
+     * @param cache precomputed rotation tables
+     */
+    void apply(F32Array vec, int pos, int numHeads, int headDim, RoPECache cache);
+
+    /**
+     * Applies table-driven RoPE to an activation buffer in-place.
+     * Defaults to the device path; CPU kernels override it to use the host array.
+     */
+    default void apply(ActivationBuffer vec, int pos, int numHeads, int headDim, RoPECache cache) {
+        apply(vec.deviceForWrite(), pos, numHeads, headDim, cache);
+    }
 }
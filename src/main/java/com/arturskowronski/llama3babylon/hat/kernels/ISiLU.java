@@ -1,5 +1,6 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
 import hat.buffer.F32Array;
 
 /**
@@ -14,4 +15,12 @@ public interface ISiLU {
      * @param size the number of elements to process
      */
     void apply(F32Array input, int size);
+
+    /**
+     * Applies SiLU to an activation buffer in-place.
+     * Defaults to the device path; CPU kernels override it to use the host array.
+     */
+    default void apply(ActivationBuffer input, int size) {
+        apply(input.deviceForWrite(), size);
+    }
 }
@@ -1,5 +1,6 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
 import hat.Accelerator;
 import hat.ComputeContext;
 import hat.KernelContext;
@@ -49,6 +50,24 @@ public class RMSNorm implements IRMSNorm {
         }
     }
 
+    /**
+     * Applies RMSNorm in-place on the host array of an activation buffer.
+     */
+    @Override
+    public void apply(ActivationBuffer input, F32Array weight, int size) {
+        float[] x = input.hostForWrite(0, size);
+        float ss = 0.0f;
+        for (int i = 0; i < size; i++) {
+            ss += x[i] * x[i];
+        }
+
+        float invRms = 1.0f / (float) Math.sqrt(ss / size + EPSILON);
+
+        for (int i = 0; i < size; i++) {
+            x[i] = x[i] * invRms * weight.array(i);
+        }
+    }
+
     @Reflect
     public static void normalizeKernel(@RO KernelContext kc, @RW F32Array input, @RO F32Array weight, @RO float invRms) {
         int i = kc.gix;
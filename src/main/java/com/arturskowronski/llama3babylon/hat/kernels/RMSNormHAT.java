@@ -13,27 +13,36 @@ import static optkl.ifacemapper.MappableIface.RW;
  * RMSNorm (Root Mean Square Layer Normalization) kernel using HAT @Reflect dispatch.
  *
  * Fourth kernel to be tested with HAT dispatch in real 16-layer inference.
- * RMSNorm follows the same hybrid pattern as Softmax: reduction in plain Java,
- * element-wise normalization with HAT dispatch.
+ * The whole norm stays on the accelerator: the sum-of-squares reduction runs as
+ * a two-phase tree reduction instead of a host-side loop, so the input buffer is
+ * never read back before the normalize step.
  *
  * Formula: y = (x / RMS(x)) * weight
  * where RMS(x) = sqrt(1/n * sum(x_i^2) + epsilon)
  *
- * Implementation strategy:
- * 1. Compute sum of squares (plain Java - reduction operation)
- * 2. Compute invRms scalar (plain Java - simple math)
- * 3. Normalize and scale (HAT dispatch - element-wise parallelizable)
+ * Implementation strategy (three kernels in one compute context):
+ * 1. Partial sums of squares: NUM_PARTIALS work items, each reducing a strided slice
+ * 2. Combine: one work item folds the partials and stores invRms in the scratch buffer
+ * 3. Normalize and scale: element-wise, reading invRms from the scratch buffer
  *
- * Note: Step 1 uses plain Java because reduction (sum) doesn't parallelize well
- * on sequential backend. Step 3 (element-wise multiply) is ideal for HAT dispatch.
+ * Note: HAT kernels have no cross-lane communication (no local memory or barriers
+ * in the sequential backend), so each "workgroup" of the reduction tree is a
+ * single work item and the levels are separate dispatches.
  */
 public class RMSNormHAT implements IRMSNorm {
 
+    /** Work items in the first reduction phase. */
+    static final int NUM_PARTIALS = 64;
+
     private final Accelerator accelerator;
     private static final float EPSILON = 1e-5f;
 
+    /** [NUM_PARTIALS] partial sums followed by one slot for the combined invRms. */
+    private final F32Array partials;
+
     public RMSNormHAT(Accelerator accelerator) {
         this.accelerator = accelerator;
+        this.partials = F32Array.create(accelerator, NUM_PARTIALS + 1);
     }
 
     /**
@@ -45,30 +54,53 @@ public class RMSNormHAT implements IRMSNorm {
      */
     @Override
     public void apply(F32Array input, F32Array weight, int size) {
-        // Step 1: Compute sum of squares (CPU-side - reduction operation)
+        if (size <= 0) {
+            // Nothing to normalize, and the combine kernel would read a partial no one wrote
+            return;
+        }
+        int groups = Math.min(NUM_PARTIALS, size);
+        F32Array scratch = partials;
+        accelerator.compute((Accelerator.@Reflect Compute) cc ->
+            dispatchRMSNorm(cc, input, weight, scratch, size, groups, EPSILON)
+        );
+    }
+
+    @Reflect
+    public static void dispatchRMSNorm(@RO ComputeContext cc, @RW F32Array input, @RO F32Array weight, @RW F32Array partials,
+                                       @RO int size, @RO int groups, @RO float epsilon) {
+        cc.dispatchKernel(NDRange.of1D(groups), kc -> sumSquaresPartialKernel(kc, input, partials, size, groups));
+        cc.dispatchKernel(NDRange.of1D(1), kc -> invRmsCombineKernel(kc, partials, size, groups, epsilon));
+        cc.dispatchKernel(NDRange.of1D(size), kc -> normalizeKernel(kc, input, weight, partials, groups));
+    }
+
+    @Reflect
+    public static void sumSquaresPartialKernel(@RO KernelContext kc, @RO F32Array input, @RW F32Array partials,
+                                               @RO int size, @RO int groups) {
+        int g = kc.gix;
         float ss = 0.0f;
-        for (int i = 0; i < size; i++) {
+        // Strided slice: neighbouring work items touch neighbouring elements
+        for (int i = g; i < size; i += groups) {
             float val = input.array(i);
             ss += val * val;
         }
-
-        // Step 2: Compute inverse RMS scalar (CPU-side - simple calculation)
-        float invRms = 1.0f / (float) Math.sqrt(ss / size + EPSILON);
-
-        // Step 3: Normalize and scale (HAT dispatch - element-wise parallelizable)
-        accelerator.compute((Accelerator.@Reflect Compute) cc ->
-            dispatchNormalize(cc, input, weight, invRms, size)
-        );
+        partials.array(g, ss);
     }
 
     @Reflect
-    public static void dispatchNormalize(@RO ComputeContext cc, @RW F32Array input, @RO F32Array weight, @RO float invRms, @RO int size) {
-        cc.dispatchKernel(NDRange.of1D(size), kc -> normalizeKernel(kc, input, weight, invRms));
+    public static void invRmsCombineKernel(@RO KernelContext kc, @RW F32Array partials, @RO int size, @RO int groups,
+                                           @RO float epsilon) {
+        float ss = 0.0f;
+        for (int g = 0; g < groups; g++) {
+            ss += partials.array(g);
+        }
+        partials.array(groups, 1.0f / (float) Math.sqrt(ss / size + epsilon));
     }
 
     @Reflect
-    public static void normalizeKernel(@RO KernelContext kc, @RW F32Array input, @RO F32Array weight, @RO float invRms) {
+    public static void normalizeKernel(@RO KernelContext kc, @RW F32Array input, @RO F32Array weight, @RO F32Array partials,
+                                       @RO int groups) {
         int i = kc.gix;
+        float invRms = partials.array(groups);
         input.array(i, input.array(i) * invRms * weight.array(i));
     }
 }
@@ -1,5 +1,7 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
+import com.arturskowronski.llama3babylon.hat.RoPECache;
 import hat.Accelerator;
 import hat.ComputeContext;
 import hat.KernelContext;
@@ -51,6 +53,52 @@ public class RoPE implements IRoPE {
         }
     }
 
+    /**
+     * Applies RoPE using the precomputed tables in {@code cache}.
+     */
+    @Override
+    public void apply(F32Array vec, int pos, int numHeads, int headDim, RoPECache cache) {
+        F32Array cosTable = cache.cosTable();
+        F32Array sinTable = cache.sinTable();
+        int half = headDim / 2;
+        int row = pos * half;
+        for (int h = 0; h < numHeads; h++) {
+            int headOffset = h * headDim;
+            for (int j = 0; j < half; j++) {
+                float cosVal = cosTable.array(row + j);
+                float sinVal = sinTable.array(row + j);
+                int i = headOffset + 2 * j;
+                float v0 = vec.array(i);
+                float v1 = vec.array(i + 1);
+                vec.array(i, v0 * cosVal - v1 * sinVal);
+                vec.array(i + 1, v0 * sinVal + v1 * cosVal);
+            }
+        }
+    }
+
+    /**
+     * Applies table-driven RoPE in-place on the host array of an activation buffer.
+     */
+    @Override
+    public void apply(ActivationBuffer vec, int pos, int numHeads, int headDim, RoPECache cache) {
+        float[] data = vec.hostForWrite(0, numHeads * headDim);
+        F32Array cosTable = cache.cosTable();
+        F32Array sinTable = cache.sinTable();
+        int half = headDim / 2;
+        int row = pos * half;
+        for (int j = 0; j < half; j++) {
+            float cosVal = cosTable.array(row + j);
+            float sinVal = sinTable.array(row + j);
+            for (int h = 0; h < numHeads; h++) {
+                int i = h * headDim + 2 * j;
+                float v0 = data[i];
+                float v1 = data[i + 1];
+                data[i] = v0 * cosVal - v1 * sinVal;
+                data[i + 1] = v0 * sinVal + v1 * cosVal;
+            }
+        }
+    }
+
     @Reflect
     public static void ropeKernel(@RO KernelContext kc, @RW F32Array vec, @RO int pos, @RO int headDim, @RO float theta) {
         int h = kc.gix; // head index
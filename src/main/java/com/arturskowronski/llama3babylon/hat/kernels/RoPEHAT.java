@@ -1,5 +1,6 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.RoPECache;
 import hat.Accelerator;
 import hat.ComputeContext;
 import hat.KernelContext;
@@ -22,6 +23,9 @@ import static optkl.ifacemapper.MappableIface.RW;
  *   angle = pos * freq
  *   out[i]   = v[i] * cos(angle) - v[i+1] * sin(angle)
  *   out[i+1] = v[i] * sin(angle) + v[i+1] * cos(angle)
+ *
+ * The {@link RoPECache} overload reads cos/sin from precomputed tables and
+ * dispatches one work item per rotation pair instead of per head.
  */
 public class RoPEHAT implements IRoPE {
 
@@ -47,6 +51,45 @@ public class RoPEHAT implements IRoPE {
         );
     }
 
+    /**
+     * Applies RoPE using the precomputed tables in {@code cache} via HAT dispatch.
+     */
+    @Override
+    public void apply(F32Array vec, int pos, int numHeads, int headDim, RoPECache cache) {
+        F32Array cosTable = cache.cosTable();
+        F32Array sinTable = cache.sinTable();
+        int half = headDim / 2;
+        int rowOffset = pos * half;
+        accelerator.compute((Accelerator.@Reflect Compute) cc ->
+            dispatchRoPETable(cc, vec, cosTable, sinTable, rowOffset, numHeads, headDim)
+        );
+    }
+
+    @Reflect
+    public static void dispatchRoPETable(@RO ComputeContext cc, @RW F32Array vec, @RO F32Array cosTable, @RO F32Array sinTable,
+                                         @RO int rowOffset, @RO int numHeads, @RO int headDim) {
+        cc.dispatchKernel(NDRange.of1D(numHeads * (headDim / 2)),
+                kc -> ropeTableKernel(kc, vec, cosTable, sinTable, rowOffset, headDim));
+    }
+
+    @Reflect
+    public static void ropeTableKernel(@RO KernelContext kc, @RW F32Array vec, @RO F32Array cosTable, @RO F32Array sinTable,
+                                       @RO int rowOffset, @RO int headDim) {
+        int idx = kc.gix;
+        int half = headDim / 2;
+        int h = idx / half;
+        int j = idx % half;
+        int i = h * headDim + 2 * j;
+
+        float cosVal = cosTable.array(rowOffset + j);
+        float sinVal = sinTable.array(rowOffset + j);
+        float v0 = vec.array(i);
+        float v1 = vec.array(i + 1);
+
+        vec.array(i, v0 * cosVal - v1 * sinVal);
+        vec.array(i + 1, v0 * sinVal + v1 * cosVal);
+    }
+
     @Reflect
     public static void dispatchRoPE(@RO ComputeContext cc, @RW F32Array vec, @RO int pos, @RO int numHeads, @RO int headDim, @RO float theta) {
         cc.dispatchKernel(NDRange.of1D(numHeads), kc -> ropeKernel(kc, vec, pos, headDim, theta));
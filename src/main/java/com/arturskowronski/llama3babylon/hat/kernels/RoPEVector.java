@@ -0,0 +1,79 @@
+package com.arturskowronski.llama3babylon.hat.kernels;
+
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
+import com.arturskowronski.llama3babylon.hat.RoPECache;
+import hat.Accelerator;
+import hat.buffer.F32Array;
+
+/**
+ * RoPE kernel using the JDK Vector API for the table-driven path.
+ * <p>
+ * The cos/sin row for the current position is expanded once per call into
+ * interleaved lane patterns ([cos_j, cos_j] and [-sin_j, sin_j]), then every head
+ * is staged into {@code float[]} and rotated with a pair-swap shuffle and two
+ * multiplies. The same expanded row is reused for all heads. The {@link ActivationBuffer}
+ * overload rotates the host array in place, with no staging.
+ * <p>
+ * The theta-based overload is inherited from the plain {@link RoPE} kernel.
+ */
+public class RoPEVector extends RoPE {
+
+    private float[] cosLanes;
+    private float[] sinLanes;
+    private float[] headBuf;
+
+    public RoPEVector(Accelerator accelerator) {
+        super(accelerator);
+    }
+
+    /**
+     * Applies RoPE using the precomputed tables in {@code cache}, vectorized over the head dimension.
+     */
+    @Override
+    public void apply(F32Array vec, int pos, int numHeads, int headDim, RoPECache cache) {
+        expandRow(cache, pos, headDim);
+        for (int h = 0; h < numHeads; h++) {
+            int headOffset = h * headDim;
+            for (int i = 0; i < headDim; i++) {
+                headBuf[i] = vec.array(headOffset + i);
+            }
+            VectorOps.rotatePairs(headBuf, 0, cosLanes, sinLanes, headDim);
+            for (int i = 0; i < headDim; i++) {
+                vec.array(headOffset + i, headBuf[i]);
+            }
+        }
+    }
+
+    /**
+     * Applies RoPE in place on the host array of an activation buffer, vectorized over the head dimension.
+     */
+    @Override
+    public void apply(ActivationBuffer vec, int pos, int numHeads, int headDim, RoPECache cache) {
+        expandRow(cache, pos, headDim);
+        float[] data = vec.hostForWrite(0, numHeads * headDim);
+        for (int h = 0; h < numHeads; h++) {
+            VectorOps.rotatePairs(data, h * headDim, cosLanes, sinLanes, headDim);
+        }
+    }
+
+    /** Expands the cos/sin row for {@code pos} into interleaved lane patterns. */
+    private void expandRow(RoPECache cache, int pos, int headDim) {
+        if (headBuf == null || headBuf.length < headDim) {
+            cosLanes = new float[headDim];
+            sinLanes = new float[headDim];
+            headBuf = new float[headDim];
+        }
+        F32Array cosTable = cache.cosTable();
+        F32Array sinTable = cache.sinTable();
+        int half = headDim / 2;
+        int row = pos * half;
+        for (int j = 0; j < half; j++) {
+            float cosVal = cosTable.array(row + j);
+            float sinVal = sinTable.array(row + j);
+            cosLanes[2 * j] = cosVal;
+            cosLanes[2 * j + 1] = cosVal;
+            sinLanes[2 * j] = -sinVal;
+            sinLanes[2 * j + 1] = sinVal;
+        }
+    }
+}
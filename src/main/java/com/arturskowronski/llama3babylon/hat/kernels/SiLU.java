@@ -1,5 +1,6 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
 import hat.Accelerator;
 import hat.ComputeContext;
 import hat.KernelContext;
@@ -39,6 +40,18 @@ public class SiLU implements ISiLU {
         }
     }
 
+    /**
+     * Applies SiLU in-place on the host array of an activation buffer.
+     */
+    @Override
+    public void apply(ActivationBuffer input, int size) {
+        float[] data = input.hostForWrite(0, size);
+        for (int i = 0; i < size; i++) {
+            float x = data[i];
+            data[i] = x / (1.0f + (float) Math.exp(-x));
+        }
+    }
+
     @Reflect
     public static void siluKernel(@RO KernelContext kc, @RW F32Array input) {
         int i = kc.gix;
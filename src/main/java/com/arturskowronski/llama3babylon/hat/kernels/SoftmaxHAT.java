@@ -13,26 +13,38 @@ import static optkl.ifacemapper.MappableIface.RW;
  * Softmax kernel using HAT @Reflect dispatch.
  *
  * Third kernel to be tested with HAT dispatch in real 16-layer inference.
- * Softmax is already partially HAT-enabled in the base implementation (normalize step),
- * so this version makes the HAT usage explicit and consistent.
+ * Both reductions (max and sum of exponentials) run on the accelerator as
+ * two-phase tree reductions, so the whole softmax is one compute context and
+ * the input buffer never bounces back to the host.
  *
  * Computes softmax(x) = exp(x - max(x)) / sum(exp(x - max(x)))
  *
- * Implementation strategy:
- * 1. Find max value (plain Java - reduction not efficiently parallelizable)
- * 2. Compute exp(x - max) and sum (plain Java - reduction required)
- * 3. Normalize by sum (HAT dispatch - perfectly parallelizable)
+ * Implementation strategy (five kernels in one compute context):
+ * 1. Partial max: NUM_PARTIALS work items, each reducing a strided slice
+ * 2. Combine max: one work item folds the partial maxima
+ * 3. Partial exp-sum: each work item writes exp(x - max) for its slice and sums it
+ * 4. Combine sum: one work item folds the partial sums and stores 1/sum
+ * 5. Normalize: element-wise multiply by 1/sum
  *
- * Note: Steps 1-2 use plain Java because they require reduction operations (max, sum)
- * which don't parallelize well on sequential backend. The normalize step (element-wise
- * multiplication) is ideal for HAT dispatch.
+ * Note: HAT kernels have no cross-lane communication, so each "workgroup" of the
+ * reduction tree is a single work item and the levels are separate dispatches.
  */
 public class SoftmaxHAT implements ISoftmax {
 
+    /** Work items in the first phase of each reduction. */
+    static final int NUM_PARTIALS = 64;
+
     private final Accelerator accelerator;
 
+    /** [NUM_PARTIALS] partial maxima followed by one slot for the combined max. */
+    private final F32Array partialMax;
+    /** [NUM_PARTIALS] partial sums followed by one slot for the combined 1/sum. */
+    private final F32Array partialSum;
+
     public SoftmaxHAT(Accelerator accelerator) {
         this.accelerator = accelerator;
+        this.partialMax = F32Array.create(accelerator, NUM_PARTIALS + 1);
+        this.partialSum = F32Array.create(accelerator, NUM_PARTIALS + 1);
     }
 
     /**
@@ -43,39 +55,7 @@ public class SoftmaxHAT implements ISoftmax {
      */
     @Override
     public void apply(F32Array input, int size) {
-        // Step 1: Find max value (CPU-side - reduction operation)
-        float maxVal = Float.NEGATIVE_INFINITY;
-        for (int i = 0; i < size; i++) {
-            float val = input.array(i);
-            if (val > maxVal) {
-                maxVal = val;
-            }
-        }
-
-        // Step 2: Compute exp(x - max) and sum (CPU-side - reduction operation)
-        float sum = 0.0f;
-        for (int i = 0; i < size; i++) {
-            float expVal = (float) Math.exp(input.array(i) - maxVal);
-            input.array(i, expVal);
-            sum += expVal;
-        }
-
-        // Step 3: Normalize by sum (HAT dispatch - element-wise parallelizable)
-        final float invSum = 1.0f / sum;
-        accelerator.compute((Accelerator.@Reflect Compute) cc ->
-            computeNormalize(cc, input, invSum, size)
-        );
-    }
-
-    @Reflect
-    public static void computeNormalize(@RO ComputeContext cc, @RW F32Array input, @RO float invSum, @RO int size) {
-        cc.dispatchKernel(NDRange.of1D(size), kc -> normalizeKernel(kc, input, invSum));
-    }
-
-    @Reflect
-    public static void normalizeKernel(@RO KernelContext kc, @RW F32Array input, @RO float invSum) {
-        int i = kc.gix;
-        input.array(i, input.array(i) * invSum);
+        applyRow(input, 0, size);
     }
 
     /**
@@ -88,29 +68,82 @@ public class SoftmaxHAT implements ISoftmax {
      */
     @Override
     public void applyRow(F32Array input, int rowOffset, int rowSize) {
-        // Step 1: Find max value in row (CPU-side - reduction)
-        float maxVal = Float.NEGATIVE_INFINITY;
-        for (int i = 0; i < rowSize; i++) {
+        if (rowSize <= 0) {
+            // Empty row: the combine kernels would read partials no one wrote
+            return;
+        }
+        int groups = Math.min(NUM_PARTIALS, rowSize);
+        F32Array maxScratch = partialMax;
+        F32Array sumScratch = partialSum;
+        accelerator.compute((Accelerator.@Reflect Compute) cc ->
+            dispatchSoftmax(cc, input, maxScratch, sumScratch, rowOffset, rowSize, groups)
+        );
+    }
+
+    @Reflect
+    public static void dispatchSoftmax(@RO ComputeContext cc, @RW F32Array input, @RW F32Array partialMax, @RW F32Array partialSum,
+                                       @RO int rowOffset, @RO int size, @RO int groups) {
+        cc.dispatchKernel(NDRange.of1D(groups), kc -> maxPartialKernel(kc, input, partialMax, rowOffset, size, groups));
+        cc.dispatchKernel(NDRange.of1D(1), kc -> maxCombineKernel(kc, partialMax, groups));
+        cc.dispatchKernel(NDRange.of1D(groups), kc -> expSumPartialKernel(kc, input, partialMax, partialSum, rowOffset, size, groups));
+        cc.dispatchKernel(NDRange.of1D(1), kc -> invSumCombineKernel(kc, partialSum, groups));
+        cc.dispatchKernel(NDRange.of1D(size), kc -> normalizeKernel(kc, input, partialSum, rowOffset, groups));
+    }
+
+    @Reflect
+    public static void maxPartialKernel(@RO KernelContext kc, @RO F32Array input, @RW F32Array partialMax,
+                                        @RO int rowOffset, @RO int size, @RO int groups) {
+        int g = kc.gix;
+        float maxVal = input.array(rowOffset + g);
+        for (int i = g + groups; i < size; i += groups) {
             float val = input.array(rowOffset + i);
             if (val > maxVal) {
                 maxVal = val;
             }
         }
+        partialMax.array(g, maxVal);
+    }
+
+    @Reflect
+    public static void maxCombineKernel(@RO KernelContext kc, @RW F32Array partialMax, @RO int groups) {
+        float maxVal = partialMax.array(0);
+        for (int g = 1; g < groups; g++) {
+            float val = partialMax.array(g);
+            if (val > maxVal) {
+                maxVal = val;
+            }
+        }
+        partialMax.array(groups, maxVal);
+    }
 
-        // Step 2: Compute exp(x - max) and sum (CPU-side - reduction)
+    @Reflect
+    public static void expSumPartialKernel(@RO KernelContext kc, @RW F32Array input, @RO F32Array partialMax, @RW F32Array partialSum,
+                                           @RO int rowOffset, @RO int size, @RO int groups) {
+        int g = kc.gix;
+        float maxVal = partialMax.array(groups);
         float sum = 0.0f;
-        for (int i = 0; i < rowSize; i++) {
+        for (int i = g; i < size; i += groups) {
             float expVal = (float) Math.exp(input.array(rowOffset + i) - maxVal);
             input.array(rowOffset + i, expVal);
             sum += expVal;
         }
+        partialSum.array(g, sum);
+    }
 
-        // Step 3: Normalize by sum (plain Java for row-level - small size)
-        // Note: Using plain Java here because row sizes are small (seqLen),
-        // and HAT dispatch overhead would exceed benefit
-        float invSum = 1.0f / sum;
-        for (int i = 0; i < rowSize; i++) {
-            input.array(rowOffset + i, input.array(rowOffset + i) * invSum);
+    @Reflect
+    public static void invSumCombineKernel(@RO KernelContext kc, @RW F32Array partialSum, @RO int groups) {
+        float sum = 0.0f;
+        for (int g = 0; g < groups; g++) {
+            sum += partialSum.array(g);
         }
+        partialSum.array(groups, 1.0f / sum);
+    }
+
+    @Reflect
+    public static void normalizeKernel(@RO KernelContext kc, @RW F32Array input, @RO F32Array partialSum,
+                                       @RO int rowOffset, @RO int groups) {
+        int i = kc.gix;
+        float invSum = partialSum.array(groups);
+        input.array(rowOffset + i, input.array(rowOffset + i) * invSum);
     }
 }
@@ -0,0 +1,21 @@
+package com.arturskowronski.llama3babylon.hat.kernels;
+
+import hat.Accelerator;
+
+/**
+ * Factory that creates plain Java kernels, swapping in JDK Vector API
+ * implementations for the kernels that have one.
+ * No HAT dispatch is involved. {@link CpuKernelMode#VECTOR} selects it.
+ */
+public class VectorKernelFactory extends PlainJavaKernelFactory {
+
+    @Override
+    public IAttention createAttention(Accelerator acc) {
+        return new AttentionVector(acc);
+    }
+
+    @Override
+    public IRoPE createRoPE(Accelerator acc) {
+        return new RoPEVector(acc);
+    }
+}
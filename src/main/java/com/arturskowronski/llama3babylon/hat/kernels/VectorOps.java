@@ -0,0 +1,91 @@
+package com.arturskowronski.llama3babylon.hat.kernels;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API primitives shared by the {@code *Vector} kernels.
+ * <p>
+ * All helpers work on plain {@code float[]} (never on HAT buffers, whose
+ * iface-mapper proxies cannot be loaded into SIMD lanes) and handle the
+ * scalar tail after the last full vector.
+ */
+final class VectorOps {
+
+    static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    /** Swaps adjacent lanes (0 <-> 1, 2 <-> 3, ...). */
+    private static final VectorShuffle<Float> SWAP_PAIRS = VectorShuffle.fromOp(SPECIES, i -> i ^ 1);
+
+    private VectorOps() {}
+
+    /** Returns sum(a[aOff + i] * b[bOff + i]) for i in [0, len). */
+    static float dot(float[] a, int aOff, float[] b, int bOff, int len) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(len);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, aOff + i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bOff + i);
+            acc = va.fma(vb, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < len; i++) {
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+
+    /** y[yOff + i] += alpha * x[xOff + i] for i in [0, len). */
+    static void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int len) {
+        FloatVector va = FloatVector.broadcast(SPECIES, alpha);
+        int bound = SPECIES.loopBound(len);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector vx = FloatVector.fromArray(SPECIES, x, xOff + i);
+            FloatVector vy = FloatVector.fromArray(SPECIES, y, yOff + i);
+            vx.fma(va, vy).intoArray(y, yOff + i);
+        }
+        for (; i < len; i++) {
+            y[yOff + i] += alpha * x[xOff + i];
+        }
+    }
+
+    /** y[yOff + i] *= alpha for i in [0, len). */
+    static void scale(float[] y, int yOff, float alpha, int len) {
+        FloatVector va = FloatVector.broadcast(SPECIES, alpha);
+        int bound = SPECIES.loopBound(len);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, y, yOff + i).mul(va).intoArray(y, yOff + i);
+        }
+        for (; i < len; i++) {
+            y[yOff + i] *= alpha;
+        }
+    }
+
+    /**
+     * Rotates interleaved pairs in place:
+     * y[2j] = y[2j] * c[2j] + y[2j+1] * s[2j], y[2j+1] = y[2j+1] * c[2j+1] + y[2j] * s[2j+1].
+     * With c = [cos_j, cos_j] and s = [-sin_j, sin_j] per pair this is a RoPE rotation.
+     * {@code len} must be even.
+     */
+    static void rotatePairs(float[] y, int yOff, float[] c, float[] s, int len) {
+        int bound = SPECIES.loopBound(len);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector vy = FloatVector.fromArray(SPECIES, y, yOff + i);
+            FloatVector vc = FloatVector.fromArray(SPECIES, c, i);
+            FloatVector vs = FloatVector.fromArray(SPECIES, s, i);
+            vy.rearrange(SWAP_PAIRS).mul(vs).add(vy.mul(vc)).intoArray(y, yOff + i);
+        }
+        for (; i < len; i += 2) {
+            float v0 = y[yOff + i];
+            float v1 = y[yOff + i + 1];
+            y[yOff + i] = v0 * c[i] + v1 * s[i];
+            y[yOff + i + 1] = v1 * c[i + 1] + v0 * s[i + 1];
+        }
+    }
+}
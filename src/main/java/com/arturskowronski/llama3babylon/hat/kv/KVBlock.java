@@ -0,0 +1,470 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+
+/**
+ * Fixed-size page of KV storage: K and V rows for {@link #POSITIONS} consecutive
+ * positions of one layer, all KV heads. Slot {@code s} starts at {@code s * kvDim}.
+ *
+ * Blocks are handed out and reference counted by a {@link KVBlockAllocator};
+ * a {@link KVCache} maps its positions onto blocks through a block table. A block
+ * with more than one reference is read-only and is copied before a write.
+ *
+ * Each subclass stores rows in one {@link KvCacheMode} and converts inside
+ * {@link #dotKey} and {@link #addValue}, so attention never sees the raw format.
+ */
+public abstract sealed class KVBlock permits KVBlock.OfF32, KVBlock.OfF16, KVBlock.OfQ8 {
+
+    /** Positions per block. */
+    public static final int POSITIONS = 16;
+    static final int SHIFT = 4;
+    static final int MASK = POSITIONS - 1;
+
+    final int numKvHeads;
+    final int headDim;
+    final int kvDim;
+
+    int refCount;        // guarded by the owning allocator
+    volatile int filled; // slots [0, filled) hold data; read by allocator metrics
+
+    KVBlock(int numKvHeads, int headDim) {
+        this.numKvHeads = numKvHeads;
+        this.headDim = headDim;
+        this.kvDim = numKvHeads * headDim;
+    }
+
+    static KVBlock create(KvCacheMode mode, int numKvHeads, int headDim) {
+        return switch (mode) {
+            case F32 -> new OfF32(numKvHeads, headDim);
+            case F16 -> new OfF16(numKvHeads, headDim);
+            case Q8 -> new OfQ8(numKvHeads, headDim);
+        };
+    }
+
+    /**
+     * Bytes of one block's K and V storage (including quantization scales).
+     */
+    static long bytes(KvCacheMode mode, int numKvHeads, int headDim) {
+        long kvDim = (long) numKvHeads * headDim;
+        return switch (mode) {
+            case F32 -> 2L * POSITIONS * kvDim * Float.BYTES;
+            case F16 -> 2L * POSITIONS * kvDim * Short.BYTES;
+            case Q8 -> 2L * POSITIONS * kvDim + 2L * POSITIONS * numKvHeads * Float.BYTES;
+        };
+    }
+
+    /**
+     * Storage format of this block.
+     */
+    public abstract KvCacheMode mode();
+
+    /**
+     * Number of slots written so far.
+     */
+    public int filled() {
+        return filled;
+    }
+
+    final void write(int slot, float[] k, int kOffset, float[] v, int vOffset) {
+        store(slot, k, kOffset, v, vOffset);
+        if (slot >= filled) {
+            filled = slot + 1;
+        }
+    }
+
+    abstract void store(int slot, float[] k, int kOffset, float[] v, int vOffset);
+
+    abstract float dotKey(int slot, int kvHead, float[] q, int qOffset);
+
+    abstract void addValue(int slot, int kvHead, float weight, float[] acc, int accOffset);
+
+    abstract void readKey(int slot, float[] dst, int dstOffset);
+
+    abstract void readValue(int slot, float[] dst, int dstOffset);
+
+    /** Copies all rows (and scales) of {@code src}, which has the same mode and shape. */
+    abstract void copyFrom(KVBlock src);
+
+    /**
+     * Copies row {@code srcSlot} of {@code src} (same mode and shape) into {@code slot}
+     * as stored, without converting it.
+     */
+    abstract void copyRow(int slot, KVBlock src, int srcSlot);
+
+    /**
+     * Copies the raw storage into {@code dst} at {@code offset} with one bulk copy per
+     * array, {@link #bytes} bytes in total, in native byte order.
+     */
+    abstract void save(MemorySegment dst, long offset);
+
+    /**
+     * Replaces the raw storage with what {@link #save} wrote at {@code offset};
+     * slots [0, filled) are marked as holding data.
+     */
+    abstract void load(MemorySegment src, long offset, int filled);
+
+    /**
+     * Full-precision block. The arrays are exposed so SIMD kernels can run their dot
+     * products on them directly.
+     */
+    public static final class OfF32 extends KVBlock {
+
+        private final float[] keys;
+        private final float[] values;
+
+        OfF32(int numKvHeads, int headDim) {
+            super(numKvHeads, headDim);
+            this.keys = new float[POSITIONS * kvDim];
+            this.values = new float[POSITIONS * kvDim];
+        }
+
+        @Override
+        public KvCacheMode mode() {
+            return KvCacheMode.F32;
+        }
+
+        /** Key rows [POSITIONS, kvDim]. */
+        public float[] keys() {
+            return keys;
+        }
+
+        /** Value rows [POSITIONS, kvDim]. */
+        public float[] values() {
+            return values;
+        }
+
+        @Override
+        void store(int slot, float[] k, int kOffset, float[] v, int vOffset) {
+            System.arraycopy(k, kOffset, keys, slot * kvDim, kvDim);
+            System.arraycopy(v, vOffset, values, slot * kvDim, kvDim);
+        }
+
+        @Override
+        float dotKey(int slot, int kvHead, float[] q, int qOffset) {
+            int offset = slot * kvDim + kvHead * headDim;
+            float sum = 0.0f;
+            for (int i = 0; i < headDim; i++) {
+                sum += q[qOffset + i] * keys[offset + i];
+            }
+            return sum;
+        }
+
+        @Override
+        void addValue(int slot, int kvHead, float weight, float[] acc, int accOffset) {
+            int offset = slot * kvDim + kvHead * headDim;
+            for (int i = 0; i < headDim; i++) {
+                acc[accOffset + i] += weight * values[offset + i];
+            }
+        }
+
+        @Override
+        void readKey(int slot, float[] dst, int dstOffset) {
+            System.arraycopy(keys, slot * kvDim, dst, dstOffset, kvDim);
+        }
+
+        @Override
+        void readValue(int slot, float[] dst, int dstOffset) {
+            System.arraycopy(values, slot * kvDim, dst, dstOffset, kvDim);
+        }
+
+        @Override
+        void copyFrom(KVBlock src) {
+            OfF32 other = (OfF32) src;
+            System.arraycopy(other.keys, 0, keys, 0, keys.length);
+            System.arraycopy(other.values, 0, values, 0, values.length);
+            filled = other.filled;
+        }
+
+        @Override
+        void copyRow(int slot, KVBlock src, int srcSlot) {
+            OfF32 other = (OfF32) src;
+            System.arraycopy(other.keys, srcSlot * kvDim, keys, slot * kvDim, kvDim);
+            System.arraycopy(other.values, srcSlot * kvDim, values, slot * kvDim, kvDim);
+        }
+
+        @Override
+        void save(MemorySegment dst, long offset) {
+            MemorySegment.copy(keys, 0, dst, ValueLayout.JAVA_FLOAT_UNALIGNED, offset, keys.length);
+            offset += (long) keys.length * Float.BYTES;
+            MemorySegment.copy(values, 0, dst, ValueLayout.JAVA_FLOAT_UNALIGNED, offset, values.length);
+        }
+
+        @Override
+        void load(MemorySegment src, long offset, int filled) {
+            MemorySegment.copy(src, ValueLayout.JAVA_FLOAT_UNALIGNED, offset, keys, 0, keys.length);
+            offset += (long) keys.length * Float.BYTES;
+            MemorySegment.copy(src, ValueLayout.JAVA_FLOAT_UNALIGNED, offset, values, 0, values.length);
+            this.filled = filled;
+        }
+    }
+
+    /**
+     * Half-precision block: rows are rounded to IEEE fp16 on write and widened
+     * with {@link Float#float16ToFloat} inside the dot product and weighted sum.
+     * The raw arrays are exposed so device kernels can stage them without widening.
+     */
+    public static final class OfF16 extends KVBlock {
+
+        private final short[] keys;
+        private final short[] values;
+
+        OfF16(int numKvHeads, int headDim) {
+            super(numKvHeads, headDim);
+            this.keys = new short[POSITIONS * kvDim];
+            this.values = new short[POSITIONS * kvDim];
+        }
+
+        @Override
+        public KvCacheMode mode() {
+            return KvCacheMode.F16;
+        }
+
+        /** Key rows [POSITIONS, kvDim] as fp16 bits. */
+        public short[] keys() {
+            return keys;
+        }
+
+        /** Value rows [POSITIONS, kvDim] as fp16 bits. */
+        public short[] values() {
+            return values;
+        }
+
+        @Override
+        void store(int slot, float[] k, int kOffset, float[] v, int vOffset) {
+            int offset = slot * kvDim;
+            for (int i = 0; i < kvDim; i++) {
+                keys[offset + i] = Float.floatToFloat16(k[kOffset + i]);
+                values[offset + i] = Float.floatToFloat16(v[vOffset + i]);
+            }
+        }
+
+        @Override
+        float dotKey(int slot, int kvHead, float[] q, int qOffset) {
+            int offset = slot * kvDim + kvHead * headDim;
+            float sum = 0.0f;
+            for (int i = 0; i < headDim; i++) {
+                sum += q[qOffset + i] * Float.float16ToFloat(keys[offset + i]);
+            }
+            return sum;
+        }
+
+        @Override
+        void addValue(int slot, int kvHead, float weight, float[] acc, int accOffset) {
+            int offset = slot * kvDim + kvHead * headDim;
+            for (int i = 0; i < headDim; i++) {
+                acc[accOffset + i] += weight * Float.float16ToFloat(values[offset + i]);
+            }
+        }
+
+        @Override
+        void readKey(int slot, float[] dst, int dstOffset) {
+            widenRow(keys, slot * kvDim, dst, dstOffset);
+        }
+
+        @Override
+        void readValue(int slot, float[] dst, int dstOffset) {
+            widenRow(values, slot * kvDim, dst, dstOffset);
+        }
+
+        private void widenRow(short[] src, int offset, float[] dst, int dstOffset) {
+            for (int i = 0; i < kvDim; i++) {
+                dst[dstOffset + i] = Float.float16ToFloat(src[offset + i]);
+            }
+        }
+
+        @Override
+        void copyFrom(KVBlock src) {
+            OfF16 other = (OfF16) src;
+            System.arraycopy(other.keys, 0, keys, 0, keys.length);
+            System.arraycopy(other.values, 0, values, 0, values.length);
+            filled = other.filled;
+        }
+
+        @Override
+        void copyRow(int slot, KVBlock src, int srcSlot) {
+            OfF16 other = (OfF16) src;
+            System.arraycopy(other.keys, srcSlot * kvDim, keys, slot * kvDim, kvDim);
+            System.arraycopy(other.values, srcSlot * kvDim, values, slot * kvDim, kvDim);
+        }
+
+        @Override
+        void save(MemorySegment dst, long offset) {
+            MemorySegment.copy(keys, 0, dst, ValueLayout.JAVA_SHORT_UNALIGNED, offset, keys.length);
+            offset += (long) keys.length * Short.BYTES;
+            MemorySegment.copy(values, 0, dst, ValueLayout.JAVA_SHORT_UNALIGNED, offset, values.length);
+        }
+
+        @Override
+        void load(MemorySegment src, long offset, int filled) {
+            MemorySegment.copy(src, ValueLayout.JAVA_SHORT_UNALIGNED, offset, keys, 0, keys.length);
+            offset += (long) keys.length * Short.BYTES;
+            MemorySegment.copy(src, ValueLayout.JAVA_SHORT_UNALIGNED, offset, values, 0, values.length);
+            this.filled = filled;
+        }
+    }
+
+    /**
+     * 8-bit block with one scale per (slot, KV head).
+     *
+     * Each head row is quantized symmetrically: scale = max|x| / 127 and
+     * q_i = round(x_i / scale), so the worst-case error per element is scale / 2.
+     * Per-head scales matter here: K rows after RoPE have very different ranges
+     * across heads, and a single per-position scale would flatten the small ones.
+     *
+     * The scale is applied once per dot product (or folded into the softmax weight
+     * for values), so the inner loops only widen bytes to float.
+     */
+    public static final class OfQ8 extends KVBlock {
+
+        private static final float Q_MAX = 127.0f;
+
+        private final byte[] keys;
+        private final byte[] values;
+        private final float[] keyScales;   // [POSITIONS, numKvHeads]
+        private final float[] valueScales; // [POSITIONS, numKvHeads]
+
+        OfQ8(int numKvHeads, int headDim) {
+            super(numKvHeads, headDim);
+            this.keys = new byte[POSITIONS * kvDim];
+            this.values = new byte[POSITIONS * kvDim];
+            this.keyScales = new float[POSITIONS * numKvHeads];
+            this.valueScales = new float[POSITIONS * numKvHeads];
+        }
+
+        @Override
+        public KvCacheMode mode() {
+            return KvCacheMode.Q8;
+        }
+
+        /** Quantized key rows [POSITIONS, kvDim]. */
+        public byte[] keys() {
+            return keys;
+        }
+
+        /** Quantized value rows [POSITIONS, kvDim]. */
+        public byte[] values() {
+            return values;
+        }
+
+        /** Key scales [POSITIONS, numKvHeads]. */
+        public float[] keyScales() {
+            return keyScales;
+        }
+
+        /** Value scales [POSITIONS, numKvHeads]. */
+        public float[] valueScales() {
+            return valueScales;
+        }
+
+        @Override
+        void store(int slot, float[] k, int kOffset, float[] v, int vOffset) {
+            for (int h = 0; h < numKvHeads; h++) {
+                int row = slot * kvDim + h * headDim;
+                int scaleIdx = slot * numKvHeads + h;
+                keyScales[scaleIdx] = quantize(k, kOffset + h * headDim, keys, row, headDim);
+                valueScales[scaleIdx] = quantize(v, vOffset + h * headDim, values, row, headDim);
+            }
+        }
+
+        /** Quantizes {@code len} floats into {@code dst} and returns the scale. */
+        private static float quantize(float[] src, int srcOffset, byte[] dst, int dstOffset, int len) {
+            float absMax = 0.0f;
+            for (int i = 0; i < len; i++) {
+                absMax = Math.max(absMax, Math.abs(src[srcOffset + i]));
+            }
+            if (absMax == 0.0f) {
+                Arrays.fill(dst, dstOffset, dstOffset + len, (byte) 0);
+                return 0.0f;
+            }
+            float invScale = Q_MAX / absMax;
+            for (int i = 0; i < len; i++) {
+                dst[dstOffset + i] = (byte) Math.round(src[srcOffset + i] * invScale);
+            }
+            return absMax / Q_MAX;
+        }
+
+        @Override
+        float dotKey(int slot, int kvHead, float[] q, int qOffset) {
+            int offset = slot * kvDim + kvHead * headDim;
+            float sum = 0.0f;
+            for (int i = 0; i < headDim; i++) {
+                sum += q[qOffset + i] * keys[offset + i];
+            }
+            return sum * keyScales[slot * numKvHeads + kvHead];
+        }
+
+        @Override
+        void addValue(int slot, int kvHead, float weight, float[] acc, int accOffset) {
+            int offset = slot * kvDim + kvHead * headDim;
+            float w = weight * valueScales[slot * numKvHeads + kvHead];
+            for (int i = 0; i < headDim; i++) {
+                acc[accOffset + i] += w * values[offset + i];
+            }
+        }
+
+        @Override
+        void readKey(int slot, float[] dst, int dstOffset) {
+            dequantizeRow(keys, keyScales, slot, dst, dstOffset);
+        }
+
+        @Override
+        void readValue(int slot, float[] dst, int dstOffset) {
+            dequantizeRow(values, valueScales, slot, dst, dstOffset);
+        }
+
+        private void dequantizeRow(byte[] data, float[] scales, int slot, float[] dst, int dstOffset) {
+            for (int h = 0; h < numKvHeads; h++) {
+                float scale = scales[slot * numKvHeads + h];
+                int src = slot * kvDim + h * headDim;
+                int out = dstOffset + h * headDim;
+                for (int i = 0; i < headDim; i++) {
+                    dst[out + i] = data[src + i] * scale;
+                }
+            }
+        }
+
+        @Override
+        void copyFrom(KVBlock src) {
+            OfQ8 other = (OfQ8) src;
+            System.arraycopy(other.keys, 0, keys, 0, keys.length);
+            System.arraycopy(other.values, 0, values, 0, values.length);
+            System.arraycopy(other.keyScales, 0, keyScales, 0, keyScales.length);
+            System.arraycopy(other.valueScales, 0, valueScales, 0, valueScales.length);
+            filled = other.filled;
+        }
+
+        @Override
+        void copyRow(int slot, KVBlock src, int srcSlot) {
+            OfQ8 other = (OfQ8) src;
+            System.arraycopy(other.keys, srcSlot * kvDim, keys, slot * kvDim, kvDim);
+            System.arraycopy(other.values, srcSlot * kvDim, values, slot * kvDim, kvDim);
+            System.arraycopy(other.keyScales, srcSlot * numKvHeads, keyScales, slot * numKvHeads, numKvHeads);
+            System.arraycopy(other.valueScales, srcSlot * numKvHeads, valueScales, slot * numKvHeads, numKvHeads);
+        }
+
+        @Override
+        void save(MemorySegment dst, long offset) {
+            MemorySegment.copy(keys, 0, dst, ValueLayout.JAVA_BYTE, offset, keys.length);
+            offset += keys.length;
+            MemorySegment.copy(values, 0, dst, ValueLayout.JAVA_BYTE, offset, values.length);
+            offset += values.length;
+            MemorySegment.copy(keyScales, 0, dst, ValueLayout.JAVA_FLOAT_UNALIGNED, offset, keyScales.length);
+            offset += (long) keyScales.length * Float.BYTES;
+            MemorySegment.copy(valueScales, 0, dst, ValueLayout.JAVA_FLOAT_UNALIGNED, offset, valueScales.length);
+        }
+
+        @Override
+        void load(MemorySegment src, long offset, int filled) {
+            MemorySegment.copy(src, ValueLayout.JAVA_BYTE, offset, keys, 0, keys.length);
+            offset += keys.length;
+            MemorySegment.copy(src, ValueLayout.JAVA_BYTE, offset, values, 0, values.length);
+            offset += values.length;
+            MemorySegment.copy(src, ValueLayout.JAVA_FLOAT_UNALIGNED, offset, keyScales, 0, keyScales.length);
+            offset += (long) keyScales.length * Float.BYTES;
+            MemorySegment.copy(src, ValueLayout.JAVA_FLOAT_UNALIGNED, offset, valueScales, 0, valueScales.length);
+            this.filled = filled;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of {@link KVBlock}s shared by every layer of every session that uses it.
+ *
+ * Caches take blocks with {@link #allocate()} as their sequences grow and hand them
+ * back with {@link #release}; released blocks go to a free list and are reused
+ * before new ones are created, so steady-state serving does not churn the heap.
+ * A block may be referenced by several caches ({@link #retain}); such a block is
+ * read-only and {@link #copyOnWrite} gives the writer a private copy.
+ *
+ * An optional block limit turns the pool into a hard KV memory budget for the node:
+ * {@link #allocate()} fails once it is reached.
+ *
+ * All methods are thread-safe; sessions on different threads may share one pool.
+ */
+public final class KVBlockAllocator {
+
+    private final KvCacheMode mode;
+    private final int numKvHeads;
+    private final int headDim;
+    private final int maxBlocks;
+
+    private final List<KVBlock> blocks = new ArrayList<>(); // every block created and not trimmed
+    private final ArrayDeque<KVBlock> free = new ArrayDeque<>();
+    private int inUse;
+
+    /**
+     * Creates an unbounded pool.
+     */
+    public KVBlockAllocator(KvCacheMode mode, int numKvHeads, int headDim) {
+        this(mode, numKvHeads, headDim, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a pool that never holds more than {@code maxBlocks} blocks.
+     */
+    public KVBlockAllocator(KvCacheMode mode, int numKvHeads, int headDim, int maxBlocks) {
+        if (numKvHeads <= 0 || headDim <= 0 || maxBlocks <= 0) {
+            throw new IllegalArgumentException("Invalid KV block pool: numKvHeads=" + numKvHeads
+                    + ", headDim=" + headDim + ", maxBlocks=" + maxBlocks);
+        }
+        this.mode = mode;
+        this.numKvHeads = numKvHeads;
+        this.headDim = headDim;
+        this.maxBlocks = maxBlocks;
+    }
+
+    public KvCacheMode mode() {
+        return mode;
+    }
+
+    public int numKvHeads() {
+        return numKvHeads;
+    }
+
+    public int headDim() {
+        return headDim;
+    }
+
+    /**
+     * Bytes of one block (K and V for {@link KVBlock#POSITIONS} positions, all KV heads).
+     */
+    public long blockBytes() {
+        return KVBlock.bytes(mode, numKvHeads, headDim);
+    }
+
+    /**
+     * Hands out an empty block with one reference.
+     *
+     * @throws IllegalStateException if the pool is at its block limit
+     */
+    public synchronized KVBlock allocate() {
+        KVBlock block = free.poll();
+        if (block == null) {
+            if (blocks.size() >= maxBlocks) {
+                throw new IllegalStateException("KV block pool exhausted: " + inUse + " of " + maxBlocks
+                        + " blocks in use");
+            }
+            block = KVBlock.create(mode, numKvHeads, headDim);
+            blocks.add(block);
+        }
+        block.refCount = 1;
+        block.filled = 0;
+        inUse++;
+        return block;
+    }
+
+    /**
+     * Adds a reference to a live block (sharing it read-only).
+     */
+    public synchronized void retain(KVBlock block) {
+        checkLive(block);
+        block.refCount++;
+    }
+
+    /**
+     * Drops a reference; the block returns to the free list when none remain.
+     */
+    public synchronized void release(KVBlock block) {
+        checkLive(block);
+        if (--block.refCount == 0) {
+            inUse--;
+            free.push(block);
+        }
+    }
+
+    /**
+     * Returns {@code block} if the caller holds its only reference, otherwise a private
+     * copy (the caller's reference to the shared block is dropped).
+     */
+    public synchronized KVBlock copyOnWrite(KVBlock block) {
+        checkLive(block);
+        if (block.refCount == 1) {
+            return block;
+        }
+        KVBlock copy = allocate();
+        copy.copyFrom(block);
+        block.refCount--;
+        return copy;
+    }
+
+    /**
+     * Whether more than one cache references {@code block}.
+     */
+    synchronized boolean isShared(KVBlock block) {
+        return block.refCount > 1;
+    }
+
+    private void checkLive(KVBlock block) {
+        if (block.refCount <= 0) {
+            throw new IllegalStateException("KV block is not allocated");
+        }
+    }
+
+    /**
+     * Drops free blocks so their memory can be garbage collected.
+     */
+    public synchronized void trim() {
+        blocks.removeIf(b -> b.refCount == 0);
+        free.clear();
+    }
+
+    /** Blocks currently referenced by at least one cache. */
+    public synchronized int blocksInUse() {
+        return inUse;
+    }
+
+    /** Blocks held by the pool, in use or free. */
+    public synchronized int blocksCreated() {
+        return blocks.size();
+    }
+
+    /** Blocks on the free list. */
+    public synchronized int freeBlocks() {
+        return free.size();
+    }
+
+    /** Block limit, or {@link Integer#MAX_VALUE} when unbounded. */
+    public int maxBlocks() {
+        return maxBlocks;
+    }
+
+    /** Blocks referenced by more than one cache. */
+    public synchronized int sharedBlocks() {
+        int shared = 0;
+        for (KVBlock block : blocks) {
+            if (block.refCount > 1) {
+                shared++;
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Fraction of the pool in use: blocks in use over the block limit, or over
+     * blocks created when the pool is unbounded.
+     */
+    public synchronized double occupancy() {
+        int denominator = maxBlocks == Integer.MAX_VALUE ? blocks.size() : maxBlocks;
+        return denominator == 0 ? 0.0 : (double) inUse / denominator;
+    }
+
+    /**
+     * Internal fragmentation: the fraction of slots in in-use blocks that hold no
+     * position yet (the unfilled tail of each sequence's last block).
+     */
+    public synchronized double fragmentation() {
+        if (inUse == 0) {
+            return 0.0;
+        }
+        long filled = 0;
+        for (KVBlock block : blocks) {
+            if (block.refCount > 0) {
+                filled += block.filled;
+            }
+        }
+        return 1.0 - (double) filled / ((long) inUse * KVBlock.POSITIONS);
+    }
+
+    /**
+     * One-line pool summary for logs.
+     */
+    public synchronized String stats() {
+        String limit = maxBlocks == Integer.MAX_VALUE ? "unbounded" : String.valueOf(maxBlocks);
+        return String.format("KV blocks (%s): %d in use, %d free, limit %s, %d shared, %d KB each, "
+                        + "occupancy %.1f%%, fragmentation %.1f%%",
+                mode, inUse, free.size(), limit, sharedBlocks(), blockBytes() / 1024,
+                occupancy() * 100, fragmentation() * 100);
+    }
+}
@@ -0,0 +1,872 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Key/value cache for one transformer layer, laid out as [capacity, numKvHeads, headDim].
+ *
+ * Storage is paged: positions map onto fixed-size {@link KVBlock}s through a block
+ * table, and blocks come from a {@link KVBlockAllocator} that may be shared by many
+ * caches (all layers of all sessions on a node). A block is taken on the first write
+ * into it, so a session pays for the positions it has used rather than for the
+ * whole context window, and {@link #reset()} hands every block back to the pool.
+ *
+ * The storage format is chosen by the allocator's {@link KvCacheMode}. Attention
+ * kernels never see the raw format: they call {@link #dotKey} and {@link #addValue},
+ * which convert on the fly inside the dot product and the weighted sum.
+ *
+ * <pre>
+ *   cache.write(pos, k, 0, v, 0);                      // after RoPE on k
+ *   float s = cache.dotKey(t, kvHead, q, qOffset);     // q · K[t, kvHead]
+ *   cache.addValue(t, kvHead, p, acc, 0);              // acc += p * V[t, kvHead]
+ * </pre>
+ *
+ * {@link #shareFrom} makes this cache reference another cache's blocks for a common
+ * prefix; shared blocks are copied on the first write (see {@link KVBlockAllocator#copyOnWrite}).
+ *
+ * With {@link #enableTiering}, blocks that fall out of the policy's recent window are
+ * spilled to a file-backed {@link KVSpillStore} and their pool block is released.
+ * Reads of a spilled position go through a few staging blocks that are filled from
+ * the store on demand, so attention streams cold blocks back one at a time; kernels
+ * should visit positions block by block (see {@link #spilledBlocks()}).
+ *
+ * With {@link #enableWindow}, the cache keeps attention-sink blocks plus a sliding
+ * window of recent blocks, so a sequence can run past the capacity in constant
+ * memory. Callers map sequence positions to cache slots with {@link #reserve}, which
+ * evicts the oldest non-sink block when the window is full, and rotate keys for
+ * {@link #rotaryPosition}. Eviction only moves block pointers: stored keys are never
+ * rewritten. Instead, attention rotates the query once per rotary group (see
+ * {@link #rotaryGroups}), so each key is scored as if it sat at its slot.
+ *
+ * With {@link #enableHeavyHitters}, attention kernels accumulate the softmax weight
+ * each position receives ({@link #addAttention}), and {@link #reserve} keeps the cache
+ * at a fixed budget by evicting the position with the least accumulated attention.
+ * The last row moves into the freed slot, so slots stay dense but no longer follow
+ * sequence order.
+ */
+public final class KVCache {
+
+    /** Positions per block. */
+    public static final int BLOCK_POSITIONS = KVBlock.POSITIONS;
+
+    private final KVBlockAllocator allocator;
+    private final int capacity;
+    private final int kvDim;
+    private final KVBlock[] blockTable;
+
+    private int length;
+    private int epoch;
+    private int heldBlocks;
+
+    // Tiering (null/empty until enableTiering)
+    private KVSpillStore spillStore;
+    private KVTierPolicy tierPolicy;
+    private int[] spillSlots;    // per block index: store slot, or -1 when not spilled
+    private KVBlock[] fillBuffers;
+    private int[] fillIndex;     // block index staged in each fill buffer, or -1
+    private int fillNext;
+    private int spilledBlocks;
+
+    // Sliding window (null until enableWindow)
+    private KVWindowPolicy windowPolicy;
+    private int droppedPositions;
+    private long evictedBlocks;
+    // Keys are rotated for pos - rotaryBase. Window blocks sharing a base form a rotary
+    // group; group 0 is the sinks, which attention scores from the query's slot.
+    private int rotaryBase;
+    private int maxBaseLag;      // how far droppedPositions may run ahead of rotaryBase
+    private int[] blockGroups;   // per block index: rotary group
+    private int[] groupBases;    // per rotary group > 0: rotaryBase its keys were written with
+    private int groupCount = 1;
+
+    // Heavy-hitter eviction (null until enableHeavyHitters)
+    private KVHeavyHitterPolicy heavyHitterPolicy;
+    private float[] attentionMass; // [budget, numKvHeads] softmax weight accumulated per slot
+    private int[] slotPositions;   // sequence position held by each slot
+    private long rowMoves;
+    private int movedFrom;         // source and destination slot of the latest move
+    private int movedTo;
+
+    /**
+     * Creates an empty cache drawing blocks from {@code allocator}.
+     *
+     * @param allocator block pool (determines mode and KV head shape)
+     * @param capacity maximum number of positions (the model's context length)
+     */
+    public KVCache(KVBlockAllocator allocator, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid KV cache capacity: " + capacity);
+        }
+        this.allocator = allocator;
+        this.capacity = capacity;
+        this.kvDim = allocator.numKvHeads() * allocator.headDim();
+        this.blockTable = new KVBlock[(capacity + BLOCK_POSITIONS - 1) / BLOCK_POSITIONS];
+    }
+
+    /**
+     * Creates an empty cache with its own unbounded block pool.
+     */
+    public static KVCache create(KvCacheMode mode, int capacity, int numKvHeads, int headDim) {
+        return new KVCache(new KVBlockAllocator(mode, numKvHeads, headDim), capacity);
+    }
+
+    public KvCacheMode mode() {
+        return allocator.mode();
+    }
+
+    public KVBlockAllocator allocator() {
+        return allocator;
+    }
+
+    /**
+     * Maximum number of positions (the model's context length).
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    public int numKvHeads() {
+        return allocator.numKvHeads();
+    }
+
+    public int headDim() {
+        return allocator.headDim();
+    }
+
+    public int kvDim() {
+        return kvDim;
+    }
+
+    /**
+     * Most positions the cache holds before an eviction policy starts dropping them
+     * (the capacity when there is none).
+     */
+    public int positionLimit() {
+        if (windowPolicy != null) {
+            return windowPolicy.positions();
+        }
+        if (heavyHitterPolicy != null) {
+            return heavyHitterPolicy.budgetPositions();
+        }
+        return capacity;
+    }
+
+    /**
+     * Number of positions written so far: [0, length) hold data.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Incremented whenever an already written position is overwritten (e.g. a new
+     * prompt restarting at position 0), the cache is reset, or it starts sharing
+     * another cache's blocks. Kernels that keep a staged copy of the cache compare
+     * epochs to know when the copy must be rebuilt from scratch. Evictions keep the
+     * epoch: a sliding window only drops block {@code sinkBlocks} and moves the later
+     * blocks down, which a staged copy can follow through {@link #evictedBlocks()}, and
+     * heavy-hitter eviction moves one row, which it can follow through {@link #rowMoves()}.
+     */
+    public int epoch() {
+        return epoch;
+    }
+
+    /**
+     * Spills blocks outside {@code policy}'s in-memory window to {@code store} as the
+     * sequence grows. Must be called on an empty cache.
+     */
+    public void enableTiering(KVSpillStore store, KVTierPolicy policy) {
+        if (store.numKvHeads() != numKvHeads() || store.headDim() != headDim()) {
+            throw new IllegalArgumentException("KV spill store shape does not match the cache");
+        }
+        if (length > 0) {
+            throw new IllegalStateException("Tiering must be enabled on an empty cache");
+        }
+        if (windowPolicy != null || heavyHitterPolicy != null) {
+            throw new IllegalStateException("Tiering cannot be combined with KV eviction");
+        }
+        this.spillStore = store;
+        this.tierPolicy = policy;
+        this.spillSlots = new int[blockTable.length];
+        Arrays.fill(spillSlots, -1);
+        this.fillBuffers = new KVBlock[policy.fillBlocks()];
+        for (int i = 0; i < fillBuffers.length; i++) {
+            fillBuffers[i] = KVBlock.create(mode(), numKvHeads(), headDim());
+        }
+        this.fillIndex = new int[policy.fillBlocks()];
+        Arrays.fill(fillIndex, -1);
+    }
+
+    public KVSpillStore spillStore() {
+        return spillStore;
+    }
+
+    public KVTierPolicy tierPolicy() {
+        return tierPolicy;
+    }
+
+    /**
+     * Keeps only {@code policy}'s sink and recent blocks, evicting in between as
+     * {@link #reserve} advances past {@link KVWindowPolicy#positions()}. Must be called
+     * on an empty cache.
+     * <p>
+     * Rotary positions stay below the capacity (the RoPE table length): the rotary base
+     * moves up to the dropped positions before any key or query could reach it. Queries
+     * scoring the oldest window keys run up to {@code windowBlocks} blocks past the
+     * window, so the capacity must leave that much room. The more room beyond it, the
+     * less often the base moves and the fewer rotary groups attention has to score.
+     */
+    public void enableWindow(KVWindowPolicy policy) {
+        int rotaryPositions = policy.positions() + policy.windowBlocks() * BLOCK_POSITIONS;
+        if (rotaryPositions > capacity) {
+            throw new IllegalArgumentException("KV window of " + policy.positions() + " positions needs "
+                    + rotaryPositions + " rotary positions, more than the cache capacity " + capacity);
+        }
+        if (length > 0) {
+            throw new IllegalStateException("The sliding window must be enabled on an empty cache");
+        }
+        if (spillStore != null || heavyHitterPolicy != null) {
+            throw new IllegalStateException("A sliding window cannot be combined with tiering or heavy-hitter eviction");
+        }
+        this.windowPolicy = policy;
+        // A group's blocks are evicted within windowBlocks evictions of the base moving on,
+        // so queries scoring them reach at most rotaryPositions + lag past their base
+        this.maxBaseLag = capacity - rotaryPositions;
+        this.blockGroups = new int[blockTable.length];
+        this.groupBases = new int[policy.windowBlocks() + 1];
+    }
+
+    public KVWindowPolicy windowPolicy() {
+        return windowPolicy;
+    }
+
+    /**
+     * Keeps at most {@code policy.budgetPositions()} positions, evicting the one with the
+     * least accumulated attention as {@link #reserve} goes past the budget. Must be
+     * called on an empty cache.
+     */
+    public void enableHeavyHitters(KVHeavyHitterPolicy policy) {
+        if (policy.budgetPositions() > capacity) {
+            throw new IllegalArgumentException("Heavy-hitter budget of " + policy.budgetPositions()
+                    + " positions exceeds the cache capacity " + capacity);
+        }
+        if (length > 0) {
+            throw new IllegalStateException("Heavy-hitter eviction must be enabled on an empty cache");
+        }
+        if (spillStore != null || windowPolicy != null) {
+            throw new IllegalStateException("Heavy-hitter eviction cannot be combined with tiering or a sliding window");
+        }
+        this.heavyHitterPolicy = policy;
+        this.attentionMass = new float[policy.budgetPositions() * numKvHeads()];
+        this.slotPositions = new int[policy.budgetPositions()];
+    }
+
+    public KVHeavyHitterPolicy heavyHitterPolicy() {
+        return heavyHitterPolicy;
+    }
+
+    /**
+     * Whether attention kernels should report softmax weights through {@link #addAttention}.
+     */
+    public boolean tracksAttention() {
+        return attentionMass != null;
+    }
+
+    /**
+     * Adds the softmax weight a query head gave to slot {@code pos} (reading KV head
+     * {@code kvHead}) to that slot's accumulated attention. Only valid when
+     * {@link #tracksAttention()}.
+     */
+    public void addAttention(int pos, int kvHead, float weight) {
+        attentionMass[pos * numKvHeads() + kvHead] += weight;
+    }
+
+    /**
+     * Attention accumulated by slot {@code pos} through KV head {@code kvHead} since it was written.
+     */
+    public float attentionMass(int pos, int kvHead) {
+        return attentionMass[pos * numKvHeads() + kvHead];
+    }
+
+    /**
+     * Sequence position held by slot {@code slot} (the slot itself unless positions were evicted).
+     */
+    public int positionAt(int slot) {
+        Objects.checkIndex(slot, length);
+        if (heavyHitterPolicy != null) {
+            return slotPositions[slot];
+        }
+        if (windowPolicy != null && slot >= windowPolicy.sinkBlocks() * BLOCK_POSITIONS) {
+            return slot + droppedPositions;
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the slot that sequence position {@code pos} is written to and attended
+     * at. Without a window this is {@code pos}. With one, slots trail positions by
+     * {@link #droppedPositions()}, and reserving a position past the window first
+     * evicts the oldest block after the sinks.
+     *
+     * @throws IllegalStateException if {@code pos} is behind the window (reset to start a new sequence)
+     * @throws IllegalArgumentException if {@code pos} would leave a gap
+     */
+    public int reserve(int pos) {
+        if (heavyHitterPolicy != null) {
+            return reserveHeavyHitter(pos);
+        }
+        if (windowPolicy == null) {
+            return pos;
+        }
+        int slot = pos - droppedPositions;
+        if (droppedPositions > 0 && slot < windowPolicy.sinkBlocks() * BLOCK_POSITIONS) {
+            throw new IllegalStateException("Position " + pos + " is behind the KV window");
+        }
+        if (slot > length) {
+            throw new IllegalArgumentException("A windowed cache is written in order: position " + pos
+                    + " skips past slot " + length);
+        }
+        while (slot >= windowPolicy.positions()) {
+            evictBlock(windowPolicy.sinkBlocks());
+            slot -= BLOCK_POSITIONS;
+        }
+        return slot;
+    }
+
+    /**
+     * Position RoPE uses for the key of sequence position {@code pos} once it is
+     * reserved: under a sliding window, {@code pos} less the rotary base of the block it
+     * goes into (the current base for a new block); {@code pos} itself otherwise
+     * (heavy-hitter eviction keeps original rotations, since attention does not depend
+     * on slot order).
+     */
+    public int rotaryPosition(int pos) {
+        if (windowPolicy == null) {
+            return pos;
+        }
+        int index = (pos - droppedPositions) >>> KVBlock.SHIFT;
+        if (index < blocksFor(length) && index >= windowPolicy.sinkBlocks()) {
+            return pos - groupBases[blockGroups[index]];
+        }
+        return pos - rotaryBase;
+    }
+
+    /**
+     * Number of rotations of the query attention needs over slots [0, length): 1 unless
+     * a sliding window is enabled. Then group 0 holds the sinks, and each later group
+     * the window blocks whose keys share a rotary base.
+     */
+    public int rotaryGroups() {
+        return groupCount;
+    }
+
+    /**
+     * Rotary group of the key at slot {@code pos}.
+     */
+    public int rotaryGroup(int pos) {
+        return windowPolicy != null ? blockGroups[pos >>> KVBlock.SHIFT] : 0;
+    }
+
+    /**
+     * Position RoPE uses for the query of sequence position {@code pos} when scoring keys
+     * of rotary group {@code group}. For the sinks that is the query's slot, so a sink is
+     * as far behind as its slot; for window keys it keeps their true distance.
+     */
+    public int queryRotaryPosition(int pos, int group) {
+        if (windowPolicy == null) {
+            return pos;
+        }
+        return group == 0 ? pos - droppedPositions : pos - groupBases[group];
+    }
+
+    private int reserveHeavyHitter(int pos) {
+        int slot = pos - droppedPositions;
+        if (droppedPositions > 0 && slot < length) {
+            throw new IllegalStateException("Position " + pos + " cannot be rewritten after heavy-hitter evictions");
+        }
+        if (slot > length) {
+            throw new IllegalArgumentException("A heavy-hitter cache is written in order: position " + pos
+                    + " skips past slot " + length);
+        }
+        if (slot == heavyHitterPolicy.budgetPositions()) {
+            evictLightest(pos);
+            slot--;
+        }
+        int nkv = numKvHeads();
+        Arrays.fill(attentionMass, slot * nkv, (slot + 1) * nkv, 0.0f);
+        slotPositions[slot] = pos;
+        return slot;
+    }
+
+    /**
+     * Evicts the slot with the least accumulated attention outside the recent positions,
+     * moving the last row into it as stored.
+     */
+    private void evictLightest(int pos) {
+        int nkv = numKvHeads();
+        int recentFrom = pos - heavyHitterPolicy.recentPositions();
+        int victim = -1;
+        float lightest = Float.POSITIVE_INFINITY;
+        for (int s = 0; s < length; s++) {
+            if (slotPositions[s] >= recentFrom) {
+                continue;
+            }
+            float mass = 0.0f;
+            for (int h = 0; h < nkv; h++) {
+                mass += attentionMass[s * nkv + h];
+            }
+            if (mass < lightest) {
+                lightest = mass;
+                victim = s;
+            }
+        }
+        int last = length - 1;
+        if (victim != last) {
+            int index = victim >>> KVBlock.SHIFT;
+            KVBlock block = allocator.copyOnWrite(blockTable[index]);
+            blockTable[index] = block;
+            block.copyRow(victim & KVBlock.MASK, blockTable[last >>> KVBlock.SHIFT], last & KVBlock.MASK);
+            System.arraycopy(attentionMass, last * nkv, attentionMass, victim * nkv, nkv);
+            slotPositions[victim] = slotPositions[last];
+        }
+        movedFrom = last;
+        movedTo = victim;
+        rowMoves++;
+        length--;
+        droppedPositions++;
+    }
+
+    /**
+     * Drops block {@code index} and moves the later block pointers (and their rotary
+     * groups) down one block. Block contents are left as they are.
+     */
+    private void evictBlock(int index) {
+        int blocks = blocksFor(length);
+        if (blockTable[index] != null) {
+            allocator.release(blockTable[index]);
+            heldBlocks--;
+        }
+        int group = blockGroups[index];
+        System.arraycopy(blockTable, index + 1, blockTable, index, blocks - 1 - index);
+        System.arraycopy(blockGroups, index + 1, blockGroups, index, blocks - 1 - index);
+        blockTable[blocks - 1] = null;
+        if (index == blocks - 1 || blockGroups[index] != group) {
+            // That was the group's last block; later groups move down one
+            System.arraycopy(groupBases, group + 1, groupBases, group, groupCount - group - 1);
+            groupCount--;
+            for (int i = index; i < blocks - 1; i++) {
+                blockGroups[i]--;
+            }
+        }
+        length -= BLOCK_POSITIONS;
+        droppedPositions += BLOCK_POSITIONS;
+        evictedBlocks++;
+        if (droppedPositions - rotaryBase > maxBaseLag) {
+            rotaryBase = droppedPositions;
+        }
+    }
+
+    /**
+     * Puts a block newly placed at window index {@code index} into the rotary group of
+     * the current base, opening a group if the base moved since the previous block.
+     */
+    private void trackRotaryGroup(int index) {
+        if (index < windowPolicy.sinkBlocks()) {
+            blockGroups[index] = 0;
+            return;
+        }
+        if (groupCount == 1 || groupBases[groupCount - 1] != rotaryBase) {
+            groupBases[groupCount++] = rotaryBase;
+        }
+        blockGroups[index] = groupCount - 1;
+    }
+
+    /**
+     * Sequence positions evicted (by the sliding window or heavy-hitter policy) since the
+     * last reset. The next position appended goes to slot {@code position - droppedPositions}.
+     */
+    public int droppedPositions() {
+        return droppedPositions;
+    }
+
+    /**
+     * Blocks evicted by the sliding window over the cache's lifetime.
+     */
+    public long evictedBlocks() {
+        return evictedBlocks;
+    }
+
+    /**
+     * Heavy-hitter evictions over the cache's lifetime. Each one copies slot
+     * {@link #movedFrom()}, the last, into the evicted slot {@link #movedTo()} (the two
+     * are equal when the last slot itself was evicted) and shortens the cache to end
+     * before {@code movedFrom()}.
+     */
+    public long rowMoves() {
+        return rowMoves;
+    }
+
+    /** Slot the latest heavy-hitter eviction moved a row out of. */
+    public int movedFrom() {
+        return movedFrom;
+    }
+
+    /** Slot the latest heavy-hitter eviction moved a row into. */
+    public int movedTo() {
+        return movedTo;
+    }
+
+    /**
+     * Number of blocks currently held in the spill store rather than the pool.
+     */
+    public int spilledBlocks() {
+        return spilledBlocks;
+    }
+
+    /**
+     * Stores the K and V rows [kvDim] for position {@code pos}, taking a block from the
+     * pool if needed and un-sharing the block if another cache references it.
+     */
+    public void write(int pos, float[] k, int kOffset, float[] v, int vOffset) {
+        Objects.checkIndex(pos, capacity);
+        int index = pos >>> KVBlock.SHIFT;
+        KVBlock block = promote(index);
+        if (block == null) {
+            block = allocator.allocate();
+            blockTable[index] = block;
+            heldBlocks++;
+            if (spillStore != null) {
+                spill(index - tierPolicy.hotBlocks());
+            }
+            if (windowPolicy != null) {
+                trackRotaryGroup(index);
+            }
+        } else {
+            block = allocator.copyOnWrite(block);
+            blockTable[index] = block;
+        }
+        if (pos < length) {
+            epoch++;
+        }
+        block.write(pos & KVBlock.MASK, k, kOffset, v, vOffset);
+        length = Math.max(length, pos + 1);
+    }
+
+    /**
+     * Returns every block to the pool and empties the cache.
+     */
+    public void reset() {
+        for (int i = 0; i < blockTable.length; i++) {
+            if (blockTable[i] != null) {
+                allocator.release(blockTable[i]);
+                blockTable[i] = null;
+            }
+        }
+        if (spilledBlocks > 0) {
+            for (int i = 0; i < spillSlots.length; i++) {
+                if (spillSlots[i] >= 0) {
+                    spillStore.free(spillSlots[i]);
+                    spillSlots[i] = -1;
+                }
+            }
+            spilledBlocks = 0;
+        }
+        if (fillIndex != null) {
+            Arrays.fill(fillIndex, -1);
+        }
+        if (attentionMass != null) {
+            Arrays.fill(attentionMass, 0.0f);
+        }
+        heldBlocks = 0;
+        length = 0;
+        droppedPositions = 0;
+        rotaryBase = 0;
+        groupCount = 1;
+        epoch++;
+    }
+
+    /**
+     * Replaces this cache's contents with positions [0, positions) of {@code source},
+     * by reference: the covering blocks are retained, not copied. Either cache copies
+     * a shared block before writing into it.
+     */
+    public void shareFrom(KVCache source, int positions) {
+        if (source == this) {
+            throw new IllegalArgumentException("A cache cannot share its own blocks");
+        }
+        if (source.allocator != allocator) {
+            throw new IllegalArgumentException("Caches must share a block allocator");
+        }
+        if (positions < 0 || positions > source.length || positions > positionLimit()) {
+            throw new IllegalArgumentException("Cannot share " + positions + " positions from a cache of length "
+                    + source.length);
+        }
+        int blocks = blocksFor(positions);
+        for (int i = 0; i < blocks; i++) {
+            source.promote(i);
+        }
+        adopt(Arrays.asList(source.blockTable).subList(0, blocks), positions);
+        droppedPositions = source.droppedPositions;
+        if (windowPolicy != null && source.windowPolicy != null) {
+            rotaryBase = source.rotaryBase;
+            groupCount = source.groupCount;
+            System.arraycopy(source.groupBases, 0, groupBases, 0, groupCount);
+            System.arraycopy(source.blockGroups, 0, blockGroups, 0, blocks);
+        }
+    }
+
+    /**
+     * Replaces this cache's contents with full blocks held elsewhere (e.g. by a
+     * {@link PrefixCache}), by reference: positions [0, blocks.size() * BLOCK_POSITIONS).
+     */
+    void shareBlocks(List<KVBlock> blocks) {
+        if (blocks.size() > blockTable.length
+                || (positionLimit() < capacity && blocks.size() * BLOCK_POSITIONS > positionLimit())) {
+            throw new IllegalArgumentException("Cannot share " + blocks.size() + " blocks into a cache holding at most "
+                    + positionLimit() + " positions");
+        }
+        adopt(blocks, Math.min(blocks.size() * BLOCK_POSITIONS, capacity));
+    }
+
+    private void adopt(List<KVBlock> blocks, int positions) {
+        reset();
+        for (int i = 0; i < blocks.size(); i++) {
+            KVBlock block = blocks.get(i);
+            allocator.retain(block);
+            blockTable[i] = block;
+        }
+        heldBlocks = blocks.size();
+        length = positions;
+        initSlotPositions();
+        initRotaryGroups();
+    }
+
+    private void initRotaryGroups() {
+        if (windowPolicy != null) {
+            for (int i = 0; i < blocksFor(length); i++) {
+                trackRotaryGroup(i);
+            }
+        }
+    }
+
+    private void initSlotPositions() {
+        if (slotPositions != null) {
+            for (int slot = 0; slot < length; slot++) {
+                slotPositions[slot] = slot;
+            }
+        }
+    }
+
+    /**
+     * Moves block {@code index} to the spill store if the policy allows: outside the
+     * pinned prefix, not shared with another cache, and the store has room.
+     */
+    private void spill(int index) {
+        if (index < tierPolicy.pinnedBlocks()) {
+            return;
+        }
+        KVBlock block = blockTable[index];
+        if (block == null || allocator.isShared(block)) {
+            return;
+        }
+        int slot = spillStore.write(block, block.filled);
+        if (slot < 0) {
+            return;
+        }
+        spillSlots[index] = slot;
+        blockTable[index] = null;
+        allocator.release(block);
+        heldBlocks--;
+        spilledBlocks++;
+    }
+
+    /**
+     * Returns block {@code index} from the pool, first bringing it back from the spill
+     * store if it was spilled (for writes and sharing, which need the real block).
+     */
+    private KVBlock promote(int index) {
+        KVBlock block = blockTable[index];
+        if (block != null || spilledBlocks == 0 || spillSlots[index] < 0) {
+            return block;
+        }
+        block = allocator.allocate();
+        spillStore.read(spillSlots[index], block, filledOf(index));
+        spillStore.free(spillSlots[index]);
+        spillSlots[index] = -1;
+        spilledBlocks--;
+        for (int i = 0; i < fillIndex.length; i++) {
+            if (fillIndex[i] == index) {
+                fillIndex[i] = -1;
+            }
+        }
+        blockTable[index] = block;
+        heldBlocks++;
+        return block;
+    }
+
+    /**
+     * Block {@code index} for reading: the pool block, or a staging copy of a spilled block.
+     */
+    private KVBlock resident(int index) {
+        KVBlock block = blockTable[index];
+        if (block != null || spilledBlocks == 0 || spillSlots[index] < 0) {
+            return block;
+        }
+        for (int i = 0; i < fillIndex.length; i++) {
+            if (fillIndex[i] == index) {
+                return fillBuffers[i];
+            }
+        }
+        int buffer = fillNext;
+        fillNext = (fillNext + 1) % fillBuffers.length;
+        spillStore.read(spillSlots[index], fillBuffers[buffer], filledOf(index));
+        fillIndex[buffer] = index;
+        return fillBuffers[buffer];
+    }
+
+    private int filledOf(int index) {
+        return Math.min(BLOCK_POSITIONS, length - index * BLOCK_POSITIONS);
+    }
+
+    /**
+     * Block holding {@code pos} as a pool block (never a staging copy), for callers
+     * that keep a reference to it such as {@link PrefixCache}.
+     */
+    KVBlock ownedBlock(int pos) {
+        return promote(pos >>> KVBlock.SHIFT);
+    }
+
+    /**
+     * Bytes {@link #save} writes for {@code positions} positions (whole blocks).
+     */
+    public long savedBytes(int positions) {
+        return (long) blocksFor(positions) * allocator.blockBytes();
+    }
+
+    /**
+     * Writes the blocks covering positions [0, positions) to {@code dst} at {@code offset},
+     * back to back in block-table order.
+     *
+     * @return bytes written
+     */
+    public long save(MemorySegment dst, long offset, int positions) {
+        if (positions < 0 || positions > length) {
+            throw new IllegalArgumentException("Cannot save " + positions + " positions from a cache of length " + length);
+        }
+        long blockBytes = allocator.blockBytes();
+        int blocks = blocksFor(positions);
+        for (int i = 0; i < blocks; i++) {
+            resident(i).save(dst, offset + i * blockBytes);
+        }
+        return blocks * blockBytes;
+    }
+
+    /**
+     * Replaces this cache's contents with positions [0, positions) written by {@link #save}
+     * (from a cache of the same mode and shape), taking fresh blocks from the pool.
+     *
+     * @return bytes read
+     */
+    public long load(MemorySegment src, long offset, int positions) {
+        if (positions < 0 || positions > positionLimit()) {
+            throw new IllegalArgumentException("Cannot load " + positions + " positions into a cache holding at most "
+                    + positionLimit());
+        }
+        reset();
+        long blockBytes = allocator.blockBytes();
+        int blocks = blocksFor(positions);
+        for (int i = 0; i < blocks; i++) {
+            KVBlock block = allocator.allocate();
+            block.load(src, offset + i * blockBytes, Math.min(BLOCK_POSITIONS, positions - i * BLOCK_POSITIONS));
+            blockTable[i] = block;
+            heldBlocks++;
+        }
+        length = positions;
+        initSlotPositions();
+        initRotaryGroups();
+        if (spillStore != null) {
+            for (int i = 0; i < blocks - tierPolicy.hotBlocks(); i++) {
+                spill(i);
+            }
+        }
+        return blocks * blockBytes;
+    }
+
+    private static int blocksFor(int positions) {
+        return (positions + BLOCK_POSITIONS - 1) / BLOCK_POSITIONS;
+    }
+
+    /**
+     * Block holding position {@code pos} (for kernels that read block storage directly).
+     */
+    public KVBlock block(int pos) {
+        return resident(pos >>> KVBlock.SHIFT);
+    }
+
+    /**
+     * Offset of position {@code pos}'s row inside its block.
+     */
+    public int rowOffset(int pos) {
+        return (pos & KVBlock.MASK) * kvDim;
+    }
+
+    /**
+     * Returns q[qOffset .. qOffset + headDim) · K[pos, kvHead].
+     */
+    public float dotKey(int pos, int kvHead, float[] q, int qOffset) {
+        return resident(pos >>> KVBlock.SHIFT).dotKey(pos & KVBlock.MASK, kvHead, q, qOffset);
+    }
+
+    /**
+     * Accumulates acc[accOffset .. accOffset + headDim) += weight * V[pos, kvHead].
+     */
+    public void addValue(int pos, int kvHead, float weight, float[] acc, int accOffset) {
+        resident(pos >>> KVBlock.SHIFT).addValue(pos & KVBlock.MASK, kvHead, weight, acc, accOffset);
+    }
+
+    /**
+     * Copies the full key row [kvDim] for {@code pos} into {@code dst} as float.
+     */
+    public void readKey(int pos, float[] dst, int dstOffset) {
+        resident(pos >>> KVBlock.SHIFT).readKey(pos & KVBlock.MASK, dst, dstOffset);
+    }
+
+    /**
+     * Copies the full value row [kvDim] for {@code pos} into {@code dst} as float.
+     */
+    public void readValue(int pos, float[] dst, int dstOffset) {
+        resident(pos >>> KVBlock.SHIFT).readValue(pos & KVBlock.MASK, dst, dstOffset);
+    }
+
+    /**
+     * Number of pool blocks this cache references (shared blocks included, spilled blocks not).
+     */
+    public int heldBlocks() {
+        return heldBlocks;
+    }
+
+    /**
+     * Bytes of the spill store held by this cache's spilled blocks.
+     */
+    public long spilledBytes() {
+        return spillStore == null ? 0 : spilledBlocks * spillStore.slotBytes();
+    }
+
+    /**
+     * Bytes of the pool blocks this cache references (shared blocks counted in full,
+     * spilled blocks not counted).
+     */
+    public long bytes() {
+        return heldBlocks * allocator.blockBytes();
+    }
+
+    /**
+     * Bytes the cache would reference with every position written.
+     */
+    public long maxBytes() {
+        return blockTable.length * allocator.blockBytes();
+    }
+}
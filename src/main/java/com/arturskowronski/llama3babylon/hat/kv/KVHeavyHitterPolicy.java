@@ -0,0 +1,29 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+/**
+ * Heavy-hitter eviction for a {@link KVCache} (H2O).
+ *
+ * Attention kernels add every softmax weight they compute to a per-position,
+ * per-KV-head table in the cache. Once the cache holds {@code budgetPositions}
+ * positions, each new position evicts the one with the least accumulated attention
+ * (summed over KV heads), except the {@code recentPositions} newest positions, which
+ * have not had the chance to collect attention yet. Memory per layer is then fixed at
+ * {@code budgetPositions} rows, at the cost of forgetting the positions the model
+ * looked at least.
+ *
+ * Unlike {@link KVWindowPolicy}, keys keep the RoPE rotation of their original
+ * position (attention does not depend on row order), so sequences are still limited
+ * to the model's context length.
+ *
+ * @param budgetPositions positions kept per layer cache (at least 2)
+ * @param recentPositions newest positions never evicted (below the budget)
+ */
+public record KVHeavyHitterPolicy(int budgetPositions, int recentPositions) {
+
+    public KVHeavyHitterPolicy {
+        if (budgetPositions < 2 || recentPositions < 0 || recentPositions >= budgetPositions) {
+            throw new IllegalArgumentException("Invalid heavy-hitter policy: budgetPositions=" + budgetPositions
+                    + ", recentPositions=" + recentPositions);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * File-backed tier for cold {@link KVBlock}s, shared by every tiered cache on a node.
+ *
+ * The store is a temporary file mapped as {@link MemorySegment}s in chunks of
+ * {@link #CHUNK_SLOTS} fixed-size slots; the file grows a chunk at a time up to a
+ * byte budget, and freed slots are reused. The OS pages the mapping in and out, so
+ * spilled positions cost disk (or page cache) rather than heap.
+ *
+ * Blocks may be spilled in a narrower format than they use in memory: with an F16 or
+ * Q8 spill mode, an F32 block is converted row by row on the way out and widened again
+ * on the way back. With the same mode, a spill or fill is one bulk copy per array.
+ *
+ * All methods are thread-safe. The file is deleted on {@link #close()}.
+ */
+public final class KVSpillStore implements AutoCloseable {
+
+    /** Slots mapped at a time when the file grows. */
+    public static final int CHUNK_SLOTS = 64;
+
+    private final KvCacheMode mode;
+    private final int numKvHeads;
+    private final int headDim;
+    private final long slotBytes;
+    private final int maxSlots;
+
+    private final FileChannel channel;
+    private final Arena arena = Arena.ofShared();
+    private final List<MemorySegment> chunks = new ArrayList<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int nextSlot;
+    private int slotsInUse;
+
+    // Staging for mode conversion
+    private final KVBlock scratch;
+    private final float[] keyRow;
+    private final float[] valueRow;
+
+    private long spills;
+    private long fills;
+    private long rejected;
+    private long bytesSpilled;
+    private long bytesFilled;
+
+    /**
+     * Creates a store backed by a new temporary file in {@code directory}.
+     *
+     * @param directory where to create the spill file
+     * @param mode storage format of spilled blocks
+     * @param numKvHeads KV heads per block (must match the caches)
+     * @param headDim head dimension (must match the caches)
+     * @param maxBytes file size budget; spills beyond it are refused and the block stays in memory
+     */
+    public KVSpillStore(Path directory, KvCacheMode mode, int numKvHeads, int headDim, long maxBytes) throws IOException {
+        this.mode = mode;
+        this.numKvHeads = numKvHeads;
+        this.headDim = headDim;
+        this.slotBytes = KVBlock.bytes(mode, numKvHeads, headDim);
+        this.maxSlots = (int) Math.min(maxBytes / slotBytes, Integer.MAX_VALUE);
+        Path file = Files.createTempFile(directory, "kv-spill-", ".bin");
+        this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        this.scratch = KVBlock.create(mode, numKvHeads, headDim);
+        this.keyRow = new float[numKvHeads * headDim];
+        this.valueRow = new float[numKvHeads * headDim];
+    }
+
+    public KvCacheMode mode() {
+        return mode;
+    }
+
+    public int numKvHeads() {
+        return numKvHeads;
+    }
+
+    public int headDim() {
+        return headDim;
+    }
+
+    /** Bytes of one spilled block. */
+    public long slotBytes() {
+        return slotBytes;
+    }
+
+    /**
+     * Copies slots [0, filled) of {@code block} into a free slot.
+     *
+     * @return the slot, or -1 if the store is at its byte budget
+     */
+    synchronized int write(KVBlock block, int filled) {
+        Integer free = freeSlots.poll();
+        int slot;
+        if (free != null) {
+            slot = free;
+        } else if (nextSlot < maxSlots) {
+            slot = nextSlot++;
+        } else {
+            rejected++;
+            return -1;
+        }
+        MemorySegment chunk = chunk(slot);
+        long offset = (slot % CHUNK_SLOTS) * slotBytes;
+        if (block.mode() == mode) {
+            block.save(chunk, offset);
+        } else {
+            for (int s = 0; s < filled; s++) {
+                block.readKey(s, keyRow, 0);
+                block.readValue(s, valueRow, 0);
+                scratch.store(s, keyRow, 0, valueRow, 0);
+            }
+            scratch.save(chunk, offset);
+        }
+        slotsInUse++;
+        spills++;
+        bytesSpilled += slotBytes;
+        return slot;
+    }
+
+    /**
+     * Replaces {@code dst}'s contents with the block in {@code slot}; slots [0, filled) hold data.
+     */
+    synchronized void read(int slot, KVBlock dst, int filled) {
+        MemorySegment chunk = chunks.get(slot / CHUNK_SLOTS);
+        long offset = (slot % CHUNK_SLOTS) * slotBytes;
+        if (dst.mode() == mode) {
+            dst.load(chunk, offset, filled);
+        } else {
+            scratch.load(chunk, offset, filled);
+            for (int s = 0; s < filled; s++) {
+                scratch.readKey(s, keyRow, 0);
+                scratch.readValue(s, valueRow, 0);
+                dst.store(s, keyRow, 0, valueRow, 0);
+            }
+            dst.filled = filled;
+        }
+        fills++;
+        bytesFilled += slotBytes;
+    }
+
+    /**
+     * Returns a slot for reuse.
+     */
+    synchronized void free(int slot) {
+        freeSlots.push(slot);
+        slotsInUse--;
+    }
+
+    private MemorySegment chunk(int slot) {
+        int index = slot / CHUNK_SLOTS;
+        try {
+            while (chunks.size() <= index) {
+                long chunkBytes = CHUNK_SLOTS * slotBytes;
+                chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, chunks.size() * chunkBytes, chunkBytes, arena));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot grow KV spill file", e);
+        }
+        return chunks.get(index);
+    }
+
+    /** Blocks written to the store. */
+    public synchronized long spills() {
+        return spills;
+    }
+
+    /** Blocks read back from the store. */
+    public synchronized long fills() {
+        return fills;
+    }
+
+    /** Spills refused because the store was at its byte budget. */
+    public synchronized long rejected() {
+        return rejected;
+    }
+
+    public synchronized long bytesSpilled() {
+        return bytesSpilled;
+    }
+
+    public synchronized long bytesFilled() {
+        return bytesFilled;
+    }
+
+    /** Slots currently holding a spilled block. */
+    public synchronized int slotsInUse() {
+        return slotsInUse;
+    }
+
+    /** Bytes of the spill file mapped so far. */
+    public synchronized long fileBytes() {
+        return chunks.size() * CHUNK_SLOTS * slotBytes;
+    }
+
+    /** Byte budget of the spill file. */
+    public long maxBytes() {
+        return maxSlots * slotBytes;
+    }
+
+    /**
+     * One-line summary for logs.
+     */
+    public synchronized String stats() {
+        return String.format("KV spill store (%s): %d blocks (%d KB) of %d KB, file %d KB, "
+                        + "%d spills (%d KB), %d fills (%d KB), %d rejected",
+                mode, slotsInUse, slotsInUse * slotBytes / 1024, maxBytes() / 1024, fileBytes() / 1024,
+                spills, bytesSpilled / 1024, fills, bytesFilled / 1024, rejected);
+    }
+
+    /**
+     * Unmaps and deletes the spill file. Caches still referencing spilled blocks must not be used afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        arena.close();
+        channel.close();
+    }
+}
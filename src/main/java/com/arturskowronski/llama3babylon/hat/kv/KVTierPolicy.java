@@ -0,0 +1,37 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+/**
+ * Which blocks of a tiered {@link KVCache} stay in memory.
+ *
+ * The newest {@code hotBlocks} blocks (the recent window, which every decode step
+ * writes and attends to) and the first {@code pinnedBlocks} blocks (the start of the
+ * sequence, e.g. a system prompt or attention sink) are kept in the block pool.
+ * Everything in between is spilled to a {@link KVSpillStore} once it falls out of
+ * the recent window, and read back through {@code fillBlocks} staging blocks when
+ * attention reaches it.
+ *
+ * @param hotBlocks newest blocks kept in memory (at least 1, the block being written)
+ * @param pinnedBlocks leading blocks never spilled
+ * @param fillBlocks staging blocks for spilled blocks being read
+ */
+public record KVTierPolicy(int hotBlocks, int pinnedBlocks, int fillBlocks) {
+
+    public KVTierPolicy {
+        if (hotBlocks < 1 || pinnedBlocks < 0 || fillBlocks < 1) {
+            throw new IllegalArgumentException("Invalid KV tier policy: hotBlocks=" + hotBlocks
+                    + ", pinnedBlocks=" + pinnedBlocks + ", fillBlocks=" + fillBlocks);
+        }
+    }
+
+    /**
+     * Policy that keeps about {@code hotBytes} of recent positions per cache in memory.
+     *
+     * @param hotBytes in-memory budget per layer cache
+     * @param allocator pool the caches draw from (sets the block size)
+     * @param pinnedBlocks leading blocks never spilled
+     */
+    public static KVTierPolicy ofHotBytes(long hotBytes, KVBlockAllocator allocator, int pinnedBlocks) {
+        long blocks = Math.max(1, hotBytes / allocator.blockBytes());
+        return new KVTierPolicy((int) Math.min(blocks, Integer.MAX_VALUE), pinnedBlocks, 2);
+    }
+}
@@ -0,0 +1,46 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+/**
+ * Attention-sink sliding window for a {@link KVCache} (StreamingLLM).
+ *
+ * The cache keeps the first {@code sinkBlocks} blocks of the sequence, which soak up
+ * attention mass the model puts on the first tokens, plus the {@code windowBlocks}
+ * most recent blocks. When a new position would not fit, the oldest block after the
+ * sinks is dropped and the later blocks move down one block. Their keys stay as they
+ * were written; attention rotates the query per rotary group instead (see
+ * {@link KVCache#rotaryGroups}), so RoPE reflects cache slots rather than sequence
+ * positions. The cache then never holds more than {@link #positions()} positions,
+ * however long the stream runs.
+ *
+ * Eviction works on whole blocks, so between {@code (windowBlocks - 1) * POSITIONS + 1}
+ * and {@code windowBlocks * POSITIONS} recent positions are visible at any time.
+ *
+ * @param sinkBlocks leading blocks never evicted (0 for a plain sliding window)
+ * @param windowBlocks recent blocks kept (at least 1, the block being written)
+ */
+public record KVWindowPolicy(int sinkBlocks, int windowBlocks) {
+
+    public KVWindowPolicy {
+        if (sinkBlocks < 0 || windowBlocks < 1) {
+            throw new IllegalArgumentException("Invalid KV window policy: sinkBlocks=" + sinkBlocks
+                    + ", windowBlocks=" + windowBlocks);
+        }
+    }
+
+    /**
+     * Policy for {@code sinkTokens} leading and about {@code windowTokens} recent
+     * positions, each rounded up to whole blocks.
+     */
+    public static KVWindowPolicy ofTokens(int sinkTokens, int windowTokens) {
+        return new KVWindowPolicy(blocks(sinkTokens), Math.max(1, blocks(windowTokens)));
+    }
+
+    private static int blocks(int tokens) {
+        return (tokens + KVBlock.POSITIONS - 1) / KVBlock.POSITIONS;
+    }
+
+    /** Maximum number of positions a windowed cache holds. */
+    public int positions() {
+        return (sinkBlocks + windowBlocks) * KVBlock.POSITIONS;
+    }
+}
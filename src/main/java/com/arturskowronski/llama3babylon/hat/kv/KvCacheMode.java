@@ -0,0 +1,77 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+/**
+ * Controls how K and V rows are stored in the per-layer KV cache.
+ *
+ * <p>Attention is memory-bound at long contexts: every decode step reads the
+ * whole cache once. Narrower storage halves or quarters both the per-session
+ * footprint and that traffic, at a small accuracy cost.
+ * <pre>
+ *   Mode | Storage            | Bytes / value | Error
+ *   -----|--------------------|---------------|-----------------------------
+ *   F32  | float[]            | 4             | none                (default)
+ *   F16  | short[] (IEEE fp16)| 2             | ~1e-3 relative
+ *   Q8   | byte[] + scales    | ~1            | absmax / 254 per head row
+ * </pre>
+ *
+ * <p>Switchable at runtime via env var or system property:
+ * <pre>
+ *   KV_CACHE_MODE=Q8 ./gradlew run
+ *   -Dkv.cache.mode=F16
+ * </pre>
+ */
+public enum KvCacheMode {
+
+    /** Full-precision rows, bit-identical to the uncompressed cache. Default. */
+    F32("float[]", "1x mem, exact"),
+
+    /** Half-precision rows, converted back to float inside the attention dot products. */
+    F16("short[]", "1/2 mem, fp16 rounding"),
+
+    /** Symmetric int8 rows with one float scale per position and KV head. */
+    Q8("byte[] + scales", "~1/4 mem, int8 per-head scales");
+
+    private static final String ENV_KEY = "KV_CACHE_MODE";
+
+    private final String storage;
+    private final String summary;
+
+    KvCacheMode(String storage, String summary) {
+        this.storage = storage;
+        this.summary = summary;
+    }
+
+    /** Backing storage type (for display/logging). */
+    public String storage() { return storage; }
+
+    /** One-line human summary (for display/logging). */
+    public String summary() { return summary; }
+
+    /**
+     * Resolve from env var {@code KV_CACHE_MODE} or system property
+     * {@code kv.cache.mode}. Falls back to {@link #F32} if neither is set.
+     *
+     * <p>Accepts: {@code F32}, {@code F16}, {@code Q8} (also {@code INT8}). Case-insensitive.
+     */
+    public static KvCacheMode fromEnv() {
+        String val = System.getenv(ENV_KEY);
+        if (val == null || val.isBlank()) {
+            val = System.getProperty("kv.cache.mode");
+        }
+        return (val != null && !val.isBlank()) ? fromString(val) : F32;
+    }
+
+    /**
+     * Parse a mode name (case-insensitive).
+     * @throws IllegalArgumentException on unknown value
+     */
+    public static KvCacheMode fromString(String s) {
+        return switch (s.strip().toUpperCase()) {
+            case "F32" -> F32;
+            case "F16" -> F16;
+            case "Q8", "INT8" -> Q8;
+            default -> throw new IllegalArgumentException(
+                    "Unknown KV cache mode: '" + s + "'. Valid: F32, F16, Q8");
+        };
+    }
+}
@@ -0,0 +1,282 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cross-request cache of prompt prefixes, so requests sharing a system prompt,
+ * few-shot examples or tool definitions skip prefill for the part they have in common.
+ *
+ * The cache is a radix tree over token sequences whose edges are one
+ * {@link KVBlock#POSITIONS}-token chunk each. A node holds, for every layer, the
+ * {@link KVBlock} with the K/V rows of its chunk; the path from the root spells the
+ * prefix those rows were computed for. Only full blocks are cached, so a node's rows
+ * never change and can be referenced by any number of caches at once.
+ *
+ * <pre>
+ *   int cached = prefixCache.lookup(prompt, prompt.length - 1, caches); // shares blocks into caches
+ *   for (int pos = cached; pos &lt; prompt.length; pos++) forward(prompt[pos], pos);
+ *   prefixCache.insert(prompt, prompt.length, caches);                  // publishes new full blocks
+ * </pre>
+ *
+ * Blocks are shared by reference count through the {@link KVBlockAllocator}: a
+ * lookup costs no copying, and a cache that writes into a shared block gets a private
+ * copy (which never happens on the usual path, because prefill resumes at a block
+ * boundary). The tree holds its own reference to every cached block and is bounded
+ * by a byte budget; the least recently used leaves are evicted first. An evicted
+ * block stays alive until the caches still using it let go.
+ *
+ * All methods are thread-safe.
+ */
+public final class PrefixCache {
+
+    private final KVBlockAllocator allocator;
+    private final int layers;
+    private final long byteBudget;
+    private final long nodeBytes;
+
+    private final Node root = new Node(null, null, null);
+    // Access-ordered; every node is touched after its descendants, so the eldest entry is a leaf
+    private final LinkedHashMap<Node, Node> lru = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long lookups;
+    private long hits;
+    private long lookupTokens;
+    private long savedTokens;
+    private long evictions;
+
+    /**
+     * @param allocator block pool shared with the caches this prefix cache serves
+     * @param layers number of per-layer caches in each lookup and insert
+     * @param byteBudget maximum bytes of blocks referenced by the tree
+     */
+    public PrefixCache(KVBlockAllocator allocator, int layers, long byteBudget) {
+        if (layers <= 0 || byteBudget < 0) {
+            throw new IllegalArgumentException("Invalid prefix cache: layers=" + layers + ", byteBudget=" + byteBudget);
+        }
+        this.allocator = allocator;
+        this.layers = layers;
+        this.byteBudget = byteBudget;
+        this.nodeBytes = layers * allocator.blockBytes();
+    }
+
+    public KVBlockAllocator allocator() {
+        return allocator;
+    }
+
+    /**
+     * Finds the longest cached prefix of {@code tokens[0, maxPositions)} and makes
+     * {@code caches} reference its blocks, replacing whatever they held.
+     *
+     * @param tokens prompt tokens
+     * @param maxPositions longest prefix worth reusing (callers pass one less than the
+     *                     prompt length, since the last prompt token must run to produce logits)
+     * @param caches per-layer caches to fill
+     * @return number of positions now held by {@code caches} (a multiple of {@link KVBlock#POSITIONS})
+     */
+    public synchronized int lookup(int[] tokens, int maxPositions, KVCache[] caches) {
+        checkCaches(caches);
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        int matched = 0;
+        int limit = Math.min(maxPositions, tokens.length);
+        while (matched + KVBlock.POSITIONS <= limit) {
+            Node child = node.children.get(new Chunk(tokens, matched));
+            if (child == null) {
+                break;
+            }
+            path.add(child);
+            node = child;
+            matched += KVBlock.POSITIONS;
+        }
+        touch(path);
+
+        List<KVBlock> blocks = new ArrayList<>(path.size());
+        for (int l = 0; l < layers; l++) {
+            blocks.clear();
+            for (Node n : path) {
+                blocks.add(n.blocks[l]);
+            }
+            caches[l].shareBlocks(blocks);
+        }
+
+        lookups++;
+        lookupTokens += Math.max(limit, 0);
+        if (matched > 0) {
+            hits++;
+            savedTokens += matched;
+        }
+        return matched;
+    }
+
+    /**
+     * Publishes the full blocks of {@code tokens[0, positions)} held by {@code caches},
+     * then evicts least recently used prefixes until the tree fits its byte budget.
+     *
+     * @param tokens tokens the caches were filled with, starting at position 0
+     * @param positions number of leading positions to consider (only whole blocks are cached)
+     * @param caches per-layer caches holding at least {@code positions} positions
+     */
+    public synchronized void insert(int[] tokens, int positions, KVCache[] caches) {
+        checkCaches(caches);
+        int limit = Math.min(positions, tokens.length);
+        for (KVCache cache : caches) {
+            if (cache.length() < limit) {
+                throw new IllegalArgumentException("Cache holds " + cache.length() + " positions, expected " + limit);
+            }
+        }
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        for (int start = 0; start + KVBlock.POSITIONS <= limit; start += KVBlock.POSITIONS) {
+            Chunk chunk = new Chunk(tokens, start);
+            Node child = node.children.get(chunk);
+            if (child == null) {
+                KVBlock[] blocks = new KVBlock[layers];
+                for (int l = 0; l < layers; l++) {
+                    blocks[l] = caches[l].ownedBlock(start);
+                    allocator.retain(blocks[l]);
+                }
+                child = new Node(node, chunk, blocks);
+                node.children.put(chunk, child);
+                lru.put(child, child);
+            }
+            path.add(child);
+            node = child;
+        }
+        touch(path);
+        evictToBudget();
+    }
+
+    /**
+     * Drops every cached prefix.
+     */
+    public synchronized void clear() {
+        while (!lru.isEmpty()) {
+            evictEldest();
+        }
+    }
+
+    /** Marks a root-to-leaf path as used, deepest node first so ancestors stay newer. */
+    private void touch(List<Node> path) {
+        for (int i = path.size() - 1; i >= 0; i--) {
+            lru.get(path.get(i));
+        }
+    }
+
+    private void evictToBudget() {
+        while (!lru.isEmpty() && (long) lru.size() * nodeBytes > byteBudget) {
+            evictEldest();
+        }
+    }
+
+    private void evictEldest() {
+        Iterator<Node> it = lru.keySet().iterator();
+        Node victim = it.next();
+        it.remove();
+        victim.parent.children.remove(victim.chunk);
+        for (KVBlock block : victim.blocks) {
+            allocator.release(block);
+        }
+        evictions++;
+    }
+
+    private void checkCaches(KVCache[] caches) {
+        if (caches.length != layers) {
+            throw new IllegalArgumentException("Expected " + layers + " caches, got " + caches.length);
+        }
+        for (KVCache cache : caches) {
+            if (cache.allocator() != allocator) {
+                throw new IllegalArgumentException("Caches must share the prefix cache's block allocator");
+            }
+        }
+    }
+
+    /** Number of lookups so far. */
+    public synchronized long lookups() {
+        return lookups;
+    }
+
+    /** Lookups that reused at least one block. */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /** Fraction of lookups that reused at least one block. */
+    public synchronized double hitRatio() {
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    /** Prompt positions whose prefill was skipped. */
+    public synchronized long savedTokens() {
+        return savedTokens;
+    }
+
+    /** Fraction of looked-up prompt positions served from the cache. */
+    public synchronized double tokenHitRatio() {
+        return lookupTokens == 0 ? 0.0 : (double) savedTokens / lookupTokens;
+    }
+
+    /** Nodes (cached prefix blocks per layer set) evicted to stay within the budget. */
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /** Number of cached chunks (each one block per layer). */
+    public synchronized int cachedChunks() {
+        return lru.size();
+    }
+
+    /** Bytes of blocks referenced by the tree. */
+    public synchronized long bytes() {
+        return lru.size() * nodeBytes;
+    }
+
+    public long byteBudget() {
+        return byteBudget;
+    }
+
+    /**
+     * One-line summary for logs.
+     */
+    public synchronized String stats() {
+        return String.format("Prefix cache: %d chunks, %d KB of %d KB, %d lookups, hit ratio %.1f%%, "
+                        + "%d tokens saved (%.1f%%), %d evictions",
+                lru.size(), bytes() / 1024, byteBudget / 1024, lookups, hitRatio() * 100,
+                savedTokens, tokenHitRatio() * 100, evictions);
+    }
+
+    private static final class Node {
+        final Node parent;
+        final Chunk chunk;
+        final KVBlock[] blocks; // one per layer
+        final Map<Chunk, Node> children = new HashMap<>();
+
+        Node(Node parent, Chunk chunk, KVBlock[] blocks) {
+            this.parent = parent;
+            this.chunk = chunk;
+            this.blocks = blocks;
+        }
+    }
+
+    /** Edge label: the tokens of one block. */
+    private record Chunk(int[] tokens) {
+        Chunk(int[] source, int start) {
+            this(Arrays.copyOfRange(source, start, start + KVBlock.POSITIONS));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Chunk c && Arrays.equals(tokens, c.tokens);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(tokens);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.arturskowronski.llama3babylon.hat.sampling;
+
+import java.util.Map;
+
+/**
+ * Fixed per-token logit offsets, like OpenAI's {@code logit_bias}.
+ *
+ * The biased tokens and their offsets are kept in two primitive arrays, so a step adds
+ * one offset per biased token and touches nothing else. A large negative bias bans a
+ * token; a large positive one all but forces it. Holds no per-sequence state, so one
+ * instance can serve any number of samplers.
+ */
+public final class LogitBias implements LogitsProcessor {
+
+    private final int[] tokens;
+    private final float[] biases;
+
+    /**
+     * @param tokens token IDs to bias
+     * @param biases offset added to each token's logit
+     */
+    public LogitBias(int[] tokens, float[] biases) {
+        if (tokens.length != biases.length) {
+            throw new IllegalArgumentException("Got " + tokens.length + " tokens but " + biases.length + " biases");
+        }
+        for (int i = 0; i < tokens.length; i++) {
+            if (tokens[i] < 0) {
+                throw new IllegalArgumentException("Token ID must not be negative: " + tokens[i]);
+            }
+            if (!Float.isFinite(biases[i])) {
+                throw new IllegalArgumentException("Bias for token " + tokens[i] + " must be finite: " + biases[i]);
+            }
+        }
+        this.tokens = tokens.clone();
+        this.biases = biases.clone();
+    }
+
+    /** Bias from a token ID to offset map. */
+    public static LogitBias of(Map<Integer, ? extends Number> bias) {
+        int[] tokens = new int[bias.size()];
+        float[] biases = new float[bias.size()];
+        int i = 0;
+        for (Map.Entry<Integer, ? extends Number> entry : bias.entrySet()) {
+            tokens[i] = entry.getKey();
+            biases[i] = entry.getValue().floatValue();
+            i++;
+        }
+        return new LogitBias(tokens, biases);
+    }
+
+    @Override
+    public void process(float[] logits) {
+        for (int i = 0; i < tokens.length; i++) {
+            logits[tokens[i]] += biases[i];
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.arturskowronski.llama3babylon.hat.sampling;
+
+/**
+ * Adjusts the logits of one sequence before a token is picked from them.
+ *
+ * A {@link Sampler} runs its processors, in order, on every step of the decode loop, so
+ * implementations should touch only the logits they change and must not allocate.
+ * Processors may keep per-sequence state, updated through {@link #accept}; such a
+ * processor, like the sampler that holds it, belongs to one sequence.
+ */
+public interface LogitsProcessor {
+
+    /**
+     * Adjusts {@code logits} in place.
+     *
+     * @param logits classifier output [VOCAB_SIZE], overwritten by the next forward pass anyway
+     */
+    void process(float[] logits);
+
+    /** Called with each token picked after {@link #process}. */
+    default void accept(int token) {
+    }
+}
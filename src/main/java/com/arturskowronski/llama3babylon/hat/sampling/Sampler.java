@@ -0,0 +1,357 @@
+package com.arturskowronski.llama3babylon.hat.sampling;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Picks tokens from logits according to {@link SamplingParams}, after running an optional
+ * chain of {@link LogitsProcessor}s (penalties, logit bias) over them.
+ *
+ * Nothing here sorts the vocabulary. One pass finds the top logit and a second collects
+ * the candidates that survive {@code minP} into a scratch buffer, through a bounded min-heap
+ * when {@code topK} is set. The candidates' probabilities are computed with the Vector API.
+ * Top-p then takes a histogram of probability mass over power-of-two buckets, keeps the
+ * buckets wholly inside the nucleus, and runs a mass-guided quickselect over the one bucket
+ * the nucleus ends in. Each step is expected O(V) and allocates nothing; the scratch buffers
+ * are sized on first use and kept. Tokens more than e^30 times less likely than the top
+ * token are dropped up front: across a 128k vocabulary they hold under 1e-8 of the mass.
+ *
+ * A sampler holds its own random generator, scratch and processors, so it is not
+ * thread-safe: use one per sequence. With a seed, the same logits produce the same tokens on every run on
+ * the same JVM and hardware.
+ */
+public final class Sampler {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    // ln of the largest probability ratio to the top token still worth considering
+    private static final float NEGLIGIBLE_LOG_RATIO = 30f;
+
+    // Top-p buckets: float exponent plus 4 mantissa bits, 16 per halving of probability
+    private static final int BUCKET_SHIFT = 19;
+    private static final int ONE_BUCKET = Float.floatToRawIntBits(1f) >>> BUCKET_SHIFT;
+    private static final int BUCKETS = 48 * 16;
+
+    private static final Sampler GREEDY = new Sampler(SamplingParams.GREEDY);
+
+    private final SamplingParams params;
+    private final LogitsProcessor[] processors;
+    private final SplittableRandom random;
+
+    // Candidates: token ids and their logits, later their unnormalized probabilities
+    private int[] ids = new int[0];
+    private float[] weights = new float[0];
+    private double[] bucketWeights;
+
+    // Output of partition(): the band equal to the pivot, and the weight above and in it
+    private int equalStart;
+    private int equalEnd;
+    private double aboveWeight;
+    private double equalWeight;
+
+    /**
+     * @param params how to pick from the processed logits; {@link SamplingParams#GREEDY} keeps the top one
+     * @param processors applied to the logits in order before each pick
+     */
+    public Sampler(SamplingParams params, LogitsProcessor... processors) {
+        this.params = params;
+        this.processors = processors.clone();
+        this.random = params.isGreedy() ? null
+                : params.seed() != null ? new SplittableRandom(params.seed()) : new SplittableRandom();
+    }
+
+    /** A shared greedy sampler without processors; it keeps no state, so any thread may use it. */
+    public static Sampler greedy() {
+        return GREEDY;
+    }
+
+    public SamplingParams params() {
+        return params;
+    }
+
+    /**
+     * Picks the next token. The processors adjust {@code logits} in place; the pick itself
+     * only reads them.
+     *
+     * @param logits classifier output [VOCAB_SIZE]
+     * @return the chosen token ID
+     */
+    public int sample(float[] logits) {
+        for (LogitsProcessor processor : processors) {
+            processor.process(logits);
+        }
+        int token = pick(logits);
+        for (LogitsProcessor processor : processors) {
+            processor.accept(token);
+        }
+        return token;
+    }
+
+    private int pick(float[] logits) {
+        int best = argmax(logits);
+        if (random == null) {
+            return best;
+        }
+        float temperature = params.temperature();
+        float max = logits[best];
+        if (!Float.isFinite(max)) {
+            return best;
+        }
+
+        // Candidates: every token within reach of the top one, and at least minP as likely
+        float floor = max - NEGLIGIBLE_LOG_RATIO * temperature;
+        if (params.minP() > 0f) {
+            floor = Math.max(floor, max + temperature * (float) Math.log(params.minP()));
+        }
+        if (ids.length < logits.length) {
+            ids = new int[logits.length];
+            weights = new float[logits.length];
+        }
+        int n = params.topK() > 0 ? collectTop(logits, floor, params.topK()) : collect(logits, floor);
+
+        // Probabilities relative to the top token; softmax without the normalization
+        double total = exponentiate(n, max, 1f / temperature);
+
+        if (params.topP() < 1f) {
+            n = nucleus(n, total * params.topP());
+            total = 0;
+            for (int i = 0; i < n; i++) {
+                total += weights[i];
+            }
+        }
+
+        // Candidate order does not matter for the draw, and it is deterministic
+        double u = random.nextDouble() * total;
+        for (int i = 0; i < n; i++) {
+            u -= weights[i];
+            if (u < 0) {
+                return ids[i];
+            }
+        }
+        return ids[n - 1];
+    }
+
+    /**
+     * Returns the index of the maximum value in the array (the first, on ties).
+     */
+    public static int argmax(float[] values) {
+        int maxIdx = 0;
+        float maxVal = values[0];
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > maxVal) {
+                maxVal = values[i];
+                maxIdx = i;
+            }
+        }
+        return maxIdx;
+    }
+
+    /** Copies every logit of at least {@code floor} into the candidates; returns how many. */
+    private int collect(float[] logits, float floor) {
+        int n = 0;
+        for (int i = 0; i < logits.length; i++) {
+            float logit = logits[i];
+            if (logit >= floor) {
+                ids[n] = i;
+                weights[n] = logit;
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Keeps the {@code k} largest logits of at least {@code floor} in a min-heap over the
+     * front of the candidates. Most logits lose to the heap's root and cost one comparison.
+     *
+     * @return how many candidates the heap holds
+     */
+    private int collectTop(float[] logits, float floor, int k) {
+        int n = 0;
+        for (int i = 0; i < logits.length; i++) {
+            float logit = logits[i];
+            if (logit < floor) {
+                continue;
+            }
+            if (n < k) {
+                // Sift up
+                int child = n++;
+                while (child > 0) {
+                    int parent = (child - 1) >>> 1;
+                    if (weights[parent] <= logit) {
+                        break;
+                    }
+                    ids[child] = ids[parent];
+                    weights[child] = weights[parent];
+                    child = parent;
+                }
+                ids[child] = i;
+                weights[child] = logit;
+            } else if (logit > weights[0]) {
+                // Replace the root and sift down
+                int parent = 0;
+                while (true) {
+                    int child = 2 * parent + 1;
+                    if (child >= k) {
+                        break;
+                    }
+                    if (child + 1 < k && weights[child + 1] < weights[child]) {
+                        child++;
+                    }
+                    if (weights[child] >= logit) {
+                        break;
+                    }
+                    ids[parent] = ids[child];
+                    weights[parent] = weights[child];
+                    parent = child;
+                }
+                ids[parent] = i;
+                weights[parent] = logit;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Turns the first {@code n} candidates from logits into {@code exp((logit - max) / T)}.
+     *
+     * @return their sum
+     */
+    private double exponentiate(int n, float max, float invTemperature) {
+        FloatVector sum = FloatVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector w = FloatVector.fromArray(SPECIES, weights, i)
+                    .sub(max).mul(invTemperature).lanewise(VectorOperators.EXP);
+            w.intoArray(weights, i);
+            sum = sum.add(w);
+        }
+        double total = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            float w = (float) Math.exp((weights[i] - max) * invTemperature);
+            weights[i] = w;
+            total += w;
+        }
+        return total;
+    }
+
+    /**
+     * Moves the fewest most likely of the first {@code n} candidates whose weight reaches
+     * {@code target} to the front.
+     *
+     * @return how many candidates the nucleus holds
+     */
+    private int nucleus(int n, double target) {
+        if (bucketWeights == null) {
+            bucketWeights = new double[BUCKETS];
+        }
+        Arrays.fill(bucketWeights, 0);
+        for (int i = 0; i < n; i++) {
+            bucketWeights[bucket(weights[i])] += weights[i];
+        }
+
+        // Buckets run from most to least likely: find the one the nucleus ends in
+        double kept = 0;
+        int last = 0;
+        while (last < BUCKETS - 1 && kept + bucketWeights[last] < target) {
+            kept += bucketWeights[last++];
+        }
+
+        // Drop the later buckets, then put the earlier ones, all in, before the last one's
+        int end = 0;
+        for (int i = 0; i < n; i++) {
+            float w = weights[i];
+            if (bucket(w) <= last) {
+                ids[end] = ids[i];
+                weights[end++] = w;
+            }
+        }
+        int front = 0;
+        for (int i = 0; i < end; i++) {
+            if (bucket(weights[i]) < last) {
+                swap(front++, i);
+            }
+        }
+        return selectMass(front, end, kept, target);
+    }
+
+    /** Bucket of a weight in (0, 1]: 0 for the top token's, growing as weights shrink. */
+    private static int bucket(float weight) {
+        return Math.min(BUCKETS - 1, ONE_BUCKET - (Float.floatToRawIntBits(weight) >>> BUCKET_SHIFT));
+    }
+
+    /**
+     * Quickselect steered by weight instead of count: moves the fewest most likely
+     * candidates of {@code [lo, hi)} that bring {@code kept} up to {@code target} to the
+     * front of that range.
+     *
+     * @param kept weight of the candidates before {@code lo}, every one of which outweighs {@code [lo, hi)}
+     * @return the end of the nucleus
+     */
+    private int selectMass(int lo, int hi, double kept, double target) {
+        while (lo < hi) {
+            partition(lo, hi);
+            if (kept + aboveWeight >= target) {
+                hi = equalStart;
+                continue;
+            }
+            kept += aboveWeight;
+            if (kept + equalWeight >= target) {
+                // The nucleus ends inside the band of ties: take as many as it needs
+                float w = weights[equalStart];
+                int needed = (int) Math.ceil((target - kept) / w);
+                return equalStart + Math.max(1, Math.min(needed, equalEnd - equalStart));
+            }
+            kept += equalWeight;
+            lo = equalEnd;
+        }
+        return lo;
+    }
+
+    /**
+     * Three-way partition of candidates {@code [lo, hi)} around a median-of-three pivot:
+     * larger weights first, then ties, then smaller ones.
+     */
+    private void partition(int lo, int hi) {
+        float a = weights[lo];
+        float b = weights[(lo + hi) >>> 1];
+        float c = weights[hi - 1];
+        float pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+
+        int gt = lo;
+        int i = lo;
+        int lt = hi;
+        double above = 0;
+        double equal = 0;
+        while (i < lt) {
+            float w = weights[i];
+            if (w > pivot) {
+                above += w;
+                swap(gt++, i++);
+            } else if (w < pivot) {
+                swap(i, --lt);
+            } else {
+                equal += w;
+                i++;
+            }
+        }
+        equalStart = gt;
+        equalEnd = lt;
+        aboveWeight = above;
+        equalWeight = equal;
+    }
+
+    private void swap(int i, int j) {
+        float w = weights[i];
+        weights[i] = weights[j];
+        weights[j] = w;
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+    }
+}
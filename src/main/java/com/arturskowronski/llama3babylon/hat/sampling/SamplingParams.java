@@ -0,0 +1,64 @@
+package com.arturskowronski.llama3babylon.hat.sampling;
+
+/**
+ * How a {@link Sampler} picks the next token from the logits.
+ *
+ * Logits are divided by {@code temperature}; the candidates are then cut to the
+ * {@code topK} most likely tokens and to those at least {@code minP} times as likely
+ * as the top token, and finally to the smallest set of the survivors whose
+ * renormalized probability reaches {@code topP}. The token is drawn from what is left,
+ * in proportion to its probability. A temperature of zero (or {@code topK == 1}) is
+ * greedy decoding and ignores the other settings.
+ *
+ * @param temperature logit divisor; 0 for greedy decoding
+ * @param topK keep at most this many tokens, or 0 for no limit
+ * @param topP nucleus mass in (0, 1]; 1 keeps every candidate
+ * @param minP minimum probability relative to the most likely token, in [0, 1); 0 keeps every candidate
+ * @param seed seed of the sampler's random generator, or null for a fresh seed per sampler
+ */
+public record SamplingParams(float temperature, int topK, float topP, float minP, Long seed) {
+
+    /** Always the most likely token. */
+    public static final SamplingParams GREEDY = new SamplingParams(0f, 0, 1f, 0f, null);
+
+    public SamplingParams {
+        if (!(temperature >= 0f) || Float.isInfinite(temperature)) {
+            throw new IllegalArgumentException("temperature must be finite and non-negative: " + temperature);
+        }
+        if (topK < 0) {
+            throw new IllegalArgumentException("topK must not be negative: " + topK);
+        }
+        if (!(topP > 0f && topP <= 1f)) {
+            throw new IllegalArgumentException("topP must be in (0, 1]: " + topP);
+        }
+        if (!(minP >= 0f && minP < 1f)) {
+            throw new IllegalArgumentException("minP must be in [0, 1): " + minP);
+        }
+    }
+
+    /** Plain temperature sampling over the whole vocabulary. */
+    public static SamplingParams temperature(float temperature) {
+        return new SamplingParams(temperature, 0, 1f, 0f, null);
+    }
+
+    public SamplingParams withTopK(int topK) {
+        return new SamplingParams(temperature, topK, topP, minP, seed);
+    }
+
+    public SamplingParams withTopP(float topP) {
+        return new SamplingParams(temperature, topK, topP, minP, seed);
+    }
+
+    public SamplingParams withMinP(float minP) {
+        return new SamplingParams(temperature, topK, topP, minP, seed);
+    }
+
+    public SamplingParams withSeed(long seed) {
+        return new SamplingParams(temperature, topK, topP, minP, seed);
+    }
+
+    /** True if these settings always pick the most likely token. */
+    public boolean isGreedy() {
+        return temperature == 0f || topK == 1;
+    }
+}
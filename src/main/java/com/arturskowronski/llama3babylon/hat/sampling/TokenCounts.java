@@ -0,0 +1,103 @@
+package com.arturskowronski.llama3babylon.hat.sampling;
+
+import java.util.Arrays;
+
+/**
+ * Primitive token to count map that can be walked in insertion order.
+ *
+ * Distinct tokens and their counts sit in two dense arrays, so visiting every counted
+ * token costs one step per distinct token, not per vocabulary entry. An open-addressing
+ * table (linear probing, power-of-two size) maps a token to its slot in those arrays.
+ * Nothing is allocated until the map outgrows its capacity, and then it doubles.
+ */
+final class TokenCounts {
+
+    private int[] tokens;
+    private int[] counts;
+    private int size;
+
+    // Slot + 1 of each hashed token; 0 marks an empty bucket
+    private int[] table;
+
+    /**
+     * @param expectedTokens distinct tokens to hold before the first resize
+     */
+    TokenCounts(int expectedTokens) {
+        int capacity = Math.max(8, expectedTokens);
+        tokens = new int[capacity];
+        counts = new int[capacity];
+        table = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+    }
+
+    /** Adds one to {@code token}'s count. */
+    void increment(int token) {
+        int mask = table.length - 1;
+        int bucket = hash(token) & mask;
+        while (table[bucket] != 0) {
+            int slot = table[bucket] - 1;
+            if (tokens[slot] == token) {
+                counts[slot]++;
+                return;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+        if (size == tokens.length) {
+            grow();
+            increment(token);
+            return;
+        }
+        tokens[size] = token;
+        counts[size] = 1;
+        table[bucket] = ++size;
+    }
+
+    /** How often {@code token} was counted, 0 if never. */
+    int count(int token) {
+        int mask = table.length - 1;
+        int bucket = hash(token) & mask;
+        while (table[bucket] != 0) {
+            int slot = table[bucket] - 1;
+            if (tokens[slot] == token) {
+                return counts[slot];
+            }
+            bucket = (bucket + 1) & mask;
+        }
+        return 0;
+    }
+
+    /** Number of distinct tokens counted. */
+    int size() {
+        return size;
+    }
+
+    /** The {@code i}-th distinct token, in the order first counted. */
+    int tokenAt(int i) {
+        return tokens[i];
+    }
+
+    /** Count of {@link #tokenAt(int) tokenAt(i)}. */
+    int countAt(int i) {
+        return counts[i];
+    }
+
+    private void grow() {
+        int capacity = tokens.length * 2;
+        tokens = Arrays.copyOf(tokens, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int slot = 0; slot < size; slot++) {
+            int bucket = hash(tokens[slot]) & mask;
+            while (table[bucket] != 0) {
+                bucket = (bucket + 1) & mask;
+            }
+            table[bucket] = slot + 1;
+        }
+    }
+
+    private static int hash(int token) {
+        // Fibonacci hashing spreads consecutive token IDs across the table
+        int h = token * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
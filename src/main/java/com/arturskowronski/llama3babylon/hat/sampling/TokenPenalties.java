@@ -0,0 +1,52 @@
+package com.arturskowronski.llama3babylon.hat.sampling;
+
+/**
+ * OpenAI-style frequency and presence penalties.
+ *
+ * Each step lowers the logit of every token already generated in this sequence by
+ * {@code count * frequencyPenalty + presencePenalty}, where {@code count} is how often it
+ * was picked. Counts live in a primitive {@link TokenCounts} map, so a step touches one
+ * logit per distinct token generated so far and never the rest of the vocabulary.
+ * Negative penalties encourage repetition instead. Prompt tokens are not counted.
+ *
+ * Holds per-sequence counts: use one instance per sequence.
+ */
+public final class TokenPenalties implements LogitsProcessor {
+
+    // Distinct tokens before the first resize; a reply rarely uses more
+    private static final int EXPECTED_DISTINCT_TOKENS = 256;
+
+    private final float frequencyPenalty;
+    private final float presencePenalty;
+    private final TokenCounts counts = new TokenCounts(EXPECTED_DISTINCT_TOKENS);
+
+    /**
+     * @param frequencyPenalty subtracted once per earlier occurrence of a token
+     * @param presencePenalty subtracted once from every token that occurred at all
+     */
+    public TokenPenalties(float frequencyPenalty, float presencePenalty) {
+        if (!Float.isFinite(frequencyPenalty) || !Float.isFinite(presencePenalty)) {
+            throw new IllegalArgumentException("Penalties must be finite: frequency=" + frequencyPenalty
+                    + ", presence=" + presencePenalty);
+        }
+        this.frequencyPenalty = frequencyPenalty;
+        this.presencePenalty = presencePenalty;
+    }
+
+    @Override
+    public void process(float[] logits) {
+        for (int i = 0; i < counts.size(); i++) {
+            logits[counts.tokenAt(i)] -= counts.countAt(i) * frequencyPenalty + presencePenalty;
+        }
+    }
+
+    @Override
+    public void accept(int token) {
+        counts.increment(token);
+    }
+
+    /** How often {@code token} has been generated in this sequence. */
+    public int count(int token) {
+        return counts.count(token);
+    }
+}
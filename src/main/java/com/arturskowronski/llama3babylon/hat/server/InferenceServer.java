@@ -0,0 +1,689 @@
+package com.arturskowronski.llama3babylon.hat.server;
+
+import com.arturskowronski.llama3babylon.hat.AdmissionPolicy;
+import com.arturskowronski.llama3babylon.hat.BatchScheduler;
+import com.arturskowronski.llama3babylon.hat.ChatFormat;
+import com.arturskowronski.llama3babylon.hat.LlamaInference;
+import com.arturskowronski.llama3babylon.hat.LlamaModel;
+import com.arturskowronski.llama3babylon.hat.RequestOptions;
+import com.arturskowronski.llama3babylon.hat.RequestRejectedException;
+import com.arturskowronski.llama3babylon.hat.sampling.LogitBias;
+import com.arturskowronski.llama3babylon.hat.sampling.LogitsProcessor;
+import com.arturskowronski.llama3babylon.hat.sampling.Sampler;
+import com.arturskowronski.llama3babylon.hat.sampling.SamplingParams;
+import com.arturskowronski.llama3babylon.hat.sampling.TokenPenalties;
+import com.arturskowronski.llama3babylon.hat.stream.GenerationStats;
+import com.arturskowronski.llama3babylon.hat.stream.LatencyRecorder;
+import com.arturskowronski.llama3babylon.hat.stream.StreamedToken;
+import com.arturskowronski.llama3babylon.hat.stream.TokenListener;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OpenAI-compatible HTTP server over one loaded model, built on the JDK's
+ * {@code com.sun.net.httpserver} with no other dependencies.
+ *
+ * Endpoints:
+ * <ul>
+ *   <li>{@code POST /v1/chat/completions}: {@code messages}, {@code max_tokens}
+ *       (or {@code max_completion_tokens}), {@code stream}, {@code stream_options.include_usage},
+ *       {@code service_tier} and the sampling parameters below</li>
+ *   <li>{@code POST /v1/completions}: {@code prompt}, {@code max_tokens}, {@code stream}, {@code service_tier}
+ *       and the sampling parameters</li>
+ *   <li>{@code GET /v1/models} and {@code GET /health}</li>
+ * </ul>
+ * With {@code "stream": true} the reply is sent as Server-Sent Events, one
+ * {@code data:} chunk per token that completes text, followed by {@code data: [DONE]}.
+ * Sampling follows {@code temperature}, {@code top_p} and {@code seed}, plus the common
+ * {@code top_k} and {@code min_p} extensions (see {@link SamplingParams}). Unlike OpenAI,
+ * the temperature defaults to 0, so a request that sets nothing is decoded greedily.
+ * {@code frequency_penalty}, {@code presence_penalty} and {@code logit_bias} adjust the
+ * logits first, in the greedy case too (see {@link TokenPenalties} and {@link LogitBias}).
+ *
+ * Every exchange runs on its own virtual thread, so thousands of idle or waiting
+ * connections cost no platform threads. Generations run on a {@link BatchScheduler}
+ * over one {@link LlamaInference}: up to {@code maxBatch} requests share each forward
+ * pass, each with its own per-layer KV caches returned to the block pool when it ends
+ * (a prefix cache, if enabled, lets requests share their common prompt prefix), and
+ * further requests queue. Tokens are handed from the scheduler to the request's thread
+ * through a queue, so a client that reads slowly never stalls the batch. A client that
+ * disconnects mid-stream cancels its generation at the next step.
+ *
+ * {@code service_tier} picks the queue class: {@code "priority"} is
+ * {@link RequestOptions.Priority#INTERACTIVE}, {@code "flex"} is
+ * {@link RequestOptions.Priority#BATCH}, anything else is standard. Interactive and
+ * standard requests may wait at most {@code maxQueueTime} for a slot; flex requests wait
+ * as long as it takes. A request the scheduler's {@link AdmissionPolicy} turns away, or
+ * drops from the queue, gets HTTP 429 (a stream's headers are only sent once its first
+ * token exists, so the status can still say so).
+ */
+public final class InferenceServer implements AutoCloseable {
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_MAX_TOKENS = 256;
+    private static final int DEFAULT_MAX_BATCH = 8;
+
+    /** Queued after a generation's last token to wake the request thread. */
+    private static final StreamedToken END_OF_STREAM = new StreamedToken(-1, "");
+
+    private final LlamaInference inference;
+    private final String modelName;
+    private final int[] stopTokens;
+    private final HttpServer http;
+    private final ExecutorService executor;
+    private final BatchScheduler scheduler;
+    private final Duration maxQueueTime;
+    private final AtomicLong requestIds = new AtomicLong();
+
+    /**
+     * Binds the server with the default batch size; call {@link #start()} to begin accepting requests.
+     *
+     * @param inference loaded model, used by this server only
+     * @param modelName id reported in responses and by {@code /v1/models}
+     * @param address address to bind (port 0 picks a free port)
+     */
+    public InferenceServer(LlamaInference inference, String modelName, InetSocketAddress address) throws IOException {
+        this(inference, modelName, address, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * Binds the server; call {@link #start()} to begin accepting requests.
+     *
+     * @param inference loaded model, used by this server only
+     * @param modelName id reported in responses and by {@code /v1/models}
+     * @param address address to bind (port 0 picks a free port)
+     * @param maxBatch maximum number of requests decoded together
+     */
+    public InferenceServer(LlamaInference inference, String modelName, InetSocketAddress address,
+                           int maxBatch) throws IOException {
+        this(inference, modelName, address, maxBatch, BatchScheduler.DEFAULT_PREFILL_CHUNK,
+                maxBatch + BatchScheduler.DEFAULT_PREFILL_CHUNK);
+    }
+
+    /**
+     * Binds the server; call {@link #start()} to begin accepting requests.
+     *
+     * @param inference loaded model, used by this server only
+     * @param modelName id reported in responses and by {@code /v1/models}
+     * @param address address to bind (port 0 picks a free port)
+     * @param maxBatch maximum number of requests decoded together
+     * @param prefillChunk maximum prompt tokens one request prefills per step
+     * @param stepTokens maximum tokens per step, decode and prefill together
+     * @see BatchScheduler#BatchScheduler(LlamaInference, int, int, int)
+     */
+    public InferenceServer(LlamaInference inference, String modelName, InetSocketAddress address,
+                           int maxBatch, int prefillChunk, int stepTokens) throws IOException {
+        this(inference, modelName, address, new BatchScheduler(inference, maxBatch, prefillChunk, stepTokens), null);
+    }
+
+    /**
+     * Binds the server; call {@link #start()} to begin accepting requests.
+     *
+     * @param inference loaded model, used by this server and {@code scheduler} only
+     * @param modelName id reported in responses and by {@code /v1/models}
+     * @param address address to bind (port 0 picks a free port)
+     * @param scheduler scheduler over {@code inference}; closed with the server
+     * @param maxQueueTime longest an interactive or standard request may wait for a slot, or null for no limit
+     */
+    public InferenceServer(LlamaInference inference, String modelName, InetSocketAddress address,
+                           BatchScheduler scheduler, Duration maxQueueTime) throws IOException {
+        this.inference = inference;
+        this.modelName = modelName;
+        this.stopTokens = inference.chatFormat().getStopTokenIds();
+        this.maxQueueTime = maxQueueTime;
+        this.http = HttpServer.create(address, 0);
+        this.scheduler = scheduler;
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        http.setExecutor(executor);
+        http.createContext("/v1/chat/completions", exchange -> handleCompletion(exchange, true));
+        http.createContext("/v1/completions", exchange -> handleCompletion(exchange, false));
+        http.createContext("/v1/models", this::handleModels);
+        http.createContext("/health", this::handleHealth);
+    }
+
+    public void start() {
+        http.start();
+    }
+
+    /** Port the server is bound to. */
+    public int port() {
+        return http.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests, gives running ones a second to finish, then stops.
+     */
+    @Override
+    public void close() {
+        http.stop(1);
+        scheduler.close();
+        executor.close();
+    }
+
+    /**
+     * Starts a server on a GGUF model.
+     *
+     * <pre>
+     *   InferenceServer [model.gguf] [--host 0.0.0.0] [--port 8080] [--prefix-cache-mb 256] [--max-batch 8]
+     *                   [--prefill-chunk 32] [--step-tokens 40]
+     *                   [--max-queued N] [--max-queued-tokens N] [--batch-slots N] [--max-queue-ms N]
+     * </pre>
+     * The step budget defaults to {@code max-batch + prefill-chunk}; the admission limits
+     * default to none (see {@link AdmissionPolicy}).
+     * The model path defaults to {@code LLAMA_FP16_PATH}.
+     */
+    public static void main(String[] args) throws IOException {
+        String model = System.getenv("LLAMA_FP16_PATH");
+        String host = "0.0.0.0";
+        int port = DEFAULT_PORT;
+        long prefixCacheMb = 0;
+        int maxBatch = DEFAULT_MAX_BATCH;
+        int prefillChunk = BatchScheduler.DEFAULT_PREFILL_CHUNK;
+        int stepTokens = 0;
+        int maxQueued = Integer.MAX_VALUE;
+        long maxQueuedTokens = Long.MAX_VALUE;
+        int batchSlots = Integer.MAX_VALUE;
+        Duration maxQueueTime = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host" -> host = args[++i];
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--prefix-cache-mb" -> prefixCacheMb = Long.parseLong(args[++i]);
+                case "--max-batch" -> maxBatch = Integer.parseInt(args[++i]);
+                case "--prefill-chunk" -> prefillChunk = Integer.parseInt(args[++i]);
+                case "--step-tokens" -> stepTokens = Integer.parseInt(args[++i]);
+                case "--max-queued" -> maxQueued = Integer.parseInt(args[++i]);
+                case "--max-queued-tokens" -> maxQueuedTokens = Long.parseLong(args[++i]);
+                case "--batch-slots" -> batchSlots = Integer.parseInt(args[++i]);
+                case "--max-queue-ms" -> maxQueueTime = Duration.ofMillis(Long.parseLong(args[++i]));
+                default -> model = args[i];
+            }
+        }
+        if (model == null) {
+            System.err.println("Usage: InferenceServer <model.gguf> [--host H] [--port N] [--prefix-cache-mb N]"
+                    + " [--max-batch N] [--prefill-chunk N] [--step-tokens N] [--max-queued N]"
+                    + " [--max-queued-tokens N] [--batch-slots N] [--max-queue-ms N] (or set LLAMA_FP16_PATH)");
+            System.exit(1);
+        }
+
+        Path modelPath = Paths.get(model);
+        LlamaInference inference = new LlamaInference(modelPath);
+        if (prefixCacheMb > 0) {
+            inference.enablePrefixCache(prefixCacheMb << 20);
+        }
+        String name = modelPath.getFileName().toString().replaceFirst("\\.gguf$", "");
+        if (stepTokens == 0) {
+            stepTokens = maxBatch + prefillChunk;
+        }
+        BatchScheduler scheduler = new BatchScheduler(inference, maxBatch, prefillChunk, stepTokens,
+                new AdmissionPolicy(maxQueued, maxQueuedTokens, batchSlots));
+        InferenceServer server = new InferenceServer(inference, name, new InetSocketAddress(host, port),
+                scheduler, maxQueueTime);
+        server.start();
+        System.out.println("Serving " + name + " on http://" + host + ":" + server.port() + "/v1");
+    }
+
+    private void handleCompletion(HttpExchange exchange, boolean chat) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Use POST");
+                return;
+            }
+            Request request;
+            try {
+                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                request = parseRequest(Json.parse(body), chat);
+            } catch (IllegalArgumentException | ClassCastException e) {
+                sendError(exchange, 400, e.getMessage());
+                return;
+            }
+            Generation generation;
+            try {
+                generation = new Generation(request);
+                generation.awaitFirstToken();
+            } catch (RequestRejectedException e) {
+                sendError(exchange, 429, e.getMessage());
+                return;
+            }
+            String id = (chat ? "chatcmpl-" : "cmpl-") + requestIds.incrementAndGet();
+            if (request.stream()) {
+                stream(exchange, request, generation, id, chat);
+            } else {
+                respond(exchange, request, generation, id, chat);
+            }
+        }
+    }
+
+    private void respond(HttpExchange exchange, Request request, Generation generation, String id, boolean chat)
+            throws IOException {
+        StringBuilder text = new StringBuilder();
+        int[] completionTokens = new int[1];
+        GenerationStats stats = generation.relay((token, piece) -> {
+            text.append(piece);
+            completionTokens[0]++;
+        });
+
+        Map<String, Object> choice = new LinkedHashMap<>();
+        choice.put("index", 0);
+        if (chat) {
+            choice.put("message", Map.of("role", "assistant", "content", text.toString()));
+        } else {
+            choice.put("text", text.toString());
+        }
+        choice.put("finish_reason", finishReason(stats));
+        Map<String, Object> response = envelope(id, chat ? "chat.completion" : "text_completion");
+        response.put("choices", List.of(choice));
+        response.put("usage", usage(request, completionTokens[0]));
+        sendJson(exchange, 200, response);
+    }
+
+    private void stream(HttpExchange exchange, Request request, Generation generation, String id, boolean chat)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        String object = chat ? "chat.completion.chunk" : "text_completion";
+        if (chat) {
+            sendEvent(out, chunk(id, object, Map.of("role", "assistant", "content", ""), null, true));
+        }
+
+        SseListener listener = new SseListener(out, id, object, chat);
+        GenerationStats stats = generation.relay(listener);
+        if (listener.disconnected) {
+            return;
+        }
+        sendEvent(out, chunk(id, object, Map.of(), finishReason(stats), chat));
+        if (request.includeUsage()) {
+            Map<String, Object> usageChunk = envelope(id, object);
+            usageChunk.put("choices", List.of());
+            usageChunk.put("usage", usage(request, listener.tokens));
+            sendEvent(out, Json.write(usageChunk));
+        }
+        out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /** Writes one SSE chunk per token that completes text; stops generation once the client is gone. */
+    private final class SseListener implements TokenListener {
+        private final OutputStream out;
+        private final String id;
+        private final String object;
+        private final boolean chat;
+        int tokens;
+        volatile boolean disconnected;
+
+        SseListener(OutputStream out, String id, String object, boolean chat) {
+            this.out = out;
+            this.id = id;
+            this.object = object;
+            this.chat = chat;
+        }
+
+        @Override
+        public void onToken(int token, String text) {
+            tokens++;
+            if (text.isEmpty() || disconnected) {
+                return;
+            }
+            Map<String, Object> delta = Map.of(chat ? "content" : "text", text);
+            try {
+                sendEvent(out, chunk(id, object, delta, null, chat));
+            } catch (IOException e) {
+                disconnected = true;
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return disconnected;
+        }
+    }
+
+    /**
+     * A request submitted to the scheduler. Its tokens are queued on the scheduler thread and
+     * replayed to a listener on the request's thread; only cancellation is polled from the
+     * scheduler thread.
+     */
+    private final class Generation {
+        private final BlockingQueue<StreamedToken> events = new LinkedBlockingQueue<>();
+        private final CompletableFuture<GenerationStats> done;
+        private volatile TokenListener target;
+        private StreamedToken first;
+
+        /**
+         * @throws RequestRejectedException if the scheduler's queue is full
+         */
+        Generation(Request request) {
+            done = scheduler.submit(request.prompt(), request.maxTokens(), stopTokens, request.options(),
+                    request.sampler(), new TokenListener() {
+                        @Override
+                        public void onToken(int token, String text) {
+                            events.add(new StreamedToken(token, text));
+                        }
+
+                        @Override
+                        public boolean isCancelled() {
+                            TokenListener listener = target;
+                            return listener != null && listener.isCancelled();
+                        }
+                    });
+            done.whenComplete((stats, error) -> events.add(END_OF_STREAM));
+        }
+
+        /**
+         * Waits until the request has produced its first token or ended.
+         *
+         * @throws RequestRejectedException if the request was dropped from the queue
+         */
+        void awaitFirstToken() throws IOException {
+            first = take();
+            if (first == END_OF_STREAM && done.isCompletedExceptionally()) {
+                try {
+                    done.join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof RequestRejectedException rejected) {
+                        throw rejected;
+                    }
+                }
+            }
+        }
+
+        /** Replays every token to {@code listener} on the calling thread. */
+        GenerationStats relay(TokenListener listener) throws IOException {
+            target = listener;
+            StreamedToken event = first;
+            while (event != END_OF_STREAM) {
+                listener.onToken(event.token(), event.text());
+                event = take();
+            }
+            try {
+                return done.join();
+            } catch (CompletionException e) {
+                throw new IOException("Generation failed", e.getCause());
+            }
+        }
+
+        private StreamedToken take() throws IOException {
+            try {
+                return events.take();
+            } catch (InterruptedException e) {
+                done.cancel(false);
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while generating", e);
+            }
+        }
+    }
+
+    private record Request(int[] prompt, int maxTokens, boolean stream, boolean includeUsage, RequestOptions options,
+                           Sampler sampler) {}
+
+    @SuppressWarnings("unchecked")
+    private Request parseRequest(Object json, boolean chat) {
+        if (!(json instanceof Map<?, ?>)) {
+            throw new IllegalArgumentException("Request body must be a JSON object");
+        }
+        Map<String, Object> body = (Map<String, Object>) json;
+        int[] prompt = chat ? chatPrompt(body.get("messages")) : textPrompt(body.get("prompt"));
+
+        Object max = body.containsKey("max_completion_tokens") ? body.get("max_completion_tokens") : body.get("max_tokens");
+        int available = inference.kvWindow() != null ? Integer.MAX_VALUE : inference.contextLength() - prompt.length + 1;
+        int maxTokens;
+        if (max == null) {
+            maxTokens = Math.min(DEFAULT_MAX_TOKENS, available);
+        } else {
+            maxTokens = ((Number) max).intValue();
+            if (maxTokens <= 0) {
+                throw new IllegalArgumentException("max_tokens must be positive");
+            }
+        }
+        if (maxTokens > available || available <= 0) {
+            throw new IllegalArgumentException("Prompt (" + prompt.length + " tokens) plus max_tokens exceeds the "
+                    + "context length " + inference.contextLength());
+        }
+
+        boolean stream = Boolean.TRUE.equals(body.get("stream"));
+        boolean includeUsage = body.get("stream_options") instanceof Map<?, ?> options
+                && Boolean.TRUE.equals(options.get("include_usage"));
+        RequestOptions options = switch (String.valueOf(body.get("service_tier"))) {
+            case "priority" -> RequestOptions.of(RequestOptions.Priority.INTERACTIVE).withMaxQueueTime(maxQueueTime);
+            case "flex" -> RequestOptions.of(RequestOptions.Priority.BATCH);
+            default -> RequestOptions.DEFAULT.withMaxQueueTime(maxQueueTime);
+        };
+        return new Request(prompt, maxTokens, stream, includeUsage, options, sampler(body));
+    }
+
+    private static Sampler sampler(Map<String, Object> body) {
+        SamplingParams params = SamplingParams.temperature(number(body, "temperature", 0).floatValue())
+                .withTopK(number(body, "top_k", 0).intValue())
+                .withTopP(number(body, "top_p", 1).floatValue())
+                .withMinP(number(body, "min_p", 0).floatValue());
+        if (body.get("seed") != null) {
+            params = params.withSeed(number(body, "seed", 0).longValue());
+        }
+
+        List<LogitsProcessor> processors = new ArrayList<>();
+        float frequency = penalty(body, "frequency_penalty");
+        float presence = penalty(body, "presence_penalty");
+        if (frequency != 0 || presence != 0) {
+            processors.add(new TokenPenalties(frequency, presence));
+        }
+        if (body.get("logit_bias") != null) {
+            processors.add(logitBias(body.get("logit_bias")));
+        }
+        return new Sampler(params, processors.toArray(new LogitsProcessor[0]));
+    }
+
+    private static float penalty(Map<String, Object> body, String key) {
+        float penalty = number(body, key, 0).floatValue();
+        if (!(penalty >= -2 && penalty <= 2)) {
+            throw new IllegalArgumentException(key + " must be between -2 and 2");
+        }
+        return penalty;
+    }
+
+    /** {@code logit_bias}: token IDs, as JSON object keys, to a bias between -100 and 100. */
+    private static LogitBias logitBias(Object json) {
+        if (!(json instanceof Map<?, ?> entries)) {
+            throw new IllegalArgumentException("logit_bias must be an object");
+        }
+        Map<Integer, Float> bias = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> entry : entries.entrySet()) {
+            int token;
+            try {
+                token = Integer.parseInt(String.valueOf(entry.getKey()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("logit_bias keys must be token IDs: " + entry.getKey());
+            }
+            if (token < 0 || token >= LlamaModel.VOCAB_SIZE) {
+                throw new IllegalArgumentException("logit_bias token out of range: " + token);
+            }
+            float value = entry.getValue() instanceof Number n ? n.floatValue() : Float.NaN;
+            if (!(value >= -100 && value <= 100)) {
+                throw new IllegalArgumentException("logit_bias values must be numbers between -100 and 100");
+            }
+            bias.put(token, value);
+        }
+        return LogitBias.of(bias);
+    }
+
+    private static Number number(Map<String, Object> body, String key, Number fallback) {
+        Object value = body.get(key);
+        if (value == null) {
+            return fallback;
+        }
+        if (!(value instanceof Number n)) {
+            throw new IllegalArgumentException(key + " must be a number");
+        }
+        return n;
+    }
+
+    private int[] chatPrompt(Object messages) {
+        if (!(messages instanceof List<?> list) || list.isEmpty()) {
+            throw new IllegalArgumentException("messages must be a non-empty array");
+        }
+        List<ChatFormat.Message> dialog = new ArrayList<>();
+        for (Object m : list) {
+            if (!(m instanceof Map<?, ?> message) || !(message.get("role") instanceof String role)) {
+                throw new IllegalArgumentException("Each message needs a role");
+            }
+            dialog.add(new ChatFormat.Message(new ChatFormat.Role(role), content(message.get("content"))));
+        }
+        return inference.chatFormat().encodeDialogPrompt(dialog).stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /** Message content: a string, or an array of parts whose text parts are concatenated. */
+    private static String content(Object content) {
+        if (content == null) {
+            return "";
+        }
+        if (content instanceof String s) {
+            return s;
+        }
+        if (content instanceof List<?> parts) {
+            StringBuilder sb = new StringBuilder();
+            for (Object part : parts) {
+                if (part instanceof Map<?, ?> p && "text".equals(p.get("type")) && p.get("text") instanceof String t) {
+                    sb.append(t);
+                }
+            }
+            return sb.toString();
+        }
+        throw new IllegalArgumentException("Unsupported message content");
+    }
+
+    private int[] textPrompt(Object prompt) {
+        if (prompt instanceof List<?> list && list.size() == 1) {
+            prompt = list.get(0);
+        }
+        if (!(prompt instanceof String text)) {
+            throw new IllegalArgumentException("prompt must be a string");
+        }
+        int[] encoded = inference.tokenizer().encode(text);
+        int[] tokens = new int[encoded.length + 1];
+        tokens[0] = inference.chatFormat().getBeginOfTextId();
+        System.arraycopy(encoded, 0, tokens, 1, encoded.length);
+        return tokens;
+    }
+
+    private void handleModels(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Map<String, Object> model = new LinkedHashMap<>();
+            model.put("id", modelName);
+            model.put("object", "model");
+            model.put("created", 0);
+            model.put("owned_by", "local");
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("object", "list");
+            response.put("data", List.of(model));
+            sendJson(exchange, 200, response);
+        }
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("status", "ok");
+            response.put("active", scheduler.active());
+            response.put("queued", scheduler.queued());
+            LatencyRecorder itl = scheduler.interTokenLatency();
+            response.put("inter_token_ms_p50", itl.percentile(50) / 1e6);
+            response.put("inter_token_ms_p99", itl.percentile(99) / 1e6);
+            response.put("ttft_ms_p50", scheduler.timeToFirstToken().percentile(50) / 1e6);
+            Map<String, Object> tiers = new LinkedHashMap<>();
+            for (RequestOptions.Priority priority : RequestOptions.Priority.values()) {
+                Map<String, Object> tier = new LinkedHashMap<>();
+                tier.put("queued", scheduler.queued(priority));
+                tier.put("queue_wait_ms_p99", scheduler.queueWait(priority).percentile(99) / 1e6);
+                tier.put("ttft_ms_p99", scheduler.timeToFirstToken(priority).percentile(99) / 1e6);
+                tiers.put(priority.name().toLowerCase(Locale.ROOT), tier);
+            }
+            response.put("tiers", tiers);
+            Map<String, Object> rejected = new LinkedHashMap<>();
+            for (RequestRejectedException.Reason reason : RequestRejectedException.Reason.values()) {
+                rejected.put(reason.name().toLowerCase(Locale.ROOT), scheduler.rejected(reason));
+            }
+            response.put("rejected", rejected);
+            sendJson(exchange, 200, response);
+        }
+    }
+
+    private Map<String, Object> envelope(String id, String object) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("id", id);
+        response.put("object", object);
+        response.put("created", Instant.now().getEpochSecond());
+        response.put("model", modelName);
+        return response;
+    }
+
+    private String chunk(String id, String object, Map<String, Object> delta, String finishReason, boolean chat) {
+        Map<String, Object> choice = new LinkedHashMap<>();
+        choice.put("index", 0);
+        if (chat) {
+            choice.put("delta", delta);
+        } else {
+            choice.put("text", delta.getOrDefault("text", ""));
+        }
+        choice.put("finish_reason", finishReason);
+        Map<String, Object> chunk = envelope(id, object);
+        chunk.put("choices", List.of(choice));
+        return Json.write(chunk);
+    }
+
+    private static Map<String, Object> usage(Request request, int completionTokens) {
+        Map<String, Object> usage = new LinkedHashMap<>();
+        usage.put("prompt_tokens", request.prompt().length);
+        usage.put("completion_tokens", completionTokens);
+        usage.put("total_tokens", request.prompt().length + completionTokens);
+        return usage;
+    }
+
+    private static String finishReason(GenerationStats stats) {
+        return stats.reason() == GenerationStats.StopReason.MAX_TOKENS ? "length" : "stop";
+    }
+
+    private static void sendEvent(OutputStream out, String json) throws IOException {
+        out.write(("data: " + json + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = Json.write(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("message", message);
+        error.put("type", switch (status) {
+            case 400 -> "invalid_request_error";
+            case 429 -> "rate_limit_error";
+            default -> "server_error";
+        });
+        sendJson(exchange, status, Map.of("error", error));
+    }
+}
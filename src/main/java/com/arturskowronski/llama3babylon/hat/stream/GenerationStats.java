@@ -0,0 +1,40 @@
+package com.arturskowronski.llama3babylon.hat.stream;
+
+/**
+ * Outcome and timing of one streamed generation.
+ *
+ * @param promptTokens tokens in the prompt
+ * @param prefillTokens prompt tokens actually run through the model (the rest came from the prefix cache)
+ * @param generatedTokens tokens sampled, including the stop token if one ended generation
+ * @param timeToFirstTokenNanos from the call until the first token was handed to the listener
+ * @param totalNanos from the call until the last token was handed to the listener
+ * @param reason why generation ended
+ */
+public record GenerationStats(int promptTokens, int prefillTokens, int generatedTokens,
+                              long timeToFirstTokenNanos, long totalNanos, StopReason reason) {
+
+    public enum StopReason {
+        /** A stop token was sampled. */
+        STOP_TOKEN,
+        /** The token budget ran out. */
+        MAX_TOKENS,
+        /** The listener asked to stop. */
+        CANCELLED
+    }
+
+    /** Decode throughput after the first token, in tokens per second. */
+    public double decodeTokensPerSecond() {
+        long decodeNanos = totalNanos - timeToFirstTokenNanos;
+        return generatedTokens > 1 && decodeNanos > 0 ? (generatedTokens - 1) * 1e9 / decodeNanos : 0.0;
+    }
+
+    /**
+     * One-line summary for logs.
+     */
+    public String summary() {
+        return String.format("%d prompt tokens (%d prefilled), %d generated, TTFT %.1f ms, total %.1f ms, "
+                        + "%.1f tok/s decode, %s",
+                promptTokens, prefillTokens, generatedTokens, timeToFirstTokenNanos / 1e6, totalNanos / 1e6,
+                decodeTokensPerSecond(), reason);
+    }
+}
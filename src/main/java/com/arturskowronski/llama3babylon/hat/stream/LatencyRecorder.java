@@ -0,0 +1,73 @@
+package com.arturskowronski.llama3babylon.hat.stream;
+
+import java.util.Arrays;
+
+/**
+ * Percentiles over the most recent latency samples (for example the gaps between
+ * streamed tokens), so a long-running server reports current behaviour rather than
+ * its all-time history.
+ *
+ * Samples go into a fixed ring buffer; {@link #percentile} sorts a copy, so recording
+ * stays O(1) on the generating thread and the cost is paid by whoever reads the stats.
+ * Thread-safe.
+ */
+public final class LatencyRecorder {
+
+    private final long[] samples;
+    private long count;
+    private long maxNanos;
+
+    /**
+     * @param window number of most recent samples percentiles are computed over
+     */
+    public LatencyRecorder(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive: " + window);
+        }
+        this.samples = new long[window];
+    }
+
+    public synchronized void record(long nanos) {
+        samples[(int) (count % samples.length)] = nanos;
+        count++;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    /** Samples recorded since creation (not just those in the window). */
+    public synchronized long count() {
+        return count;
+    }
+
+    /** Largest sample recorded since creation. */
+    public synchronized long maxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * Nearest-rank percentile of the samples in the window.
+     *
+     * @param p percentile in [0, 100]
+     * @return the sample at that rank, or 0 if nothing was recorded
+     */
+    public synchronized long percentile(double p) {
+        if (p < 0 || p > 100) {
+            throw new IllegalArgumentException("percentile must be in [0, 100]: " + p);
+        }
+        int n = (int) Math.min(count, samples.length);
+        if (n == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, n);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(p / 100.0 * n);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * One-line summary for logs, e.g. {@code "inter-token p50 41.2 ms, p90 ..., p99 ..., max ... (1234 samples)"}.
+     */
+    public String summary(String label) {
+        return String.format("%s p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms (%d samples)", label,
+                percentile(50) / 1e6, percentile(90) / 1e6, percentile(99) / 1e6, maxNanos() / 1e6, count());
+    }
+}
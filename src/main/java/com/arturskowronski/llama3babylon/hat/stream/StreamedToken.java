@@ -0,0 +1,10 @@
+package com.arturskowronski.llama3babylon.hat.stream;
+
+/**
+ * One generated token as published by {@link TokenPublisher}.
+ *
+ * @param token sampled token ID
+ * @param text text completed by this token (may be empty)
+ */
+public record StreamedToken(int token, String text) {
+}
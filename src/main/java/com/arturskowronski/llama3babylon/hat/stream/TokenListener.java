@@ -0,0 +1,38 @@
+package com.arturskowronski.llama3babylon.hat.stream;
+
+/**
+ * Receives generated tokens as soon as they are sampled.
+ *
+ * {@link #onToken} runs on the generating thread between decode steps, so a slow
+ * listener slows generation down; hand work off to another thread if it blocks.
+ *
+ * <pre>
+ *   inference.chatStreaming(system, user, 256, (token, text) -&gt; System.out.print(text));
+ * </pre>
+ */
+@FunctionalInterface
+public interface TokenListener {
+
+    /**
+     * Called once per generated token, stop tokens excluded.
+     *
+     * @param token sampled token ID
+     * @param text text completed by this token; empty while a multi-byte character
+     *             is still split across tokens
+     */
+    void onToken(int token, String text);
+
+    /**
+     * Called once after the last token, unless generation failed.
+     */
+    default void onComplete(GenerationStats stats) {
+    }
+
+    /**
+     * Polled before every decode step; returning true ends generation early
+     * (e.g. after a client disconnected).
+     */
+    default boolean isCancelled() {
+        return false;
+    }
+}
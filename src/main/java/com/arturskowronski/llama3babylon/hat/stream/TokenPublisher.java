@@ -0,0 +1,106 @@
+package com.arturskowronski.llama3babylon.hat.stream;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * {@link Flow.Publisher} adapter over a {@link TokenListener}-based generation, for
+ * reactive consumers.
+ *
+ * The publisher is cold and single-use: the generation starts on the given executor
+ * when the subscriber arrives, and a second subscriber gets an
+ * {@link IllegalStateException}. Tokens are delivered through a
+ * {@link SubmissionPublisher}, so a subscriber that requests slowly holds generation
+ * back once its buffer is full, and cancelling the subscription stops generation at
+ * the next decode step. A failed generation completes the stream exceptionally.
+ */
+public final class TokenPublisher implements Flow.Publisher<StreamedToken> {
+
+    private final Consumer<TokenListener> generation;
+    private final Executor executor;
+    private final int bufferCapacity;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private final CompletableFuture<GenerationStats> stats = new CompletableFuture<>();
+
+    /**
+     * @param generation runs the generation, feeding the given listener
+     * @param executor runs the generation (delivery uses the common pool)
+     */
+    public TokenPublisher(Consumer<TokenListener> generation, Executor executor) {
+        this(generation, executor, Flow.defaultBufferSize());
+    }
+
+    /**
+     * @param generation runs the generation, feeding the given listener
+     * @param executor runs the generation (delivery uses the common pool)
+     * @param bufferCapacity tokens buffered for the subscriber before generation waits
+     */
+    public TokenPublisher(Consumer<TokenListener> generation, Executor executor, int bufferCapacity) {
+        if (bufferCapacity <= 0) {
+            throw new IllegalArgumentException("bufferCapacity must be positive: " + bufferCapacity);
+        }
+        this.generation = Objects.requireNonNull(generation);
+        this.executor = Objects.requireNonNull(executor);
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super StreamedToken> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("TokenPublisher accepts a single subscriber"));
+            return;
+        }
+        SubmissionPublisher<StreamedToken> publisher = new SubmissionPublisher<>(
+                ForkJoinPool.commonPool(), bufferCapacity);
+        publisher.subscribe(subscriber);
+        executor.execute(() -> run(publisher));
+    }
+
+    /**
+     * Completes with the generation's stats when it ends (exceptionally if it failed).
+     */
+    public CompletableFuture<GenerationStats> stats() {
+        return stats;
+    }
+
+    private void run(SubmissionPublisher<StreamedToken> publisher) {
+        try {
+            generation.accept(new TokenListener() {
+                @Override
+                public void onToken(int token, String text) {
+                    publisher.submit(new StreamedToken(token, text));
+                }
+
+                @Override
+                public void onComplete(GenerationStats result) {
+                    stats.complete(result);
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return !publisher.hasSubscribers();
+                }
+            });
+            publisher.close();
+        } catch (Throwable t) {
+            stats.completeExceptionally(t);
+            publisher.closeExceptionally(t);
+        }
+    }
+}
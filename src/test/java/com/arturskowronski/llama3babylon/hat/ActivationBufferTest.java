@@ -0,0 +1,63 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import hat.Accelerator;
+import hat.buffer.F32Array;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandles;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class ActivationBufferTest {
+
+    private final Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+
+    @Test
+    public void testHostWritesVisibleOnDevice() {
+        ActivationBuffer buffer = new ActivationBuffer(accelerator, 8);
+        float[] host = buffer.hostForWrite();
+        for (int i = 0; i < 8; i++) {
+            host[i] = i + 1.0f;
+        }
+
+        F32Array device = buffer.device();
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i + 1.0f, device.array(i), 0.0f);
+        }
+    }
+
+    @Test
+    public void testDeviceWritesVisibleOnHost() {
+        ActivationBuffer buffer = new ActivationBuffer(accelerator, 4);
+        F32Array device = buffer.deviceForWrite();
+        device.array(2, 7.0f);
+
+        assertEquals(7.0f, buffer.host()[2], 0.0f);
+    }
+
+    @Test
+    public void testRangeWritesRoundTrip() {
+        ActivationBuffer buffer = new ActivationBuffer(accelerator, 6);
+        F32Array device = buffer.device();
+
+        buffer.deviceForWrite(0, 1).array(0, 3.0f);
+        buffer.host();
+        buffer.hostForWrite(4, 5)[4] = 9.0f;
+
+        assertSame(device, buffer.device());
+        assertEquals(3.0f, device.array(0), 0.0f);
+        assertEquals(9.0f, device.array(4), 0.0f);
+        assertEquals(0.0f, device.array(5), 0.0f);
+    }
+
+    @Test
+    public void testHostOnlyUseNeverSyncs() {
+        ActivationBuffer buffer = new ActivationBuffer(accelerator, 3);
+        buffer.hostForWrite()[1] = 5.0f;
+        buffer.hostForWrite()[1] += 1.0f;
+
+        assertEquals(6.0f, buffer.host()[1], 0.0f);
+        assertEquals(6.0f, buffer.device().array(1), 0.0f);
+    }
+}
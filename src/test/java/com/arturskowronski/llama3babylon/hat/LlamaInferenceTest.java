@@ -1,8 +1,14 @@
 package com.arturskowronski.llama3babylon.hat;
 
+import hat.Accelerator;
+import hat.buffer.F32Array;
 import org.junit.jupiter.api.Test;
 
+import java.lang.invoke.MethodHandles;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class LlamaInferenceTest {
 
@@ -35,4 +41,24 @@ public class LlamaInferenceTest {
         float[] values = {42.0f};
         assertEquals(0, LlamaInference.argmax(values));
     }
+
+    @Test
+    public void testArgmaxF32ArrayRespectsSize() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        F32Array values = F32Array.create(accelerator, 5);
+        float[] data = {-1.0f, 4.0f, 2.0f, -3.0f, 9.0f};
+        for (int i = 0; i < data.length; i++) {
+            values.array(i, data[i]);
+        }
+        assertEquals(4, LlamaInference.argmax(values, 5));
+        assertEquals(1, LlamaInference.argmax(values, 4));
+    }
+
+    @Test
+    public void testContainsToken() {
+        int[] stopTokens = {128001, 128009};
+        assertTrue(LlamaInference.containsToken(stopTokens, 128009));
+        assertFalse(LlamaInference.containsToken(stopTokens, 42));
+        assertFalse(LlamaInference.containsToken(new int[0], 128001));
+    }
 }
@@ -63,6 +63,30 @@ public class LlamaModelTest {
         assertEquals(5.0f, tensor.array(4), 0.0001f);
     }
 
+    @Test
+    public void testContextLengthDefaultsWithoutMetadata() throws IOException {
+        Path ggufPath = tempDir.resolve("llama_no_ctx.gguf");
+        MinimalGGUFGenerator.generateLlamaWithTensor(ggufPath, "test.weight", new float[]{1.0f});
+
+        LlamaModel model = new LlamaModel(ggufPath, false);
+
+        assertEquals(LlamaModel.MAX_SEQ_LEN, model.getContextLength());
+    }
+
+    @Test
+    public void testFingerprintIdentifiesTensorLayout() throws IOException {
+        Path a = tempDir.resolve("llama_a.gguf");
+        Path b = tempDir.resolve("llama_b.gguf");
+        Path c = tempDir.resolve("llama_c.gguf");
+        MinimalGGUFGenerator.generateLlamaWithTensor(a, "test.weight", new float[]{1.0f, 2.0f});
+        MinimalGGUFGenerator.generateLlamaWithTensor(b, "test.weight", new float[]{1.0f, 2.0f});
+        MinimalGGUFGenerator.generateLlamaWithTensor(c, "other.weight", new float[]{1.0f, 2.0f, 3.0f});
+
+        long fingerprint = new LlamaModel(a, false).fingerprint();
+        assertEquals(fingerprint, new LlamaModel(b, false).fingerprint());
+        assertNotEquals(fingerprint, new LlamaModel(c, false).fingerprint());
+    }
+
     @Test
     public void testMapTensorCaching() throws IOException {
         Path ggufPath = tempDir.resolve("llama_cache_test.gguf");
@@ -0,0 +1,33 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import hat.Accelerator;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandles;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ScratchArenaTest {
+
+    @Test
+    public void testArenaSizedFromModelConfig() {
+        ScratchArena arena = ScratchArena.allocate(new Accelerator(MethodHandles.lookup()));
+
+        int kvDim = LlamaModel.NUM_KV_HEADS * LlamaModel.HEAD_DIM;
+        assertEquals(LlamaModel.HIDDEN_SIZE, arena.q().length());
+        assertEquals(kvDim, arena.k().length());
+        assertEquals(kvDim, arena.v().length());
+        assertEquals(LlamaModel.INTERMEDIATE_SIZE, arena.ffn1Out().length());
+
+        // 4 x 2048 + 2 x 512 + 2 x 8192 floats
+        assertEquals(25_600L * Float.BYTES, arena.bytes());
+    }
+
+    @Test
+    public void testMemoryReportShowsSavings() {
+        ScratchArena arena = ScratchArena.allocate(new Accelerator(MethodHandles.lookup()));
+
+        assertEquals("Scratch arena: 100 KB shared by 16 layers (per-layer buffers: 1600 KB, saved 1500 KB)",
+                arena.memoryReport(LlamaModel.NUM_LAYERS));
+    }
+}
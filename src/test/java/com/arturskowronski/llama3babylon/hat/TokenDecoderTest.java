@@ -0,0 +1,116 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenDecoderTest {
+
+    // Byte-level vocabulary: token i is byte i, followed by two multi-byte tokens
+    private static final int E_ACUTE = 256;      // "é" (C3 A9) in one token
+    private static final int TAIL_AND_X = 257;   // A9 'x': ends a character started by the previous token
+
+    private final Tokenizer tokenizer = byteTokenizer();
+
+    @Test
+    public void testCharacterSplitAcrossTokensIsHeldBack() {
+        TokenDecoder decoder = new TokenDecoder(tokenizer);
+        byte[] emoji = "😀".getBytes(StandardCharsets.UTF_8); // 4 bytes
+
+        for (int i = 0; i < emoji.length - 1; i++) {
+            assertEquals("", decoder.append(emoji[i] & 0xFF));
+            assertEquals(i + 1, decoder.pendingBytes());
+        }
+        assertEquals("😀", decoder.append(emoji[emoji.length - 1] & 0xFF));
+        assertEquals(0, decoder.pendingBytes());
+    }
+
+    @Test
+    public void testTokenCompletingCharacterAlsoEmitsItsOwnText() {
+        TokenDecoder decoder = new TokenDecoder(tokenizer);
+
+        assertEquals("a", decoder.append('a'));
+        assertEquals("", decoder.append(0xC3));
+        assertEquals("éx", decoder.append(TAIL_AND_X));
+        assertEquals("é", decoder.append(E_ACUTE));
+    }
+
+    @Test
+    public void testStreamedTextMatchesBatchDecode() {
+        String text = "Zażółć gęślą jaźń, 世界 🚀 done";
+        List<Integer> tokens = tokenizer.encodeAsList(text);
+        TokenDecoder decoder = new TokenDecoder(tokenizer);
+
+        StringBuilder streamed = new StringBuilder();
+        for (int token : tokens) {
+            String piece = decoder.append(token);
+            assertFalse(piece.contains("�"), "partial character emitted");
+            streamed.append(piece);
+        }
+        streamed.append(decoder.flush());
+
+        assertEquals(text, streamed.toString());
+        assertEquals(tokenizer.decode(tokens), streamed.toString());
+    }
+
+    @Test
+    public void testFlushEmitsIncompleteCharacter() {
+        TokenDecoder decoder = new TokenDecoder(tokenizer);
+        decoder.append(0xE4);
+        decoder.append(0xB8);
+
+        assertEquals("�", decoder.flush());
+        assertEquals(0, decoder.pendingBytes());
+        assertEquals("", decoder.flush());
+    }
+
+    @Test
+    public void testStrayContinuationBytesAreNotBufferedForever() {
+        TokenDecoder decoder = new TokenDecoder(tokenizer);
+        for (int i = 0; i < 4; i++) {
+            decoder.append(0xA9);
+        }
+        assertEquals(0, decoder.pendingBytes());
+    }
+
+    @Test
+    public void testTokenBytes() {
+        assertArrayEquals(new byte[]{(byte) 0xC3, (byte) 0xA9}, tokenizer.tokenBytes(E_ACUTE));
+        assertArrayEquals(new byte[]{'a'}, tokenizer.tokenBytes('a'));
+        assertEquals(0, tokenizer.tokenBytes(-1).length);
+        assertEquals(0, tokenizer.tokenBytes(tokenizer.vocabularySize()).length);
+    }
+
+    private static Tokenizer byteTokenizer() {
+        Map<Integer, Character> byteToChar = gpt2ByteEncoding();
+        List<Object> vocabulary = new ArrayList<>();
+        for (int b = 0; b < 256; b++) {
+            vocabulary.add(String.valueOf(byteToChar.get(b)));
+        }
+        vocabulary.add("" + byteToChar.get(0xC3) + byteToChar.get(0xA9));
+        vocabulary.add("" + byteToChar.get(0xA9) + byteToChar.get((int) 'x'));
+
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("tokenizer.ggml.model", "gpt2");
+        metadata.put("tokenizer.ggml.tokens", vocabulary);
+        metadata.put("tokenizer.ggml.merges", List.of());
+        return Tokenizer.fromGGUFMetadata(metadata);
+    }
+
+    /** GPT-2 byte-to-unicode table, as stored in GGUF vocabularies. */
+    private static Map<Integer, Character> gpt2ByteEncoding() {
+        Map<Integer, Character> map = new HashMap<>();
+        int n = 0;
+        for (int b = 0; b < 256; b++) {
+            boolean printable = (b >= '!' && b <= '~') || (b >= 0xA1 && b <= 0xAC) || (b >= 0xAE && b <= 0xFF);
+            map.put(b, (char) (printable ? b : 256 + n++));
+        }
+        return map;
+    }
+}
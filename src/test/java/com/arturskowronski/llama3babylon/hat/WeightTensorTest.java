@@ -0,0 +1,64 @@
+package com.arturskowronski.llama3babylon.hat;
+
+import com.arturskowronski.llama3babylon.hat.kernels.GEMV;
+import hat.Accelerator;
+import hat.buffer.F16Array;
+import hat.buffer.F32Array;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandles;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class WeightTensorTest {
+
+    private static final int ROWS = 2;
+    private static final int COLS = 3;
+    // Values exactly representable in F16, so all storage formats agree bit-for-bit
+    private static final float[] MATRIX = {1.0f, 2.0f, 0.5f, -1.0f, 0.25f, 4.0f};
+
+    private final Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+
+    @Test
+    public void testAllStorageFormatsProjectIdentically() {
+        for (WeightTensor tensor : allFormats()) {
+            ActivationBuffer input = new ActivationBuffer(accelerator, COLS);
+            float[] in = input.hostForWrite();
+            in[0] = 1.0f;
+            in[1] = -2.0f;
+            in[2] = 3.0f;
+            ActivationBuffer output = new ActivationBuffer(accelerator, ROWS);
+
+            tensor.bind(new GEMV(accelerator)).apply(input, output);
+
+            // [1*1 + 2*-2 + 0.5*3, -1*1 + 0.25*-2 + 4*3]
+            assertArrayEquals(new float[]{-1.5f, 10.5f}, output.host(), 1e-6f,
+                    tensor.getClass().getSimpleName());
+        }
+    }
+
+    @Test
+    public void testReadRowDequantizes() {
+        for (WeightTensor tensor : allFormats()) {
+            float[] row = new float[COLS];
+            tensor.readRow(1, row);
+            assertArrayEquals(new float[]{-1.0f, 0.25f, 4.0f}, row, 0.0f, tensor.getClass().getSimpleName());
+        }
+    }
+
+    private WeightTensor[] allFormats() {
+        F32Array f32 = F32Array.create(accelerator, MATRIX.length);
+        F16Array f16 = F16Array.create(accelerator, MATRIX.length);
+        short[] raw = new short[MATRIX.length];
+        for (int i = 0; i < MATRIX.length; i++) {
+            f32.array(i, MATRIX[i]);
+            raw[i] = Float.floatToFloat16(MATRIX[i]);
+            f16.array(i).value(raw[i]);
+        }
+        return new WeightTensor[]{
+                new WeightTensor.OfF32(f32, ROWS, COLS),
+                new WeightTensor.OfF16(f16, ROWS, COLS),
+                new WeightTensor.OfF16Fast(new F16Weights(raw, ROWS, COLS))
+        };
+    }
+}
@@ -0,0 +1,108 @@
+package com.arturskowronski.llama3babylon.hat.benchmark;
+
+import com.arturskowronski.llama3babylon.hat.BatchScheduler;
+import com.arturskowronski.llama3babylon.hat.ChatFormat;
+import com.arturskowronski.llama3babylon.hat.LlamaInference;
+import com.arturskowronski.llama3babylon.hat.RequestOptions;
+import com.arturskowronski.llama3babylon.hat.stream.GenerationStats;
+import com.arturskowronski.llama3babylon.hat.stream.LatencyRecorder;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Interactive time to first token behind a batch backlog, with and without priority classes.
+ *
+ * Each round fills the queue with batch jobs, then submits interactive requests one after
+ * another while the backlog drains. Without priorities every request is {@code STANDARD}
+ * and an interactive one waits behind the whole backlog; with them the interactive requests
+ * take the next free slot. Batch throughput is reported too, since the jobs should absorb
+ * the delay rather than lose it.
+ *
+ * Knobs: {@code BENCHMARK_MAX_BATCH} (default 4), {@code BENCHMARK_BATCH_JOBS} (default 16),
+ * {@code BENCHMARK_INTERACTIVE_REQUESTS} (default 8) and {@code BENCHMARK_MAX_TOKENS}
+ * (tokens per request, default 24).
+ */
+@Tag("benchmark")
+public class AdmissionPriorityBenchmarkTest {
+
+    private static final int MAX_BATCH = parsePositiveInt(System.getenv("BENCHMARK_MAX_BATCH"), 4);
+    private static final int BATCH_JOBS = parsePositiveInt(System.getenv("BENCHMARK_BATCH_JOBS"), 16);
+    private static final int INTERACTIVE = parsePositiveInt(System.getenv("BENCHMARK_INTERACTIVE_REQUESTS"), 8);
+    private static final int NEW_TOKENS = parsePositiveInt(System.getenv("BENCHMARK_MAX_TOKENS"), 24);
+
+    @Test
+    public void benchmarkInteractiveLatencyUnderBatchBacklog() throws Exception {
+        if (!InferenceBenchmarkSupport.isModelAvailable()) {
+            InferenceBenchmarkSupport.recordResult(
+                    InferenceBenchmarkSupport.skipped("Admission priority", "LLAMA_FP16_PATH is not set"));
+            return;
+        }
+        Path modelPath = InferenceBenchmarkSupport.modelPathFromEnv();
+        LlamaInference inference = new LlamaInference(modelPath);
+        int[] prompt = inference.chatFormat().encodeDialogPrompt(List.of(
+                        new ChatFormat.Message(ChatFormat.Role.SYSTEM, InferenceBenchmarkSupport.SYSTEM_PROMPT),
+                        new ChatFormat.Message(ChatFormat.Role.USER, InferenceBenchmarkSupport.USER_PROMPT)))
+                .stream().mapToInt(Integer::intValue).toArray();
+
+        List<double[]> rows = new ArrayList<>();
+        for (boolean priorities : new boolean[]{false, true}) {
+            String label = priorities ? "priority classes" : "arrival order";
+            System.out.println(">>> Starting: " + label);
+            try (BatchScheduler scheduler = new BatchScheduler(inference, MAX_BATCH)) {
+                // Warm-up: JIT the batched path before timing
+                scheduler.submit(prompt, 2, new int[0], (token, t) -> {}).join();
+
+                RequestOptions batch = RequestOptions.of(priorities
+                        ? RequestOptions.Priority.BATCH : RequestOptions.Priority.STANDARD);
+                RequestOptions interactive = RequestOptions.of(priorities
+                        ? RequestOptions.Priority.INTERACTIVE : RequestOptions.Priority.STANDARD);
+
+                long start = System.nanoTime();
+                List<CompletableFuture<GenerationStats>> jobs = new ArrayList<>();
+                for (int j = 0; j < BATCH_JOBS; j++) {
+                    jobs.add(scheduler.submit(prompt, NEW_TOKENS, new int[0], batch, (token, t) -> {}));
+                }
+                LatencyRecorder ttft = new LatencyRecorder(INTERACTIVE);
+                for (int i = 0; i < INTERACTIVE; i++) {
+                    GenerationStats stats = scheduler.submit(prompt, NEW_TOKENS, new int[0], interactive,
+                            (token, t) -> {}).join();
+                    ttft.record(stats.timeToFirstTokenNanos());
+                }
+                long batchTokens = 0;
+                for (CompletableFuture<GenerationStats> job : jobs) {
+                    batchTokens += job.join().generatedTokens();
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                rows.add(new double[]{priorities ? 1 : 0, ttft.percentile(50) / 1e6, ttft.percentile(99) / 1e6,
+                        batchTokens / seconds});
+                System.out.println("  " + scheduler.stats());
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-18s %18s %18s %14s%n", "Ordering", "Interactive p50 ms", "Interactive p99 ms",
+                "Batch tok/s");
+        for (double[] row : rows) {
+            System.out.printf("%-18s %18.1f %18.1f %14.2f%n", row[0] == 1 ? "priority classes" : "arrival order",
+                    row[1], row[2], row[3]);
+        }
+        System.out.println("  Slots: " + MAX_BATCH + " | Batch jobs: " + BATCH_JOBS + " | Interactive: "
+                + INTERACTIVE + " | Tokens/request: " + NEW_TOKENS);
+        System.out.println();
+    }
+
+    private static int parsePositiveInt(String raw, int fallback) {
+        if (raw == null || raw.isBlank()) return fallback;
+        try {
+            int value = Integer.parseInt(raw.trim());
+            return value > 0 ? value : fallback;
+        } catch (NumberFormatException ignored) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.arturskowronski.llama3babylon.hat.benchmark;
+
+import com.arturskowronski.llama3babylon.hat.BatchScheduler;
+import com.arturskowronski.llama3babylon.hat.ChatFormat;
+import com.arturskowronski.llama3babylon.hat.LlamaInference;
+import com.arturskowronski.llama3babylon.hat.stream.GenerationStats;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Aggregate decode throughput of the {@link BatchScheduler} as the batch grows.
+ *
+ * For each batch size B, B copies of the same chat prompt are submitted at once with
+ * stop tokens disabled, so every sequence generates exactly the token budget. Aggregate
+ * tokens/sec is all generated tokens over wall time; with weight streaming dominating a
+ * decode step it should grow close to linearly in B until the step becomes compute-bound.
+ *
+ * Knobs: {@code BENCHMARK_MAX_BATCH} (largest batch, default 8, doubled from 1) and
+ * {@code BENCHMARK_MAX_TOKENS} (tokens per sequence, default 32).
+ */
+@Tag("benchmark")
+public class BatchThroughputBenchmarkTest {
+
+    private static final int MAX_BATCH = parsePositiveInt(System.getenv("BENCHMARK_MAX_BATCH"), 8);
+    private static final int NEW_TOKENS = parsePositiveInt(System.getenv("BENCHMARK_MAX_TOKENS"), 32);
+
+    @Test
+    public void benchmarkAggregateThroughputByBatchSize() throws Exception {
+        if (!InferenceBenchmarkSupport.isModelAvailable()) {
+            InferenceBenchmarkSupport.recordResult(
+                    InferenceBenchmarkSupport.skipped("Batch throughput", "LLAMA_FP16_PATH is not set"));
+            return;
+        }
+        Path modelPath = InferenceBenchmarkSupport.modelPathFromEnv();
+        LlamaInference inference = new LlamaInference(modelPath);
+        int[] prompt = inference.chatFormat().encodeDialogPrompt(List.of(
+                        new ChatFormat.Message(ChatFormat.Role.SYSTEM, InferenceBenchmarkSupport.SYSTEM_PROMPT),
+                        new ChatFormat.Message(ChatFormat.Role.USER, InferenceBenchmarkSupport.USER_PROMPT)))
+                .stream().mapToInt(Integer::intValue).toArray();
+
+        List<double[]> rows = new ArrayList<>();
+        try (BatchScheduler scheduler = new BatchScheduler(inference, MAX_BATCH)) {
+            // Warm-up: JIT the batched path before timing
+            scheduler.submit(prompt, 4, new int[0], (token, text) -> {}).join();
+
+            for (int batch = 1; batch <= MAX_BATCH; batch *= 2) {
+                System.out.println(">>> Starting: batch " + batch);
+                long start = System.nanoTime();
+                List<CompletableFuture<GenerationStats>> futures = new ArrayList<>();
+                for (int b = 0; b < batch; b++) {
+                    futures.add(scheduler.submit(prompt, NEW_TOKENS, new int[0], (token, text) -> {}));
+                }
+                long generated = 0;
+                double ttftMs = 0;
+                for (CompletableFuture<GenerationStats> future : futures) {
+                    GenerationStats stats = future.join();
+                    generated += stats.generatedTokens();
+                    ttftMs = Math.max(ttftMs, stats.timeToFirstTokenNanos() / 1e6);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                rows.add(new double[]{batch, generated / seconds, ttftMs});
+            }
+            System.out.println("  " + scheduler.stats());
+        }
+
+        double base = rows.get(0)[1];
+        System.out.println();
+        System.out.printf("%-8s %16s %10s %14s%n", "Batch", "Aggregate tok/s", "Speedup", "Max TTFT ms");
+        for (double[] row : rows) {
+            System.out.printf("%-8d %16.2f %9.2fx %14.1f%n", (int) row[0], row[1], row[1] / base, row[2]);
+        }
+        System.out.println("  Prompt: " + prompt.length + " tokens | New tokens per sequence: " + NEW_TOKENS);
+        System.out.println();
+    }
+
+    private static int parsePositiveInt(String raw, int fallback) {
+        if (raw == null || raw.isBlank()) return fallback;
+        try {
+            int value = Integer.parseInt(raw.trim());
+            return value > 0 ? value : fallback;
+        } catch (NumberFormatException ignored) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.arturskowronski.llama3babylon.hat.benchmark;
+
+import com.arturskowronski.llama3babylon.hat.BatchScheduler;
+import com.arturskowronski.llama3babylon.hat.ChatFormat;
+import com.arturskowronski.llama3babylon.hat.LlamaInference;
+import com.arturskowronski.llama3babylon.hat.stream.GenerationStats;
+import com.arturskowronski.llama3babylon.hat.stream.LatencyRecorder;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Inter-token latency of running streams while a long prompt is prefilled, by prefill chunk size.
+ *
+ * For each chunk size, a few short-prompt streams start decoding; once each has produced its
+ * first token, a long prompt is submitted and prefilled in chunks alongside their decode
+ * tokens. The streams' inter-token gaps (p50/p99/max) show how much the prefill stretches
+ * their steps; the long prompt's time to first token shows what smaller chunks cost it.
+ * The step budget is the scheduler default of one decode token per slot plus one chunk.
+ *
+ * Knobs: {@code BENCHMARK_DECODE_STREAMS} (default 3), {@code BENCHMARK_MAX_TOKENS}
+ * (tokens per stream, default 48) and {@code BENCHMARK_LONG_PROMPT_TOKENS} (default 384).
+ */
+@Tag("benchmark")
+public class ChunkedPrefillBenchmarkTest {
+
+    private static final int[] CHUNKS = {4, 16, 64, 256};
+    private static final int STREAMS = parsePositiveInt(System.getenv("BENCHMARK_DECODE_STREAMS"), 3);
+    private static final int NEW_TOKENS = parsePositiveInt(System.getenv("BENCHMARK_MAX_TOKENS"), 48);
+    private static final int LONG_PROMPT_TOKENS = parsePositiveInt(System.getenv("BENCHMARK_LONG_PROMPT_TOKENS"), 384);
+
+    @Test
+    public void benchmarkDecodeLatencyUnderPrefillByChunkSize() throws Exception {
+        if (!InferenceBenchmarkSupport.isModelAvailable()) {
+            InferenceBenchmarkSupport.recordResult(
+                    InferenceBenchmarkSupport.skipped("Chunked prefill", "LLAMA_FP16_PATH is not set"));
+            return;
+        }
+        Path modelPath = InferenceBenchmarkSupport.modelPathFromEnv();
+        LlamaInference inference = new LlamaInference(modelPath);
+        int[] shortPrompt = encode(inference, InferenceBenchmarkSupport.USER_PROMPT);
+        StringBuilder text = new StringBuilder();
+        int[] longPrompt = shortPrompt;
+        while (longPrompt.length < LONG_PROMPT_TOKENS) {
+            text.append(InferenceBenchmarkSupport.USER_PROMPT).append(' ');
+            longPrompt = encode(inference, text.toString());
+        }
+
+        List<double[]> rows = new ArrayList<>();
+        for (int chunk : CHUNKS) {
+            System.out.println(">>> Starting: prefill chunk " + chunk);
+            try (BatchScheduler scheduler = new BatchScheduler(inference, STREAMS + 1, chunk, STREAMS + 1 + chunk)) {
+                // Warm-up: JIT the batched path at this step shape before timing
+                scheduler.submit(longPrompt, 2, new int[0], (token, t) -> {}).join();
+
+                LatencyRecorder gaps = new LatencyRecorder(STREAMS * NEW_TOKENS);
+                CountDownLatch started = new CountDownLatch(STREAMS);
+                List<CompletableFuture<GenerationStats>> streams = new ArrayList<>();
+                for (int s = 0; s < STREAMS; s++) {
+                    long[] last = {0};
+                    streams.add(scheduler.submit(shortPrompt, NEW_TOKENS, new int[0], (token, t) -> {
+                        long now = System.nanoTime();
+                        if (last[0] == 0) {
+                            started.countDown();
+                        } else {
+                            gaps.record(now - last[0]);
+                        }
+                        last[0] = now;
+                    }));
+                }
+                started.await();
+                GenerationStats longStats = scheduler.submit(longPrompt, 1, new int[0], (token, t) -> {}).join();
+                for (CompletableFuture<GenerationStats> stream : streams) {
+                    stream.join();
+                }
+                rows.add(new double[]{chunk, gaps.percentile(50) / 1e6, gaps.percentile(99) / 1e6,
+                        gaps.maxNanos() / 1e6, longStats.timeToFirstTokenNanos() / 1e6});
+                System.out.println("  " + scheduler.stats());
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-8s %12s %12s %12s %16s%n", "Chunk", "ITL p50 ms", "ITL p99 ms", "ITL max ms",
+                "Long TTFT ms");
+        for (double[] row : rows) {
+            System.out.printf("%-8d %12.1f %12.1f %12.1f %16.1f%n", (int) row[0], row[1], row[2], row[3], row[4]);
+        }
+        System.out.println("  Streams: " + STREAMS + " x " + NEW_TOKENS + " tokens | Long prompt: "
+                + longPrompt.length + " tokens");
+        System.out.println();
+    }
+
+    private static int[] encode(LlamaInference inference, String user) {
+        return inference.chatFormat().encodeDialogPrompt(List.of(
+                        new ChatFormat.Message(ChatFormat.Role.SYSTEM, InferenceBenchmarkSupport.SYSTEM_PROMPT),
+                        new ChatFormat.Message(ChatFormat.Role.USER, user)))
+                .stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int parsePositiveInt(String raw, int fallback) {
+        if (raw == null || raw.isBlank()) return fallback;
+        try {
+            int value = Integer.parseInt(raw.trim());
+            return value > 0 ? value : fallback;
+        } catch (NumberFormatException ignored) {
+            return fallback;
+        }
+    }
+}
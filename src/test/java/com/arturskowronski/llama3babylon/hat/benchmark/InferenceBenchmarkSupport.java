@@ -5,6 +5,7 @@ import com.arturskowronski.llama3babylon.hat.LlamaInference;
 import com.arturskowronski.llama3babylon.hat.WeightStorageMode;
 import com.arturskowronski.llama3babylon.hat.kernels.HybridKernelFactory;
 import com.arturskowronski.llama3babylon.hat.kernels.PlainJavaKernelFactory;
+import com.arturskowronski.llama3babylon.hat.kernels.VectorKernelFactory;
 
 import java.io.IOException;
 import java.nio.file.Path;
@@ -12,6 +13,7 @@ import java.nio.file.Paths;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -60,7 +62,11 @@ final class InferenceBenchmarkSupport {
     }
 
     static BenchmarkResult runPlainJava(Path modelPath) {
-        return runBenchmark("Plain Java", () -> new LlamaInference(modelPath));
+        return runBenchmark("Plain Java", () -> new LlamaInference(modelPath, new PlainJavaKernelFactory()));
+    }
+
+    static BenchmarkResult runVectorJava(Path modelPath, String label) {
+        return runBenchmark(label, () -> new LlamaInference(modelPath, new VectorKernelFactory()));
     }
 
     static BenchmarkResult runWeightMode(Path modelPath, WeightStorageMode mode, String label) {
@@ -96,12 +102,16 @@ final class InferenceBenchmarkSupport {
 
     static List<BenchmarkResult> runKernelModeComparison(Path modelPath, HybridKernelFactory.KernelType kernel) {
         String kernelName = kernel.name();
-        return List.of(
-                runPlainJavaCached(modelPath),
-                runHatSingleKernel(modelPath, BackendType.JAVA_SEQ, kernel, "HAT Java Sequential (" + kernelName + ")"),
-                runHatSingleKernel(modelPath, BackendType.JAVA_MT, kernel, "HAT Java MT (" + kernelName + ")"),
-                runOpenclSingleKernel(modelPath, kernel, "HAT OpenCL GPU (" + kernelName + ")")
-        );
+        List<BenchmarkResult> results = new ArrayList<>();
+        results.add(runPlainJavaCached(modelPath));
+        // Kernels with a Vector API implementation in VectorKernelFactory
+        if (kernel == HybridKernelFactory.KernelType.ATTENTION || kernel == HybridKernelFactory.KernelType.ROPE) {
+            results.add(runVectorJava(modelPath, "Plain Java Vector API (" + kernelName + ")"));
+        }
+        results.add(runHatSingleKernel(modelPath, BackendType.JAVA_SEQ, kernel, "HAT Java Sequential (" + kernelName + ")"));
+        results.add(runHatSingleKernel(modelPath, BackendType.JAVA_MT, kernel, "HAT Java MT (" + kernelName + ")"));
+        results.add(runOpenclSingleKernel(modelPath, kernel, "HAT OpenCL GPU (" + kernelName + ")"));
+        return results;
     }
 
     static BenchmarkResult runOpenclSingleKernel(Path modelPath, HybridKernelFactory.KernelType kernel, String label) {
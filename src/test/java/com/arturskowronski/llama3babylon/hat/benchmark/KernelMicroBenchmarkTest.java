@@ -1,6 +1,7 @@
 package com.arturskowronski.llama3babylon.hat.benchmark;
 
 import com.arturskowronski.llama3babylon.hat.BackendType;
+import com.arturskowronski.llama3babylon.hat.RoPECache;
 import com.arturskowronski.llama3babylon.hat.kernels.HybridKernelFactory;
 import com.arturskowronski.llama3babylon.hat.kernels.IKernelFactory;
 import com.arturskowronski.llama3babylon.hat.kernels.PlainJavaKernelFactory;
@@ -142,8 +143,10 @@ public class KernelMicroBenchmarkTest {
                 F32Array vec = F32Array.create(acc, size);
                 fillLinear(vec, 0.001f, 0.1f);
 
+                RoPECache cache = new RoPECache(acc, headDim, pos + 1, RoPECache.DEFAULT_THETA, null);
+
                 var kernel = factory.createRoPE(acc);
-                yield () -> kernel.apply(vec, pos, numHeads, headDim, 500000.0f);
+                yield () -> kernel.apply(vec, pos, numHeads, headDim, cache);
             }
             case SILU -> {
                 int size = parsePositiveInt(System.getenv("BENCHMARK_SILU_SIZE"), 8192);
@@ -0,0 +1,202 @@
+package com.arturskowronski.llama3babylon.hat.benchmark;
+
+import com.arturskowronski.llama3babylon.hat.ChatFormat;
+import com.arturskowronski.llama3babylon.hat.GGUFReader;
+import com.arturskowronski.llama3babylon.hat.LlamaInference;
+import com.arturskowronski.llama3babylon.hat.LlamaModel;
+import com.arturskowronski.llama3babylon.hat.Tokenizer;
+import com.arturskowronski.llama3babylon.hat.kv.KVCache;
+import com.arturskowronski.llama3babylon.hat.kv.KVHeavyHitterPolicy;
+import com.arturskowronski.llama3babylon.hat.kv.KVWindowPolicy;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares bounded-memory KV policies against the full cache on one long prompt.
+ *
+ * The full cache generates a greedy reference continuation. Every policy is then fed
+ * the same prompt and reference tokens (teacher forcing) and scored on how often its
+ * next-token argmax matches the reference, and on the mean KL divergence of its
+ * next-token distribution from the full cache's. A free-running greedy generation
+ * also reports how many tokens it produces before it first diverges.
+ *
+ * At half the full cache's positions, every policy must still pick the reference token
+ * for at least {@value #MIN_TOP1_AGREEMENT_PERCENT}% of the teacher-forced steps; the
+ * quarter budgets are reported only.
+ *
+ * Knobs: {@code BENCHMARK_LOG_LINES} (prompt length, default 24 lines of roughly 15
+ * tokens) and {@code BENCHMARK_MAX_TOKENS} (continuation length, default 32).
+ */
+@Tag("benchmark")
+public class KvEvictionAgreementBenchmarkTest {
+
+    private static final int LOG_LINES = parsePositiveInt(System.getenv("BENCHMARK_LOG_LINES"), 24);
+    private static final int NEW_TOKENS = parsePositiveInt(System.getenv("BENCHMARK_MAX_TOKENS"), 32);
+    private static final int CHECKED_BUDGET_PERCENT = 50;
+    private static final double MIN_TOP1_AGREEMENT_PERCENT = 75.0;
+
+    @Test
+    public void benchmarkEvictionAgreementWithFullCache() throws Exception {
+        if (!InferenceBenchmarkSupport.isModelAvailable()) {
+            InferenceBenchmarkSupport.recordResult(
+                    InferenceBenchmarkSupport.skipped("KV eviction agreement", "LLAMA_FP16_PATH is not set"));
+            return;
+        }
+        Path modelPath = InferenceBenchmarkSupport.modelPathFromEnv();
+        int[] prompt = prompt(modelPath);
+        int total = prompt.length + NEW_TOKENS;
+
+        System.out.println("\n>>> Full-cache reference: " + prompt.length + " prompt + " + NEW_TOKENS + " new tokens");
+        LlamaInference full = new LlamaInference(modelPath);
+        int[] reference = new int[NEW_TOKENS];
+        float[][] referenceLogits = new float[NEW_TOKENS][];
+        run(full, prompt, reference, referenceLogits, true);
+        full = null;
+        System.gc();
+
+        List<Agreement> results = new ArrayList<>();
+        for (int percent : new int[]{CHECKED_BUDGET_PERCENT, 25}) {
+            int budget = Math.max(2 * KVCache.BLOCK_POSITIONS, total * percent / 100);
+            results.add(measure(modelPath, percent, "H2O " + percent + "% (" + budget + " positions)", prompt, reference,
+                    referenceLogits, inference -> inference.enableKvHeavyHitters(
+                            new KVHeavyHitterPolicy(budget, budget / 2))));
+            int windowBlocks = Math.max(1, budget / KVCache.BLOCK_POSITIONS - 1);
+            results.add(measure(modelPath, percent, "Sink window " + percent + "% (" + (windowBlocks + 1) * KVCache.BLOCK_POSITIONS
+                    + " positions)", prompt, reference, referenceLogits,
+                    inference -> inference.enableKvWindow(new KVWindowPolicy(1, windowBlocks))));
+        }
+
+        System.out.println();
+        System.out.printf("%-40s %12s %12s %16s%n", "Policy", "Top-1 agree", "Mean KL", "Tokens to diverge");
+        for (Agreement a : results) {
+            System.out.printf("%-40s %11.1f%% %12.4f %16d%n", a.name, a.top1 * 100, a.meanKl, a.tokensToDiverge);
+        }
+        System.out.println("  Prompt: " + prompt.length + " tokens | New tokens: " + NEW_TOKENS);
+        System.out.println();
+
+        for (Agreement a : results) {
+            if (a.budgetPercent == CHECKED_BUDGET_PERCENT) {
+                assertTrue(a.top1 * 100 >= MIN_TOP1_AGREEMENT_PERCENT, String.format(
+                        "%s agreed with the full cache on %.1f%% of next tokens, below the %.0f%% floor",
+                        a.name, a.top1 * 100, MIN_TOP1_AGREEMENT_PERCENT));
+            }
+        }
+    }
+
+    private static Agreement measure(Path modelPath, int budgetPercent, String name, int[] prompt, int[] reference,
+                                     float[][] referenceLogits, Consumer<LlamaInference> policy) throws Exception {
+        System.out.println(">>> Starting: " + name);
+        LlamaInference inference = new LlamaInference(modelPath);
+        policy.accept(inference);
+
+        // Teacher-forced: same inputs as the reference, compare every next-token distribution
+        float[][] logits = new float[NEW_TOKENS][];
+        run(inference, prompt, reference, logits, false);
+        int matches = 0;
+        double kl = 0.0;
+        for (int i = 0; i < NEW_TOKENS; i++) {
+            if (LlamaInference.argmax(logits[i]) == reference[i]) {
+                matches++;
+            }
+            kl += klDivergence(referenceLogits[i], logits[i]);
+        }
+
+        // Free-running greedy generation
+        int[] generated = new int[NEW_TOKENS];
+        run(inference, prompt, generated, null, true);
+        int diverge = 0;
+        while (diverge < NEW_TOKENS && generated[diverge] == reference[diverge]) {
+            diverge++;
+        }
+        System.out.println(">>> " + inference.memoryReport().lines().filter(l -> l.startsWith("KV caches")).findFirst().orElse(""));
+        inference = null;
+        System.gc();
+        return new Agreement(name, budgetPercent, (double) matches / NEW_TOKENS, kl / NEW_TOKENS, diverge);
+    }
+
+    /**
+     * Prefills {@code prompt}, then runs {@code tokens.length} steps. Greedy runs write
+     * their argmax into {@code tokens}; otherwise {@code tokens} are fed as given.
+     */
+    private static void run(LlamaInference inference, int[] prompt, int[] tokens, float[][] logitsOut, boolean greedy) {
+        inference.reset();
+        float[] logits = new float[LlamaModel.VOCAB_SIZE];
+        for (int pos = 0; pos < prompt.length; pos++) {
+            inference.forwardInto(prompt[pos], pos, logits);
+        }
+        for (int i = 0; i < tokens.length; i++) {
+            if (logitsOut != null) {
+                logitsOut[i] = logits.clone();
+            }
+            if (greedy) {
+                tokens[i] = LlamaInference.argmax(logits);
+            }
+            if (i + 1 < tokens.length) {
+                inference.forwardInto(tokens[i], prompt.length + i, logits);
+            }
+        }
+    }
+
+    /** KL(p || q) of the softmax distributions of two logit vectors. */
+    private static double klDivergence(float[] pLogits, float[] qLogits) {
+        double[] p = logSoftmax(pLogits);
+        double[] q = logSoftmax(qLogits);
+        double kl = 0.0;
+        for (int i = 0; i < p.length; i++) {
+            kl += Math.exp(p[i]) * (p[i] - q[i]);
+        }
+        return kl;
+    }
+
+    private static double[] logSoftmax(float[] logits) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (float v : logits) {
+            max = Math.max(max, v);
+        }
+        double sum = 0.0;
+        for (float v : logits) {
+            sum += Math.exp(v - max);
+        }
+        double logSum = max + Math.log(sum);
+        double[] out = new double[logits.length];
+        for (int i = 0; i < logits.length; i++) {
+            out[i] = logits[i] - logSum;
+        }
+        return out;
+    }
+
+    /** A log-summarization prompt whose answer depends on lines far from the end. */
+    private static int[] prompt(Path modelPath) throws Exception {
+        Tokenizer tokenizer = Tokenizer.fromGGUFMetadata(GGUFReader.readMetadata(modelPath).metadata());
+        StringBuilder log = new StringBuilder("Here is a service log:\n");
+        for (int i = 0; i < LOG_LINES; i++) {
+            String level = i % 7 == 3 ? "ERROR" : "INFO";
+            log.append(String.format("%02d:%02d %s request %d served by node-%d in %d ms%n",
+                    10 + i / 60, i % 60, level, 1000 + i, i % 4, 20 + (i * 37) % 180));
+        }
+        log.append("List the request ids that logged an ERROR, then the slowest request.");
+        List<ChatFormat.Message> dialog = List.of(
+                new ChatFormat.Message(ChatFormat.Role.SYSTEM, InferenceBenchmarkSupport.SYSTEM_PROMPT),
+                new ChatFormat.Message(ChatFormat.Role.USER, log.toString()));
+        return new ChatFormat(tokenizer).encodeDialogPrompt(dialog).stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int parsePositiveInt(String raw, int fallback) {
+        if (raw == null || raw.isBlank()) return fallback;
+        try {
+            int value = Integer.parseInt(raw.trim());
+            return value > 0 ? value : fallback;
+        } catch (NumberFormatException ignored) {
+            return fallback;
+        }
+    }
+
+    private record Agreement(String name, int budgetPercent, double top1, double meanKl, int tokensToDiverge) {}
+}
@@ -0,0 +1,108 @@
+package com.arturskowronski.llama3babylon.hat.benchmark;
+
+import com.arturskowronski.llama3babylon.hat.ChatFormat;
+import com.arturskowronski.llama3babylon.hat.LlamaInference;
+import com.arturskowronski.llama3babylon.hat.sampling.Sampler;
+import com.arturskowronski.llama3babylon.hat.sampling.SamplingParams;
+import com.arturskowronski.llama3babylon.hat.stream.GenerationStats;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Cost of picking a token, per sampler configuration, against the cost of producing one.
+ *
+ * A short greedy generation gives the decode time per token and leaves real logits behind;
+ * each configuration then samples from those logits many times. The test fails if any
+ * configuration takes 1% of the token time or more.
+ *
+ * Knobs: {@code BENCHMARK_MAX_TOKENS} (decode tokens timed, default 16) and
+ * {@code BENCHMARK_SAMPLES} (draws per configuration, default 2000).
+ */
+@Tag("benchmark")
+public class SamplingOverheadBenchmarkTest {
+
+    private static final int NEW_TOKENS = parsePositiveInt(System.getenv("BENCHMARK_MAX_TOKENS"), 16);
+    private static final int SAMPLES = parsePositiveInt(System.getenv("BENCHMARK_SAMPLES"), 2000);
+    private static final double MAX_SHARE_PERCENT = 1.0;
+
+    // Keeps the JIT from discarding the timed draws
+    private static volatile int blackhole;
+
+    @Test
+    public void benchmarkSamplingOverheadPerToken() throws Exception {
+        if (!InferenceBenchmarkSupport.isModelAvailable()) {
+            InferenceBenchmarkSupport.recordResult(
+                    InferenceBenchmarkSupport.skipped("Sampling overhead", "LLAMA_FP16_PATH is not set"));
+            return;
+        }
+        Path modelPath = InferenceBenchmarkSupport.modelPathFromEnv();
+        LlamaInference inference = new LlamaInference(modelPath);
+        int[] prompt = inference.chatFormat().encodeDialogPrompt(List.of(
+                        new ChatFormat.Message(ChatFormat.Role.SYSTEM, InferenceBenchmarkSupport.SYSTEM_PROMPT),
+                        new ChatFormat.Message(ChatFormat.Role.USER, InferenceBenchmarkSupport.USER_PROMPT)))
+                .stream().mapToInt(Integer::intValue).toArray();
+
+        System.out.println(">>> Starting: decode timing");
+        GenerationStats stats = inference.generateStreaming(prompt, NEW_TOKENS, new int[0], (token, text) -> {});
+        double tokenNanos = (stats.totalNanos() - stats.timeToFirstTokenNanos())
+                / (double) Math.max(1, stats.generatedTokens() - 1);
+        float[] logits = inference.logits().clone();
+
+        Map<String, SamplingParams> configs = new LinkedHashMap<>();
+        configs.put("greedy", SamplingParams.GREEDY);
+        configs.put("temperature 0.8", SamplingParams.temperature(0.8f));
+        configs.put("top-k 40", SamplingParams.temperature(0.8f).withTopK(40));
+        configs.put("top-p 0.95", SamplingParams.temperature(1f).withTopP(0.95f));
+        configs.put("min-p 0.05", SamplingParams.temperature(1f).withMinP(0.05f));
+        configs.put("top-k+top-p+min-p", SamplingParams.temperature(0.7f).withTopK(40).withTopP(0.9f).withMinP(0.05f));
+        configs.put("top-p 0.95, T=1.5", SamplingParams.temperature(1.5f).withTopP(0.95f));
+
+        System.out.println();
+        System.out.printf("%-20s %12s %14s%n", "Sampler", "us/token", "% of token");
+        double worst = 0;
+        String worstName = "";
+        for (Map.Entry<String, SamplingParams> config : configs.entrySet()) {
+            Sampler sampler = new Sampler(config.getValue().withSeed(42));
+            int sink = 0;
+            // Warm-up: JIT the sampling path and size its scratch
+            for (int i = 0; i < SAMPLES; i++) {
+                sink += sampler.sample(logits);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < SAMPLES; i++) {
+                sink += sampler.sample(logits);
+            }
+            double sampleNanos = (System.nanoTime() - start) / (double) SAMPLES;
+            blackhole = sink;
+            double share = 100.0 * sampleNanos / tokenNanos;
+            if (share > worst) {
+                worst = share;
+                worstName = config.getKey();
+            }
+            System.out.printf("%-20s %12.1f %13.3f%%%n", config.getKey(), sampleNanos / 1e3, share);
+        }
+        System.out.printf("  Decode: %.1f ms/token over %d tokens | Draws per sampler: %d%n",
+                tokenNanos / 1e6, stats.generatedTokens(), SAMPLES);
+        System.out.println();
+
+        assertTrue(worst < MAX_SHARE_PERCENT, String.format(
+                "Sampler '%s' takes %.3f%% of the token time, budget is %.1f%%", worstName, worst, MAX_SHARE_PERCENT));
+    }
+
+    private static int parsePositiveInt(String raw, int fallback) {
+        if (raw == null || raw.isBlank()) return fallback;
+        try {
+            int value = Integer.parseInt(raw.trim());
+            return value > 0 ? value : fallback;
+        } catch (NumberFormatException ignored) {
+            return fallback;
+        }
+    }
+}
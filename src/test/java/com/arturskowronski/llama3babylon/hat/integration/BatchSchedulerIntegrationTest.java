@@ -0,0 +1,210 @@
+package com.arturskowronski.llama3babylon.hat.integration;
+
+import com.arturskowronski.llama3babylon.hat.AdmissionPolicy;
+import com.arturskowronski.llama3babylon.hat.BatchScheduler;
+import com.arturskowronski.llama3babylon.hat.ChatFormat;
+import com.arturskowronski.llama3babylon.hat.LlamaInference;
+import com.arturskowronski.llama3babylon.hat.RequestOptions;
+import com.arturskowronski.llama3babylon.hat.RequestRejectedException;
+import com.arturskowronski.llama3babylon.hat.stream.GenerationStats;
+import com.arturskowronski.llama3babylon.hat.stream.TokenListener;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Tag("plain-integration")
+public class BatchSchedulerIntegrationTest {
+
+    private static final String[] QUESTIONS = {
+            "What is the capital of France?",
+            "Name three primary colors.",
+            "Count from one to five in Spanish, then explain why counting is useful for children.",
+    };
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testBatchedDecodeMatchesSequential() throws Exception {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        LlamaInference inference = new LlamaInference(modelPath);
+        int[] stopTokens = inference.chatFormat().getStopTokenIds();
+        int maxTokens = 24;
+
+        List<int[]> prompts = new ArrayList<>();
+        List<List<Integer>> expected = new ArrayList<>();
+        for (String question : QUESTIONS) {
+            int[] prompt = inference.chatFormat().encodeDialogPrompt(List.of(
+                            new ChatFormat.Message(ChatFormat.Role.USER, question)))
+                    .stream().mapToInt(Integer::intValue).toArray();
+            List<Integer> tokens = new ArrayList<>();
+            inference.generateStreaming(prompt, maxTokens, stopTokens, (token, text) -> tokens.add(token));
+            prompts.add(prompt);
+            expected.add(tokens);
+        }
+
+        // Two slots for three prompts: the third joins when the first one retires
+        try (BatchScheduler scheduler = new BatchScheduler(inference, 2)) {
+            List<List<Integer>> batched = new ArrayList<>();
+            List<CompletableFuture<GenerationStats>> futures = new ArrayList<>();
+            for (int[] prompt : prompts) {
+                List<Integer> tokens = new CopyOnWriteArrayList<>();
+                batched.add(tokens);
+                futures.add(scheduler.submit(prompt, maxTokens, stopTokens, (token, text) -> tokens.add(token)));
+            }
+            for (int i = 0; i < prompts.size(); i++) {
+                GenerationStats stats = futures.get(i).get(5, TimeUnit.MINUTES);
+                assertEquals(expected.get(i), batched.get(i), "Sequence " + i + " diverged from its sequential run");
+                assertEquals(prompts.get(i).length, stats.prefillTokens());
+            }
+            assertTrue(scheduler.meanBatchSize() > 1.0, scheduler.stats());
+            assertEquals(0, scheduler.active());
+        }
+    }
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testChunkedPrefillMatchesSequential() throws Exception {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        LlamaInference inference = new LlamaInference(modelPath);
+        int[] stopTokens = inference.chatFormat().getStopTokenIds();
+        int maxTokens = 12;
+
+        List<int[]> prompts = new ArrayList<>();
+        List<List<Integer>> expected = new ArrayList<>();
+        for (String question : QUESTIONS) {
+            int[] prompt = inference.chatFormat().encodeDialogPrompt(List.of(
+                            new ChatFormat.Message(ChatFormat.Role.USER, question)))
+                    .stream().mapToInt(Integer::intValue).toArray();
+            List<Integer> tokens = new ArrayList<>();
+            inference.generateStreaming(prompt, maxTokens, stopTokens, (token, text) -> tokens.add(token));
+            prompts.add(prompt);
+            expected.add(tokens);
+        }
+
+        // Chunks of 5 under a 7-token budget: prompts split unevenly and chunks get cut short by decode rows
+        try (BatchScheduler scheduler = new BatchScheduler(inference, 3, 5, 7)) {
+            List<List<Integer>> batched = new ArrayList<>();
+            List<CompletableFuture<GenerationStats>> futures = new ArrayList<>();
+            for (int[] prompt : prompts) {
+                List<Integer> tokens = new CopyOnWriteArrayList<>();
+                batched.add(tokens);
+                futures.add(scheduler.submit(prompt, maxTokens, stopTokens, (token, text) -> tokens.add(token)));
+            }
+            int promptTokens = 0;
+            for (int i = 0; i < prompts.size(); i++) {
+                futures.get(i).get(5, TimeUnit.MINUTES);
+                assertEquals(expected.get(i), batched.get(i), "Sequence " + i + " diverged from its sequential run");
+                promptTokens += prompts.get(i).length;
+            }
+            assertEquals(promptTokens, scheduler.prefillTokens());
+            assertTrue(scheduler.meanStepTokens() <= 7.0, scheduler.stats());
+            assertEquals(prompts.size(), scheduler.timeToFirstToken().count());
+            assertTrue(scheduler.interTokenLatency().count() > 0, scheduler.stats());
+        }
+    }
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testCancelledSequenceRetiresWithoutDisturbingOthers() throws Exception {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        LlamaInference inference = new LlamaInference(modelPath);
+        int[] stopTokens = inference.chatFormat().getStopTokenIds();
+        int[] prompt = inference.chatFormat().encodeDialogPrompt(List.of(
+                        new ChatFormat.Message(ChatFormat.Role.USER, QUESTIONS[2])))
+                .stream().mapToInt(Integer::intValue).toArray();
+        List<Integer> expected = new ArrayList<>();
+        inference.generateStreaming(prompt, 16, stopTokens, (token, text) -> expected.add(token));
+
+        try (BatchScheduler scheduler = new BatchScheduler(inference, 4)) {
+            List<Integer> cancelled = new CopyOnWriteArrayList<>();
+            CompletableFuture<GenerationStats> early = scheduler.submit(prompt, 16, stopTokens, new TokenListener() {
+                @Override
+                public void onToken(int token, String text) {
+                    cancelled.add(token);
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return cancelled.size() >= 2;
+                }
+            });
+            List<Integer> full = new CopyOnWriteArrayList<>();
+            CompletableFuture<GenerationStats> other = scheduler.submit(prompt, 16, stopTokens,
+                    (token, text) -> full.add(token));
+
+            assertEquals(GenerationStats.StopReason.CANCELLED, early.get(5, TimeUnit.MINUTES).reason());
+            assertEquals(expected.subList(0, 2), cancelled);
+            other.get(5, TimeUnit.MINUTES);
+            assertEquals(expected, full);
+        }
+    }
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testInteractiveRequestsOvertakeAndShedBatchWork() throws Exception {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        LlamaInference inference = new LlamaInference(modelPath);
+        int[] prompt = inference.chatFormat().encodeDialogPrompt(List.of(
+                        new ChatFormat.Message(ChatFormat.Role.USER, QUESTIONS[0])))
+                .stream().mapToInt(Integer::intValue).toArray();
+        RequestOptions batch = RequestOptions.of(RequestOptions.Priority.BATCH);
+        RequestOptions interactive = RequestOptions.of(RequestOptions.Priority.INTERACTIVE);
+
+        // One slot and two queue places
+        try (BatchScheduler scheduler = new BatchScheduler(inference, 1, 32, 33,
+                new AdmissionPolicy(2, Long.MAX_VALUE, 1))) {
+            List<String> finished = new CopyOnWriteArrayList<>();
+            CompletableFuture<GenerationStats> running = scheduler.submit(prompt, 8, new int[0], batch,
+                    (token, text) -> {});
+            while (scheduler.active() == 0) {
+                Thread.sleep(1);
+            }
+            CompletableFuture<GenerationStats> queuedBatch = scheduler.submit(prompt, 4, new int[0], batch,
+                    (token, text) -> {});
+            queuedBatch.thenRun(() -> finished.add("batch"));
+            CompletableFuture<GenerationStats> shed = scheduler.submit(prompt, 4, new int[0], batch,
+                    (token, text) -> {});
+
+            // A full queue sheds the newest batch request, and the interactive one goes first
+            CompletableFuture<GenerationStats> urgent = scheduler.submit(prompt, 4, new int[0], interactive,
+                    (token, text) -> {});
+            urgent.thenRun(() -> finished.add("interactive"));
+            ExecutionException dropped = assertThrows(ExecutionException.class, () -> shed.get(1, TimeUnit.MINUTES));
+            assertEquals(RequestRejectedException.Reason.QUEUE_FULL,
+                    ((RequestRejectedException) dropped.getCause()).reason());
+
+            // Nothing lower to shed: a second batch request is turned away
+            assertThrows(RequestRejectedException.class,
+                    () -> scheduler.submit(prompt, 4, new int[0], batch, (token, text) -> {}));
+
+            running.get(5, TimeUnit.MINUTES);
+            urgent.get(5, TimeUnit.MINUTES);
+            queuedBatch.get(5, TimeUnit.MINUTES);
+            assertEquals(List.of("interactive", "batch"), finished);
+            assertEquals(2, scheduler.rejected(RequestRejectedException.Reason.QUEUE_FULL));
+            assertEquals(0, scheduler.queuedTokens());
+
+            // A request that cannot start within its queue time is dropped instead of started late
+            CompletableFuture<GenerationStats> longRun = scheduler.submit(prompt, 16, new int[0], interactive,
+                    (token, text) -> {});
+            CompletableFuture<GenerationStats> impatient = scheduler.submit(prompt, 4, new int[0],
+                    RequestOptions.DEFAULT.withMaxQueueTime(Duration.ofMillis(1)), (token, text) -> {});
+            ExecutionException expired = assertThrows(ExecutionException.class,
+                    () -> impatient.get(1, TimeUnit.MINUTES));
+            assertEquals(RequestRejectedException.Reason.QUEUE_TIMEOUT,
+                    ((RequestRejectedException) expired.getCause()).reason());
+            longRun.get(5, TimeUnit.MINUTES);
+        }
+    }
+}
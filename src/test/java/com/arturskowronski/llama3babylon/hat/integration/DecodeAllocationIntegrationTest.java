@@ -0,0 +1,118 @@
+package com.arturskowronski.llama3babylon.hat.integration;
+
+import com.arturskowronski.llama3babylon.hat.BackendType;
+import com.arturskowronski.llama3babylon.hat.LlamaInference;
+import com.arturskowronski.llama3babylon.hat.LlamaModel;
+import com.arturskowronski.llama3babylon.hat.WeightStorageMode;
+import com.arturskowronski.llama3babylon.hat.kernels.PlainJavaKernelFactory;
+import com.arturskowronski.llama3babylon.hat.sampling.LogitBias;
+import com.arturskowronski.llama3babylon.hat.sampling.Sampler;
+import com.arturskowronski.llama3babylon.hat.sampling.SamplingParams;
+import com.arturskowronski.llama3babylon.hat.sampling.TokenPenalties;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Verifies that a steady-state decode loop, greedy or sampled with logit processors,
+ * does not allocate per token.
+ *
+ * Uses F16_FAST weights (plain short[]) so GEMV never touches HAT F16 proxies.
+ * Before caller-owned logits, every token allocated a ~500 KB float[].
+ *
+ * The warm-up decodes every position the measured window will use, then the window
+ * replays those positions: KV blocks taken from the pool on first write are storage
+ * growth, not per-token garbage, and are already in place when measuring starts.
+ */
+@Tag("plain-integration")
+public class DecodeAllocationIntegrationTest {
+
+    private static final int WARMUP_TOKENS = 8;
+    private static final int MEASURED_TOKENS = 16;
+    // Slack for the whole measured window, not per token: far below one object per token
+    private static final long MAX_MEASURED_BYTES = 64;
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testSteadyStateDecodeDoesNotAllocate() throws IOException {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        assertTrue(modelPath.toFile().exists(), "Model file not found: " + modelPath);
+
+        LlamaInference inference = new LlamaInference(modelPath, new PlainJavaKernelFactory(),
+                BackendType.JAVA_SEQ, WeightStorageMode.F16_FAST);
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+
+        float[] out = new float[LlamaModel.VOCAB_SIZE];
+        int token = 128000; // BOS
+        for (int pos = 0; pos < WARMUP_TOKENS + MEASURED_TOKENS; pos++) {
+            inference.forwardInto(token, pos, out);
+            token = LlamaInference.argmax(out);
+        }
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int pos = WARMUP_TOKENS; pos < WARMUP_TOKENS + MEASURED_TOKENS; pos++) {
+            inference.forwardInto(token, pos, out);
+            token = LlamaInference.argmax(inference.logits());
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        System.out.println("Decode allocation: " + allocated + " bytes over " + MEASURED_TOKENS + " tokens");
+        assertTrue(allocated <= MAX_MEASURED_BYTES,
+                "Decode loop allocated " + allocated + " bytes over " + MEASURED_TOKENS + " tokens, expected ~0");
+    }
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testSampledDecodeDoesNotAllocate() throws IOException {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        LlamaInference inference = new LlamaInference(modelPath, new PlainJavaKernelFactory(),
+                BackendType.JAVA_SEQ, WeightStorageMode.F16_FAST);
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+        Sampler sampler = newSampler();
+
+        float[] out = new float[LlamaModel.VOCAB_SIZE];
+        int token = 128000; // BOS
+        for (int pos = 0; pos < WARMUP_TOKENS + MEASURED_TOKENS; pos++) {
+            inference.forwardInto(token, pos, out);
+            token = sampler.sample(out);
+        }
+        // Sampling is cheap next to a forward pass: compile it fully before measuring,
+        // on a second sampler so the measured one's penalty counts stay small
+        Sampler warmup = newSampler();
+        for (int i = 0; i < 20_000; i++) {
+            warmup.sample(out);
+        }
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int pos = WARMUP_TOKENS; pos < WARMUP_TOKENS + MEASURED_TOKENS; pos++) {
+            inference.forwardInto(token, pos, out);
+            token = sampler.sample(inference.logits());
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        System.out.println("Sampled decode allocation: " + allocated + " bytes over " + MEASURED_TOKENS + " tokens");
+        assertTrue(allocated <= MAX_MEASURED_BYTES,
+                "Sampled decode loop allocated " + allocated + " bytes over " + MEASURED_TOKENS + " tokens, expected ~0");
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assertTrue(threads.isThreadAllocatedMemorySupported(), "Thread allocation accounting not supported");
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    private static Sampler newSampler() {
+        return new Sampler(SamplingParams.temperature(0.8f).withTopK(40).withTopP(0.95f).withSeed(7),
+                new TokenPenalties(0.5f, 0.5f), LogitBias.of(Map.of(128001, -100)));
+    }
+}
@@ -0,0 +1,83 @@
+package com.arturskowronski.llama3babylon.hat.integration;
+
+import com.arturskowronski.llama3babylon.hat.LlamaInference;
+import com.arturskowronski.llama3babylon.hat.server.InferenceServer;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Tag("plain-integration")
+public class InferenceServerIntegrationTest {
+
+    private static final String CHAT_BODY = """
+            {"model": "llama", "max_tokens": 24, %s
+             "messages": [{"role": "system", "content": "You are a helpful assistant."},
+                          {"role": "user", "content": "What is the capital of France?"}]}
+            """;
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testChatCompletionsWithAndWithoutStreaming() throws Exception {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        try (InferenceServer server = new InferenceServer(new LlamaInference(modelPath), "llama",
+                new InetSocketAddress("127.0.0.1", 0))) {
+            server.start();
+            HttpClient client = HttpClient.newHttpClient();
+
+            HttpResponse<String> plain = post(client, server, "/v1/chat/completions", CHAT_BODY.formatted(""));
+            assertEquals(200, plain.statusCode(), plain.body());
+            assertTrue(plain.body().contains("\"object\":\"chat.completion\""), plain.body());
+            assertTrue(plain.body().contains("Paris"), plain.body());
+
+            HttpResponse<String> streamed = post(client, server, "/v1/chat/completions",
+                    CHAT_BODY.formatted("\"stream\": true,"));
+            assertEquals(200, streamed.statusCode());
+            assertTrue(streamed.headers().firstValue("Content-Type").orElse("").startsWith("text/event-stream"));
+            List<String> events = streamed.body().lines().filter(l -> l.startsWith("data: ")).toList();
+            assertEquals("data: [DONE]", events.getLast());
+            assertTrue(events.size() > 3, "expected one event per token: " + events);
+
+            // Per-request caches: a second identical request gives the same answer
+            assertEquals(plain.body().replaceAll("\"(id|created)\":[^,]*,", ""),
+                    post(client, server, "/v1/chat/completions", CHAT_BODY.formatted(""))
+                            .body().replaceAll("\"(id|created)\":[^,]*,", ""));
+        }
+    }
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testRejectsInvalidRequests() throws Exception {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        try (InferenceServer server = new InferenceServer(new LlamaInference(modelPath), "llama",
+                new InetSocketAddress("127.0.0.1", 0))) {
+            server.start();
+            HttpClient client = HttpClient.newHttpClient();
+
+            assertEquals(400, post(client, server, "/v1/chat/completions", "{\"messages\": []}").statusCode());
+            assertEquals(400, post(client, server, "/v1/completions", "not json").statusCode());
+            assertEquals(400, post(client, server, "/v1/completions",
+                    "{\"prompt\": \"Hi\", \"max_tokens\": 1000000}").statusCode());
+        }
+    }
+
+    private static HttpResponse<String> post(HttpClient client, InferenceServer server, String path, String body)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.port() + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
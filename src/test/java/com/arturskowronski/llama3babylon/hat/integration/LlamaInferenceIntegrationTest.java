@@ -2,6 +2,13 @@ package com.arturskowronski.llama3babylon.hat.integration;
 
 import com.arturskowronski.llama3babylon.hat.LlamaInference;
 import com.arturskowronski.llama3babylon.hat.LlamaModel;
+import com.arturskowronski.llama3babylon.hat.kv.KVWindowPolicy;
+import com.arturskowronski.llama3babylon.hat.sampling.LogitBias;
+import com.arturskowronski.llama3babylon.hat.sampling.Sampler;
+import com.arturskowronski.llama3babylon.hat.sampling.SamplingParams;
+import com.arturskowronski.llama3babylon.hat.sampling.TokenPenalties;
+import com.arturskowronski.llama3babylon.hat.stream.GenerationStats;
+import com.arturskowronski.llama3babylon.hat.stream.TokenListener;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
@@ -9,6 +16,11 @@ import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -63,4 +75,115 @@ public class LlamaInferenceIntegrationTest {
             assertFalse(Float.isInfinite(logits[i]), "Logit is Inf at index " + i);
         }
     }
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testSlidingWindowRunsPastItsCapacity() throws IOException {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        LlamaInference inference = new LlamaInference(modelPath);
+        KVWindowPolicy window = new KVWindowPolicy(1, 3);
+        inference.enableKvWindow(window);
+
+        // Run the stream for three windows' worth of positions
+        int positions = 3 * window.positions();
+        float[] logits = new float[LlamaModel.VOCAB_SIZE];
+        int token = 128000;
+        for (int pos = 0; pos < positions; pos++) {
+            inference.forwardInto(token, pos, logits);
+            token = LlamaInference.argmax(logits);
+        }
+
+        for (float logit : logits) {
+            assertTrue(Float.isFinite(logit), "Logits must stay finite after evictions");
+        }
+        // Slots stop at the window: everything past it was evicted a block at a time
+        String report = inference.memoryReport();
+        assertTrue(report.contains((positions - window.positions()) + " positions evicted"), report);
+    }
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testStreamingMatchesChat() throws IOException {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        LlamaInference inference = new LlamaInference(modelPath);
+        String system = "You are a helpful assistant.";
+        String user = "Say hello in Japanese, then in Polish.";
+        String expected = inference.chat(system, user, 32);
+
+        StringBuilder streamed = new StringBuilder();
+        List<Integer> tokens = new ArrayList<>();
+        GenerationStats stats = inference.chatStreaming(system, user, 32, (token, text) -> {
+            tokens.add(token);
+            streamed.append(text);
+        });
+
+        // A character cut off by the token budget is decoded by chat() but not streamed
+        if (stats.reason() == GenerationStats.StopReason.STOP_TOKEN) {
+            assertEquals(expected, streamed.toString());
+        } else {
+            assertTrue(expected.startsWith(streamed.toString()), streamed + " vs " + expected);
+        }
+        assertTrue(stats.generatedTokens() >= tokens.size());
+        assertTrue(stats.timeToFirstTokenNanos() > 0 && stats.timeToFirstTokenNanos() <= stats.totalNanos(),
+                stats.summary());
+
+        // Cancelling after three tokens stops the decode loop
+        List<Integer> cancelled = new ArrayList<>();
+        GenerationStats early = inference.chatStreaming(system, user, 32, new TokenListener() {
+            @Override
+            public void onToken(int token, String text) {
+                cancelled.add(token);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return cancelled.size() >= 3;
+            }
+        });
+        assertEquals(GenerationStats.StopReason.CANCELLED, early.reason());
+        assertEquals(tokens.subList(0, 3), cancelled);
+    }
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testSeededSamplingRepeatsAndGreedySamplerMatchesGenerate() throws IOException {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        LlamaInference inference = new LlamaInference(modelPath);
+        int[] prompt = {128000, 791, 6864, 315}; // "<|begin_of_text|>The capital of"
+        int[] stopTokens = {128001};
+
+        assertArrayEquals(inference.generate(prompt, 8, stopTokens),
+                inference.generate(prompt, 8, stopTokens, Sampler.greedy()));
+
+        SamplingParams params = SamplingParams.temperature(0.9f).withTopK(40).withTopP(0.95f).withSeed(1234);
+        int[] first = inference.generate(prompt, 12, stopTokens, new Sampler(params));
+        int[] second = inference.generate(prompt, 12, stopTokens, new Sampler(params));
+        assertArrayEquals(first, second, "Same seed, same tokens");
+        for (int token : first) {
+            assertTrue(token >= 0 && token < LlamaModel.VOCAB_SIZE, "Sampled token out of range: " + token);
+        }
+    }
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testLogitProcessorsSteerGreedyDecoding() throws IOException {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        LlamaInference inference = new LlamaInference(modelPath);
+        int[] prompt = {128000, 791, 6864, 315}; // "<|begin_of_text|>The capital of"
+        int[] stopTokens = {128001};
+
+        // A presence penalty this large bans every token already generated
+        int[] distinct = inference.generate(prompt, 12, stopTokens,
+                new Sampler(SamplingParams.GREEDY, new TokenPenalties(0f, 100f)));
+        Set<Integer> seen = new HashSet<>();
+        for (int token : distinct) {
+            assertTrue(seen.add(token), "Token " + token + " repeated despite the presence penalty");
+        }
+
+        // Banning the greedy first token changes the first token
+        int first = inference.generate(prompt, 1, stopTokens)[0];
+        int[] steered = inference.generate(prompt, 1, stopTokens,
+                new Sampler(SamplingParams.GREEDY, LogitBias.of(Map.of(first, -100))));
+        assertNotEquals(first, steered[0]);
+    }
 }
@@ -0,0 +1,64 @@
+package com.arturskowronski.llama3babylon.hat.integration;
+
+import com.arturskowronski.llama3babylon.hat.ChatFormat;
+import com.arturskowronski.llama3babylon.hat.LlamaInference;
+import com.arturskowronski.llama3babylon.hat.LoadedModel;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Tag("plain-integration")
+public class LoadedModelIntegrationTest {
+
+    private static final String[] QUESTIONS = {
+            "What is the capital of France?",
+            "Name three primary colors.",
+            "Count from one to five in Spanish.",
+    };
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testSessionsSharingWeightsGenerateConcurrently() throws Exception {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        LoadedModel model = new LoadedModel(modelPath);
+        int[] stopTokens = model.chatFormat().getStopTokenIds();
+        int maxTokens = 16;
+
+        List<int[]> prompts = new ArrayList<>();
+        List<int[]> expected = new ArrayList<>();
+        LlamaInference reference = model.newSession();
+        for (String question : QUESTIONS) {
+            int[] prompt = model.chatFormat().encodeDialogPrompt(List.of(
+                            new ChatFormat.Message(ChatFormat.Role.USER, question)))
+                    .stream().mapToInt(Integer::intValue).toArray();
+            prompts.add(prompt);
+            expected.add(reference.generate(prompt, maxTokens, stopTokens));
+        }
+
+        // One session per thread, all on the same weights
+        try (ExecutorService executor = Executors.newFixedThreadPool(prompts.size())) {
+            List<CompletableFuture<int[]>> results = new ArrayList<>();
+            for (int[] prompt : prompts) {
+                LlamaInference session = model.newSession();
+                assertSame(model, session.loadedModel());
+                results.add(CompletableFuture.supplyAsync(
+                        () -> session.generate(prompt, maxTokens, stopTokens), executor));
+            }
+            for (int i = 0; i < prompts.size(); i++) {
+                assertArrayEquals(expected.get(i), results.get(i).get(5, TimeUnit.MINUTES),
+                        "Session " + i + " diverged from its sequential run");
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.arturskowronski.llama3babylon.hat.integration;
+
+import com.arturskowronski.llama3babylon.hat.BackendType;
+import com.arturskowronski.llama3babylon.hat.LlamaInference;
+import com.arturskowronski.llama3babylon.hat.WeightStorageMode;
+import com.arturskowronski.llama3babylon.hat.kernels.PlainJavaKernelFactory;
+import com.arturskowronski.llama3babylon.hat.kernels.VectorKernelFactory;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the Vector API kernels end to end and compares them with the plain Java ones.
+ *
+ * SIMD lanes sum the dot products in a different order, so logits are not bit-identical;
+ * they must stay within a small tolerance and pick the same greedy token at every step.
+ */
+@Tag("plain-integration")
+public class VectorKernelFactoryIntegrationTest {
+
+    private static final int STEPS = 24;
+    private static final float MAX_LOGIT_DIFF = 1e-2f;
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testVectorForwardPassMatchesPlainJava() throws IOException {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        assertTrue(modelPath.toFile().exists(), "Model file not found: " + modelPath);
+
+        LlamaInference plain = new LlamaInference(
+                modelPath, new PlainJavaKernelFactory(), BackendType.JAVA_SEQ, WeightStorageMode.F16_FAST);
+        LlamaInference vector = new LlamaInference(
+                modelPath, new VectorKernelFactory(), BackendType.JAVA_SEQ, WeightStorageMode.F16_FAST);
+
+        // Both decode the plain model's greedy continuation, so the caches hold the same tokens
+        int token = 128000; // BOS
+        for (int pos = 0; pos < STEPS; pos++) {
+            float[] expected = plain.forward(token, pos);
+            float[] actual = vector.forward(token, pos);
+            float maxDiff = 0f;
+            for (int i = 0; i < expected.length; i++) {
+                maxDiff = Math.max(maxDiff, Math.abs(expected[i] - actual[i]));
+            }
+            assertTrue(maxDiff < MAX_LOGIT_DIFF, "Logits differ by " + maxDiff + " at position " + pos);
+            int next = LlamaInference.argmax(expected);
+            assertEquals(next, LlamaInference.argmax(actual), "Greedy token differs at position " + pos);
+            token = next;
+        }
+    }
+}
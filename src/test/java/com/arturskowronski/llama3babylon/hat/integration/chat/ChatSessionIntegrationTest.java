@@ -0,0 +1,90 @@
+package com.arturskowronski.llama3babylon.hat.integration.chat;
+
+import com.arturskowronski.llama3babylon.hat.ChatFormat;
+import com.arturskowronski.llama3babylon.hat.ChatSession;
+import com.arturskowronski.llama3babylon.hat.LlamaInference;
+import com.arturskowronski.llama3babylon.hat.utils.ResponseAssertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Multi-turn chat with the real Llama 3.2 1B Instruct FP16 model, checking that
+ * the second turn reuses the KV cache instead of re-processing the first one.
+ */
+@Tag("plain-integration")
+public class ChatSessionIntegrationTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testSecondTurnPrefillsOnlyNewTokens() throws IOException {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        LlamaInference inference = new LlamaInference(modelPath);
+        int maxTokens = System.getenv("CI") != null ? 32 : 96;
+
+        try (ChatSession session = inference.newChatSession("You are a helpful assistant.")) {
+            assertThrows(IllegalArgumentException.class, () -> session.send("Tell a joke about programming", 0));
+            assertEquals(0, session.position());
+
+            String first = session.send("Tell a joke about programming", maxTokens);
+            int firstPrefill = session.lastPrefillTokens();
+            int afterFirst = session.position();
+
+            String second = session.send("Now explain why it is funny", maxTokens);
+
+            System.out.println("=== Turn 1 ===");
+            System.out.println(first);
+            System.out.println("=== Turn 2 ===");
+            System.out.println(second);
+            System.out.println("==============");
+
+            ResponseAssertions.assertValidResponse(first);
+            ResponseAssertions.assertValidResponse(second);
+            assertEquals(5, session.history().size());
+            assertEquals(ChatFormat.Role.ASSISTANT, session.history().get(4).role());
+
+            // The second turn continues from the cached position: it feeds only the close of
+            // the first reply and the new message, fewer tokens than the dialog already cached
+            assertTrue(firstPrefill > 0);
+            assertTrue(session.lastPrefillTokens() < afterFirst,
+                    "Second turn prefilled " + session.lastPrefillTokens() + " tokens, cache already held " + afterFirst);
+            assertTrue(session.position() >= afterFirst + session.lastPrefillTokens());
+        }
+    }
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "LLAMA_FP16_PATH", matches = ".*")
+    public void testRestoredSessionContinuesLikeTheOriginal() throws IOException {
+        Path modelPath = Paths.get(System.getenv("LLAMA_FP16_PATH"));
+        LlamaInference inference = new LlamaInference(modelPath);
+        int maxTokens = System.getenv("CI") != null ? 16 : 48;
+        Path snapshot = tempDir.resolve("session.kv");
+
+        String expected;
+        int savedPosition;
+        try (ChatSession session = inference.newChatSession("You are a helpful assistant.")) {
+            session.send("Name three primary colors", maxTokens);
+            session.save(snapshot);
+            savedPosition = session.position();
+            expected = session.send("Which of them is your favourite?", maxTokens);
+        }
+
+        // Resume in a separate instance, as another process would
+        LlamaInference resumed = new LlamaInference(modelPath);
+        try (ChatSession session = resumed.restoreChatSession(snapshot)) {
+            assertEquals(savedPosition, session.position());
+            String actual = session.send("Which of them is your favourite?", maxTokens);
+            assertEquals(expected, actual, "Restored session should continue exactly like the original");
+        }
+    }
+}
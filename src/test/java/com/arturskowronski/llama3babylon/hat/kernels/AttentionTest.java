@@ -1,16 +1,33 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
+import com.arturskowronski.llama3babylon.hat.QueryRotations;
+import com.arturskowronski.llama3babylon.hat.RoPECache;
+import com.arturskowronski.llama3babylon.hat.kv.KVCache;
+import com.arturskowronski.llama3babylon.hat.kv.KVHeavyHitterPolicy;
+import com.arturskowronski.llama3babylon.hat.kv.KVSpillStore;
+import com.arturskowronski.llama3babylon.hat.kv.KVTierPolicy;
+import com.arturskowronski.llama3babylon.hat.kv.KVWindowPolicy;
+import com.arturskowronski.llama3babylon.hat.kv.KvCacheMode;
 import hat.Accelerator;
 import hat.buffer.F32Array;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class AttentionTest {
 
+    @TempDir
+    Path tempDir;
+
     @Test
     public void testAttentionMechanism() {
         Accelerator accelerator = new Accelerator(MethodHandles.lookup());
@@ -59,4 +76,491 @@ public class AttentionTest {
             assertEquals((float) i, output.array(i), 1e-5f);
         }
     }
+
+    @Test
+    public void testAllHeadsMatchesPerHead() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        assertAllHeadsMatchesPerHead(accelerator, new Attention(accelerator), 40);
+    }
+
+    @Test
+    public void testAllHeadsVectorMatchesPerHead() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        assertAllHeadsMatchesPerHead(accelerator, new AttentionVector(accelerator), 40);
+    }
+
+    @Test
+    public void testAllHeadsHATMatchesPerHead() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        assertAllHeadsMatchesPerHead(accelerator, new AttentionHAT(accelerator), 40);
+    }
+
+    @Test
+    public void testAllHeadsHATSoftmaxReducesRowsLongerThanItsPartials() {
+        // Rows longer than SoftmaxHAT.NUM_PARTIALS make every partial fold several positions,
+        // and one that is not a multiple of it leaves the last partials a position short
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        AttentionHAT kernel = new AttentionHAT(accelerator);
+        assertAllHeadsMatchesPerHead(accelerator, kernel, 3 * SoftmaxHAT.NUM_PARTIALS + 5);
+        // Then a shorter row through the same kernel, one position per partial
+        assertAllHeadsMatchesPerHead(accelerator, kernel, SoftmaxHAT.NUM_PARTIALS / 2 + 3);
+    }
+
+    private static void assertAllHeadsMatchesPerHead(Accelerator accelerator, IAttention kernel, int seqLen) {
+        int numHeads = 8;
+        int numKvHeads = 2; // GQA 4:1, as in Llama 3.2 1B
+        int headDim = 16;
+        int kvDim = numKvHeads * headDim;
+
+        Random rng = new Random(11);
+        ActivationBuffer q = new ActivationBuffer(accelerator, numHeads * headDim);
+        float[] qh = q.hostForWrite();
+        for (int i = 0; i < qh.length; i++) qh[i] = rng.nextFloat() * 2 - 1;
+        F32Array kRef = F32Array.create(accelerator, seqLen * kvDim);
+        F32Array vRef = F32Array.create(accelerator, seqLen * kvDim);
+        KVCache cache = KVCache.create(KvCacheMode.F32, seqLen, numKvHeads, headDim);
+        float[] k = new float[kvDim];
+        float[] v = new float[kvDim];
+        for (int t = 0; t < seqLen; t++) {
+            for (int i = 0; i < kvDim; i++) {
+                k[i] = rng.nextFloat() * 2 - 1;
+                v[i] = rng.nextFloat() * 2 - 1;
+                kRef.array(t * kvDim + i, k[i]);
+                vRef.array(t * kvDim + i, v[i]);
+            }
+            cache.write(t, k, 0, v, 0);
+        }
+
+        ActivationBuffer actual = new ActivationBuffer(accelerator, numHeads * headDim);
+        kernel.computeAllHeads(q, cache, actual, seqLen, numHeads, headDim);
+
+        float[] expected = perHeadReference(accelerator, qh, kRef, vRef, seqLen, numHeads, numKvHeads, headDim);
+        float[] out = actual.host();
+        for (int i = 0; i < numHeads * headDim; i++) {
+            assertEquals(expected[i], out[i], 1e-5f, "Mismatch at head " + i / headDim + " index " + i % headDim);
+        }
+    }
+
+    /**
+     * Reference for all heads: gathers each head into contiguous buffers and runs the
+     * plain three-pass path (scores, softmax, values).
+     */
+    private static float[] perHeadReference(Accelerator accelerator, float[] q, F32Array kCache, F32Array vCache,
+                                            int seqLen, int numHeads, int numKvHeads, int headDim) {
+        Attention reference = new Attention(accelerator);
+        Softmax softmax = new Softmax(accelerator);
+        int kvDim = numKvHeads * headDim;
+        int kvMul = numHeads / numKvHeads;
+        F32Array qHead = F32Array.create(accelerator, headDim);
+        F32Array keys = F32Array.create(accelerator, seqLen * headDim);
+        F32Array values = F32Array.create(accelerator, seqLen * headDim);
+        F32Array scores = F32Array.create(accelerator, seqLen);
+        F32Array headOut = F32Array.create(accelerator, headDim);
+        float[] expected = new float[numHeads * headDim];
+        for (int h = 0; h < numHeads; h++) {
+            int kvOffset = (h / kvMul) * headDim;
+            for (int d = 0; d < headDim; d++) qHead.array(d, q[h * headDim + d]);
+            for (int t = 0; t < seqLen; t++) {
+                for (int d = 0; d < headDim; d++) {
+                    keys.array(t * headDim + d, kCache.array(t * kvDim + kvOffset + d));
+                    values.array(t * headDim + d, vCache.array(t * kvDim + kvOffset + d));
+                }
+            }
+            reference.computeScores(qHead, keys, scores, seqLen, headDim);
+            softmax.apply(scores, seqLen);
+            reference.computeValues(scores, values, headOut, seqLen, headDim);
+            for (int d = 0; d < headDim; d++) {
+                expected[h * headDim + d] = headOut.array(d);
+            }
+        }
+        return expected;
+    }
+
+    @Test
+    public void testAllHeadsKVCacheMatchesF32Reference() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        for (KvCacheMode mode : KvCacheMode.values()) {
+            // F32 is exact; F16 and Q8 round K/V, so allow the attention output to drift a little
+            float tolerance = switch (mode) {
+                case F32 -> 1e-5f;
+                case F16 -> 2e-3f;
+                case Q8 -> 2e-2f;
+            };
+            IAttention[] kernels = {new Attention(accelerator), new AttentionVector(accelerator), new AttentionHAT(accelerator)};
+            for (IAttention kernel : kernels) {
+                assertKVCacheMatchesF32Reference(accelerator, kernel, mode, tolerance, null);
+            }
+        }
+    }
+
+    @Test
+    public void testHATReadsF16AndQ8CachesLikeThePlainKernel() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        int numHeads = 4;
+        int numKvHeads = 1;
+        int headDim = 6; // Q8 rows of 6 bytes do not fill whole ints
+        int seqLen = 21;
+        Random rng = new Random(4);
+        ActivationBuffer q = new ActivationBuffer(accelerator, numHeads * headDim);
+        float[] qh = q.hostForWrite();
+        for (int i = 0; i < qh.length; i++) qh[i] = rng.nextFloat() * 2 - 1;
+        float[] k = new float[headDim];
+        float[] v = new float[headDim];
+
+        for (KvCacheMode mode : new KvCacheMode[]{KvCacheMode.F16, KvCacheMode.Q8}) {
+            KVCache cache = KVCache.create(mode, seqLen, numKvHeads, headDim);
+            AttentionHAT kernel = new AttentionHAT(accelerator);
+            ActivationBuffer actual = new ActivationBuffer(accelerator, numHeads * headDim);
+            for (int t = 0; t < seqLen; t++) {
+                for (int i = 0; i < headDim; i++) {
+                    k[i] = rng.nextFloat() * 2 - 1;
+                    v[i] = rng.nextFloat() * 2 - 1;
+                }
+                cache.write(t, k, 0, v, 0);
+                kernel.computeAllHeads(q, cache, actual, t + 1, numHeads, headDim);
+            }
+
+            // Both kernels see the same rounded rows, so they agree far tighter than with F32
+            ActivationBuffer expected = new ActivationBuffer(accelerator, numHeads * headDim);
+            new Attention(accelerator).computeAllHeads(q, cache, expected, seqLen, numHeads, headDim);
+            for (int i = 0; i < numHeads * headDim; i++) {
+                assertEquals(expected.host()[i], actual.host()[i], 1e-5f, mode + " mismatch at index " + i);
+            }
+        }
+    }
+
+    @Test
+    public void testTieredKVCacheMatchesF32Reference() throws IOException {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        IAttention[] kernels = {new Attention(accelerator), new AttentionVector(accelerator), new AttentionHAT(accelerator)};
+        for (IAttention kernel : kernels) {
+            try (KVSpillStore store = new KVSpillStore(tempDir, KvCacheMode.F32, 2, 16, Long.MAX_VALUE)) {
+                assertKVCacheMatchesF32Reference(accelerator, kernel, KvCacheMode.F32, 1e-5f, store);
+                assertTrue(store.spills() > 0, kernel.getClass().getSimpleName() + " cache never spilled");
+            }
+        }
+    }
+
+    @Test
+    public void testTieredAttentionFillsEachSpilledBlockOncePerCall() throws IOException {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        int numHeads = 8;
+        int headDim = 16;
+        int seqLen = 4 * KVCache.BLOCK_POSITIONS;
+        try (KVSpillStore store = new KVSpillStore(tempDir, KvCacheMode.F32, 2, headDim, Long.MAX_VALUE)) {
+            KVCache cache = KVCache.create(KvCacheMode.F32, seqLen, 2, headDim);
+            cache.enableTiering(store, new KVTierPolicy(1, 0, 1));
+            float[] row = new float[2 * headDim];
+            for (int t = 0; t < seqLen; t++) {
+                Arrays.fill(row, t * 0.01f);
+                cache.write(t, row, 0, row, 0);
+            }
+            ActivationBuffer q = new ActivationBuffer(accelerator, numHeads * headDim);
+            ActivationBuffer out = new ActivationBuffer(accelerator, numHeads * headDim);
+
+            long before = store.fills();
+            new Attention(accelerator).computeAllHeads(q, cache, out, seqLen, numHeads, headDim);
+            assertEquals(cache.spilledBlocks(), store.fills() - before);
+        }
+    }
+
+    @Test
+    public void testKernelsAccumulateAttentionMass() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        int numHeads = 8;
+        int numKvHeads = 2;
+        int headDim = 16;
+        int seqLen = 37;
+        Random rng = new Random(12);
+        ActivationBuffer q = new ActivationBuffer(accelerator, numHeads * headDim);
+        float[] qh = q.hostForWrite();
+        for (int i = 0; i < qh.length; i++) qh[i] = rng.nextFloat() * 2 - 1;
+        float[][] rows = new float[seqLen][numKvHeads * headDim];
+        for (float[] row : rows) {
+            for (int i = 0; i < row.length; i++) row[i] = rng.nextFloat() * 2 - 1;
+        }
+
+        IAttention[] kernels = {new Attention(accelerator), new AttentionVector(accelerator), new AttentionHAT(accelerator)};
+        float[] reference = null;
+        for (IAttention kernel : kernels) {
+            KVCache cache = KVCache.create(KvCacheMode.F32, 64, numKvHeads, headDim);
+            cache.enableHeavyHitters(new KVHeavyHitterPolicy(64, 8));
+            for (int t = 0; t < seqLen; t++) {
+                cache.write(cache.reserve(t), rows[t], 0, rows[t], 0);
+            }
+            kernel.computeAllHeads(q, cache, new ActivationBuffer(accelerator, numHeads * headDim),
+                    seqLen, numHeads, headDim);
+
+            // Each query head spreads a softmax (total weight 1) over the positions of its KV head
+            float[] mass = new float[seqLen * numKvHeads];
+            for (int t = 0; t < seqLen; t++) {
+                for (int kvHead = 0; kvHead < numKvHeads; kvHead++) {
+                    mass[t * numKvHeads + kvHead] = cache.attentionMass(t, kvHead);
+                }
+            }
+            for (int kvHead = 0; kvHead < numKvHeads; kvHead++) {
+                float total = 0.0f;
+                for (int t = 0; t < seqLen; t++) total += mass[t * numKvHeads + kvHead];
+                assertEquals(numHeads / numKvHeads, total, 1e-4f, kernel.getClass().getSimpleName());
+            }
+            if (reference == null) {
+                reference = mass;
+            }
+            for (int i = 0; i < mass.length; i++) {
+                assertEquals(reference[i], mass[i], 1e-5f, kernel.getClass().getSimpleName() + " mass at " + i);
+            }
+        }
+    }
+
+    @Test
+    public void testHATRestagesAfterCacheOverwrite() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        int numHeads = 4;
+        int headDim = 8;
+        KVCache cache = KVCache.create(KvCacheMode.F32, 4, 1, headDim);
+        ActivationBuffer q = new ActivationBuffer(accelerator, numHeads * headDim);
+        Arrays.fill(q.hostForWrite(), 1.0f);
+        float[] ones = new float[headDim];
+        float[] twos = new float[headDim];
+        Arrays.fill(ones, 1.0f);
+        Arrays.fill(twos, 2.0f);
+
+        AttentionHAT kernel = new AttentionHAT(accelerator);
+        ActivationBuffer out = new ActivationBuffer(accelerator, numHeads * headDim);
+        cache.write(0, ones, 0, ones, 0);
+        kernel.computeAllHeads(q, cache, out, 1, numHeads, headDim);
+        assertEquals(1.0f, out.host()[0], 1e-6f);
+
+        // A new prompt rewrites position 0: the staged copy must not be reused
+        cache.write(0, twos, 0, twos, 0);
+        kernel.computeAllHeads(q, cache, out, 1, numHeads, headDim);
+        assertEquals(2.0f, out.host()[0], 1e-6f);
+    }
+
+    @Test
+    public void testHATFollowsHeavyHitterRowMoves() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        int numHeads = 4;
+        int numKvHeads = 2;
+        int headDim = 8;
+        int kvDim = numKvHeads * headDim;
+        Random rng = new Random(15);
+        for (KvCacheMode mode : KvCacheMode.values()) {
+            KVCache cache = KVCache.create(mode, 64, numKvHeads, headDim);
+            cache.enableHeavyHitters(new KVHeavyHitterPolicy(24, 8));
+            AttentionHAT kernel = new AttentionHAT(accelerator);
+            Attention reference = new Attention(accelerator);
+            ActivationBuffer q = new ActivationBuffer(accelerator, numHeads * headDim);
+            ActivationBuffer actual = new ActivationBuffer(accelerator, numHeads * headDim);
+            ActivationBuffer expected = new ActivationBuffer(accelerator, numHeads * headDim);
+            float[] k = new float[kvDim];
+            float[] v = new float[kvDim];
+            for (int pos = 0; pos < 64; pos++) {
+                for (int i = 0; i < kvDim; i++) k[i] = rng.nextFloat() * 2 - 1;
+                for (int i = 0; i < kvDim; i++) v[i] = rng.nextFloat() * 2 - 1;
+                float[] qh = q.hostForWrite();
+                for (int i = 0; i < qh.length; i++) qh[i] = rng.nextFloat() * 2 - 1;
+                int slot = cache.reserve(pos);
+                cache.write(slot, k, 0, v, 0);
+
+                // Both kernels add their weights, so later evictions still follow one table
+                kernel.computeAllHeads(q, cache, actual, slot + 1, numHeads, headDim);
+                reference.computeAllHeads(q, cache, expected, slot + 1, numHeads, headDim);
+                for (int i = 0; i < numHeads * headDim; i++) {
+                    assertEquals(expected.host()[i], actual.host()[i], 1e-5f, mode + " at position " + pos + ", index " + i);
+                }
+            }
+            assertEquals(40, cache.rowMoves());
+            assertEquals(0, cache.epoch(), mode + ": moving a row must not invalidate the staged copy");
+        }
+    }
+
+    @Test
+    public void testHATStagesOnlyNewRowsWhenAlternatingCaches() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        int numHeads = 4;
+        int numKvHeads = 2;
+        int headDim = 8;
+        int kvDim = numKvHeads * headDim;
+        int positions = 40;
+        Attention reference = new Attention(accelerator);
+        Random rng = new Random(21);
+        ActivationBuffer q = new ActivationBuffer(accelerator, numHeads * headDim);
+        ActivationBuffer actual = new ActivationBuffer(accelerator, numHeads * headDim);
+        ActivationBuffer expected = new ActivationBuffer(accelerator, numHeads * headDim);
+        float[] k = new float[kvDim];
+        float[] v = new float[kvDim];
+
+        for (KvCacheMode mode : KvCacheMode.values()) {
+            // Two sequences decoded in lockstep, as two rows of a batched step
+            AttentionHAT kernel = new AttentionHAT(accelerator);
+            kernel.reserveCaches(2);
+            KVCache[] caches = {
+                    KVCache.create(mode, 64, numKvHeads, headDim),
+                    KVCache.create(mode, 64, numKvHeads, headDim)
+            };
+            for (int pos = 0; pos < positions; pos++) {
+                for (KVCache cache : caches) {
+                    for (int i = 0; i < kvDim; i++) k[i] = rng.nextFloat() * 2 - 1;
+                    for (int i = 0; i < kvDim; i++) v[i] = rng.nextFloat() * 2 - 1;
+                    float[] qh = q.hostForWrite();
+                    for (int i = 0; i < qh.length; i++) qh[i] = rng.nextFloat() * 2 - 1;
+                    cache.write(pos, k, 0, v, 0);
+
+                    // Staged buffers double at 1, 2, 4... blocks, and growing restages that cache once
+                    int blocks = pos / KVCache.BLOCK_POSITIONS;
+                    boolean grows = pos % KVCache.BLOCK_POSITIONS == 0 && blocks > 0 && (blocks & (blocks - 1)) == 0;
+                    long before = kernel.stagedRows();
+                    kernel.computeAllHeads(q, cache, actual, pos + 1, numHeads, headDim);
+                    assertEquals(grows ? pos + 1 : 1, kernel.stagedRows() - before,
+                            mode + ": only the new row is staged at position " + pos);
+                    reference.computeAllHeads(q, cache, expected, pos + 1, numHeads, headDim);
+                    for (int i = 0; i < numHeads * headDim; i++) {
+                        assertEquals(expected.host()[i], actual.host()[i], 1e-5f, mode + " at position " + pos + ", index " + i);
+                    }
+                }
+            }
+        }
+
+        // Without the reservation the two caches take turns with one staged copy
+        AttentionHAT single = new AttentionHAT(accelerator);
+        KVCache[] caches = {
+                KVCache.create(KvCacheMode.F32, 64, numKvHeads, headDim),
+                KVCache.create(KvCacheMode.F32, 64, numKvHeads, headDim)
+        };
+        for (KVCache cache : caches) {
+            for (int pos = 0; pos < 4; pos++) {
+                cache.write(pos, k, 0, v, 0);
+            }
+        }
+        single.computeAllHeads(q, caches[0], actual, 4, numHeads, headDim);
+        single.computeAllHeads(q, caches[1], actual, 4, numHeads, headDim);
+        single.computeAllHeads(q, caches[0], actual, 4, numHeads, headDim);
+        assertEquals(12, single.stagedRows());
+    }
+
+    @Test
+    public void testWindowedCacheMatchesSlotRotatedReference() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        int numHeads = 4;
+        int numKvHeads = 2;
+        int headDim = 8;
+        int kvDim = numKvHeads * headDim;
+        int b = KVCache.BLOCK_POSITIONS;
+        KVWindowPolicy policy = new KVWindowPolicy(1, 2);
+        int capacity = 6 * b;
+        int positions = 12 * b + 5;
+        RoPECache ropeCache = new RoPECache(accelerator, headDim, capacity, 10000.0f, null);
+        RoPE rope = new RoPE(accelerator);
+        Random rng = new Random(14);
+        float[][] rawQ = new float[positions][numHeads * headDim];
+        float[][] rawK = new float[positions][kvDim];
+        float[][] rawV = new float[positions][kvDim];
+        for (int pos = 0; pos < positions; pos++) {
+            for (int i = 0; i < rawQ[pos].length; i++) rawQ[pos][i] = rng.nextFloat() * 2 - 1;
+            for (int i = 0; i < kvDim; i++) rawK[pos][i] = rng.nextFloat() * 2 - 1;
+            for (int i = 0; i < kvDim; i++) rawV[pos][i] = rng.nextFloat() * 2 - 1;
+        }
+
+        IAttention[] kernels = {new Attention(accelerator), new AttentionVector(accelerator), new AttentionHAT(accelerator)};
+        for (IAttention kernel : kernels) {
+            String name = kernel.getClass().getSimpleName();
+            KVCache cache = KVCache.create(KvCacheMode.F32, capacity, numKvHeads, headDim);
+            cache.enableWindow(policy);
+            QueryRotations rotations = new QueryRotations(accelerator, numHeads * headDim);
+            ActivationBuffer q = new ActivationBuffer(accelerator, numHeads * headDim);
+            ActivationBuffer k = new ActivationBuffer(accelerator, kvDim);
+            ActivationBuffer out = new ActivationBuffer(accelerator, numHeads * headDim);
+            int maxGroups = 0;
+            for (int pos = 0; pos < positions; pos++) {
+                int slot = cache.reserve(pos);
+                System.arraycopy(rawK[pos], 0, k.hostForWrite(), 0, kvDim);
+                rope.apply(k, cache.rotaryPosition(pos), numKvHeads, headDim, ropeCache);
+                cache.write(slot, k.host(), 0, rawV[pos], 0);
+                System.arraycopy(rawQ[pos], 0, q.hostForWrite(), 0, rawQ[pos].length);
+                ActivationBuffer rotated = rotations.rotate(q, pos, cache, rope, ropeCache, numHeads, headDim);
+                kernel.computeAllHeads(rotated, cache, out, slot + 1, numHeads, headDim);
+                maxGroups = Math.max(maxGroups, cache.rotaryGroups());
+
+                if (pos % 5 == 0 || pos == positions - 1) {
+                    float[] expected = slotRotatedReference(accelerator, rope, ropeCache, cache, policy,
+                            rawQ[pos], rawK, rawV, slot + 1, numHeads, numKvHeads, headDim);
+                    for (int i = 0; i < expected.length; i++) {
+                        assertEquals(expected[i], out.host()[i], 1e-4f, name + " at position " + pos + ", index " + i);
+                    }
+                }
+            }
+            assertTrue(maxGroups > 2, name + " never scored more than one window rotary group");
+        }
+    }
+
+    /**
+     * Attention as if every key in the window had been rotated for its slot and the query for its own.
+     */
+    private static float[] slotRotatedReference(Accelerator accelerator, RoPE rope, RoPECache ropeCache, KVCache cache,
+                                                KVWindowPolicy policy, float[] rawQ, float[][] rawK, float[][] rawV,
+                                                int seqLen, int numHeads, int numKvHeads, int headDim) {
+        int kvDim = numKvHeads * headDim;
+        F32Array keys = F32Array.create(accelerator, seqLen * kvDim);
+        F32Array values = F32Array.create(accelerator, seqLen * kvDim);
+        ActivationBuffer key = new ActivationBuffer(accelerator, kvDim);
+        for (int s = 0; s < seqLen; s++) {
+            int pos = s < policy.sinkBlocks() * KVCache.BLOCK_POSITIONS ? s : s + cache.droppedPositions();
+            System.arraycopy(rawK[pos], 0, key.hostForWrite(), 0, kvDim);
+            rope.apply(key, s, numKvHeads, headDim, ropeCache);
+            for (int i = 0; i < kvDim; i++) {
+                keys.array(s * kvDim + i, key.host()[i]);
+                values.array(s * kvDim + i, rawV[pos][i]);
+            }
+        }
+        ActivationBuffer query = new ActivationBuffer(accelerator, rawQ.length);
+        System.arraycopy(rawQ, 0, query.hostForWrite(), 0, rawQ.length);
+        rope.apply(query, seqLen - 1, numHeads, headDim, ropeCache);
+        return perHeadReference(accelerator, query.host(), keys, values, seqLen, numHeads, numKvHeads, headDim);
+    }
+
+    private static void assertKVCacheMatchesF32Reference(Accelerator accelerator, IAttention kernel,
+                                                         KvCacheMode mode, float tolerance, KVSpillStore spillStore) {
+        int numHeads = 8;
+        int numKvHeads = 2;
+        int headDim = 16;
+        int seqLen = 37;
+        int kvDim = numKvHeads * headDim;
+
+        Random rng = new Random(9);
+        ActivationBuffer q = new ActivationBuffer(accelerator, numHeads * headDim);
+        float[] qh = q.hostForWrite();
+        for (int i = 0; i < qh.length; i++) qh[i] = rng.nextFloat() * 2 - 1;
+
+        F32Array kRef = F32Array.create(accelerator, seqLen * kvDim);
+        F32Array vRef = F32Array.create(accelerator, seqLen * kvDim);
+        KVCache cache = KVCache.create(mode, seqLen + 3, numKvHeads, headDim);
+        if (spillStore != null) {
+            cache.enableTiering(spillStore, new KVTierPolicy(1, 0, 1));
+        }
+        float[] k = new float[kvDim];
+        float[] v = new float[kvDim];
+        for (int t = 0; t < seqLen; t++) {
+            for (int i = 0; i < kvDim; i++) {
+                k[i] = rng.nextFloat() * 2 - 1;
+                v[i] = rng.nextFloat() * 2 - 1;
+                kRef.array(t * kvDim + i, k[i]);
+                vRef.array(t * kvDim + i, v[i]);
+            }
+            cache.write(t, k, 0, v, 0);
+        }
+
+        float[] expected = perHeadReference(accelerator, qh, kRef, vRef, seqLen, numHeads, numKvHeads, headDim);
+
+        // Two calls: the second exercises incremental staging in the HAT kernel
+        ActivationBuffer actual = new ActivationBuffer(accelerator, numHeads * headDim);
+        kernel.computeAllHeads(q, cache, actual, seqLen - 5, numHeads, headDim);
+        kernel.computeAllHeads(q, cache, actual, seqLen, numHeads, headDim);
+
+        float[] out = actual.host();
+        for (int i = 0; i < numHeads * headDim; i++) {
+            assertEquals(expected[i], out[i], tolerance,
+                    kernel.getClass().getSimpleName() + "/" + mode + " mismatch at index " + i);
+        }
+    }
 }
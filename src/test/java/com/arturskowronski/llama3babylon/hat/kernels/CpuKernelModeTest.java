@@ -0,0 +1,45 @@
+package com.arturskowronski.llama3babylon.hat.kernels;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CpuKernelModeTest {
+
+    @ParameterizedTest
+    @CsvSource({
+            "PLAIN,    PLAIN",
+            "plain,    PLAIN",
+            "JAVA,     PLAIN",
+            "VECTOR,   VECTOR",
+            "vector,   VECTOR",
+            "SIMD,     VECTOR",
+            " VECTOR , VECTOR"
+    })
+    public void testFromString(String input, CpuKernelMode expected) {
+        assertEquals(expected, CpuKernelMode.fromString(input));
+    }
+
+    @Test
+    public void testFromStringRejectsUnknown() {
+        assertThrows(IllegalArgumentException.class, () -> CpuKernelMode.fromString("HAT"));
+    }
+
+    @Test
+    public void testFactoryMatchesMode() {
+        assertInstanceOf(PlainJavaKernelFactory.class, CpuKernelMode.PLAIN.factory());
+        assertFalse(CpuKernelMode.PLAIN.factory() instanceof VectorKernelFactory);
+        assertInstanceOf(VectorKernelFactory.class, CpuKernelMode.VECTOR.factory());
+    }
+
+    @Test
+    public void testFromEnvDefaultsToPlain() {
+        // Assumes CPU_KERNEL_MODE is not set in the test env
+        String envVal = System.getenv("CPU_KERNEL_MODE");
+        if (envVal == null || envVal.isBlank()) {
+            assertEquals(CpuKernelMode.PLAIN, CpuKernelMode.fromEnv());
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.ActivationBuffer;
+import com.arturskowronski.llama3babylon.hat.F16Weights;
 import hat.Accelerator;
 import hat.buffer.F32Array;
 import org.junit.jupiter.api.Test;
 
 import java.lang.invoke.MethodHandles;
+import java.util.Random;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 public class GEMVTest {
@@ -51,4 +55,49 @@ public class GEMVTest {
         assertEquals(24.0f, result.array(2), 1e-5f);
         assertEquals(33.0f, result.array(3), 1e-5f);
     }
+
+    @Test
+    public void testBatchMatchesSingleVector() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        GEMV gemv = new GEMV(accelerator);
+        int rows = 5;
+        int cols = 7;
+        int batch = 3;
+        Random rng = new Random(7);
+
+        F32Array matrix = F32Array.create(accelerator, rows * cols);
+        short[] halves = new short[rows * cols];
+        for (int i = 0; i < rows * cols; i++) {
+            float value = rng.nextFloat() - 0.5f;
+            matrix.array(i, value);
+            halves[i] = Float.floatToFloat16(value);
+        }
+        F16Weights weights = new F16Weights(halves, rows, cols);
+
+        ActivationBuffer[] inputs = new ActivationBuffer[batch + 1];
+        ActivationBuffer[] outputs = new ActivationBuffer[batch + 1];
+        ActivationBuffer[] f16Outputs = new ActivationBuffer[batch + 1];
+        for (int b = 0; b <= batch; b++) {
+            inputs[b] = new ActivationBuffer(accelerator, cols);
+            outputs[b] = new ActivationBuffer(accelerator, rows);
+            f16Outputs[b] = new ActivationBuffer(accelerator, rows);
+            float[] in = inputs[b].hostForWrite();
+            for (int c = 0; c < cols; c++) {
+                in[c] = rng.nextFloat();
+            }
+        }
+
+        // The slot past the batch size must be left alone
+        gemv.applyBatch(matrix, inputs, outputs, batch, rows, cols);
+        gemv.applyBatch(weights, inputs, f16Outputs, batch, rows, cols);
+
+        ActivationBuffer expected = new ActivationBuffer(accelerator, rows);
+        for (int b = 0; b < batch; b++) {
+            gemv.apply(matrix, inputs[b], expected, rows, cols);
+            assertArrayEquals(expected.host(), outputs[b].host(), "F32 batch slot " + b);
+            gemv.apply(weights, inputs[b], expected, rows, cols);
+            assertArrayEquals(expected.host(), f16Outputs[b].host(), "F16 batch slot " + b);
+        }
+        assertArrayEquals(new float[rows], outputs[batch].host());
+    }
 }
@@ -72,4 +72,37 @@ public class RMSNormTest {
         assertEquals(3.0f / (float)Math.sqrt(12.5) * 0.5f, input.array(0), 1e-5f);
         assertEquals(4.0f / (float)Math.sqrt(12.5) * 2.0f, input.array(1), 1e-5f);
     }
+
+    @Test
+    void testRMSNormHATMatchesPlainJava() {
+        // Larger than NUM_PARTIALS and not a multiple of it, so strided slices are uneven
+        int size = 2051;
+        F32Array expected = F32Array.create(accelerator, size);
+        F32Array actual = F32Array.create(accelerator, size);
+        F32Array weight = F32Array.create(accelerator, size);
+        for (int i = 0; i < size; i++) {
+            float val = (float) Math.sin(i * 0.37) * 3.0f;
+            expected.array(i, val);
+            actual.array(i, val);
+            weight.array(i, 0.5f + (i % 7) * 0.1f);
+        }
+
+        rmsNorm.apply(expected, weight, size);
+        new RMSNormHAT(accelerator).apply(actual, weight, size);
+
+        for (int i = 0; i < size; i++) {
+            assertEquals(expected.array(i), actual.array(i), 1e-5f, "Mismatch at index " + i);
+        }
+    }
+
+    @Test
+    void testRMSNormHATEmptyInputIsANoOp() {
+        F32Array input = F32Array.create(accelerator, 1);
+        F32Array weight = F32Array.create(accelerator, 1);
+        input.array(0, 3.0f);
+
+        new RMSNormHAT(accelerator).apply(input, weight, 0);
+
+        assertEquals(3.0f, input.array(0));
+    }
 }
@@ -1,5 +1,6 @@
 package com.arturskowronski.llama3babylon.hat.kernels;
 
+import com.arturskowronski.llama3babylon.hat.RoPECache;
 import hat.Accelerator;
 import hat.buffer.F32Array;
 import org.junit.jupiter.api.Test;
@@ -7,6 +8,7 @@ import org.junit.jupiter.api.Test;
 import java.lang.invoke.MethodHandles;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class RoPETest {
 
@@ -58,4 +60,61 @@ public class RoPETest {
             assertEquals(sin001, vec.array(offset + 3), 1e-5f);
         }
     }
+
+    @Test
+    public void testCachedRoPEMatchesThetaPath() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        int numHeads = 4;
+        int headDim = 64;
+        float theta = 500000.0f;
+        RoPECache cache = new RoPECache(accelerator, headDim, 64, theta, null);
+
+        IRoPE[] kernels = {new RoPE(accelerator), new RoPEVector(accelerator), new RoPEHAT(accelerator)};
+        for (IRoPE kernel : kernels) {
+            for (int pos : new int[]{0, 1, 17, 63}) {
+                F32Array expected = filledVector(accelerator, numHeads * headDim);
+                F32Array actual = filledVector(accelerator, numHeads * headDim);
+
+                new RoPE(accelerator).apply(expected, pos, numHeads, headDim, theta);
+                kernel.apply(actual, pos, numHeads, headDim, cache);
+
+                for (int i = 0; i < numHeads * headDim; i++) {
+                    assertEquals(expected.array(i), actual.array(i), 0.0f,
+                            kernel.getClass().getSimpleName() + " mismatch at pos " + pos + ", index " + i);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRoPEFrequencyFactorsScaleAngles() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        int headDim = 4;
+        float theta = 10000.0f;
+        // Llama 3.1-style factors divide each pair's frequency
+        float[] factors = {1.0f, 8.0f};
+        RoPECache cache = new RoPECache(accelerator, headDim, 4, theta, factors);
+
+        assertEquals(1.0f, cache.invFreq(0), 0.0f);
+        assertEquals(0.01f / 8.0f, cache.invFreq(1), 1e-9f);
+
+        int pos = 3;
+        assertEquals((float) Math.cos(3.0), cache.cosTable().array(pos * 2), 1e-6f);
+        assertEquals((float) Math.sin(3.0 * 0.01 / 8.0), cache.sinTable().array(pos * 2 + 1), 1e-6f);
+    }
+
+    @Test
+    public void testRoPECacheRejectsWrongFactorCount() {
+        Accelerator accelerator = new Accelerator(MethodHandles.lookup());
+        assertThrows(IllegalArgumentException.class,
+                () -> new RoPECache(accelerator, 4, 4, 10000.0f, new float[3]));
+    }
+
+    private static F32Array filledVector(Accelerator accelerator, int size) {
+        F32Array vec = F32Array.create(accelerator, size);
+        for (int i = 0; i < size; i++) {
+            vec.array(i, (float) Math.sin(i * 0.13) + 0.25f);
+        }
+        return vec;
+    }
 }
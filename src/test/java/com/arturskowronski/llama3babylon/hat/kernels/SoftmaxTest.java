@@ -141,4 +141,52 @@ public class SoftmaxTest {
         }
         assertEquals(1.0f, sum, 0.0001f, "Softmax outputs should sum to 1.0 even with large inputs");
     }
+
+    @Test
+    void testSoftmaxHATMatchesPlainJava() {
+        // Row larger than NUM_PARTIALS, not a multiple of it, at a non-zero offset
+        int rowOffset = 5;
+        int rowSize = 203;
+        int totalSize = rowOffset + rowSize + 3;
+        F32Array expected = F32Array.create(accelerator, totalSize);
+        F32Array actual = F32Array.create(accelerator, totalSize);
+        for (int i = 0; i < totalSize; i++) {
+            float val = (float) Math.cos(i * 0.21) * 8.0f;
+            expected.array(i, val);
+            actual.array(i, val);
+        }
+
+        softmax.applyRow(expected, rowOffset, rowSize);
+        new SoftmaxHAT(accelerator).applyRow(actual, rowOffset, rowSize);
+
+        for (int i = 0; i < totalSize; i++) {
+            assertEquals(expected.array(i), actual.array(i), 1e-6f, "Mismatch at index " + i);
+        }
+    }
+
+    @Test
+    void testSoftmaxHATSmallerThanPartials() {
+        int size = 5;
+        F32Array input = F32Array.create(accelerator, size);
+        for (int i = 0; i < size; i++) {
+            input.array(i, (float) (i + 1));
+        }
+
+        new SoftmaxHAT(accelerator).apply(input, size);
+
+        float[] expected = {0.01165f, 0.03168f, 0.08612f, 0.23412f, 0.63640f};
+        for (int i = 0; i < size; i++) {
+            assertEquals(expected[i], input.array(i), 0.001f);
+        }
+    }
+
+    @Test
+    void testSoftmaxHATEmptyRowIsANoOp() {
+        F32Array input = F32Array.create(accelerator, 3);
+        input.array(1, 7.0f);
+
+        new SoftmaxHAT(accelerator).applyRow(input, 1, 0);
+
+        assertEquals(7.0f, input.array(1));
+    }
 }
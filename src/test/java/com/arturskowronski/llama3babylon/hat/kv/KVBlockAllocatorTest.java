@@ -0,0 +1,84 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KVBlockAllocatorTest {
+
+    private static final int NUM_KV_HEADS = 2;
+    private static final int HEAD_DIM = 8;
+
+    @Test
+    public void testBlockLimitIsEnforced() {
+        KVBlockAllocator allocator = new KVBlockAllocator(KvCacheMode.F16, NUM_KV_HEADS, HEAD_DIM, 2);
+        KVBlock a = allocator.allocate();
+        allocator.allocate();
+        assertThrows(IllegalStateException.class, allocator::allocate);
+
+        // Freed blocks are recycled, so the limit is on live blocks
+        allocator.release(a);
+        assertSame(a, allocator.allocate());
+    }
+
+    @Test
+    public void testReferenceCounting() {
+        KVBlockAllocator allocator = new KVBlockAllocator(KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM);
+        KVBlock block = allocator.allocate();
+        allocator.retain(block);
+        assertEquals(1, allocator.sharedBlocks());
+
+        allocator.release(block);
+        assertEquals(1, allocator.blocksInUse(), "Block stays live while referenced");
+        allocator.release(block);
+        assertEquals(0, allocator.blocksInUse());
+        assertThrows(IllegalStateException.class, () -> allocator.release(block));
+    }
+
+    @Test
+    public void testCopyOnWriteOnlyCopiesSharedBlocks() {
+        KVBlockAllocator allocator = new KVBlockAllocator(KvCacheMode.Q8, NUM_KV_HEADS, HEAD_DIM);
+        KVBlock block = allocator.allocate();
+        assertSame(block, allocator.copyOnWrite(block), "Sole owner writes in place");
+
+        allocator.retain(block);
+        KVBlock copy = allocator.copyOnWrite(block);
+        assertNotSame(block, copy);
+        assertEquals(2, allocator.blocksInUse());
+        assertEquals(0, allocator.sharedBlocks());
+    }
+
+    @Test
+    public void testOccupancyAndFragmentation() {
+        KVBlockAllocator allocator = new KVBlockAllocator(KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM, 8);
+        KVCache cache = new KVCache(allocator, 8 * KVBlock.POSITIONS);
+        float[] row = new float[NUM_KV_HEADS * HEAD_DIM];
+        // One full block and a quarter of a second one
+        int positions = KVBlock.POSITIONS + KVBlock.POSITIONS / 4;
+        for (int pos = 0; pos < positions; pos++) {
+            cache.write(pos, row, 0, row, 0);
+        }
+
+        assertEquals(2.0 / 8, allocator.occupancy(), 1e-9);
+        assertEquals(1.0 - (double) positions / (2 * KVBlock.POSITIONS), allocator.fragmentation(), 1e-9);
+        assertTrue(allocator.stats().contains("2 in use"), allocator.stats());
+
+        cache.reset();
+        assertEquals(0.0, allocator.occupancy());
+        assertEquals(0.0, allocator.fragmentation());
+    }
+
+    @Test
+    public void testTrimDropsFreeBlocks() {
+        KVBlockAllocator allocator = new KVBlockAllocator(KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM);
+        KVBlock kept = allocator.allocate();
+        allocator.release(allocator.allocate());
+        assertEquals(2, allocator.blocksCreated());
+
+        allocator.trim();
+        assertEquals(1, allocator.blocksCreated());
+        assertEquals(0, allocator.freeBlocks());
+        assertEquals(1, allocator.blocksInUse());
+        allocator.release(kept);
+    }
+}
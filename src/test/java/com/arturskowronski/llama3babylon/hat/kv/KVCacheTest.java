@@ -0,0 +1,450 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KVCacheTest {
+
+    private static final int CAPACITY = 8;
+    private static final int NUM_KV_HEADS = 2;
+    private static final int HEAD_DIM = 16;
+    private static final int KV_DIM = NUM_KV_HEADS * HEAD_DIM;
+
+    @ParameterizedTest
+    @EnumSource(KvCacheMode.class)
+    public void testRoundTripWithinModeTolerance(KvCacheMode mode) {
+        KVCache cache = KVCache.create(mode, CAPACITY, NUM_KV_HEADS, HEAD_DIM);
+        Random rng = new Random(11);
+        float[] k = randomRow(rng, 3.0f);
+        float[] v = randomRow(rng, 0.5f);
+        cache.write(5, k, 0, v, 0);
+
+        float[] kOut = new float[KV_DIM];
+        float[] vOut = new float[KV_DIM];
+        cache.readKey(5, kOut, 0);
+        cache.readValue(5, vOut, 0);
+        for (int i = 0; i < KV_DIM; i++) {
+            assertEquals(k[i], kOut[i], tolerance(mode, 3.0f), mode + " key mismatch at " + i);
+            assertEquals(v[i], vOut[i], tolerance(mode, 0.5f), mode + " value mismatch at " + i);
+        }
+        assertEquals(6, cache.length());
+    }
+
+    @ParameterizedTest
+    @EnumSource(KvCacheMode.class)
+    public void testFusedAccessorsMatchReadBack(KvCacheMode mode) {
+        KVCache cache = KVCache.create(mode, CAPACITY, NUM_KV_HEADS, HEAD_DIM);
+        Random rng = new Random(3);
+        cache.write(0, randomRow(rng, 1.0f), 0, randomRow(rng, 1.0f), 0);
+        float[] q = randomRow(rng, 1.0f);
+
+        float[] keyRow = new float[KV_DIM];
+        float[] valueRow = new float[KV_DIM];
+        cache.readKey(0, keyRow, 0);
+        cache.readValue(0, valueRow, 0);
+        for (int h = 0; h < NUM_KV_HEADS; h++) {
+            float expected = 0.0f;
+            for (int i = 0; i < HEAD_DIM; i++) {
+                expected += q[h * HEAD_DIM + i] * keyRow[h * HEAD_DIM + i];
+            }
+            assertEquals(expected, cache.dotKey(0, h, q, h * HEAD_DIM), 1e-4f, mode + " dotKey head " + h);
+
+            float[] acc = new float[HEAD_DIM];
+            acc[0] = 1.0f;
+            cache.addValue(0, h, 0.25f, acc, 0);
+            for (int i = 0; i < HEAD_DIM; i++) {
+                float base = i == 0 ? 1.0f : 0.0f;
+                assertEquals(base + 0.25f * valueRow[h * HEAD_DIM + i], acc[i], 1e-5f, mode + " addValue head " + h);
+            }
+        }
+    }
+
+    @Test
+    public void testQ8UsesPerHeadScales() {
+        KVCache cache = KVCache.create(KvCacheMode.Q8, CAPACITY, NUM_KV_HEADS, HEAD_DIM);
+        // Head 0 is tiny, head 1 is large: a shared scale would zero out head 0
+        float[] k = new float[KV_DIM];
+        for (int i = 0; i < HEAD_DIM; i++) {
+            k[i] = 0.001f * (i + 1);
+            k[HEAD_DIM + i] = 100.0f * (i + 1);
+        }
+        cache.write(0, k, 0, k, 0);
+
+        float[] out = new float[KV_DIM];
+        cache.readKey(0, out, 0);
+        for (int i = 0; i < HEAD_DIM; i++) {
+            assertEquals(k[i], out[i], 0.016f / 254 * 1.01f, "Small head lost precision at " + i);
+        }
+    }
+
+    @Test
+    public void testZeroRowQuantizesToZero() {
+        KVCache cache = KVCache.create(KvCacheMode.Q8, CAPACITY, NUM_KV_HEADS, HEAD_DIM);
+        float[] zeros = new float[KV_DIM];
+        cache.write(0, zeros, 0, zeros, 0);
+        float[] q = new float[KV_DIM];
+        q[0] = 1.0f;
+        assertEquals(0.0f, cache.dotKey(0, 0, q, 0));
+    }
+
+    @Test
+    public void testEpochAdvancesOnlyOnOverwrite() {
+        KVCache cache = KVCache.create(KvCacheMode.F32, CAPACITY, NUM_KV_HEADS, HEAD_DIM);
+        float[] row = new float[KV_DIM];
+        cache.write(0, row, 0, row, 0);
+        cache.write(1, row, 0, row, 0);
+        assertEquals(0, cache.epoch(), "Appends must not invalidate staged copies");
+
+        cache.write(0, row, 0, row, 0);
+        assertEquals(1, cache.epoch());
+        assertEquals(2, cache.length());
+    }
+
+    @Test
+    public void testWriteOutOfRangeRejected() {
+        KVCache cache = KVCache.create(KvCacheMode.F16, CAPACITY, NUM_KV_HEADS, HEAD_DIM);
+        float[] row = new float[KV_DIM];
+        assertThrows(IndexOutOfBoundsException.class, () -> cache.write(CAPACITY, row, 0, row, 0));
+    }
+
+    @Test
+    public void testBytesPerMode() {
+        int capacity = 2 * KVCache.BLOCK_POSITIONS;
+        long values = 2L * capacity * KV_DIM;
+        assertEquals(values * 4, KVCache.create(KvCacheMode.F32, capacity, NUM_KV_HEADS, HEAD_DIM).maxBytes());
+        assertEquals(values * 2, KVCache.create(KvCacheMode.F16, capacity, NUM_KV_HEADS, HEAD_DIM).maxBytes());
+        // One byte per value plus one float scale per (position, head) for K and V
+        assertEquals(values + 2L * capacity * NUM_KV_HEADS * 4,
+                KVCache.create(KvCacheMode.Q8, capacity, NUM_KV_HEADS, HEAD_DIM).maxBytes());
+    }
+
+    @ParameterizedTest
+    @EnumSource(KvCacheMode.class)
+    public void testBlocksTakenOnFirstWrite(KvCacheMode mode) {
+        int capacity = 3 * KVCache.BLOCK_POSITIONS + 10;
+        KVCache cache = KVCache.create(mode, capacity, NUM_KV_HEADS, HEAD_DIM);
+        long blockBytes = cache.allocator().blockBytes();
+        assertEquals(0, cache.bytes(), "Nothing is allocated before the first write");
+
+        Random rng = new Random(1);
+        float[] k = randomRow(rng, 1.0f);
+        float[] v = randomRow(rng, 1.0f);
+        cache.write(0, k, 0, v, 0);
+        assertEquals(blockBytes, cache.bytes());
+
+        // Writing into the last block takes only that block
+        cache.write(capacity - 1, k, 0, v, 0);
+        assertEquals(2, cache.heldBlocks());
+        assertEquals(2 * blockBytes, cache.bytes());
+
+        float[] first = new float[KV_DIM];
+        float[] last = new float[KV_DIM];
+        cache.readKey(0, first, 0);
+        cache.readKey(capacity - 1, last, 0);
+        assertArrayEquals(first, last, mode + " rows in different blocks should match");
+    }
+
+    @Test
+    public void testResetReturnsBlocksToPool() {
+        KVCache cache = KVCache.create(KvCacheMode.F16, 4 * KVCache.BLOCK_POSITIONS, NUM_KV_HEADS, HEAD_DIM);
+        float[] row = new float[KV_DIM];
+        for (int pos = 0; pos <= KVCache.BLOCK_POSITIONS; pos++) {
+            cache.write(pos, row, 0, row, 0);
+        }
+        int epoch = cache.epoch();
+
+        cache.reset();
+
+        assertEquals(0, cache.bytes());
+        assertEquals(0, cache.length());
+        assertEquals(epoch + 1, cache.epoch(), "Reset must invalidate staged copies");
+        assertEquals(0, cache.allocator().blocksInUse());
+        assertEquals(2, cache.allocator().freeBlocks());
+
+        // The next write reuses a pooled block instead of creating one
+        cache.write(0, row, 0, row, 0);
+        assertEquals(2, cache.allocator().blocksCreated());
+        assertEquals(1, cache.heldBlocks());
+    }
+
+    @Test
+    public void testRowsStraddlingBlockBoundaryAttendCorrectly() {
+        int seqLen = KVCache.BLOCK_POSITIONS + 5;
+        KVCache cache = KVCache.create(KvCacheMode.F32, seqLen, NUM_KV_HEADS, HEAD_DIM);
+        Random rng = new Random(2);
+        float[][] keys = new float[seqLen][];
+        for (int pos = 0; pos < seqLen; pos++) {
+            keys[pos] = randomRow(rng, 1.0f);
+            cache.write(pos, keys[pos], 0, keys[pos], 0);
+        }
+        float[] q = randomRow(rng, 1.0f);
+        for (int pos = KVCache.BLOCK_POSITIONS - 2; pos < seqLen; pos++) {
+            float expected = 0.0f;
+            for (int i = 0; i < HEAD_DIM; i++) {
+                expected += q[HEAD_DIM + i] * keys[pos][HEAD_DIM + i];
+            }
+            assertEquals(expected, cache.dotKey(pos, 1, q, HEAD_DIM), 1e-6f, "dotKey at position " + pos);
+        }
+    }
+
+    @Test
+    public void testSharedPrefixIsCopiedOnWrite() {
+        KVBlockAllocator allocator = new KVBlockAllocator(KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM);
+        KVCache source = new KVCache(allocator, 4 * KVCache.BLOCK_POSITIONS);
+        KVCache fork = new KVCache(allocator, 4 * KVCache.BLOCK_POSITIONS);
+        Random rng = new Random(4);
+        int prefix = KVCache.BLOCK_POSITIONS + 3;
+        for (int pos = 0; pos < prefix; pos++) {
+            float[] row = randomRow(rng, 1.0f);
+            source.write(pos, row, 0, row, 0);
+        }
+
+        fork.shareFrom(source, prefix);
+        assertEquals(prefix, fork.length());
+        assertEquals(2, allocator.blocksInUse(), "Sharing must not copy blocks");
+        assertEquals(2, allocator.sharedBlocks());
+        assertSame(source.block(0), fork.block(0));
+
+        // Appending to the fork un-shares only the partial tail block
+        float[] tail = randomRow(rng, 1.0f);
+        fork.write(prefix, tail, 0, tail, 0);
+        assertEquals(3, allocator.blocksInUse());
+        assertSame(source.block(0), fork.block(0));
+        assertNotSame(source.block(prefix), fork.block(prefix));
+
+        float[] expected = new float[KV_DIM];
+        float[] actual = new float[KV_DIM];
+        source.readKey(prefix - 1, expected, 0);
+        fork.readKey(prefix - 1, actual, 0);
+        assertArrayEquals(expected, actual, "Copied block must keep the shared prefix rows");
+        assertEquals(prefix, source.length(), "Source is unaffected by writes to the fork");
+
+        fork.reset();
+        source.reset();
+        assertEquals(0, allocator.blocksInUse());
+    }
+
+    @Test
+    public void testShareRejectsDifferentAllocator() {
+        KVCache a = KVCache.create(KvCacheMode.F32, CAPACITY, NUM_KV_HEADS, HEAD_DIM);
+        KVCache b = KVCache.create(KvCacheMode.F32, CAPACITY, NUM_KV_HEADS, HEAD_DIM);
+        float[] row = new float[KV_DIM];
+        a.write(0, row, 0, row, 0);
+        assertThrows(IllegalArgumentException.class, () -> b.shareFrom(a, 1));
+    }
+
+    @ParameterizedTest
+    @EnumSource(KvCacheMode.class)
+    public void testWindowKeepsSinksAndRecentBlocks(KvCacheMode mode) {
+        int b = KVCache.BLOCK_POSITIONS;
+        KVBlockAllocator allocator = new KVBlockAllocator(mode, NUM_KV_HEADS, HEAD_DIM);
+        KVCache cache = new KVCache(allocator, 8 * b);
+        float[] invFreq = invFreq();
+        cache.enableWindow(new KVWindowPolicy(1, 2));
+
+        // Keys are written rotated for their rotary position, as TransformerBlock does
+        Random rng = new Random(6);
+        int positions = 5 * b + 3;
+        float[][] written = new float[positions][];
+        for (int pos = 0; pos < positions; pos++) {
+            float[] raw = randomRow(rng, 1.0f);
+            int slot = cache.reserve(pos);
+            float[] key = rotated(raw, cache.rotaryPosition(pos), invFreq);
+            cache.write(slot, key, 0, raw, 0);
+            written[pos] = new float[KV_DIM];
+            cache.readKey(slot, written[pos], 0);
+        }
+
+        assertEquals(3 * b, cache.droppedPositions());
+        assertEquals(3, cache.evictedBlocks());
+        assertEquals(2 * b + 3, cache.length());
+        assertEquals(3, cache.heldBlocks());
+        assertEquals(3, allocator.blocksInUse());
+        assertEquals(0, cache.epoch(), "Evicting a block must not invalidate staged copies");
+
+        // Eviction moves blocks, never their contents
+        float[] key = new float[KV_DIM];
+        for (int slot = 0; slot < cache.length(); slot++) {
+            int pos = slot < b ? slot : slot + cache.droppedPositions();
+            cache.readKey(slot, key, 0);
+            assertArrayEquals(written[pos], key, 0.0f, mode + " key at slot " + slot);
+        }
+    }
+
+    @Test
+    public void testWindowQueriesSeeSlotDistances() {
+        int b = KVCache.BLOCK_POSITIONS;
+        int capacity = 6 * b;
+        KVCache cache = KVCache.create(KvCacheMode.F32, capacity, NUM_KV_HEADS, HEAD_DIM);
+        KVWindowPolicy policy = new KVWindowPolicy(1, 2);
+        cache.enableWindow(policy);
+
+        int positions = 20 * b + 5;
+        int[] keyRotary = new int[positions];
+        float[] row = new float[KV_DIM];
+        int maxGroups = 0;
+        for (int pos = 0; pos < positions; pos++) {
+            int slot = cache.reserve(pos);
+            keyRotary[pos] = cache.rotaryPosition(pos);
+            cache.write(slot, row, 0, row, 0);
+            maxGroups = Math.max(maxGroups, cache.rotaryGroups());
+
+            // Every key is scored as if it sat at its slot, within the RoPE table
+            for (int s = 0; s <= slot; s++) {
+                int keyPos = s < policy.sinkBlocks() * b ? s : s + cache.droppedPositions();
+                int queryRotary = cache.queryRotaryPosition(pos, cache.rotaryGroup(s));
+                assertEquals(slot - s, queryRotary - keyRotary[keyPos], "query " + pos + ", slot " + s);
+                assertTrue(queryRotary < capacity, "query " + pos + " rotated past the table: " + queryRotary);
+            }
+        }
+        assertTrue(keyRotary[positions - 1] < positions - 1 - policy.positions(), "The rotary base never moved");
+        assertTrue(maxGroups <= policy.windowBlocks() + 1, "rotary groups: " + maxGroups);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> KVCache.create(KvCacheMode.F32, 4 * b, NUM_KV_HEADS, HEAD_DIM).enableWindow(policy),
+                "The window leaves no room for the rotary positions of older keys");
+    }
+
+    @Test
+    public void testWindowRejectsEvictedPositionsUntilReset() {
+        int b = KVCache.BLOCK_POSITIONS;
+        KVCache cache = KVCache.create(KvCacheMode.F32, 4 * b, NUM_KV_HEADS, HEAD_DIM);
+        cache.enableWindow(new KVWindowPolicy(1, 1));
+        float[] row = new float[KV_DIM];
+        for (int pos = 0; pos < 3 * b; pos++) {
+            cache.write(cache.reserve(pos), row, 0, row, 0);
+        }
+        assertEquals(2 * b, cache.length());
+
+        assertThrows(IllegalStateException.class, () -> cache.reserve(b));
+        assertThrows(IllegalArgumentException.class, () -> cache.reserve(3 * b + 1));
+
+        cache.reset();
+        assertEquals(0, cache.droppedPositions());
+        assertEquals(0, cache.reserve(0));
+    }
+
+    @Test
+    public void testWindowValidatesPolicy() {
+        int b = KVCache.BLOCK_POSITIONS;
+        KVCache cache = KVCache.create(KvCacheMode.F32, 2 * b, NUM_KV_HEADS, HEAD_DIM);
+        assertThrows(IllegalArgumentException.class, () -> cache.enableWindow(new KVWindowPolicy(1, 2)));
+        assertThrows(IllegalArgumentException.class, () -> new KVWindowPolicy(-1, 1));
+        assertThrows(IllegalArgumentException.class, () -> new KVWindowPolicy(1, 0));
+        assertEquals(new KVWindowPolicy(1, 7), KVWindowPolicy.ofTokens(4, 100));
+        assertEquals(8 * b, KVWindowPolicy.ofTokens(4, 100).positions());
+    }
+
+    @Test
+    public void testHeavyHitterEvictsLeastAttendedPosition() {
+        KVCache cache = KVCache.create(KvCacheMode.F32, 16, NUM_KV_HEADS, HEAD_DIM);
+        cache.enableHeavyHitters(new KVHeavyHitterPolicy(4, 1));
+        assertTrue(cache.tracksAttention());
+        Random rng = new Random(8);
+        float[][] rows = new float[5][];
+        for (int pos = 0; pos < 4; pos++) {
+            rows[pos] = randomRow(rng, 1.0f);
+            cache.write(cache.reserve(pos), rows[pos], 0, rows[pos], 0);
+        }
+        float[] mass = {0.9f, 0.5f, 0.1f, 0.0f};
+        for (int slot = 0; slot < 4; slot++) {
+            cache.addAttention(slot, 0, mass[slot] / 2);
+            cache.addAttention(slot, 1, mass[slot] / 2);
+        }
+
+        // Position 3 is recent, so position 2 goes and the last row takes its slot
+        rows[4] = randomRow(rng, 1.0f);
+        int slot = cache.reserve(4);
+        cache.write(slot, rows[4], 0, rows[4], 0);
+
+        assertEquals(3, slot);
+        assertEquals(1, cache.droppedPositions());
+        assertEquals(4, cache.length());
+        int[] expectedPositions = {0, 1, 3, 4};
+        float[] key = new float[KV_DIM];
+        for (int s = 0; s < 4; s++) {
+            assertEquals(expectedPositions[s], cache.positionAt(s));
+            cache.readKey(s, key, 0);
+            assertArrayEquals(rows[expectedPositions[s]], key, "slot " + s);
+        }
+        assertEquals(0.0f, cache.attentionMass(2, 0));
+        assertEquals(0.0f, cache.attentionMass(3, 1), "A new position starts without attention mass");
+        assertEquals(0.45f, cache.attentionMass(0, 0), 1e-6f);
+        assertThrows(IllegalStateException.class, () -> cache.reserve(2));
+    }
+
+    @Test
+    public void testHeavyHitterNeverEvictsRecentPositions() {
+        KVCache cache = KVCache.create(KvCacheMode.F32, 16, NUM_KV_HEADS, HEAD_DIM);
+        cache.enableHeavyHitters(new KVHeavyHitterPolicy(3, 2));
+        float[] row = new float[KV_DIM];
+        for (int pos = 0; pos < 3; pos++) {
+            cache.write(cache.reserve(pos), row, 0, row, 0);
+        }
+        cache.addAttention(0, 0, 1.0f);
+
+        // Positions 1 and 2 are protected, so the heavy hitter at 0 is the only candidate
+        int slot = cache.reserve(3);
+        cache.write(slot, row, 0, row, 0);
+        assertEquals(2, slot);
+        assertEquals(2, cache.positionAt(0));
+        assertEquals(1, cache.positionAt(1));
+        assertEquals(3, cache.positionAt(2));
+        assertEquals(3, cache.rotaryPosition(3), "Heavy-hitter caches keep original RoPE positions");
+
+        cache.reset();
+        assertEquals(0, cache.droppedPositions());
+        assertEquals(0.0f, cache.attentionMass(0, 0));
+    }
+
+    @Test
+    public void testHeavyHitterPolicyValidation() {
+        assertThrows(IllegalArgumentException.class, () -> new KVHeavyHitterPolicy(1, 0));
+        assertThrows(IllegalArgumentException.class, () -> new KVHeavyHitterPolicy(4, 4));
+        KVCache cache = KVCache.create(KvCacheMode.F32, 32, NUM_KV_HEADS, HEAD_DIM);
+        assertThrows(IllegalArgumentException.class, () -> cache.enableHeavyHitters(new KVHeavyHitterPolicy(64, 4)));
+        cache.enableHeavyHitters(new KVHeavyHitterPolicy(8, 4));
+        assertThrows(IllegalStateException.class, () -> cache.enableWindow(new KVWindowPolicy(0, 1)));
+    }
+
+    private static float[] invFreq() {
+        float[] invFreq = new float[HEAD_DIM / 2];
+        for (int j = 0; j < invFreq.length; j++) {
+            invFreq[j] = (float) (1.0 / Math.pow(10000.0, (double) (2 * j) / HEAD_DIM));
+        }
+        return invFreq;
+    }
+
+    private static float[] rotated(float[] row, int pos, float[] invFreq) {
+        float[] out = new float[KV_DIM];
+        for (int i = 0; i < KV_DIM; i += 2) {
+            float angle = pos * invFreq[(i % HEAD_DIM) / 2];
+            float cos = (float) Math.cos(angle);
+            float sin = (float) Math.sin(angle);
+            out[i] = row[i] * cos - row[i + 1] * sin;
+            out[i + 1] = row[i] * sin + row[i + 1] * cos;
+        }
+        return out;
+    }
+
+    private static float tolerance(KvCacheMode mode, float range) {
+        return switch (mode) {
+            case F32 -> 0.0f;
+            case F16 -> range * 1e-3f;
+            case Q8 -> range / 254 * 1.01f;
+        };
+    }
+
+    private static float[] randomRow(Random rng, float range) {
+        float[] row = new float[KV_DIM];
+        for (int i = 0; i < KV_DIM; i++) {
+            row[i] = (rng.nextFloat() * 2 - 1) * range;
+        }
+        return row;
+    }
+}
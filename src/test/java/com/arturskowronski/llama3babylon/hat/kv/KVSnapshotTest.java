@@ -0,0 +1,132 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KVSnapshotTest {
+
+    private static final int LAYERS = 3;
+    private static final int CAPACITY = 4 * KVCache.BLOCK_POSITIONS;
+    private static final int NUM_KV_HEADS = 2;
+    private static final int HEAD_DIM = 8;
+    private static final int KV_DIM = NUM_KV_HEADS * HEAD_DIM;
+    private static final long FINGERPRINT = 0x1234_5678_9abc_def0L;
+
+    @TempDir
+    Path tempDir;
+
+    @ParameterizedTest
+    @EnumSource(KvCacheMode.class)
+    public void testRoundTripRestoresRowsBitExact(KvCacheMode mode) throws IOException {
+        KVCache[] saved = caches(mode);
+        int positions = KVCache.BLOCK_POSITIONS + 5;
+        fill(saved, positions);
+        int[] tokens = {128000, 9906, 11, 1917, 0};
+        Path file = tempDir.resolve("session.kv");
+        KVSnapshot.save(file, FINGERPRINT, tokens, positions, saved);
+
+        KVCache[] restored = caches(mode);
+        KVSnapshot.Restored result = KVSnapshot.restore(file, FINGERPRINT, restored);
+
+        assertEquals(positions, result.positions());
+        assertArrayEquals(tokens, result.tokens());
+        float[] expected = new float[KV_DIM];
+        float[] actual = new float[KV_DIM];
+        for (int l = 0; l < LAYERS; l++) {
+            assertEquals(positions, restored[l].length());
+            assertEquals(2, restored[l].heldBlocks());
+            for (int pos = 0; pos < positions; pos++) {
+                saved[l].readKey(pos, expected, 0);
+                restored[l].readKey(pos, actual, 0);
+                assertArrayEquals(expected, actual, mode + " key row " + pos);
+                saved[l].readValue(pos, expected, 0);
+                restored[l].readValue(pos, actual, 0);
+                assertArrayEquals(expected, actual, mode + " value row " + pos);
+            }
+        }
+    }
+
+    @Test
+    public void testSavesOnlyRequestedPositions() throws IOException {
+        KVCache[] saved = caches(KvCacheMode.F32);
+        fill(saved, 3 * KVCache.BLOCK_POSITIONS);
+        Path file = tempDir.resolve("prefix.kv");
+        KVSnapshot.save(file, FINGERPRINT, new int[0], 4, saved);
+
+        KVCache[] restored = caches(KvCacheMode.F32);
+        assertEquals(4, KVSnapshot.restore(file, FINGERPRINT, restored).positions());
+        assertEquals(1, restored[0].heldBlocks());
+        assertTrue(Files.size(file) < 2 * LAYERS * saved[0].allocator().blockBytes());
+    }
+
+    @Test
+    public void testRejectsDifferentModel() throws IOException {
+        Path file = tempDir.resolve("other-model.kv");
+        KVCache[] saved = caches(KvCacheMode.F32);
+        fill(saved, 2);
+        KVSnapshot.save(file, FINGERPRINT, new int[]{1, 2}, 2, saved);
+
+        KVCache[] restored = caches(KvCacheMode.F32);
+        assertThrows(IOException.class, () -> KVSnapshot.restore(file, FINGERPRINT + 1, restored));
+        assertEquals(0, restored[0].length());
+    }
+
+    @Test
+    public void testRejectsDifferentCacheMode() throws IOException {
+        Path file = tempDir.resolve("f16.kv");
+        KVCache[] saved = caches(KvCacheMode.F16);
+        fill(saved, 2);
+        KVSnapshot.save(file, FINGERPRINT, new int[]{1, 2}, 2, saved);
+
+        assertThrows(IOException.class, () -> KVSnapshot.restore(file, FINGERPRINT, caches(KvCacheMode.Q8)));
+    }
+
+    @Test
+    public void testRejectsForeignAndTruncatedFiles() throws IOException {
+        Path garbage = tempDir.resolve("garbage.kv");
+        Files.write(garbage, new byte[64]);
+        assertThrows(IOException.class, () -> KVSnapshot.restore(garbage, FINGERPRINT, caches(KvCacheMode.F32)));
+
+        Path file = tempDir.resolve("truncated.kv");
+        KVCache[] saved = caches(KvCacheMode.F32);
+        fill(saved, 2);
+        KVSnapshot.save(file, FINGERPRINT, new int[]{1, 2}, 2, saved);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+        assertThrows(IOException.class, () -> KVSnapshot.restore(file, FINGERPRINT, caches(KvCacheMode.F32)));
+    }
+
+    private static KVCache[] caches(KvCacheMode mode) {
+        KVBlockAllocator allocator = new KVBlockAllocator(mode, NUM_KV_HEADS, HEAD_DIM);
+        KVCache[] caches = new KVCache[LAYERS];
+        for (int l = 0; l < LAYERS; l++) {
+            caches[l] = new KVCache(allocator, CAPACITY);
+        }
+        return caches;
+    }
+
+    private static void fill(KVCache[] caches, int positions) {
+        Random rng = new Random(17);
+        float[] k = new float[KV_DIM];
+        float[] v = new float[KV_DIM];
+        for (KVCache cache : caches) {
+            for (int pos = 0; pos < positions; pos++) {
+                for (int i = 0; i < KV_DIM; i++) {
+                    k[i] = rng.nextFloat() * 4 - 2;
+                    v[i] = rng.nextFloat() * 2 - 1;
+                }
+                cache.write(pos, k, 0, v, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KVSpillStoreTest {
+
+    private static final int NUM_KV_HEADS = 2;
+    private static final int HEAD_DIM = 8;
+    private static final int KV_DIM = NUM_KV_HEADS * HEAD_DIM;
+    private static final int B = KVCache.BLOCK_POSITIONS;
+    private static final int CAPACITY = 8 * B;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testBlocksOutsideWindowAreSpilledAndReadBack() throws IOException {
+        KVBlockAllocator allocator = new KVBlockAllocator(KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM);
+        try (KVSpillStore store = new KVSpillStore(tempDir, KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM, Long.MAX_VALUE)) {
+            KVCache cache = new KVCache(allocator, CAPACITY);
+            cache.enableTiering(store, new KVTierPolicy(2, 1, 2));
+            float[][] rows = fill(cache, 6 * B);
+
+            // Block 0 is pinned, blocks 4 and 5 are the recent window
+            assertEquals(3, cache.spilledBlocks());
+            assertEquals(3, cache.heldBlocks());
+            assertEquals(3, allocator.blocksInUse());
+            assertEquals(3, store.slotsInUse());
+            assertEquals(3, store.spills());
+            assertEquals(3 * store.slotBytes(), cache.spilledBytes());
+            assertRows(cache, rows, 0.0f);
+        }
+    }
+
+    @Test
+    public void testNarrowSpillModeConvertsColdBlocks() throws IOException {
+        KVBlockAllocator allocator = new KVBlockAllocator(KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM);
+        try (KVSpillStore store = new KVSpillStore(tempDir, KvCacheMode.F16, NUM_KV_HEADS, HEAD_DIM, Long.MAX_VALUE)) {
+            assertEquals(allocator.blockBytes() / 2, store.slotBytes());
+            KVCache cache = new KVCache(allocator, CAPACITY);
+            cache.enableTiering(store, new KVTierPolicy(1, 0, 1));
+            float[][] rows = fill(cache, 3 * B + 4);
+
+            assertEquals(3, cache.spilledBlocks());
+            assertRows(cache, rows, 2e-3f);
+        }
+    }
+
+    @Test
+    public void testWriteIntoSpilledBlockBringsItBack() throws IOException {
+        KVBlockAllocator allocator = new KVBlockAllocator(KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM);
+        try (KVSpillStore store = new KVSpillStore(tempDir, KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM, Long.MAX_VALUE)) {
+            KVCache cache = new KVCache(allocator, CAPACITY);
+            cache.enableTiering(store, new KVTierPolicy(1, 0, 1));
+            fill(cache, 2 * B + 1);
+            assertEquals(2, cache.spilledBlocks());
+            float[] before = new float[KV_DIM];
+            cache.readKey(3, before, 0);
+
+            float[] row = new float[KV_DIM];
+            row[0] = 42.0f;
+            cache.write(2, row, 0, row, 0);
+
+            assertEquals(1, cache.spilledBlocks());
+            assertEquals(1, store.slotsInUse());
+            float[] after = new float[KV_DIM];
+            cache.readKey(2, after, 0);
+            assertEquals(42.0f, after[0]);
+            cache.readKey(3, after, 0);
+            assertArrayEquals(before, after);
+        }
+    }
+
+    @Test
+    public void testFillBuffersServeRepeatedReads() throws IOException {
+        KVBlockAllocator allocator = new KVBlockAllocator(KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM);
+        try (KVSpillStore store = new KVSpillStore(tempDir, KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM, Long.MAX_VALUE)) {
+            KVCache cache = new KVCache(allocator, CAPACITY);
+            cache.enableTiering(store, new KVTierPolicy(1, 0, 1));
+            fill(cache, 2 * B);
+            float[] q = new float[KV_DIM];
+
+            for (int pos = 0; pos < B; pos++) {
+                cache.dotKey(pos, 0, q, 0);
+                cache.dotKey(pos, 1, q, HEAD_DIM);
+            }
+            assertEquals(1, store.fills());
+        }
+    }
+
+    @Test
+    public void testResetFreesSlotsForReuse() throws IOException {
+        KVBlockAllocator allocator = new KVBlockAllocator(KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM);
+        try (KVSpillStore store = new KVSpillStore(tempDir, KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM, Long.MAX_VALUE)) {
+            KVCache cache = new KVCache(allocator, CAPACITY);
+            cache.enableTiering(store, new KVTierPolicy(1, 0, 1));
+            fill(cache, 4 * B);
+            long fileBytes = store.fileBytes();
+
+            cache.reset();
+            assertEquals(0, cache.spilledBlocks());
+            assertEquals(0, store.slotsInUse());
+            assertEquals(0, allocator.blocksInUse());
+
+            fill(cache, 4 * B);
+            assertEquals(fileBytes, store.fileBytes());
+        }
+    }
+
+    @Test
+    public void testSpillsBeyondBudgetStayInMemory() throws IOException {
+        KVBlockAllocator allocator = new KVBlockAllocator(KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM);
+        long oneSlot = allocator.blockBytes();
+        try (KVSpillStore store = new KVSpillStore(tempDir, KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM, oneSlot)) {
+            KVCache cache = new KVCache(allocator, CAPACITY);
+            cache.enableTiering(store, new KVTierPolicy(1, 0, 1));
+            float[][] rows = fill(cache, 3 * B + 1);
+
+            assertEquals(1, cache.spilledBlocks());
+            assertEquals(2, store.rejected());
+            assertEquals(3, cache.heldBlocks());
+            assertRows(cache, rows, 0.0f);
+        }
+    }
+
+    @Test
+    public void testRejectsMismatchedShape() throws IOException {
+        KVBlockAllocator allocator = new KVBlockAllocator(KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM);
+        try (KVSpillStore store = new KVSpillStore(tempDir, KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM * 2, Long.MAX_VALUE)) {
+            KVCache cache = new KVCache(allocator, CAPACITY);
+            assertThrows(IllegalArgumentException.class, () -> cache.enableTiering(store, new KVTierPolicy(1, 0, 1)));
+        }
+    }
+
+    private static float[][] fill(KVCache cache, int positions) {
+        Random rng = new Random(positions);
+        float[][] rows = new float[positions][KV_DIM];
+        for (int pos = 0; pos < positions; pos++) {
+            for (int i = 0; i < KV_DIM; i++) {
+                rows[pos][i] = rng.nextFloat() * 2 - 1;
+            }
+            cache.write(pos, rows[pos], 0, rows[pos], 0);
+        }
+        return rows;
+    }
+
+    private static void assertRows(KVCache cache, float[][] rows, float tolerance) {
+        float[] key = new float[KV_DIM];
+        float[] value = new float[KV_DIM];
+        for (int pos = 0; pos < rows.length; pos++) {
+            cache.readKey(pos, key, 0);
+            cache.readValue(pos, value, 0);
+            assertArrayEquals(rows[pos], key, tolerance, "key row " + pos);
+            assertArrayEquals(rows[pos], value, tolerance, "value row " + pos);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KvCacheModeTest {
+
+    @ParameterizedTest
+    @CsvSource({
+            "F32,    F32",
+            "f32,    F32",
+            "F16,    F16",
+            "f16,    F16",
+            "Q8,     Q8",
+            "q8,     Q8",
+            "INT8,   Q8",
+            " F16 ,  F16"
+    })
+    public void testFromString(String input, KvCacheMode expected) {
+        assertEquals(expected, KvCacheMode.fromString(input));
+    }
+
+    @Test
+    public void testFromStringRejectsUnknown() {
+        assertThrows(IllegalArgumentException.class, () -> KvCacheMode.fromString("Q4"));
+    }
+
+    @Test
+    public void testFromEnvDefaultsToF32() {
+        // Assumes KV_CACHE_MODE is not set in the test env
+        String envVal = System.getenv("KV_CACHE_MODE");
+        if (envVal == null || envVal.isBlank()) {
+            assertEquals(KvCacheMode.F32, KvCacheMode.fromEnv());
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.arturskowronski.llama3babylon.hat.kv;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PrefixCacheTest {
+
+    private static final int LAYERS = 2;
+    private static final int CAPACITY = 8 * KVCache.BLOCK_POSITIONS;
+    private static final int NUM_KV_HEADS = 2;
+    private static final int HEAD_DIM = 8;
+    private static final int KV_DIM = NUM_KV_HEADS * HEAD_DIM;
+    private static final int B = KVCache.BLOCK_POSITIONS;
+
+    private final KVBlockAllocator allocator = new KVBlockAllocator(KvCacheMode.F32, NUM_KV_HEADS, HEAD_DIM);
+
+    @Test
+    public void testLongestPrefixIsSharedByReference() {
+        PrefixCache prefixCache = new PrefixCache(allocator, LAYERS, Long.MAX_VALUE);
+        int[] prompt = tokens(3 * B + 5, 1);
+        KVCache[] first = caches();
+        fill(first, prompt.length);
+        prefixCache.insert(prompt, prompt.length, first);
+        assertEquals(3, prefixCache.cachedChunks());
+
+        // Same first two blocks, different third block
+        int[] other = Arrays.copyOf(prompt, 3 * B + 1);
+        other[2 * B + 3] = -1;
+        KVCache[] second = caches();
+        assertEquals(2 * B, prefixCache.lookup(other, other.length - 1, second));
+
+        for (int l = 0; l < LAYERS; l++) {
+            assertEquals(2 * B, second[l].length());
+            assertSame(first[l].block(0), second[l].block(0));
+            assertSame(first[l].block(B), second[l].block(B));
+            assertRowsEqual(first[l], second[l], 2 * B);
+        }
+        assertEquals(1, prefixCache.hits());
+        assertEquals(2 * B, prefixCache.savedTokens());
+    }
+
+    @Test
+    public void testLookupLeavesLastPromptTokenToPrefill() {
+        PrefixCache prefixCache = new PrefixCache(allocator, LAYERS, Long.MAX_VALUE);
+        int[] prompt = tokens(2 * B, 2);
+        KVCache[] first = caches();
+        fill(first, prompt.length);
+        prefixCache.insert(prompt, prompt.length, first);
+
+        // A prompt of exactly two blocks can reuse only the first: its last token must run
+        assertEquals(B, prefixCache.lookup(prompt, prompt.length - 1, caches()));
+    }
+
+    @Test
+    public void testMissResetsCachesAndCountsLookup() {
+        PrefixCache prefixCache = new PrefixCache(allocator, LAYERS, Long.MAX_VALUE);
+        KVCache[] caches = caches();
+        fill(caches, 5);
+
+        assertEquals(0, prefixCache.lookup(tokens(2 * B, 3), 2 * B - 1, caches));
+        assertEquals(0, caches[0].length());
+        assertEquals(0, caches[0].heldBlocks());
+        assertEquals(1, prefixCache.lookups());
+        assertEquals(0.0, prefixCache.hitRatio());
+    }
+
+    @Test
+    public void testPartialBlocksAreNotCached() {
+        PrefixCache prefixCache = new PrefixCache(allocator, LAYERS, Long.MAX_VALUE);
+        int[] prompt = tokens(B - 1, 4);
+        KVCache[] caches = caches();
+        fill(caches, prompt.length);
+        prefixCache.insert(prompt, prompt.length, caches);
+        assertEquals(0, prefixCache.cachedChunks());
+    }
+
+    @Test
+    public void testBlocksOutliveTheCachesThatProducedThem() {
+        PrefixCache prefixCache = new PrefixCache(allocator, LAYERS, Long.MAX_VALUE);
+        int[] prompt = tokens(B + 1, 5);
+        KVCache[] first = caches();
+        fill(first, prompt.length);
+        prefixCache.insert(prompt, prompt.length, first);
+        float[] expected = new float[KV_DIM];
+        first[1].readKey(3, expected, 0);
+        for (KVCache cache : first) {
+            cache.reset();
+        }
+        assertEquals(LAYERS, allocator.blocksInUse());
+
+        KVCache[] second = caches();
+        assertEquals(B, prefixCache.lookup(prompt, prompt.length - 1, second));
+        float[] actual = new float[KV_DIM];
+        second[1].readKey(3, actual, 0);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedPrefixIsEvictedFirst() {
+        long chunkBytes = LAYERS * allocator.blockBytes();
+        PrefixCache prefixCache = new PrefixCache(allocator, LAYERS, 3 * chunkBytes);
+        int[] a = tokens(2 * B, 10);
+        int[] b = tokens(B, 20);
+        insertFilled(prefixCache, a);
+        insertFilled(prefixCache, b);
+        assertEquals(3, prefixCache.cachedChunks());
+
+        // Touch a, then add a new prefix: b is now the oldest and goes first
+        prefixCache.lookup(a, a.length, caches());
+        insertFilled(prefixCache, tokens(B, 30));
+        assertEquals(3, prefixCache.cachedChunks());
+        assertEquals(1, prefixCache.evictions());
+        assertEquals(0, prefixCache.lookup(b, b.length, caches()));
+        assertEquals(2 * B, prefixCache.lookup(a, a.length, caches()));
+        assertTrue(prefixCache.bytes() <= prefixCache.byteBudget());
+    }
+
+    @Test
+    public void testClearReturnsBlocksToPool() {
+        PrefixCache prefixCache = new PrefixCache(allocator, LAYERS, Long.MAX_VALUE);
+        insertFilled(prefixCache, tokens(2 * B, 6));
+        assertEquals(2 * LAYERS, allocator.blocksInUse());
+
+        prefixCache.clear();
+        assertEquals(0, prefixCache.cachedChunks());
+        assertEquals(0, allocator.blocksInUse());
+    }
+
+    @Test
+    public void testRejectsCachesFromAnotherPool() {
+        PrefixCache prefixCache = new PrefixCache(allocator, LAYERS, Long.MAX_VALUE);
+        KVCache[] foreign = {
+                KVCache.create(KvCacheMode.F32, CAPACITY, NUM_KV_HEADS, HEAD_DIM),
+                KVCache.create(KvCacheMode.F32, CAPACITY, NUM_KV_HEADS, HEAD_DIM)
+        };
+        assertThrows(IllegalArgumentException.class, () -> prefixCache.lookup(tokens(B, 7), B, foreign));
+        assertThrows(IllegalArgumentException.class, () -> prefixCache.lookup(tokens(B, 7), B, new KVCache[1]));
+    }
+
+    /** Inserts a prompt whose caches are then dropped, leaving the tree as the only holder. */
+    private void insertFilled(PrefixCache prefixCache, int[] prompt) {
+        KVCache[] caches = caches();
+        fill(caches, prompt.length);
+        prefixCache.insert(prompt, prompt.length, caches);
+        for (KVCache cache : caches) {
+            cache.reset();
+        }
+    }
+
+    private KVCache[] caches() {
+        KVCache[] caches = new KVCache[LAYERS];
+        for (int l = 0; l < LAYERS; l++) {
+            caches[l] = new KVCache(allocator, CAPACITY);
+        }
+        return caches;
+    }
+
+    private static void fill(KVCache[] caches, int positions) {
+        Random rng = new Random(positions);
+        float[] k = new float[KV_DIM];
+        float[] v = new float[KV_DIM];
+        for (KVCache cache : caches) {
+            for (int pos = 0; pos < positions; pos++) {
+                for (int i = 0; i < KV_DIM; i++) {
+                    k[i] = rng.nextFloat();
+                    v[i] = rng.nextFloat();
+                }
+                cache.write(pos, k, 0, v, 0);
+            }
+        }
+    }
+
+    private static int[] tokens(int length, int seed) {
+        int[] tokens = new int[length];
+        for (int i = 0; i < length; i++) {
+            tokens[i] = seed * 1000 + i;
+        }
+        return tokens;
+    }
+
+    private static void assertRowsEqual(KVCache expected, KVCache actual, int positions) {
+        float[] e = new float[KV_DIM];
+        float[] a = new float[KV_DIM];
+        for (int pos = 0; pos < positions; pos++) {
+            expected.readValue(pos, e, 0);
+            actual.readValue(pos, a, 0);
+            assertArrayEquals(e, a, "value row " + pos);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.arturskowronski.llama3babylon.hat.sampling;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogitsProcessorTest {
+
+    private static final int VOCAB = 1000;
+
+    @Test
+    public void testTokenCountsGrowAndKeepInsertionOrder() {
+        TokenCounts counts = new TokenCounts(2);
+        for (int round = 0; round < 3; round++) {
+            for (int token = 0; token < 100; token++) {
+                counts.increment(token * 1024); // keys that collide under a plain modulo
+            }
+        }
+        assertEquals(100, counts.size());
+        for (int i = 0; i < counts.size(); i++) {
+            assertEquals(i * 1024, counts.tokenAt(i));
+            assertEquals(3, counts.countAt(i));
+        }
+        assertEquals(3, counts.count(5 * 1024));
+        assertEquals(0, counts.count(7));
+    }
+
+    @Test
+    public void testPenaltiesTouchOnlyGeneratedTokens() {
+        TokenPenalties penalties = new TokenPenalties(0.5f, 1f);
+        penalties.accept(3);
+        penalties.accept(3);
+        penalties.accept(9);
+
+        float[] logits = new float[VOCAB];
+        Arrays.fill(logits, 2f);
+        penalties.process(logits);
+        assertEquals(2f - 2 * 0.5f - 1f, logits[3]);
+        assertEquals(2f - 0.5f - 1f, logits[9]);
+        for (int i = 0; i < VOCAB; i++) {
+            if (i != 3 && i != 9) {
+                assertEquals(2f, logits[i], "Token " + i + " was never generated");
+            }
+        }
+        assertEquals(2, penalties.count(3));
+        assertThrows(IllegalArgumentException.class, () -> new TokenPenalties(Float.NaN, 0f));
+    }
+
+    @Test
+    public void testLogitBiasAddsItsOffsets() {
+        LogitBias bias = LogitBias.of(Map.of(4, -100, 7, 2.5f));
+        float[] logits = new float[VOCAB];
+        bias.process(logits);
+        assertEquals(-100f, logits[4]);
+        assertEquals(2.5f, logits[7]);
+        assertEquals(0f, logits[5]);
+
+        assertThrows(IllegalArgumentException.class, () -> new LogitBias(new int[]{1, 2}, new float[]{1f}));
+        assertThrows(IllegalArgumentException.class, () -> new LogitBias(new int[]{-1}, new float[]{1f}));
+        assertThrows(IllegalArgumentException.class,
+                () -> new LogitBias(new int[]{1}, new float[]{Float.POSITIVE_INFINITY}));
+    }
+
+    @Test
+    public void testGreedySamplerRunsProcessorsBeforePicking() {
+        // Token 0 always has the top logit; the penalty pushes greedy decoding off it
+        Sampler sampler = new Sampler(SamplingParams.GREEDY, new TokenPenalties(0f, 2f),
+                new LogitBias(new int[]{1}, new float[]{-100f}));
+        int[] picked = new int[3];
+        for (int i = 0; i < picked.length; i++) {
+            float[] logits = new float[VOCAB];
+            logits[0] = 3f;
+            logits[1] = 2.5f;
+            logits[2] = 2f;
+            logits[3] = 1.5f;
+            picked[i] = sampler.sample(logits);
+        }
+        assertArrayEquals(new int[]{0, 2, 3}, picked);
+    }
+
+    @Test
+    public void testPresencePenaltyRulesOutRepeatsWhenSampling() {
+        Sampler sampler = new Sampler(SamplingParams.temperature(1f).withTopK(8).withSeed(17),
+                new TokenPenalties(0f, 100f));
+        boolean[] seen = new boolean[VOCAB];
+        for (int i = 0; i < 8; i++) {
+            float[] logits = new float[VOCAB];
+            for (int t = 0; t < 8; t++) {
+                logits[t] = 10f;
+            }
+            int token = sampler.sample(logits);
+            assertTrue(token < 8, "Token " + token + " was never among the top eight");
+            assertFalse(seen[token], "Token " + token + " repeated");
+            seen[token] = true;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.arturskowronski.llama3babylon.hat.sampling;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SamplerTest {
+
+    private static final int VOCAB = 1000;
+
+    @Test
+    public void testGreedyPicksTheTopLogit() {
+        float[] logits = randomLogits(1);
+        int best = Sampler.argmax(logits);
+        assertEquals(best, Sampler.greedy().sample(logits));
+        assertEquals(best, new Sampler(SamplingParams.temperature(0.8f).withTopK(1)).sample(logits));
+        assertTrue(SamplingParams.GREEDY.isGreedy());
+    }
+
+    @Test
+    public void testSeededSamplersRepeatTheirTokens() {
+        SamplingParams params = SamplingParams.temperature(1f).withTopP(0.9f).withSeed(42);
+        Sampler a = new Sampler(params);
+        Sampler b = new Sampler(params);
+        float[] logits = randomLogits(2);
+        boolean varied = false;
+        int first = a.sample(logits);
+        assertEquals(first, b.sample(logits));
+        for (int i = 0; i < 200; i++) {
+            int token = a.sample(logits);
+            assertEquals(token, b.sample(logits));
+            varied |= token != first;
+        }
+        assertTrue(varied, "Sampling at temperature 1 should not always pick the same token");
+    }
+
+    @Test
+    public void testTopKKeepsOnlyTheMostLikelyTokens() {
+        float[] logits = new float[VOCAB];
+        for (int i = 0; i < VOCAB; i++) {
+            logits[i] = (i * 7919) % VOCAB / 100f; // every logit distinct, in scrambled order
+        }
+        Sampler sampler = new Sampler(SamplingParams.temperature(5f).withTopK(10).withSeed(1));
+        int[] counts = new int[VOCAB];
+        for (int i = 0; i < 5000; i++) {
+            int token = sampler.sample(logits);
+            assertTrue(logits[token] >= 9.9f, "Token " + token + " is outside the top 10");
+            counts[token]++;
+        }
+        int seen = 0;
+        for (int count : counts) {
+            seen += count > 0 ? 1 : 0;
+        }
+        assertEquals(10, seen, "A high temperature should spread draws over all ten tokens");
+    }
+
+    @Test
+    public void testTopPKeepsTheSmallestNucleus() {
+        // Probabilities 0.5, 0.25, 0.125, ... in scrambled positions
+        float[] logits = new float[64];
+        Arrays.fill(logits, -50f);
+        int[] order = {17, 3, 40, 8, 29};
+        for (int rank = 0; rank < order.length; rank++) {
+            logits[order[rank]] = (float) (-rank * Math.log(2));
+        }
+        Sampler sampler = new Sampler(SamplingParams.temperature(1f).withTopP(0.8f).withSeed(3));
+        boolean[] seen = new boolean[logits.length];
+        for (int i = 0; i < 2000; i++) {
+            seen[sampler.sample(logits)] = true;
+        }
+        // 0.5 + 0.25 falls short of 0.8, so the nucleus is exactly the top three
+        assertTrue(seen[17] && seen[3] && seen[40]);
+        for (int i = 0; i < seen.length; i++) {
+            if (i != 17 && i != 3 && i != 40) {
+                assertFalse(seen[i], "Token " + i + " is outside the nucleus");
+            }
+        }
+    }
+
+    @Test
+    public void testTopPCutsThroughTies() {
+        float[] logits = new float[VOCAB]; // all equally likely
+        Sampler sampler = new Sampler(SamplingParams.temperature(1f).withTopP(0.01f).withSeed(5));
+        boolean[] seen = new boolean[VOCAB];
+        int distinct = 0;
+        for (int i = 0; i < 2000; i++) {
+            int token = sampler.sample(logits);
+            if (!seen[token]) {
+                seen[token] = true;
+                distinct++;
+            }
+        }
+        assertEquals(10, distinct, "1% of 1000 equally likely tokens is ten of them");
+    }
+
+    @Test
+    public void testMinPDropsUnlikelyTokens() {
+        float[] logits = new float[VOCAB];
+        Arrays.fill(logits, -3f); // e^-3 ~ 0.05 of the top token
+        logits[10] = 0f;
+        logits[20] = -1f;         // e^-1 ~ 0.37 of the top token
+        Sampler sampler = new Sampler(SamplingParams.temperature(1f).withMinP(0.1f).withSeed(9));
+        for (int i = 0; i < 1000; i++) {
+            int token = sampler.sample(logits);
+            assertTrue(token == 10 || token == 20, "Token " + token + " is below min-p");
+        }
+    }
+
+    @Test
+    public void testDrawsFollowTheSoftmax() {
+        float[] logits = {0f, (float) Math.log(2), (float) Math.log(3), (float) Math.log(4)};
+        Sampler sampler = new Sampler(SamplingParams.temperature(1f).withSeed(11));
+        int draws = 100_000;
+        int[] counts = new int[logits.length];
+        for (int i = 0; i < draws; i++) {
+            counts[sampler.sample(logits)]++;
+        }
+        for (int i = 0; i < logits.length; i++) {
+            assertEquals((i + 1) / 10.0, counts[i] / (double) draws, 0.01, "Token " + i);
+        }
+    }
+
+    @Test
+    public void testInvalidParametersAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> SamplingParams.temperature(-1f));
+        assertThrows(IllegalArgumentException.class, () -> SamplingParams.temperature(Float.NaN));
+        assertThrows(IllegalArgumentException.class, () -> SamplingParams.temperature(1f).withTopK(-1));
+        assertThrows(IllegalArgumentException.class, () -> SamplingParams.temperature(1f).withTopP(0f));
+        assertThrows(IllegalArgumentException.class, () -> SamplingParams.temperature(1f).withTopP(1.5f));
+        assertThrows(IllegalArgumentException.class, () -> SamplingParams.temperature(1f).withMinP(1f));
+    }
+
+    private static float[] randomLogits(long seed) {
+        Random random = new Random(seed);
+        float[] logits = new float[VOCAB];
+        for (int i = 0; i < VOCAB; i++) {
+            logits[i] = (float) random.nextGaussian() * 3f;
+        }
+        return logits;
+    }
+}
@@ -0,0 +1,60 @@
+package com.arturskowronski.llama3babylon.hat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JsonTest {
+
+    @Test
+    public void testParsesChatRequest() {
+        Object parsed = Json.parse("""
+                {"model": "llama", "stream": true, "max_tokens": 64, "temperature": 0.7,
+                 "messages": [{"role": "user", "content": "Hi \\"there\\"\\n\\u00e9"}], "stop": null}
+                """);
+
+        Map<?, ?> body = assertInstanceOf(Map.class, parsed);
+        assertEquals("llama", body.get("model"));
+        assertEquals(Boolean.TRUE, body.get("stream"));
+        assertEquals(64L, body.get("max_tokens"));
+        assertEquals(0.7, body.get("temperature"));
+        assertTrue(body.containsKey("stop"));
+        assertNull(body.get("stop"));
+        List<?> messages = assertInstanceOf(List.class, body.get("messages"));
+        assertEquals(Map.of("role", "user", "content", "Hi \"there\"\né"), messages.get(0));
+    }
+
+    @Test
+    public void testWriteRoundTrips() {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("text", "line\nbreak \"quoted\" \\ tab\t \u0001 世界 😀");
+        value.put("count", 3);
+        value.put("ratio", 0.25);
+        value.put("list", Arrays.asList(1L, false, null, List.of()));
+        value.put("empty", Map.of());
+
+        String json = Json.write(value);
+        assertEquals(value.toString(), Json.parse(json).toString());
+        assertTrue(json.startsWith("{\"text\":\"line\\nbreak \\\"quoted\\\" \\\\ tab\\t \\u0001"), json);
+    }
+
+    @Test
+    public void testNumbers() {
+        assertEquals(-12L, Json.parse("-12"));
+        assertEquals(1.5e3, Json.parse("1.5e3"));
+        assertEquals(1e19, Json.parse("10000000000000000000"));
+        assertEquals("null", Json.write(Double.NaN));
+    }
+
+    @Test
+    public void testRejectsMalformedInput() {
+        for (String bad : new String[]{"", "{", "{\"a\" 1}", "[1,]", "\"open", "tru", "{} x", "\"\\q\"", "-"}) {
+            assertThrows(IllegalArgumentException.class, () -> Json.parse(bad), bad);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.arturskowronski.llama3babylon.hat.stream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyRecorderTest {
+
+    @Test
+    public void testNearestRankPercentiles() {
+        LatencyRecorder recorder = new LatencyRecorder(100);
+        assertEquals(0, recorder.percentile(50));
+        for (int i = 100; i >= 1; i--) {
+            recorder.record(i);
+        }
+        assertEquals(1, recorder.percentile(0));
+        assertEquals(50, recorder.percentile(50));
+        assertEquals(99, recorder.percentile(99));
+        assertEquals(100, recorder.percentile(100));
+        assertEquals(100, recorder.maxNanos());
+        assertEquals(100, recorder.count());
+        assertThrows(IllegalArgumentException.class, () -> recorder.percentile(101));
+    }
+
+    @Test
+    public void testPercentilesCoverOnlyTheWindow() {
+        LatencyRecorder recorder = new LatencyRecorder(4);
+        recorder.record(1_000);
+        for (int i = 0; i < 4; i++) {
+            recorder.record(10);
+        }
+        assertEquals(10, recorder.percentile(100), "The oldest sample should have left the window");
+        assertEquals(1_000, recorder.maxNanos());
+        assertEquals(5, recorder.count());
+    }
+}
@@ -0,0 +1,135 @@
+package com.arturskowronski.llama3babylon.hat.stream;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenPublisherTest {
+
+    @Test
+    public void testPublishesEveryTokenThenCompletes() throws Exception {
+        try (ExecutorService executor = Executors.newSingleThreadExecutor()) {
+            TokenPublisher publisher = new TokenPublisher(fakeGeneration(5), executor);
+            Collector collector = new Collector(Long.MAX_VALUE);
+            publisher.subscribe(collector);
+
+            collector.done.get(5, TimeUnit.SECONDS);
+            assertEquals(List.of("t0", "t1", "t2", "t3", "t4"), collector.texts());
+            GenerationStats stats = publisher.stats().get(5, TimeUnit.SECONDS);
+            assertEquals(5, stats.generatedTokens());
+            assertEquals(GenerationStats.StopReason.MAX_TOKENS, stats.reason());
+        }
+    }
+
+    @Test
+    public void testCancellingTheSubscriptionStopsGeneration() throws Exception {
+        try (ExecutorService executor = Executors.newSingleThreadExecutor()) {
+            TokenPublisher publisher = new TokenPublisher(fakeGeneration(10_000), executor, 4);
+            Collector collector = new Collector(3);
+            publisher.subscribe(collector);
+
+            GenerationStats stats = publisher.stats().get(5, TimeUnit.SECONDS);
+            assertEquals(GenerationStats.StopReason.CANCELLED, stats.reason());
+            assertTrue(stats.generatedTokens() < 10_000, "generated " + stats.generatedTokens());
+            assertEquals(List.of("t0", "t1", "t2"), collector.texts());
+        }
+    }
+
+    @Test
+    public void testGenerationFailureCompletesExceptionally() throws Exception {
+        try (ExecutorService executor = Executors.newSingleThreadExecutor()) {
+            TokenPublisher publisher = new TokenPublisher(listener -> {
+                listener.onToken(1, "a");
+                throw new IllegalStateException("boom");
+            }, executor);
+            Collector collector = new Collector(Long.MAX_VALUE);
+            publisher.subscribe(collector);
+
+            Exception e = assertThrows(Exception.class, () -> collector.done.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+            assertTrue(publisher.stats().isCompletedExceptionally());
+        }
+    }
+
+    @Test
+    public void testRejectsSecondSubscriber() throws Exception {
+        try (ExecutorService executor = Executors.newSingleThreadExecutor()) {
+            TokenPublisher publisher = new TokenPublisher(fakeGeneration(1), executor);
+            publisher.subscribe(new Collector(Long.MAX_VALUE));
+            Collector second = new Collector(Long.MAX_VALUE);
+            publisher.subscribe(second);
+
+            Exception e = assertThrows(Exception.class, () -> second.done.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+        }
+    }
+
+    /** Emits {@code tokens} tokens, honouring cancellation like the inference loop does. */
+    private static Consumer<TokenListener> fakeGeneration(int tokens) {
+        return listener -> {
+            long start = System.nanoTime();
+            int generated = 0;
+            GenerationStats.StopReason reason = GenerationStats.StopReason.MAX_TOKENS;
+            while (generated < tokens) {
+                listener.onToken(generated, "t" + generated);
+                generated++;
+                if (generated < tokens && listener.isCancelled()) {
+                    reason = GenerationStats.StopReason.CANCELLED;
+                    break;
+                }
+            }
+            long total = System.nanoTime() - start;
+            listener.onComplete(new GenerationStats(0, 0, generated, 0, total, reason));
+        };
+    }
+
+    /** Requests up to {@code limit} tokens, then cancels. */
+    private static final class Collector implements Flow.Subscriber<StreamedToken> {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final List<StreamedToken> received = new CopyOnWriteArrayList<>();
+        private final long limit;
+        private Flow.Subscription subscription;
+
+        Collector(long limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(limit);
+        }
+
+        @Override
+        public void onNext(StreamedToken item) {
+            received.add(item);
+            if (received.size() == limit) {
+                subscription.cancel();
+                done.complete(null);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            done.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            done.complete(null);
+        }
+
+        List<String> texts() {
+            return received.stream().map(StreamedToken::text).toList();
+        }
+    }
+}